@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering the summary comment for an analysis, which reads the issue counts and quality gate, and the
+ * comment for every open issue in the analysis, which is what decorators posting a comment per issue do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnalysisDetailsBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    private int issueCount;
+
+    private AnalysisDetails analysisDetails;
+    private List<PostAnalysisIssueVisitor.ComponentIssue> openIssues;
+    private MarkdownFormatterFactory formatterFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AnalysisFixture fixture = AnalysisFixture.create(issueCount);
+        analysisDetails = fixture.getAnalysisDetails();
+        openIssues = fixture.getOpenIssues();
+        formatterFactory = new MarkdownFormatterFactory();
+    }
+
+    @Benchmark
+    public String createAnalysisSummary() {
+        return analysisDetails.createAnalysisSummary(formatterFactory);
+    }
+
+    @Benchmark
+    public void createAnalysisIssueSummaries(Blackhole blackhole) {
+        for (PostAnalysisIssueVisitor.ComponentIssue componentIssue : openIssues) {
+            blackhole.consume(analysisDetails.createAnalysisIssueSummary(componentIssue, formatterFactory));
+        }
+    }
+}
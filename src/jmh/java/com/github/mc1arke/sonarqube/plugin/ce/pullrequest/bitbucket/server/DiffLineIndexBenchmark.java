@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Diff;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffLine;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.File;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Hunk;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Segment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures classifying the line of every open issue against a synthetic Bitbucket diff covering every file with
+ * issues, both through the decorator's deprecated per-issue lookup, which re-uses the index of the last diff it was
+ * given, and by building a single index for the diff and querying it for each issue, as decoration does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiffLineIndexBenchmark {
+
+    private static final int HUNK_SPACING = 100;
+    private static final int HUNK_LINES = 30;
+
+    @Param({"100", "10000", "100000"})
+    private int issueCount;
+
+    private DiffPage diffPage;
+    private String[] issuePaths;
+    private int[] issueLines;
+    private BitbucketServerPullRequestDecorator decorator;
+    private int nextIssue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AnalysisFixture fixture = AnalysisFixture.create(issueCount);
+
+        List<Diff> diffs = new ArrayList<>();
+        for (String path : fixture.getPaths()) {
+            List<Hunk> hunks = new ArrayList<>();
+            for (int start = 1; start < fixture.getLinesPerFile(); start += HUNK_SPACING) {
+                hunks.add(hunk(start));
+            }
+            diffs.add(new Diff("from", "to", hunks, null, new File(null, null, null, path, Collections.emptyList())));
+        }
+        diffPage = new DiffPage("from", "to", false, diffs);
+
+        List<PostAnalysisIssueVisitor.ComponentIssue> openIssues = fixture.getOpenIssues();
+        issuePaths = new String[openIssues.size()];
+        issueLines = new int[openIssues.size()];
+        for (int i = 0; i < openIssues.size(); i++) {
+            PostAnalysisIssueVisitor.ComponentIssue componentIssue = openIssues.get(i);
+            issuePaths[i] = componentIssue.getComponent().getReportAttributes().getScmPath().orElse(null);
+            issueLines[i] = Optional.ofNullable(componentIssue.getIssue().getLine()).orElse(0);
+        }
+
+        decorator = new BitbucketServerPullRequestDecorator(null, null, null);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public String getIssueType() {
+        int issue = nextIssue;
+        nextIssue = (issue + 1) % issuePaths.length;
+        return decorator.getIssueType(diffPage, issuePaths[issue], issueLines[issue]);
+    }
+
+    @Benchmark
+    public void indexAndClassifyAllIssues(Blackhole blackhole) {
+        DiffLineIndex diffLineIndex = DiffLineIndex.of(diffPage);
+        for (int i = 0; i < issuePaths.length; i++) {
+            blackhole.consume(diffLineIndex.getType(issuePaths[i], issueLines[i]));
+        }
+    }
+
+    private static Hunk hunk(int start) {
+        List<Segment> segments = new ArrayList<>();
+        segments.add(segment("CONTEXT", start, start, 3));
+        segments.add(segment("REMOVED", start + 3, start + 3, 5));
+        segments.add(segment("ADDED", start + 3, start + 3, 10));
+        segments.add(segment("CONTEXT", start + 8, start + 13, HUNK_LINES - 13));
+        return new Hunk(null, start, HUNK_LINES, start, HUNK_LINES, segments);
+    }
+
+    private static Segment segment(String type, int firstSource, int firstDestination, int count) {
+        List<DiffLine> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(new DiffLine(firstSource + i, firstDestination + i, "line " + (firstDestination + i), false,
+                                   Collections.emptyList()));
+        }
+        return new Segment(type, lines, false);
+    }
+}
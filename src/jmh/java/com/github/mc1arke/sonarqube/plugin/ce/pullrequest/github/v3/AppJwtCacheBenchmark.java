@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getting a Github App JWT when the cached JWT can be re-used, and when it has to be signed again because
+ * the previous one is close to expiry, which is the cost every installation token request paid before JWTs were
+ * cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AppJwtCacheBenchmark {
+
+    private static final String CACHED_APP_ID = "12345";
+    private static final String SIGNED_APP_ID = "67890";
+
+    private String apiPrivateKey;
+    private AppJwtCache appJwtCache;
+    private Clock fixedClock;
+    private AdvancingClock advancingClock;
+
+    @Setup(Level.Trial)
+    public void setUp() throws NoSuchAlgorithmException, IOException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter pemWriter = new JcaPEMWriter(pem)) {
+            pemWriter.writeObject(keyPairGenerator.generateKeyPair());
+        }
+        apiPrivateKey = pem.toString();
+
+        appJwtCache = new AppJwtCache();
+        fixedClock = Clock.fixed(Instant.parse("2019-10-01T12:00:00Z"), ZoneOffset.UTC);
+        advancingClock = new AdvancingClock(fixedClock.instant());
+    }
+
+    @Benchmark
+    public String cachedJwt() throws IOException {
+        return appJwtCache.getJwt(CACHED_APP_ID, apiPrivateKey, fixedClock);
+    }
+
+    @Benchmark
+    public String signedJwt() throws IOException {
+        return appJwtCache.getJwt(SIGNED_APP_ID, apiPrivateKey, advancingClock);
+    }
+
+    /**
+     * Moves past the point the previous JWT would be refreshed each time it's read, so every request signs a new JWT.
+     */
+    private static final class AdvancingClock extends Clock {
+
+        private Instant instant;
+
+        private AdvancingClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public Instant instant() {
+            instant = instant.plus(AppJwtCache.JWT_VALIDITY);
+            return instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
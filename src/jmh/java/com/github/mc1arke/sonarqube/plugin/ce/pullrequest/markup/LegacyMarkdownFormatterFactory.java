@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
+
+import java.util.stream.IntStream;
+
+/**
+ * A copy of {@link MarkdownFormatterFactory} as it was before formatters could append to a shared output, with each
+ * formatter building and returning a String for its node and all of its children, and finding the formatter for each
+ * child through a chain of type checks. It's only kept so the benchmarks can compare the current formatters against it.
+ */
+final class LegacyMarkdownFormatterFactory implements FormatterFactory {
+
+    @Override
+    public Formatter<Document> documentFormatter() {
+        return new LegacyFormatter<Document>() {
+            @Override
+            public String format(Document node, FormatterFactory formatterFactory) {
+                return childContents(node, formatterFactory);
+            }
+        };
+    }
+
+    @Override
+    public Formatter<Heading> headingFormatter() {
+        return new LegacyFormatter<Heading>() {
+            @Override
+            public String format(Heading node, FormatterFactory formatterFactory) {
+                StringBuilder output = new StringBuilder();
+                IntStream.range(0, node.getLevel()).forEach(i -> output.append("#"));
+                return output.append(" ").append(childContents(node, formatterFactory)).append(System.lineSeparator())
+                        .toString();
+            }
+        };
+    }
+
+    @Override
+    public Formatter<Image> imageFormatter() {
+        return new LegacyFormatter<Image>() {
+            @Override
+            public String format(Image node, FormatterFactory formatterFactory) {
+                return String.format("![%s](%s)", node.getAltText(), node.getSource());
+            }
+        };
+    }
+
+    @Override
+    public Formatter<Link> linkFormatter() {
+        return new LegacyFormatter<Link>() {
+            @Override
+            public String format(Link node, FormatterFactory formatterFactory) {
+                return String.format("[%s](%s)", node.getChildren().isEmpty() ? node.getUrl() : childContents(node, formatterFactory), node.getUrl());
+            }
+        };
+    }
+
+    @Override
+    public Formatter<List> listFormatter() {
+        return new LegacyFormatter<List>() {
+            @Override
+            public String format(List node, FormatterFactory formatterFactory) {
+                StringBuilder output = new StringBuilder();
+                node.getChildren().forEach(i -> {
+                    if (node.getStyle() == List.Style.BULLET) {
+                        output.append("- ").append(listItemFormatter().format((ListItem) i, formatterFactory));
+                    } else {
+                        throw new IllegalArgumentException("Unknown list type: " + node.getStyle());
+                    }
+                    output.append(System.lineSeparator());
+                });
+                output.append(System.lineSeparator());
+                return output.toString();
+            }
+        };
+    }
+
+    @Override
+    public Formatter<ListItem> listItemFormatter() {
+        return new LegacyFormatter<ListItem>() {
+            @Override
+            public String format(ListItem node, FormatterFactory formatterFactory) {
+                return childContents(node, formatterFactory);
+            }
+        };
+    }
+
+    @Override
+    public Formatter<Paragraph> paragraphFormatter() {
+        return new LegacyFormatter<Paragraph>() {
+            @Override
+            public String format(Paragraph node, FormatterFactory formatterFactory) {
+                return childContents(node, formatterFactory) + System.lineSeparator() + System.lineSeparator();
+            }
+        };
+    }
+
+    @Override
+    public Formatter<Text> textFormatter() {
+        return new LegacyFormatter<Text>() {
+            @Override
+            public String format(Text node, FormatterFactory formatterFactory) {
+                return node.getContent();
+            }
+        };
+    }
+
+    private abstract static class LegacyFormatter<N extends Node> implements Formatter<N> {
+
+        String childContents(Node node, FormatterFactory formatterFactory) {
+            StringBuilder output = new StringBuilder();
+            node.getChildren().forEach(n -> output.append(formatterFor(formatterFactory, n).format(n, formatterFactory)));
+            return output.toString();
+        }
+
+        private static <N extends Node> Formatter<N> formatterFor(FormatterFactory formatterFactory, N node) {
+            if (node instanceof Document) {
+                return (Formatter<N>) formatterFactory.documentFormatter();
+            } else if (node instanceof Heading) {
+                return (Formatter<N>) formatterFactory.headingFormatter();
+            } else if (node instanceof Image) {
+                return (Formatter<N>) formatterFactory.imageFormatter();
+            } else if (node instanceof List) {
+                return (Formatter<N>) formatterFactory.listFormatter();
+            } else if (node instanceof ListItem) {
+                return (Formatter<N>) formatterFactory.listItemFormatter();
+            } else if (node instanceof Paragraph) {
+                return (Formatter<N>) formatterFactory.paragraphFormatter();
+            } else if (node instanceof Text) {
+                return (Formatter<N>) formatterFactory.textFormatter();
+            } else if (node instanceof Link) {
+                return (Formatter<N>) formatterFactory.linkFormatter();
+            } else {
+                throw new IllegalArgumentException("Unknown node type: " + node.getClass().getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a Markdown document with an entry for each open issue in an analysis, comparing the formatters
+ * that used to build a String for each node using <code>String.format</code> ({@link LegacyMarkdownFormatterFactory})
+ * with the current formatters, both when they return a String and when they append every node to a single output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarkdownRenderingBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    private int issueCount;
+
+    private Document document;
+    private MarkdownFormatterFactory formatterFactory;
+    private LegacyMarkdownFormatterFactory legacyFormatterFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AnalysisFixture fixture = AnalysisFixture.create(issueCount);
+        String baseImageUrl = fixture.getAnalysisDetails().getBaseImageUrl();
+
+        ListItem[] items = new ListItem[issueCount];
+        int i = 0;
+        for (PostAnalysisIssueVisitor.ComponentIssue componentIssue : fixture.getOpenIssues()) {
+            DefaultIssue issue = componentIssue.getIssue();
+            items[i++] = new ListItem(new Image(issue.severity(), baseImageUrl + "/checks/Severity/" +
+                                                                 issue.severity().toLowerCase() + ".svg?sanitize=true"),
+                                      new Text(" "), new Text(issue.getMessage()), new Text(" "),
+                                      new Link(baseImageUrl + "/project/issues?issues=" + issue.key(),
+                                               new Text("View in SonarQube")));
+        }
+        document = new Document(new Heading(1, new Text("Analysis Details")),
+                                new Paragraph(new Text(issueCount + " Issues")), new List(List.Style.BULLET, items));
+        formatterFactory = new MarkdownFormatterFactory();
+        legacyFormatterFactory = new LegacyMarkdownFormatterFactory();
+    }
+
+    @Benchmark
+    public String formatWithLegacyFormatters() {
+        return legacyFormatterFactory.documentFormatter().format(document, legacyFormatterFactory);
+    }
+
+    @Benchmark
+    public String formatToString() {
+        return formatterFactory.documentFormatter().format(document, formatterFactory);
+    }
+
+    @Benchmark
+    public StringBuilder formatToAppendable() throws IOException {
+        StringBuilder output = new StringBuilder();
+        formatterFactory.documentFormatter().format(document, formatterFactory, output);
+        return output;
+    }
+}
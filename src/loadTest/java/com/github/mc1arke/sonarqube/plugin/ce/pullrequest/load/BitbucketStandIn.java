@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server.BitbucketServerPullRequestDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import org.sonar.api.platform.Server;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.delete;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+
+/**
+ * Serves the Bitbucket Server REST API for pull requests in a single project repository. The diff has a hunk every
+ * hundred lines of each file in the analysis, so issues fall on added, removed and context lines, and outside the
+ * diff altogether.
+ */
+final class BitbucketStandIn extends StandIn {
+
+    private static final String PROJECT_KEY = "PROJ";
+    private static final String REPOSITORY_SLUG = "generated-project";
+    private static final String USER_SLUG = "sonarqube";
+    private static final String PULL_REQUEST_PATH =
+            "/rest/api/1.0/projects/" + PROJECT_KEY + "/repos/" + REPOSITORY_SLUG + "/pull-requests/[0-9]+";
+    private static final int LINES_PER_HUNK = 100;
+    private static final String BASE_COMMIT = String.format("%040x", 0);
+
+    BitbucketStandIn(StandInSettings settings, LoadTestSettings loadTestSettings, AnalysisFixture analysis) {
+        super("bitbucket", settings, loadTestSettings, analysis);
+    }
+
+    @Override
+    void registerStubs() {
+        List<ObjectNode> activities = new ArrayList<>();
+        for (int i = 1; i <= getLoadTestSettings().getExistingComments(); i++) {
+            ObjectNode activity = object().put("id", i);
+            activity.set("comment", comment(i, "Comment from a previous analysis"));
+            activities.add(activity);
+        }
+        stubPages(PULL_REQUEST_PATH + "/activities", activities);
+
+        List<ObjectNode> commits = new ArrayList<>();
+        for (String commitSha : getAnalysis().getCommitShas()) {
+            commits.add(object().put("id", commitSha));
+        }
+        stubPages(PULL_REQUEST_PATH + "/commits", commits);
+
+        stub(get(urlPathMatching(PULL_REQUEST_PATH + "/diff")).willReturn(json(200, diff())));
+        stub(post(urlPathMatching(PULL_REQUEST_PATH + "/comments"))
+                     .willReturn(json(201, comment(1, "Posted comment"))));
+        stub(put(urlPathMatching(PULL_REQUEST_PATH + "/comments/[0-9]+"))
+                     .willReturn(json(200, comment(1, "Updated comment"))));
+        stub(delete(urlPathMatching(PULL_REQUEST_PATH + "/comments/[0-9]+")).willReturn(aResponse().withStatus(204)));
+    }
+
+    @Override
+    Map<String, String> getProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_URL, getBaseUrl());
+        properties.put(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_TOKEN, "load-test-token");
+        properties.put(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_PROJECT_KEY, PROJECT_KEY);
+        properties.put(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_REPOSITORY_SLUG, REPOSITORY_SLUG);
+        properties.put(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_USER_SLUG, USER_SLUG);
+        return properties;
+    }
+
+    @Override
+    PullRequestBuildStatusDecorator createDecorator(Server server, ConfigurationRepository configurationRepository,
+                                                    ScmInfoRepository scmInfoRepository,
+                                                    HttpClientProvider httpClientProvider) {
+        return new BitbucketServerPullRequestDecorator(configurationRepository, scmInfoRepository,
+                                                       httpClientProvider);
+    }
+
+    private void stubPages(String path, List<ObjectNode> items) {
+        List<List<ObjectNode>> pages = pages(items);
+        int start = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            List<ObjectNode> values = pages.get(i);
+            ObjectNode page = object().put("size", values.size()).put("limit", getSettings().getPageSize())
+                    .put("isLastPage", i == pages.size() - 1).put("start", start)
+                    .put("nextPageStart", start + values.size());
+            page.putArray("values").addAll(values);
+
+            MappingBuilder request = get(urlPathMatching(path));
+            request = 0 == i ? request.withQueryParam("start", absent()) :
+                      request.withQueryParam("start", equalTo(String.valueOf(start)));
+            stub(request.willReturn(json(200, page)));
+            start += values.size();
+        }
+    }
+
+    private ObjectNode diff() {
+        ObjectNode diffPage = object().put("fromHash", BASE_COMMIT)
+                .put("toHash", getAnalysis().getCommitShas().get(getAnalysis().getCommitShas().size() - 1))
+                .put("truncated", false);
+        ArrayNode diffs = diffPage.putArray("diffs");
+        for (String path : getAnalysis().getPaths()) {
+            ObjectNode diff = diffs.addObject();
+            diff.set("source", file(path));
+            diff.set("destination", file(path));
+            ArrayNode hunks = diff.putArray("hunks");
+            for (int line = 1; line + LINES_PER_HUNK <= getAnalysis().getLinesPerFile(); line += LINES_PER_HUNK) {
+                hunks.add(hunk(line));
+            }
+        }
+        return diffPage;
+    }
+
+    private static ObjectNode hunk(int firstLine) {
+        // 3 lines of context, 2 lines removed and replaced by 10 lines, then 3 more lines of context
+        ObjectNode hunk = object().put("context", "").put("sourceLine", firstLine).put("sourceSpan", 8)
+                .put("destinationLine", firstLine).put("destinationSpan", 16);
+        ArrayNode segments = hunk.putArray("segments");
+        segments.add(segment("CONTEXT", firstLine, firstLine, 3, 1, 1));
+        segments.add(segment("REMOVED", firstLine + 3, firstLine + 3, 2, 1, 0));
+        segments.add(segment("ADDED", firstLine + 5, firstLine + 3, 10, 0, 1));
+        segments.add(segment("CONTEXT", firstLine + 5, firstLine + 13, 3, 1, 1));
+        return hunk;
+    }
+
+    private static ObjectNode segment(String type, int source, int destination, int lines, int sourceStep,
+                                      int destinationStep) {
+        ObjectNode segment = object().put("type", type).put("truncated", false);
+        ArrayNode diffLines = segment.putArray("lines");
+        for (int i = 0; i < lines; i++) {
+            diffLines.addObject().put("source", source + i * sourceStep)
+                    .put("destination", destination + i * destinationStep).put("line", "    generated();")
+                    .put("truncated", false);
+        }
+        return segment;
+    }
+
+    private static ObjectNode file(String path) {
+        int separator = path.lastIndexOf('/');
+        String name = path.substring(separator + 1);
+        ObjectNode file = object().put("parent", path.substring(0, separator)).put("name", name)
+                .put("extension", name.substring(name.lastIndexOf('.') + 1)).put("toString", path);
+        ArrayNode components = file.putArray("components");
+        for (String component : path.split("/")) {
+            components.add(component);
+        }
+        return file;
+    }
+
+    private static ObjectNode comment(int id, String text) {
+        ObjectNode comment = object().put("id", id).put("version", 0).put("text", text);
+        comment.putObject("author").put("name", USER_SLUG).put("slug", USER_SLUG);
+        return comment;
+    }
+}
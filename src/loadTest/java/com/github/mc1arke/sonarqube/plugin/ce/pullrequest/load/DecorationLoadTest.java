@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.platform.Server;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Decorates generated pull request analyses against local stand-ins for Bitbucket Server, Gitlab and Github, with a
+ * number of analyses being decorated at once, and reports the decoration throughput and latency, the HTTP calls made
+ * and the peak heap used. Run with <code>./gradlew loadTest</code>, setting <code>-DloadTest.*</code> properties to
+ * change the load or the behaviour of the stand-ins (see {@link LoadTestSettings}).
+ *
+ * Each stand-in is run in turn, with its own HTTP client, after a warm-up so the results don't include class loading
+ * or JIT compilation.
+ */
+public final class DecorationLoadTest {
+
+    private static final long DECORATION_TIMEOUT_MINUTES = 60;
+
+    private DecorationLoadTest() {
+        super();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadTestSettings settings = LoadTestSettings.fromSystemProperties();
+        System.out.println(String.format(
+                "Decorating %s pull requests with %s open issues each, %s at a time, after %s warm-up decorations",
+                settings.getDecorations(), settings.getIssues(), settings.getConcurrency(),
+                settings.getWarmupDecorations()));
+
+        // every worker decorates its own pull request, as concurrent analyses in the Compute Engine would
+        List<AnalysisFixture> analyses = new ArrayList<>(settings.getConcurrency());
+        for (int i = 1; i <= settings.getConcurrency(); i++) {
+            analyses.add(AnalysisFixture.create(String.valueOf(i), settings.getIssues()));
+        }
+
+        List<LoadTestResult> results = new ArrayList<>();
+        for (String alm : settings.getAlms()) {
+            StandIn standIn = StandIn.create(alm, settings, analyses.get(0));
+            System.out.println(String.format("Running against %s stand-in: %s", alm, standIn.getSettings()));
+            results.add(run(standIn, settings, analyses));
+        }
+
+        System.out.println();
+        System.out.println(LoadTestResult.formatHeader());
+        for (LoadTestResult result : results) {
+            System.out.println(result.formatRow());
+            if (result.getUnmatchedRequests() > 0) {
+                System.out.println(String.format("  %s requests to the %s stand-in weren't matched by any response",
+                                                 result.getUnmatchedRequests(), result.getAlm()));
+            }
+        }
+
+        if (settings.getReportFile().isPresent()) {
+            writeReport(settings, results, settings.getReportFile().get());
+        }
+    }
+
+    private static LoadTestResult run(StandIn standIn, LoadTestSettings settings, List<AnalysisFixture> analyses)
+            throws IOException, InterruptedException {
+        standIn.start();
+        Configuration configuration = createConfiguration(standIn, settings);
+        ConfigurationRepository configurationRepository =
+                mock(ConfigurationRepository.class, withSettings().stubOnly());
+        doReturn(configuration).when(configurationRepository).getConfiguration();
+        Server server = mock(Server.class, withSettings().stubOnly());
+        doReturn("https://sonarqube.example.com").when(server).getPublicRootUrl();
+
+        try (HttpClientProvider httpClientProvider = new HttpClientProvider(configuration)) {
+            // the analyses share the same SCM history, so any of them can provide it
+            PullRequestBuildStatusDecorator decorator =
+                    standIn.createDecorator(server, configurationRepository, analyses.get(0).getScmInfoRepository(),
+                                            httpClientProvider);
+
+            // warm-up decorations are recorded separately, so they don't appear in the results
+            DecorationMetrics warmupMetrics = new DecorationMetrics();
+            decorate(decorator, configuration, analyses, settings.getWarmupDecorations(), warmupMetrics);
+            warmupMetrics.stop();
+            standIn.getFaultInjector().reset();
+            System.gc();
+
+            DecorationMetrics metrics = new DecorationMetrics();
+            HeapSampler heapSampler = HeapSampler.start();
+            long startedAt = System.nanoTime();
+            Decorations decorations = decorate(decorator, configuration, analyses, settings.getDecorations(), metrics);
+            long elapsedNanos = System.nanoTime() - startedAt;
+            long peakHeapBytes = heapSampler.stop();
+
+            LoadTestResult result =
+                    new LoadTestResult(standIn, decorations.failed.get(), elapsedNanos, decorations.latencyNanos,
+                                       metrics.getDecoratorMetrics(decorator.name()), peakHeapBytes);
+            metrics.stop();
+            return result;
+        } finally {
+            standIn.stop();
+        }
+    }
+
+    private static Configuration createConfiguration(StandIn standIn, LoadTestSettings settings) {
+        MapSettings mapSettings = new MapSettings();
+        mapSettings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_COMMENT_SUMMARY_ENABLED, "true");
+        mapSettings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_ENABLED, "true");
+        mapSettings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "true");
+        standIn.getProperties().forEach(mapSettings::setProperty);
+        // plugin properties given on the command line override the defaults, but not where the stand-in is
+        settings.getPluginProperties().forEach((key, value) -> {
+            if (!standIn.getProperties().containsKey(key)) {
+                mapSettings.setProperty(key, value);
+            }
+        });
+        return mapSettings.asConfig();
+    }
+
+    private static Decorations decorate(PullRequestBuildStatusDecorator decorator, Configuration configuration,
+                                        List<AnalysisFixture> analyses, int count, DecorationMetrics metrics)
+            throws InterruptedException {
+        Decorations decorations = new Decorations(count);
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(analyses.size());
+        for (AnalysisFixture analysis : analyses) {
+            executorService.execute(() -> {
+                int decoration;
+                while ((decoration = next.getAndIncrement()) < count) {
+                    decorations.latencyNanos[decoration] = decorate(decorator, configuration,
+                                                                    analysis.getAnalysisDetails(), metrics,
+                                                                    decorations);
+                }
+            });
+        }
+        executorService.shutdown();
+        if (!executorService.awaitTermination(DECORATION_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            throw new IllegalStateException(
+                    String.format("Decorations did not complete within %s minutes", DECORATION_TIMEOUT_MINUTES));
+        }
+        Throwable firstFailure = decorations.firstFailure.get();
+        if (null != firstFailure) {
+            System.err.println(String.format("%s of %s decorations failed. The first failure was:",
+                                             decorations.failed.get(), count));
+            firstFailure.printStackTrace();
+        }
+        return decorations;
+    }
+
+    private static long decorate(PullRequestBuildStatusDecorator decorator, Configuration configuration,
+                                 AnalysisDetails analysisDetails, DecorationMetrics metrics, Decorations decorations) {
+        // the Compute Engine prepares the decoration whilst the analysis report is still available, before queueing it
+        AnalysisDetails snapshot = analysisDetails.snapshot(configuration, decorator.prepare(analysisDetails));
+        boolean failed = true;
+        DecorationRecording recording = metrics.startRecording(decorator.name());
+        long startedAt = System.nanoTime();
+        try {
+            decorator.decorateQualityGateStatus(snapshot);
+            failed = false;
+        } catch (RuntimeException ex) {
+            decorations.failed.incrementAndGet();
+            decorations.firstFailure.compareAndSet(null, ex);
+        } finally {
+            recording.finish(failed);
+        }
+        return System.nanoTime() - startedAt;
+    }
+
+    private static void writeReport(LoadTestSettings settings, List<LoadTestResult> results, File reportFile)
+            throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("concurrency", settings.getConcurrency());
+        report.put("decorations", settings.getDecorations());
+        report.put("warmupDecorations", settings.getWarmupDecorations());
+        report.put("issues", settings.getIssues());
+        report.put("existingComments", settings.getExistingComments());
+        List<Map<String, Object>> standIns = new ArrayList<>(results.size());
+        for (LoadTestResult result : results) {
+            standIns.add(result.toMap());
+        }
+        report.put("results", standIns);
+
+        File reportDirectory = reportFile.getAbsoluteFile().getParentFile();
+        if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+            throw new IOException("Could not create directory " + reportDirectory);
+        }
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(reportFile, report);
+        System.out.println("Results written to " + reportFile);
+    }
+
+    private static final class Decorations {
+
+        private final long[] latencyNanos;
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+        private Decorations(int count) {
+            this.latencyNanos = new long[count];
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.common.FileSource;
+import com.github.tomakehurst.wiremock.extension.Parameters;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformer;
+import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delays every response from a stand-in by its configured latency and jitter, and fails a random fraction of requests
+ * with a 503 response, as an overloaded ALM would. Every request is counted here as well as in the decorators' own
+ * metrics, so the two counts can be compared.
+ */
+final class FaultInjector extends ResponseDefinitionTransformer {
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final int NOT_FOUND = 404;
+
+    private final StandInSettings settings;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder unmatchedRequests = new LongAdder();
+
+    FaultInjector(StandInSettings settings) {
+        super();
+        this.settings = settings;
+    }
+
+    @Override
+    public ResponseDefinition transform(Request request, ResponseDefinition responseDefinition, FileSource files,
+                                        Parameters parameters) {
+        requests.increment();
+        if (NOT_FOUND == responseDefinition.getStatus()) {
+            // a request the stand-in doesn't serve, which would otherwise look like a fault in the decorator
+            unmatchedRequests.increment();
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ResponseDefinitionBuilder response;
+        if (random.nextDouble() < settings.getErrorRate()) {
+            injectedErrors.increment();
+            response = ResponseDefinitionBuilder.responseDefinition().withStatus(SERVICE_UNAVAILABLE)
+                    .withHeader("Content-Type", "application/json")
+                    .withBody("{\"message\": \"Service unavailable\"}");
+        } else {
+            response = ResponseDefinitionBuilder.like(responseDefinition);
+        }
+
+        int jitter = settings.getJitterMillis();
+        int delay = settings.getLatencyMillis() + (0 == jitter ? 0 : random.nextInt(-jitter, jitter + 1));
+        return response.withFixedDelay(Math.max(0, delay)).build();
+    }
+
+    @Override
+    public String getName() {
+        return "fault-injector";
+    }
+
+    long getRequestCount() {
+        return requests.sum();
+    }
+
+    long getInjectedErrorCount() {
+        return injectedErrors.sum();
+    }
+
+    long getUnmatchedRequestCount() {
+        return unmatchedRequests.sum();
+    }
+
+    void reset() {
+        requests.reset();
+        injectedErrors.reset();
+        unmatchedRequests.reset();
+    }
+}
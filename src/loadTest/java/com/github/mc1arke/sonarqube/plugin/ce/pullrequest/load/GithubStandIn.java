@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.GithubPullRequestDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.InstallationTokenCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.AppJwtCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.InstallationRepositoryIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.RestApplicationAuthenticationProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.GraphqlCheckRunProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import org.apache.commons.io.IOUtils;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.platform.Server;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Serves the Github REST API used to authenticate as an application installation, and the GraphQL API used to create
+ * check runs and add their annotations. The application's installation can access a number of repositories before the
+ * one being decorated, so the repository index is built from several pages of results on the first decoration.
+ */
+final class GithubStandIn extends StandIn {
+
+    private static final String OWNER = "example";
+    private static final String REPOSITORY = OWNER + "/generated-project";
+    private static final String APP_ID = "12345";
+    private static final String INSTALLATION_PATH = "/app/installations/1";
+    private static final String REPOSITORIES_PATH = "/installation/repositories";
+    private static final int OTHER_REPOSITORIES = 250;
+
+    GithubStandIn(StandInSettings settings, LoadTestSettings loadTestSettings, AnalysisFixture analysis) {
+        super("github", settings, loadTestSettings, analysis);
+    }
+
+    @Override
+    void registerStubs() {
+        ArrayNode installations = array();
+        installations.addObject().put("repositories_url", getBaseUrl() + REPOSITORIES_PATH)
+                .put("access_tokens_url", getBaseUrl() + INSTALLATION_PATH + "/access_tokens");
+        stub(get(urlPathEqualTo("/app/installations")).willReturn(json(200, installations)));
+
+        // long enough that the token is only requested once per run, as it would be within the hour Github issues it for
+        stub(post(urlPathEqualTo(INSTALLATION_PATH + "/access_tokens")).willReturn(json(201, object()
+                .put("token", "installation-token")
+                .put("expires_at", Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS).toString()))));
+
+        List<ObjectNode> repositories = new ArrayList<>();
+        for (int i = 0; i < OTHER_REPOSITORIES; i++) {
+            repositories.add(object().put("node_id", "R_other" + i).put("full_name", OWNER + "/other-" + i));
+        }
+        repositories.add(object().put("node_id", "R_generated").put("full_name", REPOSITORY));
+        List<List<ObjectNode>> repositoryPages = pages(repositories);
+        for (int i = 0; i < repositoryPages.size(); i++) {
+            ObjectNode page = object();
+            page.putArray("repositories").addAll(repositoryPages.get(i));
+            stubPage(REPOSITORIES_PATH, i, repositoryPages.size(), page);
+        }
+
+        // the link to the next page would depend on the pull request, so all the commits are listed on a single page
+        ArrayNode commits = array();
+        for (String commitSha : getAnalysis().getCommitShas()) {
+            commits.addObject().put("sha", commitSha);
+        }
+        stub(get(urlPathMatching("/repos/" + REPOSITORY + "/pulls/[0-9]+/commits")).willReturn(json(200, commits)));
+
+        ObjectNode createCheckRun = object();
+        createCheckRun.putObject("data").putObject("createCheckRun").putObject("checkRun").put("id", "CR_generated");
+        stub(post(urlPathEqualTo("/graphql")).withRequestBody(containing("createCheckRun")).atPriority(1)
+                     .willReturn(json(200, createCheckRun)));
+        ObjectNode updateCheckRun = object();
+        updateCheckRun.putObject("data");
+        stub(post(urlPathEqualTo("/graphql")).atPriority(5).willReturn(json(200, updateCheckRun)));
+    }
+
+    @Override
+    Map<String, String> getProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("sonar.pullrequest.github.endpoint", getBaseUrl());
+        properties.put("sonar.pullrequest.github.repository", REPOSITORY);
+        properties.put("sonar.alm.github.app.id", APP_ID);
+        properties.put("sonar.alm.github.app.name", "SonarQube");
+        properties.put("sonar.alm.github.app.privateKey.secured", readPrivateKey());
+        return properties;
+    }
+
+    @Override
+    PullRequestBuildStatusDecorator createDecorator(Server server, ConfigurationRepository configurationRepository,
+                                                    ScmInfoRepository scmInfoRepository,
+                                                    HttpClientProvider httpClientProvider) {
+        Clock clock = Clock.systemUTC();
+        RestApplicationAuthenticationProvider authenticationProvider =
+                new RestApplicationAuthenticationProvider(clock, httpClientProvider, new InstallationTokenCache(),
+                                                          new AppJwtCache(), new InstallationRepositoryIndex());
+        return new GithubPullRequestDecorator(
+                new GraphqlCheckRunProvider(clock, authenticationProvider, server, configurationRepository,
+                                            mock(PropertyDefinitions.class, withSettings().stubOnly()),
+                                            httpClientProvider, scmInfoRepository));
+    }
+
+    private void stubPage(String path, int page, int pageCount, JsonNode body) {
+        MappingBuilder request = get(urlPathEqualTo(path));
+        request = 0 == page ? request.withQueryParam("page", absent()) :
+                  request.withQueryParam("page", equalTo(String.valueOf(page + 1)));
+        ResponseDefinitionBuilder response = json(200, body);
+        if (page < pageCount - 1) {
+            response = response.withHeader("Link", String.format("<%s%s?per_page=%s&page=%s>; rel=\"next\"",
+                                                                 getBaseUrl(), path, getSettings().getPageSize(),
+                                                                 page + 2));
+        }
+        stub(request.willReturn(response));
+    }
+
+    private static String readPrivateKey() {
+        try (InputStream inputStream = GithubStandIn.class.getResourceAsStream("/rsa-private-key.pem")) {
+            return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read the application's private key", ex);
+        }
+    }
+}
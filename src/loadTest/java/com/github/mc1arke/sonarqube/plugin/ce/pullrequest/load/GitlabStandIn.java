@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.GitlabRequestScheduler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.GitlabServerPullRequestDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import org.sonar.api.platform.Server;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.delete;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+
+/**
+ * Serves the Gitlab REST API for merge requests in a single project. Paged lists report their total number of pages,
+ * so the decorator fetches the remaining pages concurrently.
+ */
+final class GitlabStandIn extends StandIn {
+
+    private static final String REPOSITORY_SLUG = "group/generated-project";
+    private static final String USERNAME = "sonarqube";
+    private static final String PROJECT_PATH = "/api/v4/projects/group%2Fgenerated-project";
+    private static final String MERGE_REQUEST_PATH = PROJECT_PATH + "/merge_requests/[0-9]+";
+    private static final String BASE_COMMIT = String.format("%040x", 0);
+
+    GitlabStandIn(StandInSettings settings, LoadTestSettings loadTestSettings, AnalysisFixture analysis) {
+        super("gitlab", settings, loadTestSettings, analysis);
+    }
+
+    @Override
+    void registerStubs() {
+        List<String> commitShas = getAnalysis().getCommitShas();
+        String headCommit = commitShas.get(commitShas.size() - 1);
+
+        stub(get(urlPathEqualTo("/api/v4/user"))
+                     .willReturn(json(200, object().put("id", 1).put("username", USERNAME))));
+
+        ObjectNode mergeRequest = object().put("id", 1).put("iid", "1");
+        mergeRequest.putObject("diff_refs").put("base_sha", BASE_COMMIT).put("start_sha", BASE_COMMIT)
+                .put("head_sha", headCommit);
+        stub(get(urlPathMatching(MERGE_REQUEST_PATH)).willReturn(json(200, mergeRequest)));
+
+        List<ObjectNode> commits = new ArrayList<>();
+        for (String commitSha : commitShas) {
+            commits.add(object().put("id", commitSha));
+        }
+        stubPages(MERGE_REQUEST_PATH + "/commits", commits);
+
+        List<ObjectNode> discussions = new ArrayList<>();
+        for (int i = 1; i <= getLoadTestSettings().getExistingComments(); i++) {
+            ObjectNode discussion = object().put("id", "discussion" + i);
+            ObjectNode note = discussion.putArray("notes").addObject().put("id", i).put("system", false)
+                    .put("body", "Comment from a previous analysis").put("resolvable", false)
+                    .put("resolved", false);
+            note.putObject("author").put("username", USERNAME);
+            discussions.add(discussion);
+        }
+        stubPages(MERGE_REQUEST_PATH + "/discussions", discussions);
+
+        stub(post(urlPathMatching(PROJECT_PATH + "/statuses/[0-9a-f]+")).willReturn(json(201, object())));
+        stub(post(urlPathMatching(MERGE_REQUEST_PATH + "/discussions"))
+                     .willReturn(json(201, object().put("id", "posted"))));
+        stub(put(urlPathMatching(MERGE_REQUEST_PATH + "/discussions/[^/]+")).willReturn(json(200, object())));
+        stub(put(urlPathMatching(MERGE_REQUEST_PATH + "/discussions/[^/]+/notes/[0-9]+"))
+                     .willReturn(json(200, object())));
+        stub(delete(urlPathMatching(MERGE_REQUEST_PATH + "/discussions/[^/]+/notes/[0-9]+"))
+                     .willReturn(aResponse().withStatus(204)));
+    }
+
+    @Override
+    Map<String, String> getProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_URL, getBaseUrl());
+        properties.put(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_TOKEN, "load-test-token");
+        properties.put(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_REPOSITORY_SLUG, REPOSITORY_SLUG);
+        properties.put(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_PAGE_SIZE,
+                       String.valueOf(getSettings().getPageSize()));
+        return properties;
+    }
+
+    @Override
+    PullRequestBuildStatusDecorator createDecorator(Server server, ConfigurationRepository configurationRepository,
+                                                    ScmInfoRepository scmInfoRepository,
+                                                    HttpClientProvider httpClientProvider) {
+        return new GitlabServerPullRequestDecorator(server, configurationRepository, scmInfoRepository,
+                                                    httpClientProvider, new GitlabRequestScheduler());
+    }
+
+    private void stubPages(String path, List<ObjectNode> items) {
+        List<List<ObjectNode>> pages = pages(items);
+        for (int i = 0; i < pages.size(); i++) {
+            ArrayNode page = array();
+            page.addAll(pages.get(i));
+
+            MappingBuilder request = get(urlPathMatching(path));
+            request = 0 == i ? request.withQueryParam("page", absent()) :
+                      request.withQueryParam("page", equalTo(String.valueOf(i + 1)));
+            stub(request.willReturn(json(200, page).withHeader("X-Total-Pages", String.valueOf(pages.size()))
+                                            .withHeader("X-Page", String.valueOf(i + 1))
+                                            .withHeader("X-Per-Page", String.valueOf(getSettings().getPageSize()))));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the used heap on a background thread to find its peak whilst decorations are running. A sample can miss a
+ * short-lived peak between two samples, so this gives a lower bound on the heap that's needed rather than an exact
+ * figure.
+ */
+final class HeapSampler {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+    private final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+    private final AtomicLong peakBytes = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private HeapSampler() {
+        super();
+        this.thread = new Thread(this::sample, "load-test-heap-sampler");
+        this.thread.setDaemon(true);
+    }
+
+    static HeapSampler start() {
+        HeapSampler heapSampler = new HeapSampler();
+        heapSampler.thread.start();
+        return heapSampler;
+    }
+
+    /**
+     * @return the peak heap usage seen since sampling started, in bytes
+     */
+    long stop() throws InterruptedException {
+        running = false;
+        thread.join();
+        return peakBytes.get();
+    }
+
+    private void sample() {
+        while (running) {
+            peakBytes.accumulateAndGet(memoryMXBean.getHeapMemoryUsage().getUsed(), Math::max);
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
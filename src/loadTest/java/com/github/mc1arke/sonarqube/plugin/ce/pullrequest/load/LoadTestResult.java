@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecoratorMetrics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of decorating pull requests against one stand-in. Latencies are exact percentiles of every decoration
+ * in the run, whereas the HTTP call and retry counts come from the plugin's own decoration metrics, so can be compared
+ * with the requests the stand-in received.
+ */
+final class LoadTestResult {
+
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private final StandIn standIn;
+    private final int decorations;
+    private final int failedDecorations;
+    private final long elapsedNanos;
+    private final long[] sortedLatencyNanos;
+    private final long standInRequests;
+    private final long injectedErrors;
+    private final long unmatchedRequests;
+    private final DecoratorMetrics decoratorMetrics;
+    private final long peakHeapBytes;
+
+    LoadTestResult(StandIn standIn, int failedDecorations, long elapsedNanos, long[] latencyNanos,
+                   DecoratorMetrics decoratorMetrics, long peakHeapBytes) {
+        super();
+        this.standIn = standIn;
+        this.decorations = latencyNanos.length;
+        this.failedDecorations = failedDecorations;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencyNanos = latencyNanos.clone();
+        Arrays.sort(this.sortedLatencyNanos);
+        this.standInRequests = standIn.getFaultInjector().getRequestCount();
+        this.injectedErrors = standIn.getFaultInjector().getInjectedErrorCount();
+        this.unmatchedRequests = standIn.getFaultInjector().getUnmatchedRequestCount();
+        this.decoratorMetrics = decoratorMetrics;
+        this.peakHeapBytes = peakHeapBytes;
+    }
+
+    String getAlm() {
+        return standIn.getName();
+    }
+
+    int getFailedDecorations() {
+        return failedDecorations;
+    }
+
+    long getUnmatchedRequests() {
+        return unmatchedRequests;
+    }
+
+    double getDecorationsPerSecond() {
+        return decorations / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    double getLatencyMillis(double percentile) {
+        if (0 == sortedLatencyNanos.length) {
+            return 0;
+        }
+        // nearest rank, so the 100th percentile is the slowest decoration
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length);
+        long nanos = sortedLatencyNanos[Math.max(0, Math.min(sortedLatencyNanos.length - 1, rank - 1))];
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    String formatRow() {
+        return String.format("%-10s %11d %7d %14.2f %9.1f %9.1f %9.1f %11d %11d %8d %8d %13d", getAlm(), decorations,
+                             failedDecorations, getDecorationsPerSecond(), getLatencyMillis(50),
+                             getLatencyMillis(99), getLatencyMillis(100), standInRequests,
+                             decoratorMetrics.getHttpCallCount(), injectedErrors, decoratorMetrics.getRetryCount(),
+                             peakHeapBytes / BYTES_PER_MEGABYTE);
+    }
+
+    static String formatHeader() {
+        return String.format("%-10s %11s %7s %14s %9s %9s %9s %11s %11s %8s %8s %13s", "ALM", "decorations", "failed",
+                             "decorations/s", "p50 ms", "p99 ms", "max ms", "requests", "HTTP calls", "errors",
+                             "retries", "peak heap MB");
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("alm", getAlm());
+        result.put("standIn", standIn.getSettings().toString());
+        result.put("decorations", decorations);
+        result.put("failedDecorations", failedDecorations);
+        result.put("decorationsPerSecond", getDecorationsPerSecond());
+        result.put("latencyP50Millis", getLatencyMillis(50));
+        result.put("latencyP99Millis", getLatencyMillis(99));
+        result.put("latencyMaxMillis", getLatencyMillis(100));
+        result.put("standInRequests", standInRequests);
+        result.put("injectedErrors", injectedErrors);
+        result.put("unmatchedRequests", unmatchedRequests);
+        result.put("httpCalls", decoratorMetrics.getHttpCallCount());
+        result.put("httpErrors", decoratorMetrics.getHttpErrorCount());
+        result.put("retries", decoratorMetrics.getRetryCount());
+        result.put("bytesSent", decoratorMetrics.getBytesSent());
+        result.put("bytesReceived", decoratorMetrics.getBytesReceived());
+        result.put("phaseTimeP99Millis", decoratorMetrics.getPhaseTimeP99Millis());
+        result.put("httpCallsByEndpoint", decoratorMetrics.getHttpCallsByEndpoint());
+        result.put("peakHeapBytes", peakHeapBytes);
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * The settings for a load test run, read from <code>loadTest.</code> system properties. The stand-in settings can be
+ * given for all ALMs, e.g. <code>loadTest.latencyMs</code>, or for a single ALM, e.g.
+ * <code>loadTest.gitlab.latencyMs</code>. Any plugin properties set as system properties are passed through to the
+ * decorators' configuration, so settings such as comment parallelism or connection pool sizes can be compared.
+ */
+final class LoadTestSettings {
+
+    private static final String PREFIX = "loadTest.";
+    private static final String PLUGIN_PROPERTY_PREFIX = "com.github.mc1arke.sonarqube.plugin.";
+
+    private final List<String> alms;
+    private final int concurrency;
+    private final int decorations;
+    private final int warmupDecorations;
+    private final int issues;
+    private final int existingComments;
+    private final File reportFile;
+    private final Map<String, String> pluginProperties;
+    private final Properties properties;
+
+    private LoadTestSettings(Properties properties) {
+        this.properties = properties;
+        this.alms = Collections.unmodifiableList(
+                Arrays.stream(getProperty(null, "alms").orElse("bitbucket,gitlab,github").split(",")).map(String::trim)
+                        .filter(s -> !s.isEmpty()).collect(Collectors.toList()));
+        this.concurrency = getInt(null, "concurrency", 8);
+        this.decorations = getInt(null, "decorations", 200);
+        this.warmupDecorations = getInt(null, "warmupDecorations", concurrency * 2);
+        this.issues = getInt(null, "issues", 2000);
+        this.existingComments = getInt(null, "existingComments", 100);
+        this.reportFile = getProperty(null, "reportFile").map(File::new).orElse(null);
+
+        Map<String, String> passedThrough = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PLUGIN_PROPERTY_PREFIX)) {
+                passedThrough.put(name, properties.getProperty(name));
+            }
+        }
+        this.pluginProperties = Collections.unmodifiableMap(passedThrough);
+
+        if (concurrency < 1 || decorations < 1 || warmupDecorations < 0 || issues < 0 || existingComments < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid load test settings: concurrency %s, decorations %s, warm-up decorations %s, issues %s, existing comments %s",
+                    concurrency, decorations, warmupDecorations, issues, existingComments));
+        }
+    }
+
+    static LoadTestSettings fromSystemProperties() {
+        return new LoadTestSettings(System.getProperties());
+    }
+
+    List<String> getAlms() {
+        return alms;
+    }
+
+    /**
+     * @return the number of analyses being decorated at the same time
+     */
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    int getDecorations() {
+        return decorations;
+    }
+
+    int getWarmupDecorations() {
+        return warmupDecorations;
+    }
+
+    /**
+     * @return the number of open issues in each analysis
+     */
+    int getIssues() {
+        return issues;
+    }
+
+    /**
+     * @return the number of comments left on each pull request by a previous analysis
+     */
+    int getExistingComments() {
+        return existingComments;
+    }
+
+    Optional<File> getReportFile() {
+        return Optional.ofNullable(reportFile);
+    }
+
+    Map<String, String> getPluginProperties() {
+        return pluginProperties;
+    }
+
+    StandInSettings getStandInSettings(String alm) {
+        return new StandInSettings(getInt(alm, "latencyMs", 20), getInt(alm, "jitterMs", 10),
+                                   getProperty(alm, "errorRate").map(Double::parseDouble).orElse(0D),
+                                   getInt(alm, "pageSize", 50));
+    }
+
+    private int getInt(String alm, String name, int defaultValue) {
+        return getProperty(alm, name).map(Integer::parseInt).orElse(defaultValue);
+    }
+
+    private Optional<String> getProperty(String alm, String name) {
+        Optional<String> value = Optional.empty();
+        if (null != alm) {
+            value = Optional.ofNullable(properties.getProperty(PREFIX + alm + "." + name));
+        }
+        if (!value.isPresent()) {
+            value = Optional.ofNullable(properties.getProperty(PREFIX + name));
+        }
+        return value.map(String::trim).filter(v -> !v.isEmpty());
+    }
+}
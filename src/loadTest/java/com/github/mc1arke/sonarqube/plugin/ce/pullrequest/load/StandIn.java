@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisFixture;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import org.sonar.api.platform.Server;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+
+/**
+ * A local stand-in for an ALM's API, serving the requests made when decorating any pull request in a single
+ * repository. Responses don't depend on previous requests, so every decoration finds the comments left by a previous
+ * analysis and deletes them, as happens each time a pull request is re-analysed.
+ *
+ * Paged resources are served at the stand-in's page size whatever size the decorator asks for, as an ALM with a lower
+ * maximum page size would.
+ */
+abstract class StandIn {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String name;
+    private final StandInSettings settings;
+    private final LoadTestSettings loadTestSettings;
+    private final AnalysisFixture analysis;
+    private final FaultInjector faultInjector;
+    private final WireMockServer server;
+
+    StandIn(String name, StandInSettings settings, LoadTestSettings loadTestSettings, AnalysisFixture analysis) {
+        super();
+        this.name = name;
+        this.settings = settings;
+        this.loadTestSettings = loadTestSettings;
+        this.analysis = analysis;
+        this.faultInjector = new FaultInjector(settings);
+        // responses are delayed without holding a container thread, but each decoration can have several requests
+        // in flight so leave enough threads that the stand-in isn't the bottleneck
+        int threads = 20 + loadTestSettings.getConcurrency() * 8;
+        this.server = new WireMockServer(WireMockConfiguration.options().dynamicPort().containerThreads(threads)
+                                                 .asynchronousResponseEnabled(true)
+                                                 .asynchronousResponseThreads(threads).disableRequestJournal()
+                                                 .extensions(faultInjector));
+    }
+
+    static StandIn create(String alm, LoadTestSettings loadTestSettings, AnalysisFixture analysis) {
+        StandInSettings settings = loadTestSettings.getStandInSettings(alm);
+        switch (alm) {
+            case "bitbucket":
+                return new BitbucketStandIn(settings, loadTestSettings, analysis);
+            case "gitlab":
+                return new GitlabStandIn(settings, loadTestSettings, analysis);
+            case "github":
+                return new GithubStandIn(settings, loadTestSettings, analysis);
+            default:
+                throw new IllegalArgumentException(
+                        String.format("Unknown ALM '%s'. Expected one of bitbucket, gitlab or github", alm));
+        }
+    }
+
+    void start() {
+        server.start();
+        registerStubs();
+    }
+
+    void stop() {
+        server.stop();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    StandInSettings getSettings() {
+        return settings;
+    }
+
+    FaultInjector getFaultInjector() {
+        return faultInjector;
+    }
+
+    String getBaseUrl() {
+        return server.baseUrl();
+    }
+
+    LoadTestSettings getLoadTestSettings() {
+        return loadTestSettings;
+    }
+
+    AnalysisFixture getAnalysis() {
+        return analysis;
+    }
+
+    void stub(MappingBuilder mappingBuilder) {
+        server.stubFor(mappingBuilder);
+    }
+
+    /**
+     * Registers the responses for every request the decorator makes, once the server has started.
+     */
+    abstract void registerStubs();
+
+    /**
+     * @return the plugin properties that point the decorator at this stand-in
+     */
+    abstract Map<String, String> getProperties();
+
+    abstract PullRequestBuildStatusDecorator createDecorator(Server server,
+                                                             ConfigurationRepository configurationRepository,
+                                                             ScmInfoRepository scmInfoRepository,
+                                                             HttpClientProvider httpClientProvider);
+
+    static ResponseDefinitionBuilder json(int status, JsonNode body) {
+        return aResponse().withStatus(status).withHeader("Content-Type", "application/json")
+                .withBody(body.toString());
+    }
+
+    static ObjectNode object() {
+        return OBJECT_MAPPER.createObjectNode();
+    }
+
+    static ArrayNode array() {
+        return OBJECT_MAPPER.createArrayNode();
+    }
+
+    /**
+     * Splits the items into pages of the stand-in's page size. There is always at least one page, even if it's empty.
+     */
+    <T> List<List<T>> pages(List<T> items) {
+        if (items.isEmpty()) {
+            return Collections.singletonList(Collections.emptyList());
+        }
+        List<List<T>> pages = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += settings.getPageSize()) {
+            pages.add(items.subList(start, Math.min(items.size(), start + settings.getPageSize())));
+        }
+        return pages;
+    }
+}
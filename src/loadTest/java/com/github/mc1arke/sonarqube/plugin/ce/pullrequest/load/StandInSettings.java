@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.load;
+
+/**
+ * How a stand-in for an ALM responds: the latency of each response, varied uniformly by up to the jitter either side,
+ * the fraction of requests that fail, and the number of items on each page of a paged resource.
+ */
+final class StandInSettings {
+
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final double errorRate;
+    private final int pageSize;
+
+    StandInSettings(int latencyMillis, int jitterMillis, double errorRate, int pageSize) {
+        if (latencyMillis < 0 || jitterMillis < 0 || errorRate < 0 || errorRate > 1 || pageSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid stand-in settings: latency %sms, jitter %sms, error rate %s, page size %s",
+                    latencyMillis, jitterMillis, errorRate, pageSize));
+        }
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.pageSize = pageSize;
+    }
+
+    int getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    int getJitterMillis() {
+        return jitterMillis;
+    }
+
+    double getErrorRate() {
+        return errorRate;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("latency %sms +/- %sms, error rate %s, page size %s", latencyMillis, jitterMillis,
+                             errorRate, pageSize);
+    }
+}
@@ -20,9 +20,18 @@ package com.github.mc1arke.sonarqube.plugin;
 
 import com.github.mc1arke.sonarqube.plugin.ce.CommunityBranchEditionProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.CommunityReportAnalysisComponentProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestDecorationExecutor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server.BitbucketServerPullRequestDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.InstallationTokenCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.AppJwtCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.InstallationRepositoryIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.GraphqlCheckRunProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.GitlabRequestScheduler;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.GitlabServerPullRequestDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityBranchConfigurationLoader;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityBranchParamsValidator;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityProjectBranchesLoader;
@@ -57,7 +66,11 @@ public class CommunityBranchPlugin implements Plugin, CoreExtension {
     @Override
     public void load(CoreExtension.Context context) {
         if (SonarQubeSide.COMPUTE_ENGINE == context.getRuntime().getSonarQubeSide()) {
-            context.addExtensions(CommunityReportAnalysisComponentProvider.class, CommunityBranchEditionProvider.class);
+            context.addExtensions(CommunityReportAnalysisComponentProvider.class, CommunityBranchEditionProvider.class,
+                                  HttpClientProvider.class, PullRequestDecorationExecutor.class,
+                                  InstallationTokenCache.class, AppJwtCache.class,
+                                  InstallationRepositoryIndex.class, GitlabRequestScheduler.class,
+                                  DecorationMetrics.class);
         } else if (SonarQubeSide.SERVER == context.getRuntime().getSonarQubeSide()) {
             context.addExtensions(CommunityBranchFeatureExtension.class, CommunityBranchSupportDelegate.class,
 
@@ -114,6 +127,18 @@ public class CommunityBranchPlugin implements Plugin, CoreExtension {
                             "The API url for a GitHub instance. https://api.github.com/ for github.com, https://github.company.com/api/ when using GitHub Enterprise")
                             .type(PropertyType.STRING).defaultValue("https://api.github.com").build(),
 
+                    PropertyDefinition.builder(GraphqlCheckRunProvider.PULL_REQUEST_GITHUB_ANNOTATION_BATCHES_PER_REQUEST)
+                            .category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GITHUB_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Annotation batches per request")
+                            .description("The number of 50 annotation batches sent to Github in each request when adding annotations to a check run.")
+                            .type(PropertyType.INTEGER).defaultValue("4").build(),
+
+                    PropertyDefinition.builder(GraphqlCheckRunProvider.PULL_REQUEST_GITHUB_ANNOTATION_MAX_REQUESTS_IN_FLIGHT)
+                            .category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GITHUB_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Annotation requests in flight")
+                            .description("The maximum number of requests adding annotations to a check run that are sent to Github at the same time.")
+                            .type(PropertyType.INTEGER).defaultValue("2").build(),
+
                     PropertyDefinition.builder(PullRequestBuildStatusDecorator.PULL_REQUEST_COMMENT_SUMMARY_ENABLED).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
                             .onQualifiers(Qualifiers.PROJECT).name("Enable summary comment").description("This enables the summary comment (if implemented).")
                             .type(PropertyType.BOOLEAN).defaultValue("true").build(),
@@ -122,10 +147,51 @@ public class CommunityBranchPlugin implements Plugin, CoreExtension {
                             .onQualifiers(Qualifiers.PROJECT).name("Enable file comment").description("This enables commenting (if implemented).").type(PropertyType.BOOLEAN)
                             .defaultValue("true").build(),
 
+                    PropertyDefinition.builder(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Only comment on changed lines").description("Only comments on issues raised on lines last changed by a commit in the pull request (if implemented). Gitlab always behaves this way.")
+                            .type(PropertyType.BOOLEAN).defaultValue("false").build(),
+
                     PropertyDefinition.builder(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
                             .onQualifiers(Qualifiers.PROJECT).name("Enable deleting comments").description("This cleans up the comments from previous runs (if implemented).")
                             .type(PropertyType.BOOLEAN).defaultValue("false").build(),
 
+                    PropertyDefinition.builder(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_PARALLELISM).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Comment deletion parallelism").description("The number of comments from previous runs deleted at the same time (if implemented).")
+                            .type(PropertyType.INTEGER).defaultValue("4").build(),
+
+                    PropertyDefinition.builder(HttpClientProvider.PULL_REQUEST_HTTP_MAX_CONNECTIONS_PER_ROUTE).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Maximum connections per ALM host").description("The maximum number of pooled connections kept open to a single ALM host during decoration.")
+                            .type(PropertyType.INTEGER).defaultValue("10").build(),
+
+                    PropertyDefinition.builder(HttpClientProvider.PULL_REQUEST_HTTP_MAX_CONNECTIONS_TOTAL).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Maximum connections").description("The maximum number of pooled connections kept open across all ALM hosts during decoration.")
+                            .type(PropertyType.INTEGER).defaultValue("50").build(),
+
+                    PropertyDefinition.builder(HttpClientProvider.PULL_REQUEST_HTTP_CONNECT_TIMEOUT).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Connection timeout").description("The time in milliseconds to wait for a connection to an ALM host to be established.")
+                            .type(PropertyType.INTEGER).defaultValue("10000").build(),
+
+                    PropertyDefinition.builder(HttpClientProvider.PULL_REQUEST_HTTP_SOCKET_TIMEOUT).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Read timeout").description("The time in milliseconds to wait for data from an ALM host before failing the request.")
+                            .type(PropertyType.INTEGER).defaultValue("60000").build(),
+
+                    PropertyDefinition.builder(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Decoration threads").description("The number of pull requests that can be decorated at the same time. Changes take effect when the Compute Engine is restarted.")
+                            .type(PropertyType.INTEGER).defaultValue("2").build(),
+
+                    PropertyDefinition.builder(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Decoration queue size").description("The number of pull request decorations that can wait for a decoration thread. Changes take effect when the Compute Engine is restarted.")
+                            .type(PropertyType.INTEGER).defaultValue("20").build(),
+
+                    PropertyDefinition.builder(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_REJECTION_POLICY).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Full decoration queue policy").description("CALLER_RUNS decorates on the Compute Engine worker when the decoration queue is full, delaying further analyses. DISCARD skips decorating the pull request.")
+                            .type(PropertyType.SINGLE_SELECT_LIST).options(PullRequestDecorationExecutor.RejectionPolicy.CALLER_RUNS.name(), PullRequestDecorationExecutor.RejectionPolicy.DISCARD.name())
+                            .defaultValue(PullRequestDecorationExecutor.RejectionPolicy.CALLER_RUNS.name()).build(),
+
+                    PropertyDefinition.builder(PostAnalysisIssueVisitor.PULL_REQUEST_ISSUES_MAX_IN_MEMORY).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(GENERAL)
+                            .name("Maximum issues held in memory").description("The number of open issues held in memory for decorating a pull request. Any further issues are written to a temporary file on the Compute Engine.")
+                            .type(PropertyType.INTEGER).defaultValue("50000").build(),
+
                     PropertyDefinition.builder(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_URL).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(BITBUCKET_INTEGRATION_SUBCATEGORY_LABEL)
                             .onQualifiers(Qualifiers.PROJECT).name("URL for Bitbucket (Server or Cloud) instance").description("Example: http://bitbucket.local").type(PropertyType.STRING).build(),
 
@@ -150,6 +216,14 @@ public class CommunityBranchPlugin implements Plugin, CoreExtension {
                             .onlyOnQualifiers(Qualifiers.PROJECT).name("ProjectKey").description("This is used for '/projects' repos. Only set one User Slug or ProjectKey!")
                             .type(PropertyType.STRING).index(1).build(),
 
+                    PropertyDefinition.builder(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_PARALLELISM).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(BITBUCKET_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Comment parallelism").description("The number of file comments posted to Bitbucket at the same time.")
+                            .type(PropertyType.INTEGER).defaultValue("4").build(),
+
+                    PropertyDefinition.builder(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_RECONCILE).category(PULL_REQUEST_CATEGORY_LABEL).subCategory(BITBUCKET_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT).name("Reconcile comments").description("Update existing comments in place rather than deleting and posting them again on each analysis. Requires comment.userSlug to be set.")
+                            .type(PropertyType.BOOLEAN).defaultValue("false").build(),
+
                     PropertyDefinition.builder(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_URL)
                             .category(PULL_REQUEST_CATEGORY_LABEL)
                             .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
@@ -176,6 +250,36 @@ public class CommunityBranchPlugin implements Plugin, CoreExtension {
                             .name("Repository Slug for the Gitlab (Server or Cloud) instance")
                             .description("The repository slug can be either in the form of user/repo or it can be the Project ID")
                             .type(PropertyType.STRING)
+                            .build(),
+
+                    PropertyDefinition.builder(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_COMMENT_RECONCILE)
+                            .category(PULL_REQUEST_CATEGORY_LABEL)
+                            .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT)
+                            .name("Reconcile discussions")
+                            .description("Edit existing discussions in place and resolve the discussions for fixed issues, rather than deleting and posting all discussions again on each analysis.")
+                            .type(PropertyType.BOOLEAN)
+                            .defaultValue("false")
+                            .build(),
+
+                    PropertyDefinition.builder(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_PAGE_SIZE)
+                            .category(PULL_REQUEST_CATEGORY_LABEL)
+                            .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT)
+                            .name("Page size")
+                            .description("The number of commits or discussions to request in each page from the Gitlab API. Gitlab allows at most 100.")
+                            .type(PropertyType.INTEGER)
+                            .defaultValue("100")
+                            .build(),
+
+                    PropertyDefinition.builder(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_COMMENT_PARALLELISM)
+                            .category(PULL_REQUEST_CATEGORY_LABEL)
+                            .subCategory(GITLAB_INTEGRATION_SUBCATEGORY_LABEL)
+                            .onQualifiers(Qualifiers.PROJECT)
+                            .name("Comment parallelism")
+                            .description("The number of discussion notes created, updated, resolved or deleted on Gitlab at the same time when reconciling discussions.")
+                            .type(PropertyType.INTEGER)
+                            .defaultValue("4")
                             .build()
             );
         }
@@ -27,14 +27,13 @@ import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Heading;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Image;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Link;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.ListItem;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Node;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Paragraph;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Text;
 import org.sonar.api.ce.posttask.Analysis;
 import org.sonar.api.ce.posttask.Project;
 import org.sonar.api.ce.posttask.QualityGate;
 import org.sonar.api.ce.posttask.QualityGate.EvaluationStatus;
-import org.sonar.api.issue.Issue;
+import org.sonar.api.config.Configuration;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.measures.Metric;
 import org.sonar.api.rules.RuleType;
@@ -52,16 +51,22 @@ import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 public class AnalysisDetails {
 
-    private static final List<String> CLOSED_ISSUE_STATUS = Arrays.asList(Issue.STATUS_CLOSED, Issue.STATUS_RESOLVED);
+    private static final List<String> SNAPSHOT_MEASURE_KEYS =
+            Arrays.asList(CoreMetrics.COVERAGE_KEY, CoreMetrics.DUPLICATED_LINES_DENSITY_KEY);
 
     private static final List<BigDecimal> COVERAGE_LEVELS =
             Arrays.asList(BigDecimal.valueOf(100), BigDecimal.valueOf(90), BigDecimal.valueOf(60),
@@ -79,10 +84,25 @@ public class AnalysisDetails {
     private final QualityGate qualityGate;
     private final Analysis analysis;
     private final Project project;
+    private final Map<String, Double> measureSnapshot;
+    private final Configuration configuration;
+    private final LineRevisions lineRevisions;
+    // formatters hold no state, so a template compiled for one factory is valid for any instance of the same type
+    private final ConcurrentMap<Class<?>, Optional<IssueSummaryTemplate>> issueSummaryTemplates;
+    private Map<String, QualityGate.Condition> conditionsByMetricKey;
 
     AnalysisDetails(BranchDetails branchDetails, PostAnalysisIssueVisitor postAnalysisIssueVisitor,
                     QualityGate qualityGate, MeasuresHolder measuresHolder, Analysis analysis, Project project,
                     String publicRootURL) {
+        this(branchDetails, postAnalysisIssueVisitor, qualityGate, measuresHolder, analysis, project, publicRootURL,
+             null, null, LineRevisions.none(), new ConcurrentHashMap<>());
+    }
+
+    private AnalysisDetails(BranchDetails branchDetails, PostAnalysisIssueVisitor postAnalysisIssueVisitor,
+                            QualityGate qualityGate, MeasuresHolder measuresHolder, Analysis analysis, Project project,
+                            String publicRootURL, Map<String, Double> measureSnapshot, Configuration configuration,
+                            LineRevisions lineRevisions,
+                            ConcurrentMap<Class<?>, Optional<IssueSummaryTemplate>> issueSummaryTemplates) {
         super();
         this.publicRootURL = publicRootURL;
         this.branchDetails = branchDetails;
@@ -91,6 +111,39 @@ public class AnalysisDetails {
         this.qualityGate = qualityGate;
         this.analysis = analysis;
         this.project = project;
+        this.measureSnapshot = measureSnapshot;
+        this.configuration = configuration;
+        this.lineRevisions = lineRevisions;
+        this.issueSummaryTemplates = issueSummaryTemplates;
+    }
+
+    /**
+     * Creates a copy of these details that no longer reads from the measure repositories, issue visitor or any other
+     * component of the current Compute Engine task, so can still be used once that task has completed.
+     *
+     * @param configuration the project configuration decoration reads its settings from
+     * @param lineRevisions the SCM data decoration needs, read whilst the task is still running
+     */
+    public AnalysisDetails snapshot(Configuration configuration, LineRevisions lineRevisions) {
+        Map<String, Double> measures = new HashMap<>();
+        for (String metricKey : SNAPSHOT_MEASURE_KEYS) {
+            findMeasureValue(metricKey).ifPresent(value -> measures.put(metricKey, value));
+        }
+        return new AnalysisDetails(branchDetails, postAnalysisIssueVisitor.snapshot(), qualityGate, null, analysis,
+                                   project, publicRootURL, Collections.unmodifiableMap(measures), configuration,
+                                   lineRevisions, issueSummaryTemplates);
+    }
+
+    /**
+     * @return the project configuration captured in the {@link #snapshot(Configuration, LineRevisions)}, or null if
+     * these details aren't a snapshot
+     */
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public LineRevisions getLineRevisions() {
+        return lineRevisions;
     }
 
     public String getBranchName() {
@@ -114,7 +167,7 @@ public class AnalysisDetails {
                     .map(BigDecimal::new)
                     .orElse(null);
 
-        double coverage = findMeasure(CoreMetrics.COVERAGE_KEY).map(MeasureWrapper::getDoubleValue).orElse(0D);
+        double coverage = findMeasureValue(CoreMetrics.COVERAGE_KEY).orElse(0D);
 
         BigDecimal newDuplications = findQualityGateCondition(CoreMetrics.NEW_DUPLICATED_LINES_DENSITY_KEY)
             .filter(condition -> condition.getStatus() != EvaluationStatus.NO_VALUE)
@@ -123,7 +176,7 @@ public class AnalysisDetails {
             .orElse(null);
 
         double duplications =
-                findMeasure(CoreMetrics.DUPLICATED_LINES_DENSITY_KEY).map(MeasureWrapper::getDoubleValue).orElse(0D);
+                findMeasureValue(CoreMetrics.DUPLICATED_LINES_DENSITY_KEY).orElse(0D);
 
         NumberFormat decimalFormat = new DecimalFormat("#0.00", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 
@@ -187,25 +240,30 @@ public class AnalysisDetails {
     public String createAnalysisIssueSummary(PostAnalysisIssueVisitor.ComponentIssue componentIssue, FormatterFactory formatterFactory) {
         final DefaultIssue issue = componentIssue.getIssue();
 
-        String baseImageUrl = getBaseImageUrl();
+        Optional<IssueSummaryTemplate> template = issueSummaryTemplates.computeIfAbsent(formatterFactory.getClass(),
+                k -> IssueSummaryTemplate.compile(formatterFactory, getBaseImageUrl(), getIssueUrlPrefix()));
+        if (template.isPresent()) {
+            return template.get().render(issue);
+        }
 
+        String baseImageUrl = getBaseImageUrl();
         Long effort = issue.effortInMinutes();
-        Node effortNode = (null == effort ? new Text("") : new Paragraph(new Text(String.format("**Duration (min):** %s", effort))));
-
         String resolution = issue.resolution();
-        Node resolutionNode = (StringUtils.isBlank(resolution) ? new Text("") : new Paragraph(new Text(String.format("**Resolution:** %s ", resolution))));
-
-        Document document = new Document(
-                new Paragraph(new Text(String.format("**Type:** %s ", issue.type().name())), new Image(issue.type().name(), String.format("%s/checks/IssueType/%s.svg?sanitize=true", baseImageUrl, issue.type().name().toLowerCase()))),
-                new Paragraph(new Text(String.format("**Severity:** %s ", issue.severity())), new Image(issue.severity(), String.format("%s/checks/Severity/%s.svg?sanitize=true", baseImageUrl, issue.severity().toLowerCase()))),
-                new Paragraph(new Text(String.format("**Message:** %s", issue.getMessage()))),
-                effortNode,
-                resolutionNode,
-                new Link(publicRootURL + "/project/issues?id=" + URLEncoder.encode(project.getKey()) + "&pullRequest=" + branchDetails.getBranchName() + "&issues=" + issue.key() + "&open=" + issue.key(), new Text("View in SonarQube"))
-        );
+
+        Document document = IssueSummaryTemplate.createDocument(
+                IssueSummaryTemplate.createTypeParagraph(issue.type(), baseImageUrl),
+                IssueSummaryTemplate.createSeverityParagraph(issue.severity(), baseImageUrl),
+                issue.getMessage(),
+                null == effort ? null : String.valueOf(effort),
+                StringUtils.isBlank(resolution) ? null : resolution,
+                issue.key(), getIssueUrlPrefix());
         return formatterFactory.documentFormatter().format(document, formatterFactory);
     }
 
+    private String getIssueUrlPrefix() {
+        return publicRootURL + "/project/issues?id=" + URLEncoder.encode(project.getKey()) + "&pullRequest=" + branchDetails.getBranchName() + "&issues=";
+    }
+
     public String getBaseImageUrl() {
         return publicRootURL + "/static/communityBranchPlugin";
     }
@@ -273,25 +331,37 @@ public class AnalysisDetails {
                 .collect(Collectors.toList());
     }
 
-    private Optional<MeasureWrapper> findMeasure(String metricKey) {
+    private Optional<Double> findMeasureValue(String metricKey) {
+        if (null != measureSnapshot) {
+            return Optional.ofNullable(measureSnapshot.get(metricKey));
+        }
         return measuresHolder.getMeasureRepository().getRawMeasure(measuresHolder.getTreeRootHolder().getRoot(),
                                                                    measuresHolder.getMetricRepository()
                                                                            .getByKey(metricKey))
-                .map(MeasureWrapper::new);
+                .map(MeasureWrapper::new).map(MeasureWrapper::getDoubleValue);
     }
 
     public Optional<QualityGate.Condition> findQualityGateCondition(String metricKey) {
-        return qualityGate.getConditions().stream().filter(c -> metricKey.equals(c.getMetricKey())).findFirst();
+        return Optional.ofNullable(getConditionsByMetricKey().get(metricKey));
+    }
+
+    private synchronized Map<String, QualityGate.Condition> getConditionsByMetricKey() {
+        if (null == conditionsByMetricKey) {
+            Map<String, QualityGate.Condition> conditions = new HashMap<>();
+            for (QualityGate.Condition condition : qualityGate.getConditions()) {
+                conditions.putIfAbsent(condition.getMetricKey(), condition);
+            }
+            conditionsByMetricKey = conditions;
+        }
+        return conditionsByMetricKey;
     }
 
     private Map<RuleType, Long> countRuleByType() {
-        return Arrays.stream(RuleType.values()).collect(Collectors.toMap(k -> k,
-                                                                         k -> postAnalysisIssueVisitor.getIssues()
-                                                                                 .stream()
-                                                                                 .map(PostAnalysisIssueVisitor.ComponentIssue::getIssue)
-                                                                                 .filter(i -> !CLOSED_ISSUE_STATUS
-                                                                                         .contains(i.status()))
-                                                                                 .filter(i -> k == i.type()).count()));
+        Map<RuleType, Long> counts = new EnumMap<>(RuleType.class);
+        for (RuleType type : RuleType.values()) {
+            counts.put(type, postAnalysisIssueVisitor.countOpenIssues(type));
+        }
+        return counts;
     }
 
     private static String pluralOf(long value, String singleLabel, String multiLabel) {
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.sonar.ce.task.projectanalysis.component.Component;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which of the lines holding an issue were last changed by a commit in the pull request. The index is built
+ * once per analysis from the {@link LineRevisions} captured before decoration started, so decorators can then check
+ * whether an issue belongs to the pull request without going back to the SCM data.
+ */
+public final class ChangedLinesIndex {
+
+    private final Set<String> revisions;
+    private final Map<Component, BitSet> changedLines;
+
+    private ChangedLinesIndex(Set<String> revisions, Map<Component, BitSet> changedLines) {
+        super();
+        this.revisions = revisions;
+        this.changedLines = changedLines;
+    }
+
+    /**
+     * @param lineRevisions the revision that last changed each issue line in the current analysis
+     * @param issues the issues that will be checked against the index. Any other line will be reported as unchanged
+     * @param revisions the IDs of every commit in the pull request
+     */
+    public static ChangedLinesIndex build(LineRevisions lineRevisions,
+                                          Collection<PostAnalysisIssueVisitor.ComponentIssue> issues,
+                                          Collection<String> revisions) {
+        Set<String> revisionSet = new HashSet<>(revisions);
+        Map<Component, BitSet> changedLines = new HashMap<>();
+        for (PostAnalysisIssueVisitor.ComponentIssue issue : issues) {
+            Component component = issue.getComponent();
+            Integer line = issue.getIssue().getLine();
+            if (null != line && line > 0 &&
+                lineRevisions.getRevision(component, line).filter(revisionSet::contains).isPresent()) {
+                changedLines.computeIfAbsent(component, k -> new BitSet()).set(line);
+            }
+        }
+        return new ChangedLinesIndex(revisionSet, changedLines);
+    }
+
+    public boolean isChanged(PostAnalysisIssueVisitor.ComponentIssue issue) {
+        Integer line = issue.getIssue().getLine();
+        return null != line && isChanged(issue.getComponent(), line);
+    }
+
+    public boolean isChanged(Component component, int line) {
+        BitSet lines = changedLines.get(component);
+        return null != lines && line > 0 && lines.get(line);
+    }
+
+    public boolean containsRevision(String revision) {
+        return revisions.contains(revision);
+    }
+}
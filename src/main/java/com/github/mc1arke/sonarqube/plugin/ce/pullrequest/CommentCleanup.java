@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.ParallelRequestExecutor;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Removes the comments left on a pull request by a previous decoration. Deletes are sent in parallel, and a failure to
+ * delete one comment is logged and counted rather than stopping the remaining comments from being removed.
+ */
+public final class CommentCleanup {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final Logger LOGGER = Loggers.get(CommentCleanup.class);
+
+    private CommentCleanup() {
+        super();
+    }
+
+    /**
+     * @param almName the name of the ALM the comments are held in, used for logging
+     * @param comments all comments found on the pull request
+     * @param deletable identifies the comments that were created by the plugin, any other comments are skipped
+     * @param executorService the shared executor to send the delete requests on
+     * @param parallelism the maximum number of delete requests to have in flight at once
+     * @param deleteRequest deletes a single comment, returning false or throwing an exception if it couldn't be deleted
+     * @param description describes a comment in log messages
+     */
+    public static <C> Summary deleteComments(String almName, List<C> comments, Predicate<C> deletable,
+                                             ExecutorService executorService, int parallelism,
+                                             ParallelRequestExecutor.Request<C, Boolean> deleteRequest,
+                                             Function<C, String> description) {
+        List<C> commentsToDelete = new ArrayList<>();
+        for (C comment : comments) {
+            if (deletable.test(comment)) {
+                commentsToDelete.add(comment);
+            }
+        }
+
+        int deleted = 0;
+        int failed = 0;
+        for (ParallelRequestExecutor.Outcome<C, Boolean> outcome : ParallelRequestExecutor
+                .execute(executorService, commentsToDelete, parallelism, deleteRequest)) {
+            if (outcome.getResult().orElse(false)) {
+                deleted++;
+            } else {
+                failed++;
+                LOGGER.warn(String.format("Could not delete comment %s from %s", description.apply(outcome.getItem()),
+                                          almName), outcome.getFailure().orElse(null));
+            }
+        }
+
+        Summary summary = new Summary(deleted, comments.size() - commentsToDelete.size(), failed);
+        LOGGER.info(String.format("Comment cleanup on %s: %s deleted, %s skipped, %s failed", almName,
+                                  summary.getDeleted(), summary.getSkipped(), summary.getFailed()));
+        return summary;
+    }
+
+    public static int getParallelism(Configuration configuration) {
+        return IntSettings.getPositiveInt(configuration,
+                                          PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_PARALLELISM,
+                                          DEFAULT_PARALLELISM);
+    }
+
+    public static final class Summary {
+
+        private final int deleted;
+        private final int skipped;
+        private final int failed;
+
+        Summary(int deleted, int skipped, int failed) {
+            super();
+            this.deleted = deleted;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out the minimum set of changes needed to bring the comments left on a pull request by a previous analysis in
+ * line with the comments for the current analysis. Each comment is tagged with a fingerprint, held in a markdown link
+ * reference that isn't rendered, so it can be matched to the comment for the same issue in a later analysis. A comment
+ * the plugin resolved because its issue was fixed has the fingerprint marked as resolved, so it can be told apart
+ * from a comment resolved by a reviewer.
+ */
+public final class CommentReconciler {
+
+    public static final String SUMMARY_FINGERPRINT = "summary";
+
+    private static final String RESOLVED_MARKER = ":resolved";
+
+    private static final Pattern FINGERPRINT_PATTERN =
+            Pattern.compile("\\n\\n\\[//]: # \\(sonarqube-fingerprint:([0-9a-z]+)(" + RESOLVED_MARKER + ")?\\)$");
+
+    private CommentReconciler() {
+        super();
+    }
+
+    public static <L> DesiredComment<L> summaryComment(String text) {
+        return new DesiredComment<>(SUMMARY_FINGERPRINT, withFingerprint(text, SUMMARY_FINGERPRINT), null);
+    }
+
+    /**
+     * @param location the ALM specific details of where in the pull request the comment should be placed
+     */
+    public static <L> DesiredComment<L> issueComment(String fingerprint, String text, L location) {
+        return new DesiredComment<>(fingerprint, withFingerprint(text, fingerprint), location);
+    }
+
+    public static Optional<String> readFingerprint(String text) {
+        if (null == text) {
+            return Optional.empty();
+        }
+        Matcher matcher = FINGERPRINT_PATTERN.matcher(text);
+        return matcher.find() ? Optional.of(matcher.group(1)) : Optional.empty();
+    }
+
+    /**
+     * Marks the fingerprint in a comment's text to show the plugin resolved the comment.
+     *
+     * @return the marked text, or the text unchanged if it has no fingerprint or is already marked
+     */
+    public static String markResolved(String text) {
+        if (null == text) {
+            return null;
+        }
+        Matcher matcher = FINGERPRINT_PATTERN.matcher(text);
+        if (!matcher.find() || null != matcher.group(2)) {
+            return text;
+        }
+        return text.substring(0, matcher.end(1)) + RESOLVED_MARKER + text.substring(matcher.end(1));
+    }
+
+    /**
+     * @return whether the comment was resolved by the plugin, rather than by a reviewer
+     */
+    public static boolean isMarkedResolved(String text) {
+        if (null == text) {
+            return false;
+        }
+        Matcher matcher = FINGERPRINT_PATTERN.matcher(text);
+        return matcher.find() && null != matcher.group(2);
+    }
+
+    /**
+     * @param desiredComments the comments the current analysis should leave on the pull request
+     * @param existingComments the comments already on the pull request that were created by the plugin
+     * @param text retrieves the text currently held in an existing comment
+     */
+    public static <C, L> Plan<C, L> reconcile(List<DesiredComment<L>> desiredComments, List<C> existingComments,
+                                              Function<C, String> text) {
+        Map<String, DesiredComment<L>> remaining = new LinkedHashMap<>();
+        for (DesiredComment<L> desiredComment : desiredComments) {
+            remaining.putIfAbsent(desiredComment.getFingerprint(), desiredComment);
+        }
+
+        List<Update<C, L>> toUpdate = new ArrayList<>();
+        List<C> toDelete = new ArrayList<>();
+        List<C> unchanged = new ArrayList<>();
+        for (C existingComment : existingComments) {
+            String existingText = text.apply(existingComment);
+            DesiredComment<L> desiredComment = readFingerprint(existingText).map(remaining::remove).orElse(null);
+            if (null == desiredComment) {
+                // no longer reported, a duplicate, or posted before comments were fingerprinted
+                toDelete.add(existingComment);
+            } else if (desiredComment.getText().equals(existingText)) {
+                unchanged.add(existingComment);
+            } else {
+                toUpdate.add(new Update<>(existingComment, desiredComment));
+            }
+        }
+
+        return new Plan<>(new ArrayList<>(remaining.values()), toUpdate, toDelete, unchanged);
+    }
+
+    private static String withFingerprint(String text, String fingerprint) {
+        return text + "\n\n[//]: # (sonarqube-fingerprint:" + fingerprint + ")";
+    }
+
+    /**
+     * Creates fingerprints that are stable across analyses for issues that have not changed. Issues raised more than
+     * once by the same rule, with the same message, on the same line are told apart by the order they're reported in,
+     * so a single instance should be used for all the issues in an analysis.
+     */
+    public static final class Fingerprinter {
+
+        private final Map<String, Integer> occurrences = new HashMap<>();
+
+        public String fingerprint(String path, int line, String rule, String message) {
+            String issueKey = digest(path, String.valueOf(line), rule, message);
+            int occurrence = occurrences.merge(issueKey, 1, Integer::sum);
+            return occurrence == 1 ? issueKey : digest(issueKey, String.valueOf(occurrence));
+        }
+
+        private static String digest(String... parts) {
+            try {
+                MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+                for (String part : parts) {
+                    messageDigest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                    messageDigest.update((byte) 0);
+                }
+                StringBuilder fingerprint = new StringBuilder();
+                for (byte b : messageDigest.digest()) {
+                    fingerprint.append(String.format("%02x", b));
+                }
+                return fingerprint.toString();
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("Could not create comment fingerprint", ex);
+            }
+        }
+    }
+
+    public static final class DesiredComment<L> {
+
+        private final String fingerprint;
+        private final String text;
+        private final L location;
+
+        private DesiredComment(String fingerprint, String text, L location) {
+            super();
+            this.fingerprint = fingerprint;
+            this.text = text;
+            this.location = location;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return where the comment should be placed, or empty for a comment on the pull request as a whole
+         */
+        public Optional<L> getLocation() {
+            return Optional.ofNullable(location);
+        }
+    }
+
+    public static final class Update<C, L> {
+
+        private final C existingComment;
+        private final DesiredComment<L> desiredComment;
+
+        private Update(C existingComment, DesiredComment<L> desiredComment) {
+            super();
+            this.existingComment = existingComment;
+            this.desiredComment = desiredComment;
+        }
+
+        public C getExistingComment() {
+            return existingComment;
+        }
+
+        public DesiredComment<L> getDesiredComment() {
+            return desiredComment;
+        }
+    }
+
+    public static final class Plan<C, L> {
+
+        private final List<DesiredComment<L>> toCreate;
+        private final List<Update<C, L>> toUpdate;
+        private final List<C> toDelete;
+        private final List<C> unchanged;
+
+        private Plan(List<DesiredComment<L>> toCreate, List<Update<C, L>> toUpdate, List<C> toDelete,
+                     List<C> unchanged) {
+            super();
+            this.toCreate = Collections.unmodifiableList(toCreate);
+            this.toUpdate = Collections.unmodifiableList(toUpdate);
+            this.toDelete = Collections.unmodifiableList(toDelete);
+            this.unchanged = Collections.unmodifiableList(unchanged);
+        }
+
+        public List<DesiredComment<L>> getToCreate() {
+            return toCreate;
+        }
+
+        public List<Update<C, L>> getToUpdate() {
+            return toUpdate;
+        }
+
+        public List<C> getToDelete() {
+            return toDelete;
+        }
+
+        public List<C> getUnchanged() {
+            return unchanged;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.Optional;
+
+/**
+ * Reads the numeric settings used to size pools, pages and timeouts during decoration. A value that can't be used is
+ * logged and replaced with its default, so a mistyped setting degrades decoration rather than failing it.
+ */
+public final class IntSettings {
+
+    private static final Logger LOGGER = Loggers.get(IntSettings.class);
+
+    private IntSettings() {
+        super();
+    }
+
+    /**
+     * @return the configured value of the given property, or the default if the property isn't set, isn't a number,
+     * or isn't greater than zero
+     */
+    public static int getPositiveInt(Configuration configuration, String propertyName, int defaultValue) {
+        Optional<String> value = configuration.get(propertyName);
+        if (!value.isPresent()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.get().trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        LOGGER.warn(String.format("Invalid value '%s' for %s. Using the default of %s", value.get(), propertyName,
+                                  defaultValue));
+        return defaultValue;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Document;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.FormatterFactory;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Image;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Link;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Node;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Paragraph;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Text;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.rule.Severity;
+import org.sonar.api.rules.RuleType;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The comment posted against each issue, pre-rendered for a single analysis and formatter. The parts of the comment
+ * that are the same for every issue (including the type and severity paragraphs for every {@link RuleType} and
+ * severity) are rendered once when the template is compiled, so rendering an issue only copies these fragments and
+ * the issue specific values into a single buffer.
+ */
+final class IssueSummaryTemplate {
+
+    private static final char SLOT_MARKER = '\u0000';
+
+    private enum Slot {
+        TYPE, SEVERITY, MESSAGE, EFFORT, RESOLUTION, ISSUE_KEY
+    }
+
+    private final FormatterFactory formatterFactory;
+    private final String baseImageUrl;
+    private final Layout[] layouts;
+    private final Map<RuleType, String> typeFragments;
+    private final ConcurrentMap<String, String> severityFragments;
+
+    private IssueSummaryTemplate(FormatterFactory formatterFactory, String baseImageUrl, Layout[] layouts,
+                                 Map<RuleType, String> typeFragments,
+                                 ConcurrentMap<String, String> severityFragments) {
+        super();
+        this.formatterFactory = formatterFactory;
+        this.baseImageUrl = baseImageUrl;
+        this.layouts = layouts;
+        this.typeFragments = typeFragments;
+        this.severityFragments = severityFragments;
+    }
+
+    /**
+     * Compiles the issue comment for the given formatter. Each issue specific value is rendered as a marker which is
+     * then located in the formatted output, so an empty result is returned where the formatter does not copy the
+     * markers through unaltered, and the caller has to build the comment for each issue instead.
+     */
+    static Optional<IssueSummaryTemplate> compile(FormatterFactory formatterFactory, String baseImageUrl,
+                                                  String issueUrlPrefix) {
+        Layout[] layouts = new Layout[4];
+        for (int i = 0; i < layouts.length; i++) {
+            boolean hasEffort = (i & 1) != 0;
+            boolean hasResolution = (i & 2) != 0;
+            Document document = createDocument(new Text(marker(Slot.TYPE)), new Text(marker(Slot.SEVERITY)),
+                                               marker(Slot.MESSAGE), hasEffort ? marker(Slot.EFFORT) : null,
+                                               hasResolution ? marker(Slot.RESOLUTION) : null,
+                                               marker(Slot.ISSUE_KEY), issueUrlPrefix);
+            Optional<Layout> layout = Layout.parse(formatterFactory.documentFormatter().format(document, formatterFactory));
+            if (!layout.isPresent() || !layout.get().hasSlots(hasEffort, hasResolution)) {
+                return Optional.empty();
+            }
+            layouts[i] = layout.get();
+        }
+
+        Map<RuleType, String> typeFragments = new EnumMap<>(RuleType.class);
+        for (RuleType type : RuleType.values()) {
+            typeFragments.put(type, render(formatterFactory, createTypeParagraph(type, baseImageUrl)));
+        }
+
+        ConcurrentMap<String, String> severityFragments = new ConcurrentHashMap<>();
+        for (String severity : Severity.ALL) {
+            severityFragments.put(severity, render(formatterFactory, createSeverityParagraph(severity, baseImageUrl)));
+        }
+
+        return Optional.of(new IssueSummaryTemplate(formatterFactory, baseImageUrl, layouts, typeFragments,
+                                                    severityFragments));
+    }
+
+    String render(DefaultIssue issue) {
+        Long effort = issue.effortInMinutes();
+        String resolution = issue.resolution();
+        boolean hasResolution = !StringUtils.isBlank(resolution);
+        Layout layout = layouts[(null == effort ? 0 : 1) | (hasResolution ? 2 : 0)];
+
+        StringBuilder output = new StringBuilder(layout.fragmentLength + 256);
+        output.append(layout.fragments[0]);
+        for (int i = 0; i < layout.slots.length; i++) {
+            switch (layout.slots[i]) {
+                case TYPE:
+                    output.append(typeFragments.get(issue.type()));
+                    break;
+                case SEVERITY:
+                    output.append(severityFragments.computeIfAbsent(issue.severity(), s -> render(formatterFactory,
+                            createSeverityParagraph(s, baseImageUrl))));
+                    break;
+                case MESSAGE:
+                    output.append(issue.getMessage());
+                    break;
+                case EFFORT:
+                    output.append(effort);
+                    break;
+                case RESOLUTION:
+                    output.append(resolution);
+                    break;
+                case ISSUE_KEY:
+                    output.append(issue.key());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown slot: " + layout.slots[i]);
+            }
+            output.append(layout.fragments[i + 1]);
+        }
+        return output.toString();
+    }
+
+    static Document createDocument(Node typeNode, Node severityNode, String message, String effort, String resolution,
+                                   String issueKey, String issueUrlPrefix) {
+        Node effortNode = (null == effort ? new Text("") : new Paragraph(new Text("**Duration (min):** " + effort)));
+        Node resolutionNode = (null == resolution ? new Text("") :
+                               new Paragraph(new Text("**Resolution:** " + resolution + " ")));
+
+        return new Document(typeNode, severityNode, new Paragraph(new Text("**Message:** " + message)), effortNode,
+                            resolutionNode, new Link(issueUrlPrefix + issueKey + "&open=" + issueKey,
+                                                     new Text("View in SonarQube")));
+    }
+
+    static Paragraph createTypeParagraph(RuleType type, String baseImageUrl) {
+        return new Paragraph(new Text("**Type:** " + type.name() + " "), new Image(type.name(),
+                baseImageUrl + "/checks/IssueType/" + type.name().toLowerCase() + ".svg?sanitize=true"));
+    }
+
+    static Paragraph createSeverityParagraph(String severity, String baseImageUrl) {
+        return new Paragraph(new Text("**Severity:** " + severity + " "), new Image(severity,
+                baseImageUrl + "/checks/Severity/" + severity.toLowerCase() + ".svg?sanitize=true"));
+    }
+
+    private static String render(FormatterFactory formatterFactory, Paragraph paragraph) {
+        return formatterFactory.paragraphFormatter().format(paragraph, formatterFactory);
+    }
+
+    private static String marker(Slot slot) {
+        return SLOT_MARKER + slot.name() + SLOT_MARKER;
+    }
+
+    private static final class Layout {
+
+        private final String[] fragments;
+        private final Slot[] slots;
+        private final int fragmentLength;
+
+        private Layout(String[] fragments, Slot[] slots) {
+            this.fragments = fragments;
+            this.slots = slots;
+            int length = 0;
+            for (String fragment : fragments) {
+                length += fragment.length();
+            }
+            this.fragmentLength = length;
+        }
+
+        private static Optional<Layout> parse(String rendered) {
+            List<String> fragments = new ArrayList<>();
+            List<Slot> slots = new ArrayList<>();
+            int start = 0;
+            int markerStart;
+            while ((markerStart = rendered.indexOf(SLOT_MARKER, start)) >= 0) {
+                int markerEnd = rendered.indexOf(SLOT_MARKER, markerStart + 1);
+                if (markerEnd < 0) {
+                    return Optional.empty();
+                }
+                Optional<Slot> slot = findSlot(rendered.substring(markerStart + 1, markerEnd));
+                if (!slot.isPresent()) {
+                    return Optional.empty();
+                }
+                fragments.add(rendered.substring(start, markerStart));
+                slots.add(slot.get());
+                start = markerEnd + 1;
+            }
+            fragments.add(rendered.substring(start));
+            return Optional.of(new Layout(fragments.toArray(new String[0]), slots.toArray(new Slot[0])));
+        }
+
+        private static Optional<Slot> findSlot(String name) {
+            for (Slot slot : Slot.values()) {
+                if (slot.name().equals(name)) {
+                    return Optional.of(slot);
+                }
+            }
+            return Optional.empty();
+        }
+
+        private boolean hasSlots(boolean hasEffort, boolean hasResolution) {
+            List<Slot> found = Arrays.asList(slots);
+            return found.contains(Slot.TYPE) && found.contains(Slot.SEVERITY) && found.contains(Slot.MESSAGE) &&
+                   found.contains(Slot.ISSUE_KEY) && hasEffort == found.contains(Slot.EFFORT) &&
+                   hasResolution == found.contains(Slot.RESOLUTION);
+        }
+    }
+}
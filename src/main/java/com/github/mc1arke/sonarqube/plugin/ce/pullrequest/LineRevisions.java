@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfo;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The revision that last changed each line holding an issue, read from the {@link ScmInfoRepository} whilst the
+ * Compute Engine task that produced the analysis is still running. Decoration happens once the task has completed, so
+ * it reads the revisions from here rather than from the task's SCM data.
+ */
+public final class LineRevisions {
+
+    private static final LineRevisions NONE = new LineRevisions(Collections.emptyMap());
+
+    private final Map<Component, Map<Integer, String>> revisionsByComponent;
+
+    private LineRevisions(Map<Component, Map<Integer, String>> revisionsByComponent) {
+        super();
+        this.revisionsByComponent = revisionsByComponent;
+    }
+
+    /**
+     * @param scmInfoRepository the SCM data for the current analysis
+     * @param issues the issues whose lines are read. The SCM data of each file is read once, and only the revisions of
+     *               the lines these issues are raised on are kept
+     */
+    public static LineRevisions read(ScmInfoRepository scmInfoRepository,
+                                     Collection<PostAnalysisIssueVisitor.ComponentIssue> issues) {
+        Map<Component, Optional<ScmInfo>> scmInfoByComponent = new HashMap<>();
+        Map<Component, Map<Integer, String>> revisionsByComponent = new HashMap<>();
+        for (PostAnalysisIssueVisitor.ComponentIssue issue : issues) {
+            Component component = issue.getComponent();
+            Integer line = issue.getIssue().getLine();
+            if (null == line || line < 1) {
+                continue;
+            }
+            Optional<ScmInfo> scmInfo = scmInfoByComponent.computeIfAbsent(component, scmInfoRepository::getScmInfo);
+            if (scmInfo.isPresent() && scmInfo.get().hasChangesetForLine(line)) {
+                revisionsByComponent.computeIfAbsent(component, k -> new HashMap<>())
+                        .computeIfAbsent(line, l -> scmInfo.get().getChangesetForLine(l).getRevision());
+            }
+        }
+        return new LineRevisions(revisionsByComponent);
+    }
+
+    /**
+     * @return revisions for a decoration that doesn't check which commit last changed each issue's line
+     */
+    public static LineRevisions none() {
+        return NONE;
+    }
+
+    public Optional<String> getRevision(Component component, int line) {
+        return Optional.ofNullable(revisionsByComponent.getOrDefault(component, Collections.emptyMap()).get(line));
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rules.RuleType;
+import org.sonar.api.utils.Duration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Holds the fields of each open issue that decorators read in parallel arrays, rather than keeping the
+ * {@link DefaultIssue} reported by the Compute Engine (along with its changes, comments and locations) alive until the
+ * decoration completes. Components, rule keys and the low-cardinality strings are interned so each row only holds
+ * indexes into shared tables for them, and numeric fields are kept in primitive arrays.
+ *
+ * Once the configured number of issues are held in memory, any further issues are appended to a temporary file
+ * instead, which is memory-mapped when the issues are first read, so the size of the heap doesn't limit the number
+ * of issues a pull request can hold.
+ */
+final class OpenIssueStore {
+
+    private static final Logger LOGGER = Loggers.get(OpenIssueStore.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NONE = -1;
+    // a single mapping can't exceed 2GB, so leave room for the record that takes the file over the limit
+    private static final long MAX_SPILL_FILE_BYTES = Integer.MAX_VALUE - (1 << 20);
+
+    private final Table<Component> components;
+    private final Table<RuleKey> ruleKeys;
+    private final Table<String> strings;
+    private final int maxInMemory;
+    private final Supplier<File> spillFileSupplier;
+    private final List<SpillFile> spillFiles;
+
+    private int size;
+    private int[] componentIds;
+    private int[] ruleKeyIds;
+    private int[] lines;
+    private byte[] types;
+    private int[] severityIds;
+    private int[] statusIds;
+    private int[] resolutionIds;
+    private long[] efforts;
+    private String[] messages;
+    private String[] keys;
+
+    OpenIssueStore() {
+        this(Integer.MAX_VALUE, () -> {
+            throw new IllegalStateException("Issues can not be written to disk");
+        });
+    }
+
+    OpenIssueStore(int maxInMemory, Supplier<File> spillFileSupplier) {
+        this(new Table<>(new IdentityHashMap<>()), new Table<>(new HashMap<>()), new Table<>(new HashMap<>()),
+             maxInMemory, spillFileSupplier, new ArrayList<>(), 0, Math.min(INITIAL_CAPACITY, maxInMemory));
+    }
+
+    private OpenIssueStore(Table<Component> components, Table<RuleKey> ruleKeys, Table<String> strings,
+                           int maxInMemory, Supplier<File> spillFileSupplier, List<SpillFile> spillFiles, int size,
+                           int capacity) {
+        super();
+        this.components = components;
+        this.ruleKeys = ruleKeys;
+        this.strings = strings;
+        this.maxInMemory = maxInMemory;
+        this.spillFileSupplier = spillFileSupplier;
+        this.spillFiles = spillFiles;
+        this.size = size;
+        this.componentIds = new int[capacity];
+        this.ruleKeyIds = new int[capacity];
+        this.lines = new int[capacity];
+        this.types = new byte[capacity];
+        this.severityIds = new int[capacity];
+        this.statusIds = new int[capacity];
+        this.resolutionIds = new int[capacity];
+        this.efforts = new long[capacity];
+        this.messages = new String[capacity];
+        this.keys = new String[capacity];
+    }
+
+    synchronized void add(Component component, DefaultIssue issue) {
+        Integer line = issue.getLine();
+        RuleType type = issue.type();
+        Long effort = issue.effortInMinutes();
+
+        int componentId = components.intern(component);
+        int ruleKeyId = ruleKeys.intern(issue.getRuleKey());
+        int lineValue = null == line ? NONE : line;
+        byte typeValue = null == type ? NONE : (byte) type.ordinal();
+        int severityId = strings.intern(issue.severity());
+        int statusId = strings.intern(issue.status());
+        int resolutionId = strings.intern(issue.resolution());
+        long effortValue = null == effort ? NONE : effort;
+
+        if (size >= maxInMemory) {
+            getWritableSpillFile().append(componentId, ruleKeyId, lineValue, typeValue, severityId, statusId,
+                                          resolutionId, effortValue, issue.getMessage(), issue.key());
+            size++;
+            return;
+        }
+
+        if (size == componentIds.length) {
+            grow((int) Math.min((long) size * 2, maxInMemory));
+        }
+        componentIds[size] = componentId;
+        ruleKeyIds[size] = ruleKeyId;
+        lines[size] = lineValue;
+        types[size] = typeValue;
+        severityIds[size] = severityId;
+        statusIds[size] = statusId;
+        resolutionIds[size] = resolutionId;
+        efforts[size] = effortValue;
+        messages[size] = issue.getMessage();
+        keys[size] = issue.key();
+        size++;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    boolean isSpilled() {
+        synchronized (this) {
+            return !spillFiles.isEmpty();
+        }
+    }
+
+    /**
+     * Creates a cursor over the issues currently held. Any issues written to disk are mapped into memory first, so
+     * the cursor can be used from any thread, but only by one thread at a time.
+     */
+    synchronized Cursor cursor() {
+        seal();
+        return new Cursor(size, new ArrayList<>(spillFiles));
+    }
+
+    /**
+     * Creates a copy of the issues currently held, sharing the interned tables and any mapped files with this store
+     * since neither is modified once it has been written to.
+     */
+    synchronized OpenIssueStore copy() {
+        seal();
+        int inMemory = Math.min(size, maxInMemory);
+        OpenIssueStore copy = new OpenIssueStore(components, ruleKeys, strings, maxInMemory, spillFileSupplier,
+                                                 new ArrayList<>(spillFiles), size, Math.max(inMemory, 1));
+        System.arraycopy(componentIds, 0, copy.componentIds, 0, inMemory);
+        System.arraycopy(ruleKeyIds, 0, copy.ruleKeyIds, 0, inMemory);
+        System.arraycopy(lines, 0, copy.lines, 0, inMemory);
+        System.arraycopy(types, 0, copy.types, 0, inMemory);
+        System.arraycopy(severityIds, 0, copy.severityIds, 0, inMemory);
+        System.arraycopy(statusIds, 0, copy.statusIds, 0, inMemory);
+        System.arraycopy(resolutionIds, 0, copy.resolutionIds, 0, inMemory);
+        System.arraycopy(efforts, 0, copy.efforts, 0, inMemory);
+        System.arraycopy(messages, 0, copy.messages, 0, inMemory);
+        System.arraycopy(keys, 0, copy.keys, 0, inMemory);
+        return copy;
+    }
+
+    private SpillFile getWritableSpillFile() {
+        SpillFile current = spillFiles.isEmpty() ? null : spillFiles.get(spillFiles.size() - 1);
+        if (null == current || current.isSealed() || current.getLength() >= MAX_SPILL_FILE_BYTES) {
+            File file = spillFileSupplier.get();
+            if (spillFiles.isEmpty()) {
+                LOGGER.info(String.format("More than %s open issues found. Writing further issues to %s", maxInMemory,
+                                          file.getAbsolutePath()));
+            }
+            current = new SpillFile(file, size);
+            spillFiles.add(current);
+        }
+        return current;
+    }
+
+    private void seal() {
+        for (SpillFile spillFile : spillFiles) {
+            spillFile.seal();
+        }
+    }
+
+    private void grow(int capacity) {
+        componentIds = Arrays.copyOf(componentIds, capacity);
+        ruleKeyIds = Arrays.copyOf(ruleKeyIds, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        types = Arrays.copyOf(types, capacity);
+        severityIds = Arrays.copyOf(severityIds, capacity);
+        statusIds = Arrays.copyOf(statusIds, capacity);
+        resolutionIds = Arrays.copyOf(resolutionIds, capacity);
+        efforts = Arrays.copyOf(efforts, capacity);
+        messages = Arrays.copyOf(messages, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+    }
+
+    /**
+     * A flyweight view over the stored issues which holds the fields of the current row, so walking the store does
+     * not create an object per issue. A cursor starts before the first row and only covers the issues held when it
+     * was created.
+     */
+    final class Cursor {
+
+        private final int cursorSize;
+        private final List<SpillFile> cursorSpillFiles;
+
+        private int row = NONE;
+        private int componentId;
+        private int ruleKeyId;
+        private int line;
+        private byte type;
+        private int severityId;
+        private int statusId;
+        private int resolutionId;
+        private long effort;
+        private String message;
+        private String key;
+
+        private Cursor(int cursorSize, List<SpillFile> cursorSpillFiles) {
+            this.cursorSize = cursorSize;
+            this.cursorSpillFiles = cursorSpillFiles;
+        }
+
+        boolean next() {
+            if (row + 1 >= cursorSize) {
+                return false;
+            }
+            load(row + 1);
+            return true;
+        }
+
+        Cursor moveTo(int row) {
+            if (row < 0 || row >= cursorSize) {
+                throw new IndexOutOfBoundsException("Row " + row + " is outside of store of size " + cursorSize);
+            }
+            load(row);
+            return this;
+        }
+
+        private void load(int row) {
+            this.row = row;
+            if (row < maxInMemory) {
+                synchronized (OpenIssueStore.this) {
+                    componentId = componentIds[row];
+                    ruleKeyId = ruleKeyIds[row];
+                    line = lines[row];
+                    type = types[row];
+                    severityId = severityIds[row];
+                    statusId = statusIds[row];
+                    resolutionId = resolutionIds[row];
+                    effort = efforts[row];
+                    message = messages[row];
+                    key = keys[row];
+                }
+                return;
+            }
+
+            SpillFile spillFile = cursorSpillFiles.get(0);
+            for (SpillFile candidate : cursorSpillFiles) {
+                if (candidate.getFirstRow() > row) {
+                    break;
+                }
+                spillFile = candidate;
+            }
+            ByteBuffer record = spillFile.read(row);
+            componentId = record.getInt();
+            ruleKeyId = record.getInt();
+            line = record.getInt();
+            type = record.get();
+            severityId = record.getInt();
+            statusId = record.getInt();
+            resolutionId = record.getInt();
+            effort = record.getLong();
+            message = readString(record);
+            key = readString(record);
+        }
+
+        Component getComponent() {
+            return components.get(componentId);
+        }
+
+        RuleKey getRuleKey() {
+            return ruleKeys.get(ruleKeyId);
+        }
+
+        Integer getLine() {
+            return NONE == line ? null : line;
+        }
+
+        RuleType getType() {
+            return NONE == type ? null : RuleType.values()[type];
+        }
+
+        String getSeverity() {
+            return strings.get(severityId);
+        }
+
+        String getStatus() {
+            return strings.get(statusId);
+        }
+
+        String getResolution() {
+            return strings.get(resolutionId);
+        }
+
+        Long getEffortInMinutes() {
+            return NONE == effort ? null : effort;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * Creates an issue holding only the fields kept in the store for the current row, for callers that work with
+         * {@link DefaultIssue}. The issue is not retained by the store.
+         */
+        DefaultIssue toIssue() {
+            DefaultIssue issue = new DefaultIssue();
+            issue.setKey(getKey());
+            issue.setLine(getLine());
+            issue.setMessage(getMessage());
+            issue.setSeverity(getSeverity());
+            issue.setStatus(getStatus());
+            issue.setResolution(getResolution());
+            RuleType ruleType = getType();
+            if (null != ruleType) {
+                issue.setType(ruleType);
+            }
+            RuleKey ruleKey = getRuleKey();
+            if (null != ruleKey) {
+                issue.setRuleKey(ruleKey);
+            }
+            Long effortInMinutes = getEffortInMinutes();
+            if (null != effortInMinutes) {
+                issue.setEffort(Duration.create(effortInMinutes));
+            }
+            return issue;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (NONE == length) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (null == value) {
+            output.writeInt(NONE);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Issues appended to a file whilst collecting, then mapped read-only once they need to be read. The file is
+     * removed as soon as it has been mapped, so is not left behind if decoration runs after the task's temporary
+     * files have been cleaned up, or fails.
+     */
+    private static final class SpillFile {
+
+        private final File file;
+        private final int firstRow;
+
+        private DataOutputStream output;
+        private long[] offsets = new long[INITIAL_CAPACITY];
+        private int count;
+        private ByteBuffer buffer;
+
+        private SpillFile(File file, int firstRow) {
+            this.file = file;
+            this.firstRow = firstRow;
+            try {
+                this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not create " + file.getAbsolutePath(), ex);
+            }
+        }
+
+        private int getFirstRow() {
+            return firstRow;
+        }
+
+        private boolean isSealed() {
+            return null != buffer;
+        }
+
+        private long getLength() {
+            return output.size() & 0xFFFFFFFFL;
+        }
+
+        private void append(int componentId, int ruleKeyId, int line, byte type, int severityId, int statusId,
+                            int resolutionId, long effort, String message, String key) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = getLength();
+            try {
+                output.writeInt(componentId);
+                output.writeInt(ruleKeyId);
+                output.writeInt(line);
+                output.writeByte(type);
+                output.writeInt(severityId);
+                output.writeInt(statusId);
+                output.writeInt(resolutionId);
+                output.writeLong(effort);
+                writeString(output, message);
+                writeString(output, key);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not write issue to " + file.getAbsolutePath(), ex);
+            }
+        }
+
+        private void seal() {
+            if (isSealed()) {
+                return;
+            }
+            try {
+                output.close();
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not read issues from " + file.getAbsolutePath(), ex);
+            }
+            offsets = Arrays.copyOf(offsets, count);
+            output = null;
+            try {
+                Files.delete(file.toPath());
+            } catch (IOException ex) {
+                // some platforms don't allow a mapped file to be deleted
+                LOGGER.debug("Could not delete " + file.getAbsolutePath(), ex);
+                file.deleteOnExit();
+            }
+        }
+
+        private ByteBuffer read(int row) {
+            ByteBuffer record = buffer.duplicate();
+            record.position((int) offsets[row - firstRow]);
+            return record;
+        }
+    }
+
+    private static final class Table<T> {
+
+        private final Map<T, Integer> ids;
+        private final List<T> values = new ArrayList<>();
+
+        private Table(Map<T, Integer> ids) {
+            this.ids = ids;
+        }
+
+        private synchronized int intern(T value) {
+            if (null == value) {
+                return NONE;
+            }
+            return ids.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        private synchronized T get(int id) {
+            return NONE == id ? null : values.get(id);
+        }
+    }
+}
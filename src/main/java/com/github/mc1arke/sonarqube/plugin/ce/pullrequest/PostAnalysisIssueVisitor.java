@@ -18,25 +18,235 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
 
+import org.sonar.api.config.Configuration;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.rules.RuleType;
+import org.sonar.api.utils.TempFolder;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+import org.sonar.ce.task.projectanalysis.analysis.AnalysisMetadataHolder;
 import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
 import org.sonar.ce.task.projectanalysis.issue.IssueVisitor;
 import org.sonar.core.issue.DefaultIssue;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
 
 public class PostAnalysisIssueVisitor extends IssueVisitor {
 
-    private final List<ComponentIssue> collectedIssues = new ArrayList<>();
+    public static final String PULL_REQUEST_ISSUES_MAX_IN_MEMORY =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.issues.maxInMemory";
 
+    static final int DEFAULT_MAX_ISSUES_IN_MEMORY = 50000;
+
+    private static final Logger LOGGER = Loggers.get(PostAnalysisIssueVisitor.class);
+
+    private static final Set<String> OPEN_ISSUE_STATUSES;
+
+    static {
+        Set<String> openIssueStatuses = new HashSet<>(Issue.STATUSES);
+        openIssueStatuses.remove(Issue.STATUS_CLOSED);
+        openIssueStatuses.remove(Issue.STATUS_RESOLVED);
+        OPEN_ISSUE_STATUSES = Collections.unmodifiableSet(openIssueStatuses);
+    }
+
+    private final ConfigurationRepository configurationRepository;
+    private final AnalysisMetadataHolder analysisMetadataHolder;
+    private final TempFolder tempFolder;
+    private final long[] openIssueCountsByType;
+    private final Map<String, Long> openIssueCountsBySeverity;
+    private final Map<String, Long> issueCountsByStatus;
+    private final Map<Component, Long> openIssueCountsByComponent;
+
+    private OpenIssueStore openIssues;
+    private boolean collectionDisabled;
+
+    /**
+     * Creates a visitor that collects every issue it is notified of in memory.
+     */
+    public PostAnalysisIssueVisitor() {
+        this(null, null, null, new OpenIssueStore(), new long[RuleType.values().length], new HashMap<>(),
+             new HashMap<>(), new HashMap<>());
+    }
+
+    /**
+     * Creates a visitor that only collects issues when the analysis is for a pull request that is configured to be
+     * decorated, since nothing reads the collected issues otherwise. Open issues beyond the configured limit are
+     * written to a file in the task's temporary folder rather than being held on the heap.
+     */
+    public PostAnalysisIssueVisitor(ConfigurationRepository configurationRepository,
+                                    AnalysisMetadataHolder analysisMetadataHolder, TempFolder tempFolder) {
+        this(configurationRepository, analysisMetadataHolder, tempFolder, null, new long[RuleType.values().length],
+             new HashMap<>(), new HashMap<>(), new HashMap<>());
+    }
+
+    private PostAnalysisIssueVisitor(ConfigurationRepository configurationRepository,
+                                     AnalysisMetadataHolder analysisMetadataHolder, TempFolder tempFolder,
+                                     OpenIssueStore openIssues, long[] openIssueCountsByType,
+                                     Map<String, Long> openIssueCountsBySeverity,
+                                     Map<String, Long> issueCountsByStatus,
+                                     Map<Component, Long> openIssueCountsByComponent) {
+        super();
+        this.configurationRepository = configurationRepository;
+        this.analysisMetadataHolder = analysisMetadataHolder;
+        this.tempFolder = tempFolder;
+        this.openIssues = openIssues;
+        this.openIssueCountsByType = openIssueCountsByType;
+        this.openIssueCountsBySeverity = openIssueCountsBySeverity;
+        this.issueCountsByStatus = issueCountsByStatus;
+        this.openIssueCountsByComponent = openIssueCountsByComponent;
+    }
+
+    /**
+     * Counts every issue, but only retains the fields decorators read from the open issues, since closed and resolved
+     * issues are never reported on.
+     */
     @Override
     public void onIssue(Component component, DefaultIssue defaultIssue) {
-        collectedIssues.add(new ComponentIssue(component, defaultIssue));
+        if (null == defaultIssue || !isCollecting()) {
+            return;
+        }
+        String status = defaultIssue.status();
+        if (null != status) {
+            issueCountsByStatus.merge(status, 1L, Long::sum);
+        }
+        if (!OPEN_ISSUE_STATUSES.contains(status)) {
+            return;
+        }
+
+        openIssues.add(component, defaultIssue);
+        RuleType type = defaultIssue.type();
+        if (null != type) {
+            openIssueCountsByType[type.ordinal()]++;
+        }
+        String severity = defaultIssue.severity();
+        if (null != severity) {
+            openIssueCountsBySeverity.merge(severity, 1L, Long::sum);
+        }
+        if (null != component) {
+            openIssueCountsByComponent.merge(component, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * The issues that have not been closed or resolved, in the order they were reported, so decorators don't each
+     * have to filter the full list of issues. Each element is created from the stored fields as it is read, so callers
+     * should not rely on getting the same instance for an issue on each read.
+     */
+    public List<ComponentIssue> getOpenIssues() {
+        if (null == openIssues) {
+            return Collections.emptyList();
+        }
+        return new OpenIssueList(openIssues);
+    }
+
+    public long countOpenIssues(RuleType type) {
+        return openIssueCountsByType[type.ordinal()];
+    }
+
+    public long countOpenIssuesBySeverity(String severity) {
+        return openIssueCountsBySeverity.getOrDefault(severity, 0L);
     }
 
-    public List<ComponentIssue> getIssues() {
-        return Collections.unmodifiableList(collectedIssues);
+    public long countOpenIssues(Component component) {
+        return openIssueCountsByComponent.getOrDefault(component, 0L);
+    }
+
+    public long countIssuesByStatus(String status) {
+        return issueCountsByStatus.getOrDefault(status, 0L);
+    }
+
+    /**
+     * Creates a visitor holding a copy of the issues collected so far, which is unaffected by any further issues this
+     * visitor is notified of.
+     */
+    public PostAnalysisIssueVisitor snapshot() {
+        return new PostAnalysisIssueVisitor(configurationRepository, analysisMetadataHolder, tempFolder,
+                                            null == openIssues ? null : openIssues.copy(),
+                                            openIssueCountsByType.clone(), new HashMap<>(openIssueCountsBySeverity),
+                                            new HashMap<>(issueCountsByStatus),
+                                            new HashMap<>(openIssueCountsByComponent));
+    }
+
+    private boolean isCollecting() {
+        if (null != openIssues) {
+            return true;
+        }
+        if (collectionDisabled || null == analysisMetadataHolder || null == configurationRepository) {
+            return false;
+        }
+
+        Configuration configuration = configurationRepository.getConfiguration();
+        if (!analysisMetadataHolder.isPullRequest() || !configuration.get("sonar.pullrequest.provider").isPresent()) {
+            LOGGER.debug("Analysis is not for a pull request with a decoration provider. Not collecting issues");
+            collectionDisabled = true;
+            return false;
+        }
+
+        int maxInMemory = IntSettings.getPositiveInt(configuration, PULL_REQUEST_ISSUES_MAX_IN_MEMORY,
+                                                     DEFAULT_MAX_ISSUES_IN_MEMORY);
+        openIssues = new OpenIssueStore(maxInMemory, () -> tempFolder.newFile("pull-request-issues", ".bin"));
+        return true;
+    }
+
+    private static final class OpenIssueList extends AbstractList<ComponentIssue> implements RandomAccess {
+
+        private final OpenIssueStore store;
+        private final int size;
+
+        private OpenIssueList(OpenIssueStore store) {
+            super();
+            this.store = store;
+            this.size = store.size();
+        }
+
+        @Override
+        public ComponentIssue get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " is outside of list of size " + size);
+            }
+            return toComponentIssue(store.cursor().moveTo(index));
+        }
+
+        @Override
+        public Iterator<ComponentIssue> iterator() {
+            OpenIssueStore.Cursor cursor = store.cursor();
+            return new Iterator<ComponentIssue>() {
+                private int remaining = size;
+
+                @Override
+                public boolean hasNext() {
+                    return remaining > 0;
+                }
+
+                @Override
+                public ComponentIssue next() {
+                    if (remaining <= 0 || !cursor.next()) {
+                        throw new NoSuchElementException();
+                    }
+                    remaining--;
+                    return toComponentIssue(cursor);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private static ComponentIssue toComponentIssue(OpenIssueStore.Cursor cursor) {
+            return new ComponentIssue(cursor.getComponent(), cursor.toIssue());
+        }
     }
 
     public static class ComponentIssue {
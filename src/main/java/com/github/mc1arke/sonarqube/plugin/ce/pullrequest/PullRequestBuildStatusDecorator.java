@@ -24,9 +24,29 @@ public interface PullRequestBuildStatusDecorator {
 
     String PULL_REQUEST_FILE_COMMENT_ENABLED = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.file.comment.enabled";
 
+    String PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.file.comment.changedLinesOnly";
+
     String PULL_REQUEST_DELETE_COMMENTS_ENABLED = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.delete.comments.enabled";
 
+    String PULL_REQUEST_DELETE_COMMENTS_PARALLELISM = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.delete.comments.parallelism";
+
     String name();
 
+    /**
+     * Called on the Compute Engine worker before decoration is handed to the decoration executor, whilst the analysis
+     * report and other task data are still available. {@link #decorateQualityGateStatus(AnalysisDetails)} only reads
+     * from a snapshot of the analysis, so any SCM data it needs has to be read here.
+     *
+     * @return the revisions that last changed the issue lines the decoration checks, or none if it doesn't check them
+     */
+    default LineRevisions prepare(AnalysisDetails analysisDetails) {
+        return LineRevisions.none();
+    }
+
+    /**
+     * @param analysisDetails a snapshot of the analysis, holding the project configuration and the revisions returned
+     *                        from {@link #prepare(AnalysisDetails)}. The Compute Engine task that produced the analysis
+     *                        will normally have completed, so none of the task's components can be used
+     */
     void decorateQualityGateStatus(AnalysisDetails analysisDetails);
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import org.picocontainer.Startable;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs pull request decoration on a pool of threads held by the Compute Engine, rather than on the Compute Engine
+ * worker that processed the analysis report, so slow ALM instances don't hold up the processing of further reports.
+ *
+ * Decorations wait in a bounded queue when all decoration threads are busy. Once the queue is full, the configured
+ * {@link RejectionPolicy} decides whether the worker submitting the decoration performs it itself, or the decoration
+ * is discarded.
+ *
+ * Decorations of the same pull request by the same decorator never run at the same time, since their comment clean-up
+ * and posting would otherwise interleave. Whilst one is running or queued, a newer analysis of the pull request
+ * waits until it has completed, replacing any older analysis that was waiting, so the latest analysis is always the
+ * last one to decorate the pull request.
+ */
+public class PullRequestDecorationExecutor implements Startable {
+
+    public static final String PULL_REQUEST_DECORATION_THREADS =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.decoration.threads";
+
+    public static final String PULL_REQUEST_DECORATION_QUEUE_SIZE =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.decoration.queueSize";
+
+    public static final String PULL_REQUEST_DECORATION_REJECTION_POLICY =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.decoration.rejectionPolicy";
+
+    static final int DEFAULT_THREADS = 2;
+    static final int DEFAULT_QUEUE_SIZE = 20;
+
+    private static final Logger LOGGER = Loggers.get(PullRequestDecorationExecutor.class);
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final Configuration configuration;
+    private final DecorationMetrics decorationMetrics;
+
+    private final Map<String, PullRequestDecorations> pullRequestDecorations = new HashMap<>();
+
+    private ThreadPoolExecutor executor;
+
+    public PullRequestDecorationExecutor(Configuration configuration, DecorationMetrics decorationMetrics) {
+        super();
+        this.configuration = configuration;
+        this.decorationMetrics = decorationMetrics;
+    }
+
+    @Override
+    public synchronized void start() {
+        int threads = IntSettings.getPositiveInt(configuration, PULL_REQUEST_DECORATION_THREADS, DEFAULT_THREADS);
+        int queueSize = IntSettings.getPositiveInt(configuration, PULL_REQUEST_DECORATION_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        RejectionPolicy rejectionPolicy = getRejectionPolicy();
+
+        LOGGER.debug(String.format(
+                "Starting pull request decoration executor with %s threads, a queue of %s and %s rejection policy",
+                threads, queueSize, rejectionPolicy));
+
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<>(queueSize), new DecorationThreadFactory(),
+                                          rejectionPolicy.getHandler());
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (null == executor) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn(String.format("Abandoning %s pull request decorations on shutdown",
+                                          executor.shutdownNow().size()));
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        synchronized (pullRequestDecorations) {
+            // anything left was abandoned, so mustn't hold up decorations if the executor is started again
+            pullRequestDecorations.clear();
+        }
+    }
+
+    /**
+     * Queues the decoration of a pull request. The analysis details must not depend on data held in the Compute
+     * Engine task that produced them, since the task will normally have completed before decoration starts.
+     */
+    public void submit(PullRequestBuildStatusDecorator decorator, AnalysisDetails analysisDetails) {
+        DecorationTask decorationTask = new DecorationTask(decorator, analysisDetails, decorationMetrics);
+
+        ThreadPoolExecutor currentExecutor;
+        synchronized (this) {
+            currentExecutor = executor;
+        }
+
+        if (null == currentExecutor || currentExecutor.isShutdown()) {
+            LOGGER.debug("Decoration executor is not running. Decorating pull request on current thread");
+            decorationTask.run();
+            return;
+        }
+
+        String key = String.format("%s:%s:%s", decorator.name(), analysisDetails.getAnalysisProjectKey(),
+                                   analysisDetails.getBranchName());
+        PullRequestDecorations decorations;
+        synchronized (pullRequestDecorations) {
+            decorations = pullRequestDecorations.get(key);
+            if (null != decorations) {
+                if (null != decorations.next) {
+                    LOGGER.info(String.format(
+                            "Replacing queued decoration of pull request %s with a decoration of a newer analysis",
+                            analysisDetails.getBranchName()));
+                } else {
+                    LOGGER.info(String.format(
+                            "Decoration of pull request %s will start once its current decoration has completed",
+                            analysisDetails.getBranchName()));
+                }
+                decorations.next = decorationTask;
+                return;
+            }
+            decorations = new PullRequestDecorations(key, decorationTask);
+            pullRequestDecorations.put(key, decorations);
+        }
+
+        LOGGER.info(String.format("Queueing decoration of pull request %s with %s decorations already queued and %s running",
+                                  analysisDetails.getBranchName(), currentExecutor.getQueue().size(),
+                                  currentExecutor.getActiveCount()));
+        currentExecutor.execute(decorations);
+    }
+
+    private RejectionPolicy getRejectionPolicy() {
+        Optional<String> value = configuration.get(PULL_REQUEST_DECORATION_REJECTION_POLICY);
+        if (!value.isPresent()) {
+            return RejectionPolicy.CALLER_RUNS;
+        }
+        try {
+            return RejectionPolicy.valueOf(value.get().trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warn(String.format("Invalid value '%s' for %s. Using the default of %s", value.get(),
+                                      PULL_REQUEST_DECORATION_REJECTION_POLICY, RejectionPolicy.CALLER_RUNS));
+            return RejectionPolicy.CALLER_RUNS;
+        }
+    }
+
+    /**
+     * The action to take when a decoration is submitted whilst the decoration queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Decorate on the Compute Engine worker submitting the decoration, so the worker picks up no more reports
+         * until the decoration completes. Only that one decoration is run on the worker, any newer analysis of the
+         * same pull request submitted in the meantime is handed back to the executor.
+         */
+        CALLER_RUNS((runnable, executor) -> {
+            if (!executor.isShutdown()) {
+                ((PullRequestDecorations) runnable).runSingle();
+            }
+        }),
+
+        /**
+         * Skip decoration of the pull request, so the worker is always released immediately.
+         */
+        DISCARD((runnable, executor) -> LOGGER.warn(String.format(
+                "Decoration queue is full. Discarding decoration of pull request %s",
+                ((PullRequestDecorations) runnable).discard().analysisDetails.getBranchName())));
+
+        private final RejectedExecutionHandler handler;
+
+        RejectionPolicy(RejectedExecutionHandler handler) {
+            this.handler = handler;
+        }
+
+        RejectedExecutionHandler getHandler() {
+            return handler;
+        }
+    }
+
+    /**
+     * Runs the decorations of a single pull request one after another, taking the latest analysis submitted each time,
+     * until there are none left to run. The pull request is released however the decorations end, so a decoration
+     * failing with an {@link Error} can't stop later analyses of the pull request from being decorated.
+     */
+    private final class PullRequestDecorations implements Runnable {
+
+        private final String key;
+        private DecorationTask next;
+
+        PullRequestDecorations(String key, DecorationTask next) {
+            super();
+            this.key = key;
+            this.next = next;
+        }
+
+        @Override
+        public void run() {
+            DecorationTask decorationTask = takeNext();
+            try {
+                while (null != decorationTask) {
+                    decorationTask.run();
+                    decorationTask = takeNext();
+                }
+            } finally {
+                if (null != decorationTask) {
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Runs only the next decoration, handing any decoration submitted whilst it was running back to the executor
+         * rather than running it on the current thread too.
+         */
+        void runSingle() {
+            DecorationTask decorationTask = takeNext();
+            if (null == decorationTask) {
+                return;
+            }
+            try {
+                decorationTask.run();
+            } finally {
+                release();
+            }
+        }
+
+        private DecorationTask takeNext() {
+            synchronized (pullRequestDecorations) {
+                DecorationTask decorationTask = next;
+                next = null;
+                if (null == decorationTask) {
+                    pullRequestDecorations.remove(key);
+                }
+                return decorationTask;
+            }
+        }
+
+        private void release() {
+            synchronized (pullRequestDecorations) {
+                if (null == next) {
+                    pullRequestDecorations.remove(key);
+                    return;
+                }
+            }
+
+            ThreadPoolExecutor currentExecutor;
+            synchronized (PullRequestDecorationExecutor.this) {
+                currentExecutor = executor;
+            }
+            if (null == currentExecutor || currentExecutor.isShutdown()) {
+                LOGGER.warn(String.format("Abandoning decoration of pull request %s since the decoration executor has stopped",
+                                          discard().analysisDetails.getBranchName()));
+                return;
+            }
+            currentExecutor.execute(this);
+        }
+
+        /**
+         * Abandons the decorations of the pull request, so a later analysis is queued again.
+         *
+         * @return the decoration that won't be run
+         */
+        DecorationTask discard() {
+            synchronized (pullRequestDecorations) {
+                pullRequestDecorations.remove(key);
+                DecorationTask discarded = next;
+                next = null;
+                return discarded;
+            }
+        }
+    }
+
+    private static class DecorationTask implements Runnable {
+
+        private final PullRequestBuildStatusDecorator decorator;
+        private final AnalysisDetails analysisDetails;
+        private final DecorationMetrics decorationMetrics;
+        private final long queuedAt;
+
+        DecorationTask(PullRequestBuildStatusDecorator decorator, AnalysisDetails analysisDetails,
+                       DecorationMetrics decorationMetrics) {
+            super();
+            this.decorator = decorator;
+            this.analysisDetails = analysisDetails;
+            this.decorationMetrics = decorationMetrics;
+            this.queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long startedAt = System.nanoTime();
+            LOGGER.info(String.format("Decorating pull request %s using %s after waiting %sms",
+                                      analysisDetails.getBranchName(), decorator.name(),
+                                      TimeUnit.NANOSECONDS.toMillis(startedAt - queuedAt)));
+            DecorationRecording recording = decorationMetrics.startRecording(decorator.name());
+            boolean failed = true;
+            try {
+                decorator.decorateQualityGateStatus(analysisDetails);
+                failed = false;
+            } catch (RuntimeException ex) {
+                LOGGER.error(String.format("Could not decorate pull request %s", analysisDetails.getBranchName()),
+                             ex);
+            } finally {
+                String summary = recording.finish(failed);
+                LOGGER.info(String.format(failed ? "Decoration of pull request %s failed after %s" :
+                                          "Decorated pull request %s in %s", analysisDetails.getBranchName(),
+                                          summary));
+            }
+        }
+    }
+
+    private static class DecorationThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "pull-request-decoration-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
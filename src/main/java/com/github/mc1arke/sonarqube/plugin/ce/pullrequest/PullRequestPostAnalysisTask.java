@@ -33,6 +33,7 @@ import org.sonar.ce.task.projectanalysis.metric.MetricRepository;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class PullRequestPostAnalysisTask implements PostProjectAnalysisTask,
                                                     PostProjectAnalysisTaskCompatibility.PostProjectAnalysisTaskCompatibilityMajor8.PostProjectAnalysisTaskCompatibilityMinor0 {
@@ -46,13 +47,15 @@ public class PullRequestPostAnalysisTask implements PostProjectAnalysisTask,
     private final MetricRepository metricRepository;
     private final MeasureRepository measureRepository;
     private final TreeRootHolder treeRootHolder;
+    private final PullRequestDecorationExecutor pullRequestDecorationExecutor;
 
     public PullRequestPostAnalysisTask(Server server,
                                        ConfigurationRepository configurationRepository,
                                        List<PullRequestBuildStatusDecorator> pullRequestDecorators,
                                        PostAnalysisIssueVisitor postAnalysisIssueVisitor,
                                        MetricRepository metricRepository, MeasureRepository measureRepository,
-                                       TreeRootHolder treeRootHolder) {
+                                       TreeRootHolder treeRootHolder,
+                                       PullRequestDecorationExecutor pullRequestDecorationExecutor) {
         super();
         this.server = server;
         this.configurationRepository = configurationRepository;
@@ -61,6 +64,7 @@ public class PullRequestPostAnalysisTask implements PostProjectAnalysisTask,
         this.metricRepository = metricRepository;
         this.measureRepository = measureRepository;
         this.treeRootHolder = treeRootHolder;
+        this.pullRequestDecorationExecutor = pullRequestDecorationExecutor;
     }
 
     @Override
@@ -127,7 +131,23 @@ public class PullRequestPostAnalysisTask implements PostProjectAnalysisTask,
 
         PullRequestBuildStatusDecorator pullRequestDecorator = optionalPullRequestDecorator.get();
         LOGGER.info("using pull request decorator" + pullRequestDecorator.name());
-        pullRequestDecorator.decorateQualityGateStatus(analysisDetails);
+        long startedAt = System.nanoTime();
+        LineRevisions lineRevisions = pullRequestDecorator.prepare(analysisDetails);
+        long preparedAt = System.nanoTime();
+        AnalysisDetails snapshot = analysisDetails.snapshot(configuration, lineRevisions);
+        long snapshotTakenAt = System.nanoTime();
+        pullRequestDecorationExecutor.submit(pullRequestDecorator, snapshot);
+        long submittedAt = System.nanoTime();
+
+        // the decoration itself is normally still running, and logs its own summary once complete
+        LOGGER.info(String.format("Pull request decoration task for %s completed in %sms (prepare %sms, snapshot %sms, submit %sms)",
+                                  optionalBranchName.get(), toMillis(submittedAt - startedAt),
+                                  toMillis(preparedAt - startedAt), toMillis(snapshotTakenAt - preparedAt),
+                                  toMillis(submittedAt - snapshotTakenAt)));
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
     }
 
     private static Optional<PullRequestBuildStatusDecorator> findCurrentPullRequestStatusDecorator(
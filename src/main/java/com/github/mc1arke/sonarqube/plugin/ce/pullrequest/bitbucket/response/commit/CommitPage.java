@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.commit;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class CommitPage implements Serializable {
+    private final boolean isLastPage;
+
+    private final int nextPageStart;
+
+    private final Commit[] values;
+
+    @JsonCreator
+    public CommitPage(@JsonProperty("isLastPage") final boolean isLastPage, @JsonProperty("nextPageStart") final int nextPageStart, @JsonProperty("values") final Commit[] values) {
+        this.isLastPage = isLastPage;
+        this.nextPageStart = nextPageStart;
+        this.values = values;
+    }
+
+    public boolean isLastPage() {
+        return isLastPage;
+    }
+
+    public int getNextPageStart() {
+        return nextPageStart;
+    }
+
+    public Commit[] getValues() {
+        return values;
+    }
+}
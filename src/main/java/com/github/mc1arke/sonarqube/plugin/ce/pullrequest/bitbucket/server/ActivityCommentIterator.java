@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Activity;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.ActivityPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Comment;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Iterates over the comments in a pull request's activities, requesting each page of activities only when the
+ * comments from the previous page have been consumed. The request for the next page is started as soon as the current
+ * page has been received, so it's in flight whilst the current page's comments are processed.
+ *
+ * Bitbucket returns activities newest first, so the scan can be stopped before reaching the oldest activity by
+ * supplying a predicate that identifies the oldest comment the caller is interested in. No further pages are requested
+ * after the page containing a comment that matches that predicate.
+ *
+ * The next page is requested on a shared executor, so closing the iterator only cancels its own outstanding request.
+ */
+final class ActivityCommentIterator implements Iterator<Comment>, Closeable {
+
+    private final Function<String, ActivityPage> pageLoader;
+    private final String activityUrl;
+    private final Predicate<Comment> filter;
+    private final Predicate<Comment> lastComment;
+
+    private final ExecutorService prefetchExecutor;
+
+    private Future<ActivityPage> nextPage;
+    private Iterator<Comment> currentPage = Collections.emptyIterator();
+    private boolean started;
+    private boolean complete;
+    private boolean stoppedEarly;
+    private int pagesRead;
+
+    /**
+     * @param activityUrl the URL of the first page of activities
+     * @param pageLoader retrieves the page of activities at the given URL, returning null if the page couldn't be read
+     * @param prefetchExecutor the shared executor the next page is requested on whilst the current page is consumed
+     * @param filter the comments to return
+     * @param lastComment identifies a comment that no comments older than need to be returned
+     */
+    ActivityCommentIterator(String activityUrl, Function<String, ActivityPage> pageLoader,
+                            ExecutorService prefetchExecutor, Predicate<Comment> filter, Predicate<Comment> lastComment) {
+        super();
+        this.activityUrl = activityUrl;
+        this.pageLoader = pageLoader;
+        this.prefetchExecutor = prefetchExecutor;
+        this.filter = filter;
+        this.lastComment = lastComment;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            ActivityPage page;
+            if (!started) {
+                started = true;
+                page = pageLoader.apply(activityUrl);
+            } else if (null != nextPage) {
+                page = await(nextPage);
+                nextPage = null;
+            } else {
+                return false;
+            }
+
+            if (null == page) {
+                close();
+                return false;
+            }
+            pagesRead++;
+
+            List<Comment> comments = Arrays.stream(null == page.getValues() ? new Activity[0] : page.getValues())
+                    .map(Activity::getComment).filter(Objects::nonNull).filter(filter).collect(Collectors.toList());
+            boolean containsLastComment = comments.stream().anyMatch(lastComment);
+            if (page.isLastPage() || page.getNextPageStart() <= page.getStart()) {
+                complete = true;
+                close();
+            } else if (containsLastComment) {
+                complete = true;
+                stoppedEarly = true;
+                close();
+            } else {
+                String nextPageUrl = withStart(activityUrl, page.getNextPageStart());
+                nextPage = prefetchExecutor.submit(DecorationRecording.current().propagate(() -> pageLoader.apply(nextPageUrl)));
+            }
+            currentPage = comments.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public Comment next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return currentPage.next();
+    }
+
+    /**
+     * @return true if every page that needed to be read has been read successfully, false if a page could not be
+     * retrieved or the iteration hasn't finished.
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isStoppedEarly() {
+        return stoppedEarly;
+    }
+
+    int getPagesRead() {
+        return pagesRead;
+    }
+
+    @Override
+    public void close() {
+        if (null != nextPage) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+    }
+
+    private ActivityPage await(Future<ActivityPage> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted whilst retrieving activities from Bitbucket Server", ex);
+        } catch (ExecutionException ex) {
+            close();
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Could not retrieve activities from Bitbucket Server", ex.getCause());
+        }
+    }
+
+    static String withStart(String url, int start) {
+        return url + (url.contains("?") ? "&" : "?") + "start=" + start;
+    }
+}
@@ -18,49 +18,57 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.ChangedLinesIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentCleanup;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentReconciler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.IntSettings;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Activity;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.ActivityPage;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.Anchor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.FileComment;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.SummaryComment;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.UpdatedComment;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Comment;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Diff;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffLine;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.commit.Commit;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.commit.CommitPage;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffPage;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Hunk;
-import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Segment;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonCodecs;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonResponses;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.ParallelRequestExecutor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.Phase;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.util.EntityUtils;
 import org.sonar.api.config.Configuration;
-import org.sonar.api.issue.Issue;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
 import org.sonar.core.issue.DefaultIssue;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class BitbucketServerPullRequestDecorator implements PullRequestBuildStatusDecorator {
@@ -77,17 +85,22 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
 
     public static final String PULL_REQUEST_BITBUCKET_COMMENT_USER_SLUG = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.bitbucket.comment.userSlug";
 
-    private static final Logger LOGGER = Loggers.get(BitbucketServerPullRequestDecorator.class);
-    private static final List<String> OPEN_ISSUE_STATUSES =
-            Issue.STATUSES.stream().filter(s -> !Issue.STATUS_CLOSED.equals(s) && !Issue.STATUS_RESOLVED.equals(s))
-                    .collect(Collectors.toList());
+    public static final String PULL_REQUEST_BITBUCKET_COMMENT_RECONCILE = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.bitbucket.comment.reconcile";
+
+    public static final String PULL_REQUEST_BITBUCKET_COMMENT_PARALLELISM = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.bitbucket.comment.parallelism";
+
+    static final int DEFAULT_COMMENT_PARALLELISM = 4;
 
+    static final String CLEANUP_COMPLETE_MARKER = "\n\n[//]: # (sonarqube-comment-cleanup:complete)";
+
+    private static final Logger LOGGER = Loggers.get(BitbucketServerPullRequestDecorator.class);
     private static final String REST_API = "/rest/api/1.0/";
     private static final String USER_PR_API = "users/%s/repos/%s/pull-requests/%s/";
     private static final String PROJECT_PR_API = "projects/%s/repos/%s/pull-requests/%s/";
     private static final String COMMENTS_API = "comments";
     private static final String DIFF_API = "diff";
     private static final String ACTIVITIES = "activities?limit=%s";
+    private static final String COMMITS = "commits?limit=%s";
 
     private static final String FULL_PR_COMMENT_API = "%s" + REST_API + PROJECT_PR_API + COMMENTS_API;
     private static final String FULL_PR_COMMENT_USER_API = "%s" + REST_API + USER_PR_API + COMMENTS_API;
@@ -98,12 +111,28 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
     private static final String FULL_PR_DIFF_API = "%s" + REST_API + PROJECT_PR_API + DIFF_API;
     private static final String FULL_PR_DIFF_USER_API = "%s" + REST_API + USER_PR_API + DIFF_API;
 
+    private static final String FULL_PR_COMMITS_API = "%s" + REST_API + PROJECT_PR_API + COMMITS;
+    private static final String FULL_PR_COMMITS_USER_API = "%s" + REST_API + USER_PR_API + COMMITS;
+
 
     private final ConfigurationRepository configurationRepository;
+    private final ScmInfoRepository scmInfoRepository;
+    private final HttpClientProvider httpClientProvider;
+    private final AtomicReference<IndexedDiff> lastIndexedDiff = new AtomicReference<>();
 
-    public BitbucketServerPullRequestDecorator(ConfigurationRepository configurationRepository) {
+    public BitbucketServerPullRequestDecorator(ConfigurationRepository configurationRepository, ScmInfoRepository scmInfoRepository, HttpClientProvider httpClientProvider) {
         super();
         this.configurationRepository = configurationRepository;
+        this.scmInfoRepository = scmInfoRepository;
+        this.httpClientProvider = httpClientProvider;
+    }
+
+    @Override
+    public LineRevisions prepare(AnalysisDetails analysisDetails) {
+        if (Boolean.parseBoolean(configurationRepository.getConfiguration().get(PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY).orElse("false"))) {
+            return LineRevisions.read(scmInfoRepository, analysisDetails.getPostAnalysisIssueVisitor().getOpenIssues());
+        }
+        return LineRevisions.none();
     }
 
     @Override
@@ -111,7 +140,7 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
         LOGGER.info("starting to analyze with " + analysisDetails.toString());
 
         try {
-            Configuration configuration = configurationRepository.getConfiguration();
+            Configuration configuration = analysisDetails.getConfiguration();
             final String hostURL = getMandatoryProperty(PULL_REQUEST_BITBUCKET_URL, configuration);
             final String apiToken = getMandatoryProperty(PULL_REQUEST_BITBUCKET_TOKEN, configuration);
             final String repositorySlug = getMandatoryProperty(PULL_REQUEST_BITBUCKET_REPOSITORY_SLUG, configuration);
@@ -123,18 +152,22 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
             final boolean summaryCommentEnabled = Boolean.parseBoolean(getMandatoryProperty(PULL_REQUEST_COMMENT_SUMMARY_ENABLED, configuration));
             final boolean fileCommentEnabled = Boolean.parseBoolean(getMandatoryProperty(PULL_REQUEST_FILE_COMMENT_ENABLED, configuration));
             final boolean deleteCommentsEnabled = Boolean.parseBoolean(getMandatoryProperty(PULL_REQUEST_DELETE_COMMENTS_ENABLED, configuration));
+            final boolean changedLinesOnly = Boolean.parseBoolean(configuration.get(PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY).orElse("false"));
 
             final String commentUrl;
             final String activityUrl;
             final String diffUrl;
+            final String commitsUrl;
             if (StringUtils.isNotBlank(userSlug)) {
                 commentUrl = String.format(FULL_PR_COMMENT_USER_API, hostURL, userSlug, repositorySlug, pullRequestId);
                 diffUrl = String.format(FULL_PR_DIFF_USER_API, hostURL, userSlug, repositorySlug, pullRequestId);
                 activityUrl = String.format(FULL_PR_ACTIVITIES_USER_API, hostURL, userSlug, repositorySlug, pullRequestId, 250);
+                commitsUrl = String.format(FULL_PR_COMMITS_USER_API, hostURL, userSlug, repositorySlug, pullRequestId, 250);
             } else if (StringUtils.isNotBlank(projectKey)) {
                 commentUrl = String.format(FULL_PR_COMMENT_API, hostURL, projectKey, repositorySlug, pullRequestId);
                 diffUrl = String.format(FULL_PR_DIFF_API, hostURL, projectKey, repositorySlug, pullRequestId);
                 activityUrl = String.format(FULL_PR_ACTIVITIES_API, hostURL, projectKey, repositorySlug, pullRequestId, 250);
+                commitsUrl = String.format(FULL_PR_COMMITS_API, hostURL, projectKey, repositorySlug, pullRequestId, 250);
             } else {
                 throw new IllegalStateException(String.format("Property userSlug (%s) for /user repo or projectKey (%s) for /projects repo needs to be set.", PULL_REQUEST_BITBUCKET_USER_SLUG, PULL_REQUEST_BITBUCKET_PROJECT_KEY));
             }
@@ -146,27 +179,58 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
             headers.put("Authorization", String.format("Bearer %s", apiToken));
             headers.put("Accept", "application/json");
 
-            deleteComments(activityUrl, commentUrl, commentUserSlug, headers, deleteCommentsEnabled);
+            boolean reconcileComments = Boolean.parseBoolean(configuration.get(PULL_REQUEST_BITBUCKET_COMMENT_RECONCILE).orElse("false"));
+            if (reconcileComments && StringUtils.isEmpty(commentUserSlug)) {
+                LOGGER.warn("Comments can only be reconciled when property comment.userSlug is set. All comments will be posted again.");
+                reconcileComments = false;
+            }
+
+            DecorationRecording recording = DecorationRecording.current();
+            recording.enterPhase(Phase.RENDER);
             String analysisSummary = analysisDetails.createAnalysisSummary(new MarkdownFormatterFactory());
-            StringEntity summaryCommentEntity = new StringEntity(new ObjectMapper().writeValueAsString(new SummaryComment(analysisSummary)), ContentType.APPLICATION_JSON);
-            postComment(commentUrl, headers, summaryCommentEntity, summaryCommentEnabled);
+            if (!reconcileComments) {
+                recording.enterPhase(Phase.CLEANUP);
+                boolean cleanupComplete = cleanUpComments(activityUrl, commentUrl, commentUserSlug, headers, deleteCommentsEnabled, CommentCleanup.getParallelism(configuration));
+                // the next analysis only has to look back as far as this summary for comments to delete if nothing older was left behind
+                String summaryText = cleanupComplete ? analysisSummary + CLEANUP_COMPLETE_MARKER : analysisSummary;
+                recording.enterPhase(Phase.POST);
+                postComment(commentUrl, headers, JsonCodecs.toEntity(new SummaryComment(summaryText)), summaryCommentEnabled);
+            }
 
-            DiffPage diffPage = getPage(diffUrl, headers, DiffPage.class);
-            List<PostAnalysisIssueVisitor.ComponentIssue> componentIssues = analysisDetails.getPostAnalysisIssueVisitor().getIssues().stream().filter(i -> OPEN_ISSUE_STATUSES.contains(i.getIssue().status())).collect(Collectors.toList());
+            recording.enterPhase(Phase.FETCH);
+            // only the index is kept, so the content of the diff can be collected once it's been read
+            DiffLineIndex diffLineIndex = DiffLineIndex.of(getPage(diffUrl, headers, DiffPage.class));
+            List<PostAnalysisIssueVisitor.ComponentIssue> componentIssues = analysisDetails.getPostAnalysisIssueVisitor().getOpenIssues();
+            if (changedLinesOnly) {
+                componentIssues = filterChangedLines(componentIssues, analysisDetails.getLineRevisions(), commitsUrl, headers);
+            }
+            recording.enterPhase(Phase.RENDER);
+            List<FileComment> fileComments = new ArrayList<>(componentIssues.size());
             for (PostAnalysisIssueVisitor.ComponentIssue componentIssue : componentIssues) {
                 final DefaultIssue issue = componentIssue.getIssue();
                 String analysisIssueSummary = analysisDetails.createAnalysisIssueSummary(componentIssue, new MarkdownFormatterFactory());
                 String issuePath = analysisDetails.getSCMPathForIssue(componentIssue).orElse(StringUtils.EMPTY);
                 int issueLine = issue.getLine() != null ? issue.getLine() : 0;
-                String issueType = getIssueType(diffPage, issuePath, issueLine);
+                String issueType = diffLineIndex.getType(issuePath, issueLine);
                 String fileType = "TO";
                 if (issueType.equals("CONTEXT")) {
                     fileType = "FROM";
                 }
-                StringEntity fileCommentEntity = new StringEntity(
-                        new ObjectMapper().writeValueAsString(new FileComment(analysisIssueSummary, new Anchor(issueLine, issueType, issuePath, fileType))), ContentType.APPLICATION_JSON
-                );
-                postComment(commentUrl, headers, fileCommentEntity, fileCommentEnabled);
+                fileComments.add(new FileComment(analysisIssueSummary, new Anchor(issueLine, issueType, issuePath, fileType)));
+            }
+
+            recording.enterPhase(Phase.POST);
+            if (reconcileComments) {
+                List<CommentReconciler.DesiredComment<Anchor>> desiredComments = new ArrayList<>();
+                if (summaryCommentEnabled) {
+                    desiredComments.add(CommentReconciler.summaryComment(analysisSummary));
+                }
+                if (fileCommentEnabled) {
+                    desiredComments.addAll(createDesiredFileComments(componentIssues, fileComments));
+                }
+                reconcileComments(activityUrl, commentUrl, commentUserSlug, headers, desiredComments, deleteCommentsEnabled, getCommentParallelism(configuration));
+            } else {
+                postFileComments(commentUrl, headers, fileComments, fileCommentEnabled, getCommentParallelism(configuration));
             }
         } catch (IOException ex) {
             throw new IllegalStateException("Could not decorate Pull Request on Bitbucket Server", ex);
@@ -174,39 +238,144 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
 
     }
 
-    protected String getIssueType(DiffPage diffPage, String issuePath, int issueLine) {
-        String issueType = "CONTEXT";
-        List<Diff> diffs = diffPage.getDiffs().stream()
-                .filter(diff -> diff.getDestination() != null)
-                .filter(diff -> issuePath.equals(diff.getDestination().getToString()))
-                .collect(Collectors.toList());
-
-        if (!diffs.isEmpty()) {
-            for (Diff diff : diffs) {
-                List<Hunk> hunks = diff.getHunks();
-                if (!hunks.isEmpty()) {
-                    issueType = getExtractIssueType(issueLine, issueType, hunks);
+    private List<PostAnalysisIssueVisitor.ComponentIssue> filterChangedLines(List<PostAnalysisIssueVisitor.ComponentIssue> componentIssues, LineRevisions lineRevisions, String commitsUrl, Map<String, String> headers) {
+        Optional<List<String>> commitIds = getCommitIds(commitsUrl, headers);
+        if (!commitIds.isPresent()) {
+            LOGGER.warn("Could not retrieve the commits in the pull request from Bitbucket Server so comments will be posted for issues on all lines");
+            return componentIssues;
+        }
+        ChangedLinesIndex changedLines = ChangedLinesIndex.build(lineRevisions, componentIssues, commitIds.get());
+        List<PostAnalysisIssueVisitor.ComponentIssue> changedIssues = componentIssues.stream().filter(changedLines::isChanged).collect(Collectors.toList());
+        LOGGER.info(String.format("Skipping %s of %s issues since they are not on lines changed in the pull request", componentIssues.size() - changedIssues.size(), componentIssues.size()));
+        return changedIssues;
+    }
+
+    private Optional<List<String>> getCommitIds(String commitsUrl, Map<String, String> headers) {
+        List<String> commitIds = new ArrayList<>();
+        String pageUrl = commitsUrl;
+        while (true) {
+            CommitPage page = getPage(pageUrl, headers, CommitPage.class);
+            if (null == page) {
+                return Optional.empty();
+            }
+            if (null != page.getValues()) {
+                for (Commit commit : page.getValues()) {
+                    commitIds.add(commit.getId());
                 }
             }
+            if (page.isLastPage()) {
+                return Optional.of(commitIds);
+            }
+            pageUrl = ActivityCommentIterator.withStart(commitsUrl, page.getNextPageStart());
         }
-        return issueType;
     }
 
-    private String getExtractIssueType(int issueLine, String issueType, List<Hunk> hunks) {
-        for (Hunk hunk : hunks) {
-            List<Segment> segments = hunk.getSegments();
-            for (Segment segment : segments) {
-                Optional<DiffLine> optionalLine = segment.getLines().stream().filter(diffLine -> diffLine.getDestination() == issueLine).findFirst();
-                if (optionalLine.isPresent()) {
-                    issueType = segment.getType();
-                    break;
-                }
+    private void postFileComments(String commentUrl, Map<String, String> headers, List<FileComment> fileComments, boolean sendRequest, int parallelism) {
+        List<ParallelRequestExecutor.Outcome<FileComment, Boolean>> outcomes = ParallelRequestExecutor.execute(httpClientProvider.getRequestExecutor(), fileComments, sendRequest ? parallelism : 1, fileComment -> {
+            return postComment(commentUrl, headers, JsonCodecs.toEntity(fileComment), sendRequest);
+        });
+
+        int failed = 0;
+        for (ParallelRequestExecutor.Outcome<FileComment, Boolean> outcome : outcomes) {
+            if (outcome.isFailed()) {
+                failed++;
+                Anchor anchor = outcome.getItem().getAnchor();
+                LOGGER.error(String.format("Could not post comment for %s:%s to Bitbucket Server", anchor.getPath(), anchor.getLine()), outcome.getFailure().orElse(null));
+            }
+        }
+        if (sendRequest) {
+            long posted = outcomes.stream().filter(o -> o.getResult().orElse(false)).count();
+            LOGGER.info(String.format("Posted %s of %s file comments to Bitbucket Server with parallelism %s (%s failed)", posted, outcomes.size(), parallelism, failed));
+        }
+    }
+
+    private static List<CommentReconciler.DesiredComment<Anchor>> createDesiredFileComments(List<PostAnalysisIssueVisitor.ComponentIssue> componentIssues, List<FileComment> fileComments) {
+        List<CommentReconciler.DesiredComment<Anchor>> desiredComments = new ArrayList<>(fileComments.size());
+        CommentReconciler.Fingerprinter fingerprinter = new CommentReconciler.Fingerprinter();
+        for (int i = 0; i < fileComments.size(); i++) {
+            DefaultIssue issue = componentIssues.get(i).getIssue();
+            FileComment fileComment = fileComments.get(i);
+            Anchor anchor = fileComment.getAnchor();
+            String fingerprint = fingerprinter.fingerprint(anchor.getPath(), anchor.getLine(), String.valueOf(issue.ruleKey()), issue.getMessage());
+            desiredComments.add(CommentReconciler.issueComment(fingerprint, fileComment.getText(), anchor));
+        }
+        return desiredComments;
+    }
+
+    private void reconcileComments(String activityUrl, String commentUrl, String userSlug, Map<String, String> headers, List<CommentReconciler.DesiredComment<Anchor>> desiredComments, boolean deleteCommentsEnabled, int parallelism) {
+        List<Comment> existingComments = new ArrayList<>();
+        // comments are kept between analyses when reconciling, so every page of activities has to be read
+        try (ActivityCommentIterator comments = new ActivityCommentIterator(activityUrl, url -> getPage(url, headers, ActivityPage.class), httpClientProvider.getRequestExecutor(), c -> isAuthoredBy(userSlug, c), c -> false)) {
+            comments.forEachRemaining(existingComments::add);
+            if (!comments.isComplete()) {
+                throw new IllegalStateException("Could not retrieve the existing comments from Bitbucket Server so comments can't be reconciled");
+            }
+        }
+
+        CommentReconciler.Plan<Comment, Anchor> plan = CommentReconciler.reconcile(desiredComments, existingComments, Comment::getText);
+
+        List<Comment> toDelete = deleteCommentsEnabled ? plan.getToDelete() : Collections.emptyList();
+        if (!deleteCommentsEnabled && !plan.getToDelete().isEmpty()) {
+            LOGGER.info(String.format("Keeping %s outdated comments since deleting comments is disabled", plan.getToDelete().size()));
+        }
+        int failed = countFailures("delete", ParallelRequestExecutor.execute(httpClientProvider.getRequestExecutor(), toDelete, parallelism,
+                c -> deleteComment(commentUrl, headers, c)), c -> String.valueOf(c.getId()));
+
+        failed += countFailures("update", ParallelRequestExecutor.execute(httpClientProvider.getRequestExecutor(), plan.getToUpdate(), parallelism, u -> {
+            Comment existingComment = u.getExistingComment();
+            return putComment(commentUrl + "/" + existingComment.getId(), headers, JsonCodecs.toEntity(new UpdatedComment(u.getDesiredComment().getText(), existingComment.getVersion())));
+        }), u -> describe(u.getDesiredComment()));
+
+        failed += countFailures("post", ParallelRequestExecutor.execute(httpClientProvider.getRequestExecutor(), plan.getToCreate(), parallelism, d -> {
+            Object comment = d.getLocation().<Object>map(a -> new FileComment(d.getText(), a)).orElseGet(() -> new SummaryComment(d.getText()));
+            return postComment(commentUrl, headers, JsonCodecs.toEntity(comment), true);
+        }), BitbucketServerPullRequestDecorator::describe);
+
+        LOGGER.info(String.format("Reconciled comments on Bitbucket Server: %s created, %s updated, %s deleted, %s unchanged (%s failed)",
+                plan.getToCreate().size(), plan.getToUpdate().size(), toDelete.size(), plan.getUnchanged().size(), failed));
+    }
+
+    private static String describe(CommentReconciler.DesiredComment<Anchor> comment) {
+        return comment.getLocation().map(a -> a.getPath() + ":" + a.getLine()).orElse("summary");
+    }
+
+    private static <T> int countFailures(String action, List<ParallelRequestExecutor.Outcome<T, Boolean>> outcomes, Function<T, String> description) {
+        int failed = 0;
+        for (ParallelRequestExecutor.Outcome<T, Boolean> outcome : outcomes) {
+            if (!outcome.getResult().orElse(false)) {
+                failed++;
+                LOGGER.error(String.format("Could not %s comment %s on Bitbucket Server", action, description.apply(outcome.getItem())), outcome.getFailure().orElse(null));
             }
         }
-        return issueType;
+        return failed;
+    }
+
+    private static int getCommentParallelism(Configuration configuration) {
+        return IntSettings.getPositiveInt(configuration, PULL_REQUEST_BITBUCKET_COMMENT_PARALLELISM, DEFAULT_COMMENT_PARALLELISM);
+    }
+
+    /**
+     * @deprecated each call needs the diff to be indexed, so classify all issues against a single index of the diff
+     * instead. The index of the most recently supplied diff is kept so repeated calls for the same diff only index it
+     * once, but interleaving calls for different diffs indexes the diff again on every call.
+     */
+    @Deprecated
+    protected String getIssueType(DiffPage diffPage, String issuePath, int issueLine) {
+        IndexedDiff indexedDiff = lastIndexedDiff.get();
+        if (null == indexedDiff || !indexedDiff.isFor(diffPage)) {
+            indexedDiff = new IndexedDiff(diffPage);
+            lastIndexedDiff.set(indexedDiff);
+        }
+        return indexedDiff.getDiffLineIndex().getType(issuePath, issueLine);
     }
 
-    protected boolean deleteComments(String activityUrl, String commentUrl, String userSlug, Map<String, String> headers, boolean deleteCommentsEnabled) {
+    /**
+     * Deletes the comments left by previous analyses. Activities are read newest first, and stop being read once the
+     * summary comment of an analysis that left no older comments behind has been found.
+     *
+     * @return true if every comment from previous analyses was found and deleted
+     */
+    private boolean cleanUpComments(String activityUrl, String commentUrl, String userSlug, Map<String, String> headers, boolean deleteCommentsEnabled, int parallelism) {
         if (!deleteCommentsEnabled) {
             return false;
         }
@@ -214,24 +383,20 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
             LOGGER.info("No comments deleted cause property comment.userSlug is not set.");
             return false;
         }
-        boolean commentsRemoved = false;
-        final ActivityPage activityPage = getPage(activityUrl, headers, ActivityPage.class);
-        if (activityPage != null) {
-            final List<Comment> commentsToDelete = getCommentsToDelete(userSlug, activityPage);
-            LOGGER.debug(String.format("Deleting %s comments", commentsToDelete));
-            for (Comment comment : commentsToDelete) {
-                try {
-                    boolean commentDeleted = deleteComment(commentUrl, headers, comment);
-                    if (commentDeleted) {
-                        commentsRemoved = true;
-                    }
-                } catch (IOException ex) {
-                    LOGGER.error("Could not delete comment from Bitbucket Server", ex);
-                }
-            }
-
+        List<Comment> comments = new ArrayList<>();
+        boolean complete;
+        try (ActivityCommentIterator iterator = new ActivityCommentIterator(activityUrl, url -> getPage(url, headers, ActivityPage.class), httpClientProvider.getRequestExecutor(),
+                c -> isAuthoredBy(userSlug, c), c -> null != c.getText() && c.getText().contains(CLEANUP_COMPLETE_MARKER.trim()))) {
+            iterator.forEachRemaining(comments::add);
+            complete = iterator.isComplete();
+            LOGGER.debug(String.format("Read %s pages of activities from Bitbucket Server%s", iterator.getPagesRead(), iterator.isStoppedEarly() ? ", stopping at the last complete cleanup" : ""));
+        }
+        if (comments.isEmpty() && !complete) {
+            return false;
         }
-        return commentsRemoved;
+        CommentCleanup.Summary summary = CommentCleanup.deleteComments("Bitbucket Server", comments, c -> true, httpClientProvider.getRequestExecutor(), parallelism,
+                c -> deleteComment(commentUrl, headers, c), c -> String.format("%s version %s", c.getId(), c.getVersion()));
+        return complete && summary.getFailed() == 0;
     }
 
     private boolean deleteComment(String commentUrl, Map<String, String> headers, Comment comment) throws IOException {
@@ -242,14 +407,14 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             httpDelete.addHeader(entry.getKey(), entry.getValue());
         }
-        try (CloseableHttpClient closeableHttpClient = HttpClients.createDefault()) {
-            HttpResponse deleteResponse = closeableHttpClient.execute(httpDelete);
+        try (CloseableHttpResponse deleteResponse = httpClientProvider.getHttpClient().execute(httpDelete)) {
             if (null == deleteResponse) {
                 LOGGER.error("HttpResponse for deleting comment was null");
             } else if (deleteResponse.getStatusLine().getStatusCode() != 204) {
                 LOGGER.error(IOUtils.toString(deleteResponse.getEntity().getContent(), StandardCharsets.UTF_8.name()));
                 LOGGER.error("An error was returned in the response from the Bitbucket API. See the previous log messages for details");
             } else {
+                EntityUtils.consume(deleteResponse.getEntity());
                 LOGGER.debug(String.format("Comment %s version %s deleted", comment.getId(), comment.getVersion()));
                 commentDeleted = true;
             }
@@ -257,24 +422,18 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
         return commentDeleted;
     }
 
-    protected List<Comment> getCommentsToDelete(String userSlug, ActivityPage activityPage) {
-        return Arrays.stream(activityPage.getValues())
-                        .filter(a -> a.getComment() != null)
-                        .filter(a -> a.getComment().getAuthor() != null)
-                        .filter(a -> userSlug.equals(a.getComment().getAuthor().getSlug()))
-                        .map(Activity::getComment)
-                        .collect(Collectors.toList());
+    static boolean isAuthoredBy(String userSlug, Comment comment) {
+        return comment.getAuthor() != null && userSlug.equals(comment.getAuthor().getSlug());
     }
 
     protected <T> T getPage(String diffUrl, Map<String, String> headers, Class<T> type) {
         T page = null;
-        try (CloseableHttpClient closeableHttpClient = HttpClients.createDefault()) {
-            LOGGER.debug(String.format("Getting page %s", type));
-            HttpGet httpGet = new HttpGet(diffUrl);
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                httpGet.addHeader(entry.getKey(), entry.getValue());
-            }
-            HttpResponse httpResponse = closeableHttpClient.execute(httpGet);
+        LOGGER.debug(String.format("Getting page %s", type));
+        HttpGet httpGet = new HttpGet(diffUrl);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpGet.addHeader(entry.getKey(), entry.getValue());
+        }
+        try (CloseableHttpResponse httpResponse = httpClientProvider.getHttpClient().execute(httpGet)) {
             if (null == httpResponse) {
                 LOGGER.error(String.format("HttpResponse for getting page %s was null", type));
             } else if (httpResponse.getStatusLine().getStatusCode() != 200) {
@@ -282,13 +441,8 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
                 LOGGER.error("Error response from Bitbucket: " + IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8.name()));
                 throw new IllegalStateException(String.format("Error response returned from Bitbucket Server. Expected HTTP Status 200 but got %s", httpResponse.getStatusLine().getStatusCode()) );
             } else {
-                HttpEntity entity = httpResponse.getEntity();
-                page = new ObjectMapper()
-                        .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true)
-                        .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true)
-                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                        .readValue(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8.name()), type);
-                LOGGER.debug(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(page));
+                page = JsonResponses.read(httpResponse.getEntity(), type);
+                JsonResponses.debug(LOGGER, String.format("Received %s", type.getSimpleName()), page);
             }
         } catch (IOException ex) {
             LOGGER.error(String.format("Could not get %s from Bitbucket Server", type.getName()), ex);
@@ -296,25 +450,23 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
         return type.cast(page);
     }
 
-    protected boolean postComment(String commentUrl, Map<String, String> headers, StringEntity requestEntity, boolean sendRequest) throws IOException {
+    protected boolean postComment(String commentUrl, Map<String, String> headers, HttpEntity requestEntity, boolean sendRequest) throws IOException {
         boolean commentPosted = false;
         HttpPost httpPost = new HttpPost(commentUrl);
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             httpPost.addHeader(entry.getKey(), entry.getValue());
         }
         httpPost.setEntity(requestEntity);
-        LOGGER.debug(EntityUtils.toString(requestEntity));
+        JsonResponses.debugRequest(LOGGER, "Posting comment", requestEntity);
         if (sendRequest) {
-            try (CloseableHttpClient closeableHttpClient = HttpClients.createDefault()) {
-                HttpResponse httpResponse = closeableHttpClient.execute(httpPost);
+            try (CloseableHttpResponse httpResponse = httpClientProvider.getHttpClient().execute(httpPost)) {
                 if (null == httpResponse) {
                     LOGGER.error("HttpResponse for posting comment was null");
                 } else if (httpResponse.getStatusLine().getStatusCode() != 201) {
                     HttpEntity entity = httpResponse.getEntity();
                     LOGGER.error(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8.name()));
                 } else {
-                    HttpEntity entity = httpResponse.getEntity();
-                    LOGGER.debug(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8.name()));
+                    JsonResponses.debug(LOGGER, "Comment posted", httpResponse.getEntity());
                     commentPosted = true;
                 }
             }
@@ -322,11 +474,52 @@ public class BitbucketServerPullRequestDecorator implements PullRequestBuildStat
         return commentPosted;
     }
 
+    private boolean putComment(String commentUrl, Map<String, String> headers, HttpEntity requestEntity) throws IOException {
+        HttpPut httpPut = new HttpPut(commentUrl);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpPut.addHeader(entry.getKey(), entry.getValue());
+        }
+        httpPut.setEntity(requestEntity);
+        try (CloseableHttpResponse httpResponse = httpClientProvider.getHttpClient().execute(httpPut)) {
+            if (null == httpResponse) {
+                LOGGER.error("HttpResponse for updating comment was null");
+                return false;
+            }
+            HttpEntity entity = httpResponse.getEntity();
+            if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                LOGGER.error(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8.name()));
+                return false;
+            }
+            EntityUtils.consume(entity);
+            return true;
+        }
+    }
+
     private static String getMandatoryProperty(String propertyName, Configuration configuration) {
         return configuration.get(propertyName).orElseThrow(() -> new IllegalStateException(
                 String.format("%s must be specified in the project configuration", propertyName)));
     }
 
+    private static final class IndexedDiff {
+
+        // the diff isn't kept alive by the cached index, so its content can still be collected once the caller is done
+        private final WeakReference<DiffPage> diffPage;
+        private final DiffLineIndex diffLineIndex;
+
+        private IndexedDiff(DiffPage diffPage) {
+            this.diffPage = new WeakReference<>(diffPage);
+            this.diffLineIndex = DiffLineIndex.of(diffPage);
+        }
+
+        private boolean isFor(DiffPage diffPage) {
+            return null != diffPage && diffPage == this.diffPage.get();
+        }
+
+        private DiffLineIndex getDiffLineIndex() {
+            return diffLineIndex;
+        }
+    }
+
     @Override
     public String name() {
         return "BitbucketServer";
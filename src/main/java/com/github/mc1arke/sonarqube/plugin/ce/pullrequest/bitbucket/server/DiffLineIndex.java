@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Diff;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffLine;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Hunk;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classifies lines in the destination of a pull request's diff as <code>ADDED</code>, <code>REMOVED</code> or
+ * <code>CONTEXT</code> without searching through the diff for every issue. The diff is reduced to sorted ranges of
+ * destination lines sharing the same segment type for each destination path, so classifying a line is a lookup of the
+ * path followed by a binary search of its ranges. None of the diff's content is retained, so the {@link DiffPage} can
+ * be discarded once the index has been built.
+ *
+ * Where the same destination line appears more than once, the first segment within a hunk and the last hunk for a path
+ * take precedence, matching the order Bitbucket lists the changes in.
+ */
+final class DiffLineIndex {
+
+    static final String CONTEXT = "CONTEXT";
+
+    private final Map<String, LineRanges> rangesByPath;
+
+    private DiffLineIndex(Map<String, LineRanges> rangesByPath) {
+        this.rangesByPath = rangesByPath;
+    }
+
+    static DiffLineIndex of(DiffPage diffPage) {
+        if (null == diffPage || null == diffPage.getDiffs()) {
+            return new DiffLineIndex(Collections.emptyMap());
+        }
+
+        List<String> segmentTypes = new ArrayList<>();
+        Map<String, Map<Integer, Integer>> lineTypesByPath = new HashMap<>();
+        for (Diff diff : diffPage.getDiffs()) {
+            if (null == diff.getDestination() || null == diff.getHunks()) {
+                continue;
+            }
+            Map<Integer, Integer> lineTypes =
+                    lineTypesByPath.computeIfAbsent(diff.getDestination().getToString(), k -> new HashMap<>());
+            for (Hunk hunk : diff.getHunks()) {
+                lineTypes.putAll(indexHunk(hunk, segmentTypes));
+            }
+        }
+
+        String[] typeNames = segmentTypes.toArray(new String[0]);
+        Map<String, LineRanges> rangesByPath = new HashMap<>(lineTypesByPath.size() * 2);
+        lineTypesByPath.forEach((path, lineTypes) -> rangesByPath.put(path, LineRanges.of(lineTypes, typeNames)));
+        return new DiffLineIndex(rangesByPath);
+    }
+
+    String getType(String path, int line) {
+        LineRanges lineRanges = rangesByPath.get(path);
+        if (null == lineRanges) {
+            return CONTEXT;
+        }
+        return lineRanges.getType(line);
+    }
+
+    private static Map<Integer, Integer> indexHunk(Hunk hunk, List<String> segmentTypes) {
+        Map<Integer, Integer> hunkLineTypes = new HashMap<>();
+        if (null == hunk.getSegments()) {
+            return hunkLineTypes;
+        }
+        for (Segment segment : hunk.getSegments()) {
+            if (null == segment.getLines()) {
+                continue;
+            }
+            int type = segmentTypes.indexOf(segment.getType());
+            if (type < 0) {
+                type = segmentTypes.size();
+                segmentTypes.add(segment.getType());
+            }
+            for (DiffLine diffLine : segment.getLines()) {
+                hunkLineTypes.putIfAbsent(diffLine.getDestination(), type);
+            }
+        }
+        return hunkLineTypes;
+    }
+
+    private static final class LineRanges {
+
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] types;
+        private final String[] typeNames;
+
+        private LineRanges(int[] starts, int[] ends, int[] types, String[] typeNames) {
+            this.starts = starts;
+            this.ends = ends;
+            this.types = types;
+            this.typeNames = typeNames;
+        }
+
+        private static LineRanges of(Map<Integer, Integer> lineTypes, String[] typeNames) {
+            int[] lines = new int[lineTypes.size()];
+            int i = 0;
+            for (Integer line : lineTypes.keySet()) {
+                lines[i++] = line;
+            }
+            Arrays.sort(lines);
+
+            int[] starts = new int[lines.length];
+            int[] ends = new int[lines.length];
+            int[] types = new int[lines.length];
+            int count = 0;
+            for (int line : lines) {
+                int type = lineTypes.get(line);
+                if (count > 0 && ends[count - 1] == line - 1 && types[count - 1] == type) {
+                    ends[count - 1] = line;
+                } else {
+                    starts[count] = line;
+                    ends[count] = line;
+                    types[count] = type;
+                    count++;
+                }
+            }
+            return new LineRanges(Arrays.copyOf(starts, count), Arrays.copyOf(ends, count),
+                                  Arrays.copyOf(types, count), typeNames);
+        }
+
+        private String getType(int line) {
+            int position = Arrays.binarySearch(starts, line);
+            if (position < 0) {
+                // the range that starts before the line, if there is one
+                position = -position - 2;
+            }
+            if (position < 0 || line > ends[position]) {
+                return CONTEXT;
+            }
+            return typeNames[types[position]];
+        }
+    }
+}
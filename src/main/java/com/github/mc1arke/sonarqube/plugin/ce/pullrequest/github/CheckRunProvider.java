@@ -19,10 +19,19 @@
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github;
 
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
 public interface CheckRunProvider {
+
+    /**
+     * @see com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator#prepare(AnalysisDetails)
+     */
+    default LineRevisions prepare(AnalysisDetails analysisDetails) {
+        return LineRevisions.none();
+    }
+
     void createCheckRun(AnalysisDetails analysisDetails) throws IOException, GeneralSecurityException;
 }
@@ -19,6 +19,7 @@
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github;
 
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
 
 public class GithubPullRequestDecorator implements PullRequestBuildStatusDecorator {
@@ -29,6 +30,11 @@ public class GithubPullRequestDecorator implements PullRequestBuildStatusDecorat
         this.checkRunProvider = checkRunProvider;
     }
 
+    @Override
+    public LineRevisions prepare(AnalysisDetails analysisDetails) {
+        return checkRunProvider.prepare(analysisDetails);
+    }
+
     @Override
     public void decorateQualityGateStatus(AnalysisDetails analysisDetails) {
         try {
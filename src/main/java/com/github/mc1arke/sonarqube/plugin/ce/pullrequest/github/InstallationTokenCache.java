@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github;
+
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the installation tokens issued to the Github App so they can be re-used by later analyses of the same
+ * repository rather than requesting a new token for each analysis. Tokens are refreshed a few minutes before Github
+ * expires them, and only one analysis requests a new token for a repository at a time, with any other analyses of the
+ * same repository waiting for that token rather than requesting their own.
+ *
+ * The cache is held in the Compute Engine container so tokens are shared between all analysis tasks.
+ */
+public class InstallationTokenCache {
+
+    static final Duration REFRESH_BEFORE_EXPIRY = Duration.ofMinutes(5);
+
+    private static final Logger LOGGER = Loggers.get(InstallationTokenCache.class);
+
+    private final ConcurrentMap<List<String>, RepositoryAuthenticationToken> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, Object> locks = new ConcurrentHashMap<>();
+
+    public RepositoryAuthenticationToken getToken(String apiUrl, String appId, String projectPath, Clock clock,
+                                                  TokenLoader tokenLoader) throws IOException {
+        List<String> key = Arrays.asList(apiUrl, appId, projectPath);
+        RepositoryAuthenticationToken token = tokens.get(key);
+        if (isUsable(token, clock)) {
+            return token;
+        }
+
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            // another analysis may have refreshed the token whilst this one was waiting
+            token = tokens.get(key);
+            if (isUsable(token, clock)) {
+                return token;
+            }
+            token = tokenLoader.load();
+            tokens.put(key, token);
+            LOGGER.debug(String.format("Cached installation token for %s expiring at %s", projectPath,
+                                       token.getExpiresAt()));
+            return token;
+        }
+    }
+
+    private static boolean isUsable(RepositoryAuthenticationToken token, Clock clock) {
+        return null != token && clock.instant().plus(REFRESH_BEFORE_EXPIRY).isBefore(token.getExpiresAt());
+    }
+
+    @FunctionalInterface
+    public interface TokenLoader {
+
+        RepositoryAuthenticationToken load() throws IOException;
+    }
+}
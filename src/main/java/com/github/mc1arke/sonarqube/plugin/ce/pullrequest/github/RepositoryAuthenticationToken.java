@@ -18,15 +18,19 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github;
 
+import java.time.Instant;
+
 public class RepositoryAuthenticationToken {
 
     private final String repositoryId;
     private final String authenticationToken;
+    private final Instant expiresAt;
 
-    public RepositoryAuthenticationToken(String repositoryId, String authenticationToken) {
+    public RepositoryAuthenticationToken(String repositoryId, String authenticationToken, Instant expiresAt) {
         super();
         this.repositoryId = repositoryId;
         this.authenticationToken = authenticationToken;
+        this.expiresAt = expiresAt;
     }
 
     public String getRepositoryId() {
@@ -36,4 +40,8 @@ public class RepositoryAuthenticationToken {
     public String getAuthenticationToken() {
         return authenticationToken;
     }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.impl.DefaultJwtBuilder;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Signs the JWTs used to authenticate as a Github App. Parsing the configured PEM and RSA signing are both relatively
+ * expensive, so each App's parsed key is held alongside a digest of the configured value, and each signed JWT is shared
+ * by all callers until shortly before it expires. Only the most recently configured key is held for each App, so a
+ * rotated key replaces the previous key and its JWT as soon as the configuration changes.
+ *
+ * The cache is held in the Compute Engine container so it's shared between all analysis tasks.
+ */
+public class AppJwtCache {
+
+    static final Duration JWT_VALIDITY = Duration.ofMinutes(2);
+    static final Duration REFRESH_BEFORE_EXPIRY = Duration.ofSeconds(30);
+
+    private final ConcurrentMap<String, SignedJwt> jwts = new ConcurrentHashMap<>();
+
+    public String getJwt(String appId, String apiPrivateKey, Clock clock) throws IOException {
+        String keyDigest = digest(apiPrivateKey);
+        Instant now = clock.instant();
+        // computing the value holds a lock on the entry, so concurrent callers for the same App wait for one signature
+        // rather than each signing their own
+        try {
+            return jwts.compute(appId, (k, existing) -> {
+                PrivateKey privateKey;
+                if (null != existing && existing.getKeyDigest().equals(keyDigest)) {
+                    if (now.plus(REFRESH_BEFORE_EXPIRY).isBefore(existing.getExpiry())) {
+                        return existing;
+                    }
+                    privateKey = existing.getPrivateKey();
+                } else {
+                    privateKey = createPrivateKey(apiPrivateKey);
+                }
+                Instant issued = now.minus(10, ChronoUnit.SECONDS);
+                Instant expiry = issued.plus(JWT_VALIDITY);
+                String jwt = new DefaultJwtBuilder().setIssuedAt(Date.from(issued)).setExpiration(Date.from(expiry))
+                        .claim("iss", appId).signWith(privateKey, SignatureAlgorithm.RS256).compact();
+                return new SignedJwt(keyDigest, privateKey, jwt, expiry);
+            }).getJwt();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static PrivateKey createPrivateKey(String apiPrivateKey) {
+        try (PEMParser pemParser = new PEMParser(new StringReader(apiPrivateKey))) {
+            return new JcaPEMKeyConverter().getPrivateKey(((PEMKeyPair) pemParser.readObject()).getPrivateKeyInfo());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static String digest(String apiPrivateKey) {
+        try {
+            return Base64.getEncoder().encodeToString(
+                    MessageDigest.getInstance("SHA-256").digest(apiPrivateKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Could not create digest of private key", ex);
+        }
+    }
+
+    private static final class SignedJwt {
+
+        private final String keyDigest;
+        private final PrivateKey privateKey;
+        private final String jwt;
+        private final Instant expiry;
+
+        private SignedJwt(String keyDigest, PrivateKey privateKey, String jwt, Instant expiry) {
+            this.keyDigest = keyDigest;
+            this.privateKey = privateKey;
+            this.jwt = jwt;
+            this.expiry = expiry;
+        }
+
+        String getKeyDigest() {
+            return keyDigest;
+        }
+
+        PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        String getJwt() {
+            return jwt;
+        }
+
+        Instant getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -18,15 +18,24 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
 
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
 
 public final class DefaultUrlConnectionProvider implements UrlConnectionProvider {
 
+    private final HttpClientProvider httpClientProvider;
+
+    public DefaultUrlConnectionProvider(HttpClientProvider httpClientProvider) {
+        super();
+        this.httpClientProvider = httpClientProvider;
+    }
+
     @Override
     public URLConnection createUrlConnection(String url) throws IOException {
-        return new URL(url).openConnection();
+        return httpClientProvider.configure(new URL(url).openConnection());
     }
 
 }
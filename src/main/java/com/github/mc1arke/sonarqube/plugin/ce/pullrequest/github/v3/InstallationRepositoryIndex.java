@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.Repository;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Maps the full name of each repository a Github App has been installed in to the installation that grants access to
+ * it, so finding the installation for a project is a single lookup rather than requesting an access token for each
+ * installation and searching through its repositories. The index for each App is only built as repositories are
+ * looked up, and is refreshed when a lookup misses, with only one analysis refreshing the index for an App at a time.
+ * A repository that still can't be found after a refresh isn't searched for again until {@link #MISS_TTL} has passed,
+ * so a project bound to a repository the App isn't installed in doesn't list every installation on each analysis.
+ * An entry that turns out to be stale, such as when Github rejects a request for its installation, can be removed
+ * with {@link #evict(String, String, String, InstallationRepository)} so the next lookup refreshes the index.
+ *
+ * Installations are identified by their access tokens URL, since that's what's needed to authenticate against the
+ * repository once it's been found. The index is held in the Compute Engine container so it's shared between all
+ * analysis tasks.
+ */
+public class InstallationRepositoryIndex {
+
+    static final Duration MISS_TTL = Duration.ofMinutes(1);
+
+    private static final Logger LOGGER = Loggers.get(InstallationRepositoryIndex.class);
+
+    private final ConcurrentMap<List<String>, AppRepositories> indexes = new ConcurrentHashMap<>();
+
+    public Optional<InstallationRepository> getRepository(String apiUrl, String appId, String fullName, Clock clock,
+                                                          IndexRefresher indexRefresher) throws IOException {
+        AppRepositories appRepositories =
+                indexes.computeIfAbsent(Arrays.asList(apiUrl, appId), k -> new AppRepositories());
+        Optional<InstallationRepository> repository = appRepositories.get(fullName);
+        if (repository.isPresent()) {
+            return repository;
+        }
+
+        synchronized (appRepositories) {
+            // another analysis may have refreshed the index whilst this one was waiting
+            repository = appRepositories.get(fullName);
+            if (repository.isPresent()) {
+                return repository;
+            }
+            Instant missedAt = appRepositories.recentMisses.get(fullName);
+            if (null != missedAt && clock.instant().isBefore(missedAt.plus(MISS_TTL))) {
+                LOGGER.debug(String.format("%s was not found in any installation of App %s at %s", fullName, appId,
+                                           missedAt));
+                return Optional.empty();
+            }
+            indexRefresher.refresh(appRepositories);
+            LOGGER.debug(String.format("Indexed %s repositories across %s installations for App %s",
+                                       appRepositories.repositoriesByName.size(),
+                                       appRepositories.repositoryNamesByInstallation.size(), appId));
+            repository = appRepositories.get(fullName);
+            if (repository.isPresent()) {
+                appRepositories.recentMisses.remove(fullName);
+            } else {
+                appRepositories.recentMisses.put(fullName, clock.instant());
+            }
+            return repository;
+        }
+    }
+
+    /**
+     * Removes a repository from the index if it's still mapped to the given installation, so the next lookup for it
+     * refreshes the index rather than returning the same installation again.
+     */
+    public void evict(String apiUrl, String appId, String fullName, InstallationRepository repository) {
+        AppRepositories appRepositories = indexes.get(Arrays.asList(apiUrl, appId));
+        if (null == appRepositories) {
+            return;
+        }
+        synchronized (appRepositories) {
+            appRepositories.evict(fullName, repository);
+        }
+    }
+
+    /**
+     * The repositories visible to a single App. Lookups can happen at any time, but modifications are only made by an
+     * {@link IndexRefresher} whilst it holds the lock on this index.
+     */
+    public static final class AppRepositories {
+
+        private final Map<String, InstallationRepository> repositoriesByName = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> repositoryNamesByInstallation = new ConcurrentHashMap<>();
+        private final Map<String, Instant> recentMisses = new ConcurrentHashMap<>();
+
+        AppRepositories() {
+            super();
+        }
+
+        public Optional<InstallationRepository> get(String fullName) {
+            return Optional.ofNullable(repositoriesByName.get(fullName));
+        }
+
+        /**
+         * Removes any installations that no longer exist from the index.
+         *
+         * @return the installations that remain indexed.
+         */
+        public Set<String> retainInstallations(Collection<String> installations) {
+            for (String installation : new HashSet<>(repositoryNamesByInstallation.keySet())) {
+                if (!installations.contains(installation)) {
+                    removeInstallation(installation);
+                }
+            }
+            return new HashSet<>(repositoryNamesByInstallation.keySet());
+        }
+
+        /**
+         * Replaces any repositories previously indexed against the installation with the given repositories.
+         */
+        public void indexInstallation(String installation, Collection<Repository> repositories) {
+            removeInstallation(installation);
+            for (Repository repository : repositories) {
+                repositoriesByName.put(repository.getFullName(),
+                                       new InstallationRepository(repository.getNodeId(), installation));
+            }
+            repositoryNamesByInstallation.put(installation, repositories.stream().map(Repository::getFullName)
+                    .collect(Collectors.toSet()));
+        }
+
+        private void evict(String fullName, InstallationRepository repository) {
+            if (!repositoriesByName.remove(fullName, repository)) {
+                return;
+            }
+            Set<String> repositoryNames = repositoryNamesByInstallation.get(repository.getAccessTokensUrl());
+            if (null != repositoryNames) {
+                repositoryNames.remove(fullName);
+            }
+        }
+
+        private void removeInstallation(String installation) {
+            Set<String> repositoryNames = repositoryNamesByInstallation.remove(installation);
+            if (null == repositoryNames) {
+                return;
+            }
+            for (String repositoryName : repositoryNames) {
+                // the repository may have been transferred to an installation that's been indexed since
+                repositoriesByName.computeIfPresent(repositoryName,
+                                                    (k, v) -> installation.equals(v.getAccessTokensUrl()) ? null : v);
+            }
+        }
+    }
+
+    public static final class InstallationRepository {
+
+        private final String nodeId;
+        private final String accessTokensUrl;
+
+        InstallationRepository(String nodeId, String accessTokensUrl) {
+            super();
+            this.nodeId = nodeId;
+            this.accessTokensUrl = accessTokensUrl;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public String getAccessTokensUrl() {
+            return accessTokensUrl;
+        }
+    }
+
+    @FunctionalInterface
+    public interface IndexRefresher {
+
+        void refresh(AppRepositories appRepositories) throws IOException;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.PullRequestCommit;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonResponses;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Lists the commits in a pull request using the Github REST API, following the <code>Link</code> header across pages.
+ */
+public class PullRequestCommitLoader {
+
+    /**
+     * Github stops listing the commits of a pull request after this many, so a pull request with more commits than this
+     * can't have its commits read.
+     */
+    static final int MAX_COMMITS = 250;
+
+    private static final Logger LOGGER = Loggers.get(PullRequestCommitLoader.class);
+    private static final int PAGE_SIZE = 100;
+
+    private final HttpClientProvider httpClientProvider;
+
+    public PullRequestCommitLoader(HttpClientProvider httpClientProvider) {
+        super();
+        this.httpClientProvider = httpClientProvider;
+    }
+
+    /**
+     * @return the SHA of every commit in the pull request, or empty if the pull request holds too many commits for
+     * Github to list them all
+     */
+    public Optional<Set<String>> getCommitShas(String apiUrl, String repository, String pullRequestNumber,
+                                               String token) throws IOException {
+        Set<String> commitShas = new HashSet<>();
+        String pageUrl = String.format("%s/repos/%s/pulls/%s/commits?per_page=%s", apiUrl, repository,
+                                       pullRequestNumber, PAGE_SIZE);
+        while (null != pageUrl) {
+            HttpGet httpGet = new HttpGet(pageUrl);
+            httpGet.addHeader("Authorization", "Bearer " + token);
+            httpGet.addHeader("Accept", "application/vnd.github.v3+json");
+            try (CloseableHttpResponse httpResponse = httpClientProvider.getHttpClient().execute(httpGet)) {
+                int statusCode = httpResponse.getStatusLine().getStatusCode();
+                if (statusCode != 200) {
+                    throw new IllegalStateException(String.format(
+                            "Could not list the commits in pull request %s from Github. Expected HTTP Status 200 but got %s",
+                            pullRequestNumber, statusCode));
+                }
+                List<PullRequestCommit> commits =
+                        JsonResponses.read(httpResponse.getEntity(), new TypeReference<List<PullRequestCommit>>() {
+                        });
+                if (null != commits) {
+                    commits.forEach(c -> commitShas.add(c.getSha()));
+                }
+                Header linkHeader = httpResponse.getFirstHeader("Link");
+                pageUrl = RestApplicationAuthenticationProvider
+                        .getNextPageUrl(null == linkHeader ? null : linkHeader.getValue());
+            }
+        }
+
+        if (commitShas.size() >= MAX_COMMITS) {
+            LOGGER.warn(String.format("Pull request %s has at least %s commits, which is more than Github will list",
+                                      pullRequestNumber, MAX_COMMITS));
+            return Optional.empty();
+        }
+        return Optional.of(commitShas);
+    }
+}
@@ -18,123 +18,261 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
 
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.GithubApplicationAuthenticationProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.InstallationTokenCache;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.RepositoryAuthenticationToken;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.AppInstallation;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.AppToken;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.InstallationRepositories;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.Repository;
-import io.jsonwebtoken.SignatureAlgorithm;
-import io.jsonwebtoken.impl.DefaultJwtBuilder;
-import org.bouncycastle.openssl.PEMKeyPair;
-import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonCodecs;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
-import java.security.PrivateKey;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class RestApplicationAuthenticationProvider implements GithubApplicationAuthenticationProvider {
 
+    private static final Logger LOGGER = Loggers.get(RestApplicationAuthenticationProvider.class);
+
     private static final String ACCEPT_HEADER = "Accept";
     private static final String AUTHORIZATION_HEADER = "Authorization";
     private static final String BEARER_AUTHORIZATION_HEADER_PREFIX = "Bearer ";
 
     private static final String APP_PREVIEW_ACCEPT_HEADER = "application/vnd.github.machine-man-preview+json";
 
+    // Github issues installation tokens that are valid for an hour, so assume that if no expiry is returned
+    private static final Duration DEFAULT_TOKEN_VALIDITY = Duration.ofHours(1);
+
+    // the maximum page size Github allows on installation and repository listings
+    private static final int PAGE_SIZE = 100;
+
+    // the responses Github gives when an installation has been removed or no longer has access to the repository
+    private static final List<Integer> STALE_INSTALLATION_RESPONSE_CODES = Arrays.asList(401, 403, 404);
+
     private final Clock clock;
     private final UrlConnectionProvider urlProvider;
+    private final InstallationTokenCache installationTokenCache;
+    private final AppJwtCache appJwtCache;
+    private final InstallationRepositoryIndex installationRepositoryIndex;
 
-    public RestApplicationAuthenticationProvider(Clock clock) {
-        this(clock, new DefaultUrlConnectionProvider());
+    public RestApplicationAuthenticationProvider(Clock clock, HttpClientProvider httpClientProvider,
+                                                 InstallationTokenCache installationTokenCache,
+                                                 AppJwtCache appJwtCache,
+                                                 InstallationRepositoryIndex installationRepositoryIndex) {
+        this(clock, new DefaultUrlConnectionProvider(httpClientProvider), installationTokenCache, appJwtCache,
+             installationRepositoryIndex);
     }
 
     RestApplicationAuthenticationProvider(Clock clock, UrlConnectionProvider urlProvider) {
+        this(clock, urlProvider, new InstallationTokenCache(), new AppJwtCache(), new InstallationRepositoryIndex());
+    }
+
+    RestApplicationAuthenticationProvider(Clock clock, UrlConnectionProvider urlProvider,
+                                          InstallationTokenCache installationTokenCache, AppJwtCache appJwtCache,
+                                          InstallationRepositoryIndex installationRepositoryIndex) {
         super();
         this.clock = clock;
         this.urlProvider = urlProvider;
+        this.installationTokenCache = installationTokenCache;
+        this.appJwtCache = appJwtCache;
+        this.installationRepositoryIndex = installationRepositoryIndex;
     }
 
     @Override
     public RepositoryAuthenticationToken getInstallationToken(String apiUrl, String appId, String apiPrivateKey,
                                                               String projectPath) throws IOException {
+        return installationTokenCache.getToken(apiUrl, appId, projectPath, clock,
+                                               () -> requestInstallationToken(apiUrl, appId, apiPrivateKey,
+                                                                              projectPath));
+    }
 
-        Instant issued = clock.instant().minus(10, ChronoUnit.SECONDS);
-        Instant expiry = issued.plus(2, ChronoUnit.MINUTES);
-        String jwtToken = new DefaultJwtBuilder().setIssuedAt(Date.from(issued)).setExpiration(Date.from(expiry))
-                .claim("iss", appId).signWith(createPrivateKey(apiPrivateKey), SignatureAlgorithm.RS256).compact();
+    private RepositoryAuthenticationToken requestInstallationToken(String apiUrl, String appId, String apiPrivateKey,
+                                                                   String projectPath) throws IOException {
 
-        ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        String jwtToken = appJwtCache.getJwt(appId, apiPrivateKey, clock);
 
-        URLConnection appConnection = urlProvider.createUrlConnection(apiUrl + "/app/installations");
-        appConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
-        appConnection.setRequestProperty(AUTHORIZATION_HEADER, BEARER_AUTHORIZATION_HEADER_PREFIX + jwtToken);
+        // refreshing the index requests tokens for installations, so keep them in case one of them is the one needed
+        Map<String, AppToken> issuedTokens = new HashMap<>();
+        InstallationRepositoryIndex.InstallationRepository repository =
+                findRepository(apiUrl, appId, jwtToken, projectPath, issuedTokens);
 
-        AppInstallation[] appInstallations;
-        try (Reader reader = new InputStreamReader(appConnection.getInputStream())) {
-            appInstallations = objectMapper.readerFor(AppInstallation[].class).readValue(reader);
+        AppToken appToken = issuedTokens.get(repository.getAccessTokensUrl());
+        if (null == appToken) {
+            try {
+                appToken = createAccessToken(repository.getAccessTokensUrl(), jwtToken);
+            } catch (StaleInstallationException ex) {
+                // the installation was indexed by an earlier analysis but has since been removed or lost access to
+                // the repository, so refresh the index once to find where the repository is installed now
+                LOGGER.info(String.format("Refreshing installations of App %s for %s: %s", appId, projectPath,
+                                          ex.getMessage()));
+                installationRepositoryIndex.evict(apiUrl, appId, projectPath, repository);
+                repository = findRepository(apiUrl, appId, jwtToken, projectPath, issuedTokens);
+                appToken = issuedTokens.get(repository.getAccessTokensUrl());
+                if (null == appToken) {
+                    appToken = createAccessToken(repository.getAccessTokensUrl(), jwtToken);
+                }
+            }
         }
 
+        Instant tokenExpiry = Optional.ofNullable(appToken.getExpiresAt()).map(Instant::parse)
+                .orElseGet(() -> clock.instant().plus(DEFAULT_TOKEN_VALIDITY));
+        return new RepositoryAuthenticationToken(repository.getNodeId(), appToken.getToken(), tokenExpiry);
+    }
 
-        for (AppInstallation installation : appInstallations) {
-            URLConnection accessTokenConnection = urlProvider.createUrlConnection(installation.getAccessTokensUrl());
-            ((HttpURLConnection) accessTokenConnection).setRequestMethod("POST");
-            accessTokenConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
-            accessTokenConnection
-                    .setRequestProperty(AUTHORIZATION_HEADER, BEARER_AUTHORIZATION_HEADER_PREFIX + jwtToken);
-
-
-            try (Reader reader = new InputStreamReader(accessTokenConnection.getInputStream())) {
-                AppToken appToken = objectMapper.readerFor(AppToken.class).readValue(reader);
-
-                URLConnection installationRepositoriesConnection =
-                        urlProvider.createUrlConnection(installation.getRepositoriesUrl());
-                ((HttpURLConnection) installationRepositoriesConnection).setRequestMethod("GET");
-                installationRepositoriesConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
-                installationRepositoriesConnection.setRequestProperty(AUTHORIZATION_HEADER,
-                                                                      BEARER_AUTHORIZATION_HEADER_PREFIX +
-                                                                      appToken.getToken());
-                String repositoryNodeId = null;
-                try (Reader installationRepositoriesReader = new InputStreamReader(
-                        installationRepositoriesConnection.getInputStream())) {
-                    InstallationRepositories installationRepositories =
-                            objectMapper.readerFor(InstallationRepositories.class)
-                                    .readValue(installationRepositoriesReader);
-                    for (Repository repository : installationRepositories.getRepositories()) {
-                        if (projectPath.equals(repository.getFullName())) {
-                            repositoryNodeId = repository.getNodeId();
-                            break;
-                        }
-                    }
-                    if (null == repositoryNodeId) {
-                        continue;
-                    }
+    private InstallationRepositoryIndex.InstallationRepository findRepository(String apiUrl, String appId,
+                                                                              String jwtToken, String projectPath,
+                                                                              Map<String, AppToken> issuedTokens)
+            throws IOException {
+        return installationRepositoryIndex.getRepository(apiUrl, appId, projectPath, clock,
+                                                         appRepositories -> refreshIndex(apiUrl, jwtToken,
+                                                                                         projectPath,
+                                                                                         appRepositories,
+                                                                                         issuedTokens))
+                .orElseThrow(() -> new IllegalStateException(
+                        "No token could be found with access to the requested repository with the given application ID and key"));
+    }
 
-                }
+    private void refreshIndex(String apiUrl, String jwtToken, String projectPath,
+                              InstallationRepositoryIndex.AppRepositories appRepositories,
+                              Map<String, AppToken> issuedTokens) throws IOException {
+        List<AppInstallation> appInstallations = new ArrayList<>();
+        String installationsUrl = apiUrl + "/app/installations?per_page=" + PAGE_SIZE;
+        while (null != installationsUrl) {
+            URLConnection appConnection = urlProvider.createUrlConnection(installationsUrl);
+            appConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
+            appConnection.setRequestProperty(AUTHORIZATION_HEADER, BEARER_AUTHORIZATION_HEADER_PREFIX + jwtToken);
+
+            try (Reader reader = new InputStreamReader(HttpClientProvider.getInputStream(appConnection))) {
+                AppInstallation[] page = JsonCodecs.reader(AppInstallation[].class).readValue(reader);
+                appInstallations.addAll(Arrays.asList(page));
+            }
+            installationsUrl = getNextPageUrl(appConnection);
+        }
 
-                return new RepositoryAuthenticationToken(repositoryNodeId, appToken.getToken());
+        Set<String> previouslyIndexed = appRepositories.retainInstallations(
+                appInstallations.stream().map(AppInstallation::getAccessTokensUrl).collect(Collectors.toSet()));
 
+        // installations that haven't been seen before are the most likely place for a repository that isn't indexed,
+        // but repositories can also be added to an existing installation so those are searched again afterwards
+        List<AppInstallation> searchOrder = new ArrayList<>(appInstallations.size());
+        appInstallations.stream().filter(i -> !previouslyIndexed.contains(i.getAccessTokensUrl()))
+                .forEach(searchOrder::add);
+        appInstallations.stream().filter(i -> previouslyIndexed.contains(i.getAccessTokensUrl()))
+                .forEach(searchOrder::add);
+
+        for (AppInstallation installation : searchOrder) {
+            AppToken appToken;
+            try {
+                appToken = createAccessToken(installation.getAccessTokensUrl(), jwtToken);
+            } catch (StaleInstallationException ex) {
+                // the installation was removed after it was listed, which shouldn't stop the others being searched
+                LOGGER.warn(String.format("Skipping App installation %s whilst searching for %s: %s",
+                                          installation.getAccessTokensUrl(), projectPath, ex.getMessage()));
+                appRepositories.indexInstallation(installation.getAccessTokensUrl(), Collections.emptyList());
+                continue;
+            }
+            issuedTokens.put(installation.getAccessTokensUrl(), appToken);
+            appRepositories.indexInstallation(installation.getAccessTokensUrl(),
+                                              getInstallationRepositories(installation, appToken));
+            if (appRepositories.get(projectPath).isPresent()) {
+                return;
             }
         }
+    }
+
+    private AppToken createAccessToken(String accessTokensUrl, String jwtToken) throws IOException {
+        URLConnection accessTokenConnection = urlProvider.createUrlConnection(accessTokensUrl);
+        ((HttpURLConnection) accessTokenConnection).setRequestMethod("POST");
+        accessTokenConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
+        accessTokenConnection.setRequestProperty(AUTHORIZATION_HEADER, BEARER_AUTHORIZATION_HEADER_PREFIX + jwtToken);
 
-        throw new IllegalStateException(
-                "No token could be found with access to the requested repository with the given application ID and key");
+        try (Reader reader = new InputStreamReader(HttpClientProvider.getInputStream(accessTokenConnection))) {
+            return JsonCodecs.reader(AppToken.class).readValue(reader);
+        } catch (IOException ex) {
+            int responseCode = ((HttpURLConnection) accessTokenConnection).getResponseCode();
+            if (STALE_INSTALLATION_RESPONSE_CODES.contains(responseCode)) {
+                throw new StaleInstallationException(
+                        String.format("Github returned %s when creating a token for %s", responseCode,
+                                      accessTokensUrl), ex);
+            }
+            throw ex;
+        }
+    }
+
+    private List<Repository> getInstallationRepositories(AppInstallation installation, AppToken appToken)
+            throws IOException {
+        List<Repository> repositories = new ArrayList<>();
+        String repositoriesUrl = installation.getRepositoriesUrl() + "?per_page=" + PAGE_SIZE;
+        while (null != repositoriesUrl) {
+            URLConnection installationRepositoriesConnection = urlProvider.createUrlConnection(repositoriesUrl);
+            ((HttpURLConnection) installationRepositoriesConnection).setRequestMethod("GET");
+            installationRepositoriesConnection.setRequestProperty(ACCEPT_HEADER, APP_PREVIEW_ACCEPT_HEADER);
+            installationRepositoriesConnection.setRequestProperty(AUTHORIZATION_HEADER,
+                                                                  BEARER_AUTHORIZATION_HEADER_PREFIX +
+                                                                  appToken.getToken());
+
+            try (Reader reader = new InputStreamReader(HttpClientProvider.getInputStream(installationRepositoriesConnection))) {
+                InstallationRepositories installationRepositories =
+                        JsonCodecs.reader(InstallationRepositories.class).readValue(reader);
+                repositories.addAll(Arrays.asList(installationRepositories.getRepositories()));
+            }
+            repositoriesUrl = getNextPageUrl(installationRepositoriesConnection);
+        }
+        return repositories;
+    }
+
+    /**
+     * Finds the URL of the next page of results from the <code>Link</code> header Github returns on paged resources,
+     * e.g. <code>&lt;https://api.github.com/installation/repositories?page=2&gt;; rel="next"</code>.
+     */
+    static String getNextPageUrl(URLConnection urlConnection) {
+        return getNextPageUrl(urlConnection.getHeaderField("Link"));
     }
 
+    static String getNextPageUrl(String linkHeader) {
+        if (null == linkHeader) {
+            return null;
+        }
+        for (String link : linkHeader.split(",")) {
+            String[] parts = link.split(";");
+            if (parts.length < 2) {
+                continue;
+            }
+            String url = parts[0].trim();
+            for (int i = 1; i < parts.length; i++) {
+                if ("rel=\"next\"".equals(parts[i].trim()) && url.startsWith("<") && url.endsWith(">")) {
+                    return url.substring(1, url.length() - 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static final class StaleInstallationException extends IOException {
 
-    private static PrivateKey createPrivateKey(String apiPrivateKey) throws IOException {
-        try (PEMParser pemParser = new PEMParser(new StringReader(apiPrivateKey))) {
-            return new JcaPEMKeyConverter().getPrivateKey(((PEMKeyPair) pemParser.readObject()).getPrivateKeyInfo());
+        private static final long serialVersionUID = 1L;
+
+        StaleInstallationException(String message, IOException cause) {
+            super(message, cause);
         }
     }
+
 }
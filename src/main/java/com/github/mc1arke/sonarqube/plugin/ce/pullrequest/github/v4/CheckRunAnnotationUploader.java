@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotation;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonCodecs;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.ParallelRequestExecutor;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds annotations to an existing check run. Github accepts at most {@link #MAX_ANNOTATIONS_PER_BATCH} annotations in
+ * each <code>updateCheckRun</code> mutation, so annotations are split into batches, and several batches are sent in
+ * each HTTP request as aliased mutations to reduce the number of round trips to Github.
+ */
+class CheckRunAnnotationUploader {
+
+    static final int MAX_ANNOTATIONS_PER_BATCH = 50;
+
+    private static final Logger LOGGER = Loggers.get(CheckRunAnnotationUploader.class);
+
+    private final HttpClientProvider httpClientProvider;
+
+    CheckRunAnnotationUploader(HttpClientProvider httpClientProvider) {
+        super();
+        this.httpClientProvider = httpClientProvider;
+    }
+
+    /**
+     * @param batchesPerRequest the number of <code>updateCheckRun</code> mutations to send in each HTTP request
+     * @param maxRequestsInFlight the maximum number of HTTP requests to have in progress at once
+     */
+    void uploadAnnotations(String graphqlUrl, Map<String, String> headers, String repositoryId, String checkRunId,
+                           String title, String summary, List<CheckAnnotation> annotations, int batchesPerRequest,
+                           int maxRequestsInFlight) {
+        List<List<List<CheckAnnotation>>> requests =
+                partition(partition(annotations, MAX_ANNOTATIONS_PER_BATCH), batchesPerRequest);
+
+        List<ParallelRequestExecutor.Outcome<List<List<CheckAnnotation>>, Boolean>> outcomes = ParallelRequestExecutor
+                .execute(httpClientProvider.getRequestExecutor(), requests, maxRequestsInFlight, batches -> sendRequest(graphqlUrl, headers,
+                        createRequestBody(repositoryId, checkRunId, title, summary, batches)));
+
+        int failed = 0;
+        for (ParallelRequestExecutor.Outcome<List<List<CheckAnnotation>>, Boolean> outcome : outcomes) {
+            if (outcome.isFailed()) {
+                failed++;
+                LOGGER.error("Could not upload check run annotations to Github", outcome.getFailure().orElse(null));
+            }
+        }
+        LOGGER.debug(String.format("Uploaded %s annotations in %s requests with at most %s in flight (%s failed)",
+                                   annotations.size(), requests.size(), maxRequestsInFlight, failed));
+        if (failed > 0) {
+            throw new IllegalStateException(
+                    String.format("%s of %s requests to add annotations to the check run failed", failed,
+                                  requests.size()));
+        }
+    }
+
+    Map<String, Object> createRequestBody(String repositoryId, String checkRunId, String title, String summary,
+                                          List<List<CheckAnnotation>> batches) {
+        StringBuilder variableDefinitions = new StringBuilder();
+        StringBuilder mutations = new StringBuilder();
+        Map<String, Object> variables = new LinkedHashMap<>();
+        for (int i = 0; i < batches.size(); i++) {
+            if (i > 0) {
+                variableDefinitions.append(", ");
+            }
+            variableDefinitions.append("$input").append(i).append(": UpdateCheckRunInput!");
+            mutations.append(" batch").append(i).append(": updateCheckRun(input: $input").append(i)
+                    .append(") { clientMutationId }");
+
+            Map<String, Object> output = new LinkedHashMap<>();
+            output.put("title", title);
+            output.put("summary", summary);
+            output.put("annotations", batches.get(i));
+
+            Map<String, Object> input = new LinkedHashMap<>();
+            input.put("repositoryId", repositoryId);
+            input.put("checkRunId", checkRunId);
+            input.put("output", output);
+            variables.put("input" + i, input);
+        }
+
+        Map<String, Object> requestBody = new LinkedHashMap<>();
+        requestBody.put("query", "mutation (" + variableDefinitions + ") {" + mutations + " }");
+        requestBody.put("variables", variables);
+        return requestBody;
+    }
+
+    private boolean sendRequest(String graphqlUrl, Map<String, String> headers, Map<String, Object> requestBody)
+            throws IOException {
+        HttpPost httpPost = new HttpPost(graphqlUrl);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpPost.addHeader(entry.getKey(), entry.getValue());
+        }
+        httpPost.setEntity(JsonCodecs.toEntity(requestBody));
+
+        try (CloseableHttpResponse httpResponse = httpClientProvider.getHttpClient().execute(httpPost)) {
+            String responseBody = EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8);
+            if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                throw new IllegalStateException(
+                        String.format("Github returned status %s: %s", httpResponse.getStatusLine().getStatusCode(),
+                                      responseBody));
+            }
+            JsonNode errors = JsonCodecs.reader(JsonNode.class).<JsonNode>readValue(responseBody).path("errors");
+            if (errors.size() > 0) {
+                List<String> messages = new ArrayList<>();
+                for (JsonNode error : errors) {
+                    messages.add("- " + error.path("message").asText());
+                }
+                throw new IllegalStateException(
+                        "An error was returned in the response from the Github API:" + System.lineSeparator() +
+                        String.join(System.lineSeparator(), messages));
+            }
+            return true;
+        }
+    }
+
+    private static <T> List<List<T>> partition(List<T> items, int size) {
+        List<List<T>> partitions = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += size) {
+            partitions.add(items.subList(i, Math.min(i + size, items.size())));
+        }
+        return partitions;
+    }
+}
@@ -19,13 +19,24 @@
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4;
 
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.ChangedLinesIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.IntSettings;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.CheckRunProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.GithubApplicationAuthenticationProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.RepositoryAuthenticationToken;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.PullRequestCommitLoader;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotation;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotationLevel;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotationRange;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckConclusionState;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.RequestableCheckStatusState;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.Phase;
 import io.aexp.nodes.graphql.Argument;
 import io.aexp.nodes.graphql.Arguments;
 import io.aexp.nodes.graphql.GraphQLRequestEntity;
@@ -43,8 +54,10 @@ import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.ce.task.projectanalysis.component.Component;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
@@ -57,33 +70,48 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.stream.Collectors;
 
 public class GraphqlCheckRunProvider implements CheckRunProvider {
 
+    public static final String PULL_REQUEST_GITHUB_ANNOTATION_BATCHES_PER_REQUEST =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.github.annotation.batchesPerRequest";
+    public static final String PULL_REQUEST_GITHUB_ANNOTATION_MAX_REQUESTS_IN_FLIGHT =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.github.annotation.maxRequestsInFlight";
+
+    static final int DEFAULT_ANNOTATION_BATCHES_PER_REQUEST = 4;
+    static final int DEFAULT_ANNOTATION_MAX_REQUESTS_IN_FLIGHT = 2;
+
     private static final Logger LOGGER = Loggers.get(GraphqlCheckRunProvider.class);
     private static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ssXXX";
-
     private final GraphqlProvider graphqlProvider;
     private final Clock clock;
     private final GithubApplicationAuthenticationProvider githubApplicationAuthenticationProvider;
     private final Server server;
     private final ConfigurationRepository configurationRepository;
     private final PropertyDefinitions propertyDefinitions;
+    private final CheckRunAnnotationUploader checkRunAnnotationUploader;
+    private final ScmInfoRepository scmInfoRepository;
+    private final PullRequestCommitLoader pullRequestCommitLoader;
 
     public GraphqlCheckRunProvider(Clock clock,
                                    GithubApplicationAuthenticationProvider githubApplicationAuthenticationProvider,
                                    Server server, ConfigurationRepository configurationRepository,
-                                   PropertyDefinitions propertyDefinitions) {
+                                   PropertyDefinitions propertyDefinitions, HttpClientProvider httpClientProvider,
+                                   ScmInfoRepository scmInfoRepository) {
         this(new DefaultGraphqlProvider(), clock, githubApplicationAuthenticationProvider, server,
-             configurationRepository, propertyDefinitions);
+             configurationRepository, propertyDefinitions, new CheckRunAnnotationUploader(httpClientProvider),
+             scmInfoRepository, new PullRequestCommitLoader(httpClientProvider));
     }
 
     GraphqlCheckRunProvider(GraphqlProvider graphqlProvider, Clock clock,
                             GithubApplicationAuthenticationProvider githubApplicationAuthenticationProvider,
                             Server server, ConfigurationRepository configurationRepository,
-                            PropertyDefinitions propertyDefinitions) {
+                            PropertyDefinitions propertyDefinitions,
+                            CheckRunAnnotationUploader checkRunAnnotationUploader,
+                            ScmInfoRepository scmInfoRepository, PullRequestCommitLoader pullRequestCommitLoader) {
         super();
         this.graphqlProvider = graphqlProvider;
         this.clock = clock;
@@ -91,11 +119,22 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
         this.server = server;
         this.configurationRepository = configurationRepository;
         this.propertyDefinitions = propertyDefinitions;
+        this.checkRunAnnotationUploader = checkRunAnnotationUploader;
+        this.scmInfoRepository = scmInfoRepository;
+        this.pullRequestCommitLoader = pullRequestCommitLoader;
+    }
+
+    @Override
+    public LineRevisions prepare(AnalysisDetails analysisDetails) {
+        if (isChangedLinesOnly(configurationRepository.getConfiguration())) {
+            return LineRevisions.read(scmInfoRepository, getOpenIssues(analysisDetails));
+        }
+        return LineRevisions.none();
     }
 
     @Override
     public void createCheckRun(AnalysisDetails analysisDetails) throws IOException, GeneralSecurityException {
-        Configuration configuration = configurationRepository.getConfiguration();
+        Configuration configuration = analysisDetails.getConfiguration();
         String apiUrl = getMandatoryProperty("sonar.pullrequest.github.endpoint", configuration, propertyDefinitions);
         String apiPrivateKey =
                 getMandatoryProperty("sonar.alm.github.app.privateKey.secured", configuration, propertyDefinitions);
@@ -104,34 +143,39 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
         String appId = getMandatoryProperty("sonar.alm.github.app.id", configuration, propertyDefinitions);
         String appName = getMandatoryProperty("sonar.alm.github.app.name", configuration, propertyDefinitions);
 
+        DecorationRecording recording = DecorationRecording.current();
+        recording.enterPhase(Phase.AUTHENTICATE);
         RepositoryAuthenticationToken repositoryAuthenticationToken =
                 githubApplicationAuthenticationProvider.getInstallationToken(apiUrl, appId, apiPrivateKey, projectPath);
         Map<String, String> headers = new HashMap<>();
         headers.put("Authorization", "Bearer " + repositoryAuthenticationToken.getAuthenticationToken());
         headers.put("Accept", "application/vnd.github.antiope-preview+json");
 
-        List<InputObject<Object>> annotations = analysisDetails.getPostAnalysisIssueVisitor().getIssues().stream()
-                .filter(i -> i.getComponent().getReportAttributes().getScmPath().isPresent())
-                .filter(i -> i.getComponent().getType() == Component.Type.FILE).map(componentIssue -> {
-                    InputObject<Object> issueLocation = graphqlProvider.createInputObject()
-                            .put("startLine", Optional.ofNullable(componentIssue.getIssue().getLine()).orElse(0))
-                            .put("endLine", Optional.ofNullable(componentIssue.getIssue().getLine()).orElse(0) + 1)
-                            .build();
-                    return graphqlProvider.createInputObject()
-                            .put("path", componentIssue.getComponent().getReportAttributes().getScmPath().get())
-                            .put("location", issueLocation)
-                            .put("annotationLevel", mapToGithubAnnotationLevel(componentIssue.getIssue().severity()))
-                            .put("message", componentIssue.getIssue().getMessage().replaceAll("\"", "\\\\\"")).build();
-                }).collect(Collectors.toList());
+        recording.enterPhase(Phase.FETCH);
+        List<PostAnalysisIssueVisitor.ComponentIssue> openIssues = getOpenIssues(analysisDetails);
+        if (isChangedLinesOnly(configuration)) {
+            Optional<Set<String>> commitShas = pullRequestCommitLoader
+                    .getCommitShas(apiUrl, projectPath, analysisDetails.getBranchName(),
+                                   repositoryAuthenticationToken.getAuthenticationToken());
+            if (commitShas.isPresent()) {
+                ChangedLinesIndex changedLines =
+                        ChangedLinesIndex.build(analysisDetails.getLineRevisions(), openIssues, commitShas.get());
+                openIssues = openIssues.stream().filter(changedLines::isChanged).collect(Collectors.toList());
+            } else {
+                LOGGER.warn("Could not retrieve the commits in the pull request from Github so annotations will be " +
+                            "created for issues on all lines");
+            }
+        }
+
+        recording.enterPhase(Phase.RENDER);
+        List<CheckAnnotation> annotations = createAnnotations(openIssues);
 
-        InputObject<Object> checkRunOutputContent = graphqlProvider.createInputObject().put("title", "Quality Gate " +
-                                                                                                     (analysisDetails
-                                                                                                              .getQualityGateStatus() ==
-                                                                                                      QualityGate.Status.OK ?
-                                                                                                      "success" :
-                                                                                                      "failed"))
-                .put("summary", analysisDetails.createAnalysisSummary(new MarkdownFormatterFactory()))
-                .put("annotations", annotations).build();
+        String title = "Quality Gate " + (analysisDetails.getQualityGateStatus() == QualityGate.Status.OK ? "success" : "failed");
+        String summary = analysisDetails.createAnalysisSummary(new MarkdownFormatterFactory());
+
+        // annotations are added once the check run exists, since Github limits the number sent in each request
+        InputObject<Object> checkRunOutputContent = graphqlProvider.createInputObject().put("title", title)
+                .put("summary", summary).build();
 
         SimpleDateFormat startedDateFormat = new SimpleDateFormat(DATE_TIME_PATTERN);
         startedDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
@@ -155,6 +199,7 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
                         .put("output", checkRunOutputContent).build();
 
 
+        recording.enterPhase(Phase.POST);
         GraphQLRequestEntity graphQLRequestEntity =
                 graphqlProvider.createRequestBuilder().url(apiUrl + "/graphql").headers(headers)
                         .request(CreateCheckRun.class)
@@ -165,8 +210,20 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
 
         GraphQLTemplate graphQLTemplate = graphqlProvider.createGraphQLTemplate();
 
-        GraphQLResponseEntity<CreateCheckRun> response =
-                graphQLTemplate.mutate(graphQLRequestEntity, CreateCheckRun.class);
+        // the GraphQL client makes its own connection rather than using the pooled client, so record the call here
+        long requestStartedAt = System.nanoTime();
+        long requestSize = graphQLRequestEntity.getRequest().getBytes(StandardCharsets.UTF_8).length;
+        GraphQLResponseEntity<CreateCheckRun> response;
+        try {
+            response = graphQLTemplate.mutate(graphQLRequestEntity, CreateCheckRun.class);
+        } catch (RuntimeException ex) {
+            // the client doesn't expose the status of a failed response, so count it as a server error
+            recording.recordHttpCall("POST", apiUrl + "/graphql", HttpURLConnection.HTTP_INTERNAL_ERROR,
+                                     System.nanoTime() - requestStartedAt, requestSize);
+            throw ex;
+        }
+        recording.recordHttpCall("POST", apiUrl + "/graphql", HttpURLConnection.HTTP_OK,
+                                 System.nanoTime() - requestStartedAt, requestSize);
 
         LOGGER.debug("Received response: " + response.toString());
 
@@ -179,6 +236,30 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
                     "An error was returned in the response from the Github API:" + System.lineSeparator() +
                     errors.stream().collect(Collectors.joining(System.lineSeparator())));
         }
+
+        if (!annotations.isEmpty()) {
+            String checkRunId = response.getResponse().getCheckRun().getId();
+            checkRunAnnotationUploader.uploadAnnotations(apiUrl + "/graphql", headers,
+                                                         repositoryAuthenticationToken.getRepositoryId(), checkRunId,
+                                                         title, summary, annotations,
+                                                         IntSettings.getPositiveInt(configuration,
+                                                                                    PULL_REQUEST_GITHUB_ANNOTATION_BATCHES_PER_REQUEST,
+                                                                                    DEFAULT_ANNOTATION_BATCHES_PER_REQUEST),
+                                                         IntSettings.getPositiveInt(configuration,
+                                                                                    PULL_REQUEST_GITHUB_ANNOTATION_MAX_REQUESTS_IN_FLIGHT,
+                                                                                    DEFAULT_ANNOTATION_MAX_REQUESTS_IN_FLIGHT));
+        }
+    }
+
+    static List<CheckAnnotation> createAnnotations(List<PostAnalysisIssueVisitor.ComponentIssue> openIssues) {
+        return openIssues.stream().filter(i -> i.getComponent().getReportAttributes().getScmPath().isPresent())
+                .filter(i -> i.getComponent().getType() == Component.Type.FILE).map(componentIssue -> {
+                    int line = Optional.ofNullable(componentIssue.getIssue().getLine()).orElse(0);
+                    return new CheckAnnotation(componentIssue.getComponent().getReportAttributes().getScmPath().get(),
+                                               new CheckAnnotationRange(line, line + 1),
+                                               mapToGithubAnnotationLevel(componentIssue.getIssue().severity()),
+                                               componentIssue.getIssue().getMessage());
+                }).collect(Collectors.toList());
     }
 
     private static CheckAnnotationLevel mapToGithubAnnotationLevel(String sonarqubeSeverity) {
@@ -204,4 +285,14 @@ public class GraphqlCheckRunProvider implements CheckRunProvider {
                         .map(v -> "".equals(v) ? null : v).orElseThrow(() -> new IllegalStateException(
                                 String.format("%s must be specified in the project configuration", propertyName))));
     }
+
+    private static List<PostAnalysisIssueVisitor.ComponentIssue> getOpenIssues(AnalysisDetails analysisDetails) {
+        return analysisDetails.getPostAnalysisIssueVisitor().getOpenIssues();
+    }
+
+    private static boolean isChangedLinesOnly(Configuration configuration) {
+        return Boolean.parseBoolean(
+                configuration.get(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY)
+                        .orElse("false"));
+    }
 }
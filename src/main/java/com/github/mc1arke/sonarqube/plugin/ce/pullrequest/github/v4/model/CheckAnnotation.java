@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class CheckAnnotation {
+
+    private final String path;
+    private final CheckAnnotationRange location;
+    private final CheckAnnotationLevel annotationLevel;
+    private final String message;
+
+    public CheckAnnotation(String path, CheckAnnotationRange location, CheckAnnotationLevel annotationLevel,
+                           String message) {
+        this.path = path;
+        this.location = location;
+        this.annotationLevel = annotationLevel;
+        this.message = message;
+    }
+
+    @JsonProperty("path")
+    public String getPath() {
+        return path;
+    }
+
+    @JsonProperty("location")
+    public CheckAnnotationRange getLocation() {
+        return location;
+    }
+
+    @JsonProperty("annotationLevel")
+    public CheckAnnotationLevel getAnnotationLevel() {
+        return annotationLevel;
+    }
+
+    @JsonProperty("message")
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonResponses;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.ParallelRequestExecutor;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Reads every page of a list resource from the Gitlab API. The first page is requested synchronously, and if Gitlab
+ * reports the total number of pages in the <code>X-Total-Pages</code> header then all remaining pages are requested
+ * concurrently on the shared request executor, with a bounded number in flight, and returned in page order as they
+ * complete. Gitlab omits the header for very large collections, in which case the pages are followed one at a time
+ * using the <code>Link</code> header.
+ */
+final class GitlabPaginator {
+
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private static final Logger LOGGER = Loggers.get(GitlabPaginator.class);
+    private static final Pattern LINK_PATTERN = Pattern.compile("<([^>]+)>;[\\s]*rel=\"([a-z]+)\"");
+
+    private final HttpClientProvider httpClientProvider;
+    private final GitlabRequestScheduler requestScheduler;
+    private final int pageSize;
+    private final int parallelism;
+
+    GitlabPaginator(HttpClientProvider httpClientProvider, GitlabRequestScheduler requestScheduler, int pageSize,
+                    int parallelism) {
+        super();
+        this.httpClientProvider = httpClientProvider;
+        this.requestScheduler = requestScheduler;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the items from all pages, in the order Gitlab returns them. Pages after the first are retrieved in the
+     * background, so a failure to retrieve one of them is thrown as an {@link IllegalStateException} when the stream
+     * reaches that page.
+     */
+    <X> Stream<X> stream(String url, Map<String, String> headers, TypeReference<List<X>> type) throws IOException {
+        Page<X> firstPage = getPage(withQueryParameter(url, "per_page", String.valueOf(pageSize)), headers, type);
+
+        if (firstPage.getTotalPages().isPresent()) {
+            int totalPages = firstPage.getTotalPages().get();
+            if (totalPages <= 1) {
+                return firstPage.getItems().stream();
+            }
+            LOGGER.debug(String.format("Retrieving %s further pages from %s", totalPages - 1, url));
+            return Stream.concat(firstPage.getItems().stream(),
+                                 requestRemainingPages(url, headers, type, totalPages).stream()
+                                         .flatMap(f -> await(f).stream()));
+        }
+
+        // the total isn't known, so each page has to be read to find the next one
+        List<X> items = new ArrayList<>(firstPage.getItems());
+        Optional<String> nextUrl = firstPage.getNextUrl();
+        while (nextUrl.isPresent()) {
+            Page<X> page = getPage(nextUrl.get(), headers, type);
+            items.addAll(page.getItems());
+            nextUrl = page.getNextUrl();
+        }
+        return items.stream();
+    }
+
+    private <X> List<CompletableFuture<List<X>>> requestRemainingPages(String url, Map<String, String> headers,
+                                                                       TypeReference<List<X>> type, int totalPages) {
+        List<String> pageUrls = new ArrayList<>(totalPages - 1);
+        for (int i = 2; i <= totalPages; i++) {
+            pageUrls.add(withQueryParameter(withQueryParameter(url, "per_page", String.valueOf(pageSize)), "page",
+                                            String.valueOf(i)));
+        }
+        return ParallelRequestExecutor.submit(httpClientProvider.getRequestExecutor(), pageUrls, parallelism,
+                                              pageUrl -> getPage(pageUrl, headers, type).getItems());
+    }
+
+    private <X> Page<X> getPage(String url, Map<String, String> headers, TypeReference<List<X>> type)
+            throws IOException {
+        HttpGet httpGet = new HttpGet(url);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpGet.addHeader(entry.getKey(), entry.getValue());
+        }
+        try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpGet)) {
+            if (null == httpResponse) {
+                throw new IOException("No response received");
+            } else if (httpResponse.getStatusLine().getStatusCode() != 200) {
+                LOGGER.error(httpResponse.toString());
+                LOGGER.error(EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8));
+                throw new IllegalStateException("An error was returned in the response from the Gitlab API. See the previous log messages for details");
+            }
+            LOGGER.debug(httpResponse.toString());
+            List<X> items = JsonResponses.read(httpResponse.getEntity(), type);
+            Optional<Integer> totalPages = Optional.ofNullable(httpResponse.getFirstHeader("X-Total-Pages"))
+                    .map(Header::getValue).filter(v -> !v.isEmpty()).map(Integer::parseInt);
+            return new Page<>(null == items ? new ArrayList<>() : items, totalPages,
+                              getNextUrl(httpResponse.getFirstHeader("Link")));
+        }
+    }
+
+    private static <X> List<X> await(Future<List<X>> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted whilst retrieving pages from the Gitlab API", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Could not retrieve page from the Gitlab API", ex.getCause());
+        }
+    }
+
+    static Optional<String> getNextUrl(Header linkHeader) {
+        if (linkHeader != null) {
+            Matcher matcher = LINK_PATTERN.matcher(linkHeader.getValue());
+            while (matcher.find()) {
+                if (matcher.group(2).equals("next")) {
+                    //found the next rel return the URL
+                    return Optional.of(matcher.group(1));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    static String withQueryParameter(String url, String name, String value) {
+        return url + (url.contains("?") ? "&" : "?") + name + "=" + value;
+    }
+
+    private static final class Page<X> {
+
+        private final List<X> items;
+        private final Optional<Integer> totalPages;
+        private final Optional<String> nextUrl;
+
+        private Page(List<X> items, Optional<Integer> totalPages, Optional<String> nextUrl) {
+            this.items = items;
+            this.totalPages = totalPages;
+            this.nextUrl = nextUrl;
+        }
+
+        List<X> getItems() {
+            return items;
+        }
+
+        Optional<Integer> getTotalPages() {
+            return totalPages;
+        }
+
+        Optional<String> getNextUrl() {
+            return nextUrl;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.time.Clock;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Paces the requests sent to each Gitlab host to stay within the rate limit Gitlab reports in the
+ * <code>RateLimit-Remaining</code> and <code>RateLimit-Reset</code> headers of each response. The requests remaining
+ * in the current window are spread evenly until the window resets, with a small burst allowed, and a request rejected
+ * with HTTP 429 is retried once the period given in its <code>Retry-After</code> header has passed.
+ *
+ * The scheduler is held in the Compute Engine container so all analyses decorating merge requests on the same Gitlab
+ * host share the same limit.
+ */
+public class GitlabRequestScheduler {
+
+    static final int MAX_RETRIES = 3;
+    static final int BURST = 5;
+    static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+    static final long MAX_WAIT_MILLIS = 60000;
+
+    private static final Logger LOGGER = Loggers.get(GitlabRequestScheduler.class);
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Clock clock;
+    private final Sleeper sleeper;
+
+    public GitlabRequestScheduler() {
+        this(Clock.systemUTC(), Thread::sleep);
+    }
+
+    GitlabRequestScheduler(Clock clock, Sleeper sleeper) {
+        super();
+        this.clock = clock;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Sends the request once the host's rate limit allows it, retrying if Gitlab rejects it for exceeding the limit.
+     * The request is sent again as-is, so any entity it holds has to be repeatable.
+     *
+     * @return the response to the last attempt, which will still be a 429 response if all retries were rejected
+     */
+    public CloseableHttpResponse execute(CloseableHttpClient httpClient, HttpUriRequest request) throws IOException {
+        String host = getHost(request.getURI());
+        TokenBucket bucket = buckets.computeIfAbsent(host, k -> new TokenBucket());
+        int attempt = 0;
+        while (true) {
+            long wait = bucket.reserve(clock.millis());
+            if (wait > 0) {
+                LOGGER.debug(String.format("Waiting %sms to stay within the rate limit of %s", wait, host));
+                sleep(wait);
+            }
+
+            CloseableHttpResponse response = httpClient.execute(request);
+            if (null == response) {
+                return null;
+            }
+            // the response is only left open when it's handed back to the caller
+            boolean returned = false;
+            try {
+                long now = clock.millis();
+                getLongHeader(response, "RateLimit-Remaining").ifPresent(
+                        remaining -> getLongHeader(response, "RateLimit-Reset")
+                                .ifPresent(reset -> bucket.update(now, remaining, reset * 1000)));
+
+                if (response.getStatusLine().getStatusCode() != TOO_MANY_REQUESTS || attempt >= MAX_RETRIES) {
+                    returned = true;
+                    return response;
+                }
+
+                DecorationRecording.current().recordRetry();
+                long retryAt = getRetryAt(response, now, attempt);
+                bucket.pauseUntil(retryAt);
+                LOGGER.warn(String.format("Rate limit of %s exceeded, retrying %s %s in %sms", host,
+                                          request.getMethod(), request.getURI().getPath(), retryAt - now));
+            } finally {
+                if (!returned) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    response.close();
+                }
+            }
+            attempt++;
+        }
+    }
+
+    private void sleep(long millis) throws InterruptedIOException {
+        try {
+            sleeper.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for the Gitlab rate limit");
+        }
+    }
+
+    private static long getRetryAt(HttpResponse response, long now, int attempt) {
+        Optional<String> retryAfter = getHeader(response, "Retry-After");
+        if (retryAfter.isPresent()) {
+            String value = retryAfter.get().trim();
+            if (value.chars().allMatch(Character::isDigit)) {
+                Optional<Long> seconds = parseLong("Retry-After", value);
+                if (seconds.isPresent()) {
+                    return now + Math.min(seconds.get(), MAX_WAIT_MILLIS / 1000) * 1000;
+                }
+            }
+            Date date = DateUtils.parseDate(value);
+            if (null != date) {
+                return Math.min(Math.max(now, date.getTime()), now + MAX_WAIT_MILLIS);
+            }
+        }
+        Optional<Long> reset = getLongHeader(response, "RateLimit-Reset");
+        if (reset.isPresent() && reset.get() > now / 1000) {
+            return Math.min(reset.get() * 1000, now + MAX_WAIT_MILLIS);
+        }
+        return now + Math.min(DEFAULT_RETRY_DELAY_MILLIS << attempt, MAX_WAIT_MILLIS);
+    }
+
+    private static Optional<String> getHeader(HttpResponse response, String name) {
+        return Optional.ofNullable(response.getFirstHeader(name)).map(Header::getValue).filter(v -> !v.isEmpty());
+    }
+
+    private static Optional<Long> getLongHeader(HttpResponse response, String name) {
+        return getHeader(response, name).flatMap(value -> parseLong(name, value.trim()));
+    }
+
+    private static Optional<Long> parseLong(String name, String value) {
+        try {
+            return Optional.of(Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            LOGGER.debug(String.format("Ignoring %s header with invalid value '%s'", name, value));
+            return Optional.empty();
+        }
+    }
+
+    private static String getHost(URI uri) {
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    @FunctionalInterface
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     * Tracks the requests that can be sent to a single host. Tokens are added at the rate needed to use the remaining
+     * requests evenly until the limit resets, and a request taken when no token is available reserves the next one,
+     * so concurrent requests queue up behind each other rather than all being sent once a token is added.
+     */
+    private static final class TokenBucket {
+
+        private double tokens = BURST;
+        private double refillIntervalMillis;
+        private long lastRefill;
+        private long pausedUntil;
+
+        synchronized long reserve(long now) {
+            refill(now);
+            long wait = Math.max(0, pausedUntil - now);
+            if (refillIntervalMillis > 0) {
+                tokens--;
+                if (tokens < 0) {
+                    wait = Math.max(wait, (long) Math.ceil(-tokens * refillIntervalMillis));
+                }
+            }
+            return Math.min(wait, MAX_WAIT_MILLIS);
+        }
+
+        synchronized void update(long now, long remaining, long resetAt) {
+            refill(now);
+            if (remaining <= 0) {
+                pausedUntil = Math.max(pausedUntil, Math.min(resetAt, now + MAX_WAIT_MILLIS));
+            } else {
+                refillIntervalMillis = Math.max(0, resetAt - now) / (double) remaining;
+                tokens = Math.min(tokens, remaining);
+            }
+        }
+
+        synchronized void pauseUntil(long until) {
+            pausedUntil = Math.max(pausedUntil, until);
+        }
+
+        private void refill(long now) {
+            if (refillIntervalMillis > 0 && now > lastRefill) {
+                tokens = Math.min(BURST, tokens + (now - lastRefill) / refillIntervalMillis);
+            }
+            lastRefill = Math.max(lastRefill, now);
+        }
+    }
+}
@@ -28,14 +28,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.ChangedLinesIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentCleanup;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentReconciler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.IntSettings;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.response.Commit;
@@ -43,50 +48,64 @@ import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.response.Discus
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.response.MergeRequest;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.response.Note;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.response.User;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.JsonResponses;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.ParallelRequestExecutor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.Phase;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.client.methods.HttpPut;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.sonar.api.ce.posttask.QualityGate;
 import org.sonar.api.config.Configuration;
-import org.sonar.api.issue.Issue;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.platform.Server;
 import org.sonar.api.utils.log.Logger;
 import org.sonar.api.utils.log.Loggers;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
-import org.sonar.ce.task.projectanalysis.scm.Changeset;
 import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
 
 public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusDecorator {
 
     private static final Logger LOGGER = Loggers.get(GitlabServerPullRequestDecorator.class);
-    private static final List<String> OPEN_ISSUE_STATUSES =
-            Issue.STATUSES.stream().filter(s -> !Issue.STATUS_CLOSED.equals(s) && !Issue.STATUS_RESOLVED.equals(s))
-                    .collect(Collectors.toList());
     public static final String PULLREQUEST_GITLAB_URL = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.url";
     public static final String PULLREQUEST_GITLAB_TOKEN = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.token";
     public static final String PULLREQUEST_GITLAB_REPOSITORY_SLUG = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.repositorySlug";
+    public static final String PULLREQUEST_GITLAB_COMMENT_RECONCILE = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.comment.reconcile";
+    public static final String PULLREQUEST_GITLAB_PAGE_SIZE = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.pageSize";
+    public static final String PULLREQUEST_GITLAB_COMMENT_PARALLELISM = "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.gitlab.comment.parallelism";
+
+    static final int DEFAULT_COMMENT_PARALLELISM = 4;
 
 
     private final ConfigurationRepository configurationRepository;
     private final Server server;
     private final ScmInfoRepository scmInfoRepository;
+    private final HttpClientProvider httpClientProvider;
+    private final GitlabRequestScheduler requestScheduler;
 
-    public GitlabServerPullRequestDecorator(Server server, ConfigurationRepository configurationRepository, ScmInfoRepository scmInfoRepository) {
+    public GitlabServerPullRequestDecorator(Server server, ConfigurationRepository configurationRepository, ScmInfoRepository scmInfoRepository, HttpClientProvider httpClientProvider,
+                                            GitlabRequestScheduler requestScheduler) {
         super();
         this.configurationRepository = configurationRepository;
         this.server = server;
         this.scmInfoRepository = scmInfoRepository;
+        this.httpClientProvider = httpClientProvider;
+        this.requestScheduler = requestScheduler;
+    }
+
+    @Override
+    public LineRevisions prepare(AnalysisDetails analysis) {
+        // issues are only commented on if their line was changed in the merge request
+        return LineRevisions.read(scmInfoRepository, analysis.getPostAnalysisIssueVisitor().getOpenIssues());
     }
 
     @Override
@@ -95,7 +114,7 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
         String revision = analysis.getCommitSha();
 
         try {
-            Configuration configuration = configurationRepository.getConfiguration();
+            Configuration configuration = analysis.getConfiguration();
             final String hostURL = getMandatoryProperty(PULLREQUEST_GITLAB_URL, configuration);
             final String apiToken = getMandatoryProperty(PULLREQUEST_GITLAB_TOKEN, configuration);
             final String repositorySlug = getMandatoryProperty(PULLREQUEST_GITLAB_REPOSITORY_SLUG, configuration);
@@ -123,63 +142,80 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
             headers.put("PRIVATE-TOKEN", apiToken);
             headers.put("Accept", "application/json");
 
+            DecorationRecording recording = DecorationRecording.current();
+            recording.enterPhase(Phase.AUTHENTICATE);
             User user = getSingle(userURL, headers, User.class);
             LOGGER.info(String.format("Using user: %s ", user.getUsername()));
 
-            List<String> commits = getPagedList(prCommitsURL, headers, true, new TypeReference<List<Commit>>() {
-            }).stream().map(Commit::getId).collect(Collectors.toList());
+            recording.enterPhase(Phase.FETCH);
+            GitlabPaginator paginator = new GitlabPaginator(httpClientProvider, requestScheduler, getPageSize(configuration), GitlabPaginator.DEFAULT_PARALLELISM);
+            List<String> commits = getPagedList(paginator, prCommitsURL, headers, true, new TypeReference<List<Commit>>() {
+            }).map(Commit::getId).collect(Collectors.toList());
             MergeRequest mergeRequest = getSingle(mergeRequestURl, headers, MergeRequest.class);
 
-            List<Discussion> discussions = getPagedList(mergeRequestDiscussionURL, headers, deleteCommentsEnabled, new TypeReference<List<Discussion>>() {
-            });
+            final boolean reconcileComments = Boolean.parseBoolean(configuration.get(PULLREQUEST_GITLAB_COMMENT_RECONCILE).orElse("false"));
+
+            List<Discussion> discussions = getPagedList(paginator, mergeRequestDiscussionURL, headers, deleteCommentsEnabled || reconcileComments, new TypeReference<List<Discussion>>() {
+            }).collect(Collectors.toList());
 
             LOGGER.info(String.format("Discussions in MR: %s ", discussions
                     .stream()
                     .map(Discussion::getId)
                     .collect(Collectors.joining(", "))));
 
+            List<DiscussionNote> discussionNotes = new ArrayList<>();
             for (Discussion discussion : discussions) {
                 for (Note note : discussion.getNotes()) {
-                    if (!note.isSystem() && note.getAuthor() != null && note.getAuthor().getUsername().equals(user.getUsername())) {
-                        //delete only our own comments
-                        deleteCommitDiscussionNote(mergeRequestDiscussionURL + String.format("/%s/notes/%s",
-                                discussion.getId(),
-                                note.getId()),
-                                headers, deleteCommentsEnabled);
-                    }
+                    discussionNotes.add(new DiscussionNote(discussion.getId(), note));
                 }
             }
+            Predicate<DiscussionNote> ownNote = n -> !n.getNote().isSystem() && n.getNote().getAuthor() != null && n.getNote().getAuthor().getUsername().equals(user.getUsername());
+
+            if (!reconcileComments) {
+                recording.enterPhase(Phase.CLEANUP);
+                //delete only our own comments
+                CommentCleanup.deleteComments("Gitlab", discussionNotes, ownNote, httpClientProvider.getRequestExecutor(),
+                        CommentCleanup.getParallelism(configuration), n -> {
+                            deleteCommitDiscussionNote(mergeRequestDiscussionURL + String.format("/%s/notes/%s", n.getDiscussionId(), n.getNote().getId()),
+                                    headers, deleteCommentsEnabled);
+                            return true;
+                        }, n -> String.format("%s in discussion %s", n.getNote().getId(), n.getDiscussionId()));
+            }
 
+            recording.enterPhase(Phase.RENDER);
             QualityGate.Condition newCoverageCondition = analysis.findQualityGateCondition(CoreMetrics.NEW_COVERAGE_KEY)
                     .orElseThrow(() -> new IllegalStateException("Could not find New Coverage Condition in analysis"));
             String coverageValue = newCoverageCondition.getStatus().equals(QualityGate.EvaluationStatus.NO_VALUE) ? "0" : newCoverageCondition.getValue();
 
 
-            List<PostAnalysisIssueVisitor.ComponentIssue> openIssues = analysis.getPostAnalysisIssueVisitor().getIssues().stream().filter(i -> OPEN_ISSUE_STATUSES.contains(i.getIssue().getStatus())).collect(Collectors.toList());
+            List<PostAnalysisIssueVisitor.ComponentIssue> openIssues = analysis.getPostAnalysisIssueVisitor().getOpenIssues();
 
             String summaryComment = analysis.createAnalysisSummary(new MarkdownFormatterFactory());
-            List<NameValuePair> summaryContentParams = Collections.singletonList(new BasicNameValuePair("body", summaryComment));
 
+            // issue comments are rendered as they're posted, so the time taken to render them is included here
+            recording.enterPhase(Phase.POST);
             postStatus(statusUrl, headers, analysis, coverageValue, true);
 
-            postCommitComment(mergeRequestDiscussionURL, headers, summaryContentParams, summaryCommentEnabled);
+            List<CommentReconciler.DesiredComment<List<NameValuePair>>> desiredComments = new ArrayList<>();
+            if (summaryCommentEnabled) {
+                desiredComments.add(CommentReconciler.summaryComment(summaryComment));
+            }
+            if (!reconcileComments) {
+                postCommitComment(mergeRequestDiscussionURL, headers, Collections.singletonList(new BasicNameValuePair("body", summaryComment)), summaryCommentEnabled);
+            }
 
+            ChangedLinesIndex changedLines = ChangedLinesIndex.build(analysis.getLineRevisions(), openIssues, commits);
+            CommentReconciler.Fingerprinter fingerprinter = new CommentReconciler.Fingerprinter();
             for (PostAnalysisIssueVisitor.ComponentIssue issue : openIssues) {
                 String path = analysis.getSCMPathForIssue(issue).orElse(null);
                 if (path != null && issue.getIssue().getLine() != null) {
                     //only if we have a path and line number
                     String fileComment = analysis.createAnalysisIssueSummary(issue, new MarkdownFormatterFactory());
 
-                    if (scmInfoRepository.getScmInfo(issue.getComponent())
-                            .filter(i -> i.hasChangesetForLine(issue.getIssue().getLine()))
-                            .map(i -> i.getChangesetForLine(issue.getIssue().getLine()))
-                            .map(Changeset::getRevision)
-                            .filter(commits::contains)
-                            .isPresent()) {
+                    if (changedLines.isChanged(issue)) {
                         //only if the change is on a commit, that belongs to this MR
 
-                        List<NameValuePair> fileContentParams = Arrays.asList(
-                                new BasicNameValuePair("body", fileComment),
+                        List<NameValuePair> positionParams = Arrays.asList(
                                 new BasicNameValuePair("position[base_sha]", mergeRequest.getDiffRefs().getBaseSha()),
                                 new BasicNameValuePair("position[start_sha]", mergeRequest.getDiffRefs().getStartSha()),
                                 new BasicNameValuePair("position[head_sha]", mergeRequest.getDiffRefs().getHeadSha()),
@@ -188,77 +224,138 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
                                 new BasicNameValuePair("position[new_line]", String.valueOf(issue.getIssue().getLine())),
                                 new BasicNameValuePair("position[position_type]", "text"));
 
-                        postCommitComment(mergeRequestDiscussionURL, headers, fileContentParams, fileCommentEnabled);
+                        if (reconcileComments) {
+                            if (fileCommentEnabled) {
+                                String fingerprint = fingerprinter.fingerprint(path, issue.getIssue().getLine(), String.valueOf(issue.getIssue().getRuleKey()), issue.getIssue().getMessage());
+                                desiredComments.add(CommentReconciler.issueComment(fingerprint, fileComment, positionParams));
+                            }
+                        } else {
+                            postCommitComment(mergeRequestDiscussionURL, headers, withBody(fileComment, positionParams), fileCommentEnabled);
+                        }
                     } else {
                         LOGGER.info(String.format("Skipping %s:%d since the commit does not belong to the MR", path, issue.getIssue().getLine()));
                     }
                 }
             }
+
+            if (reconcileComments) {
+                List<DiscussionNote> ownNotes = discussionNotes.stream().filter(ownNote).collect(Collectors.toList());
+                reconcileComments(mergeRequestDiscussionURL, headers, desiredComments, ownNotes, deleteCommentsEnabled, getCommentParallelism(configuration));
+            }
         } catch (IOException ex) {
             throw new IllegalStateException("Could not decorate Pull Request on Gitlab Server", ex);
         }
 
     }
 
-    private <X> X getSingle(String userURL, Map<String, String> headers, Class<X> type) throws IOException {
-        HttpGet httpGet = new HttpGet(userURL);
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            httpGet.addHeader(entry.getKey(), entry.getValue());
+    private void reconcileComments(String mergeRequestDiscussionURL, Map<String, String> headers, List<CommentReconciler.DesiredComment<List<NameValuePair>>> desiredComments,
+                                   List<DiscussionNote> ownNotes, boolean deleteCommentsEnabled, int parallelism) {
+        CommentReconciler.Plan<DiscussionNote, List<NameValuePair>> plan = CommentReconciler.reconcile(desiredComments, ownNotes, n -> n.getNote().getBody());
+
+        List<DiscussionNote> toResolve = new ArrayList<>();
+        List<DiscussionNote> toDelete = new ArrayList<>();
+        for (DiscussionNote discussionNote : plan.getToDelete()) {
+            Note note = discussionNote.getNote();
+            Optional<String> fingerprint = CommentReconciler.readFingerprint(note.getBody());
+            if (note.isResolvable() && fingerprint.isPresent() && !CommentReconciler.SUMMARY_FINGERPRINT.equals(fingerprint.get())) {
+                // keep the history of issues that have been fixed rather than removing them from the MR
+                if (!note.isResolved()) {
+                    toResolve.add(discussionNote);
+                }
+            } else if (deleteCommentsEnabled) {
+                toDelete.add(discussionNote);
+            }
         }
-        HttpResponse httpResponse = HttpClients.createDefault().execute(httpGet);
-        if (null != httpResponse && httpResponse.getStatusLine().getStatusCode() != 200) {
-            LOGGER.error(httpResponse.toString());
-            LOGGER.error(EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8));
-            throw new IllegalStateException("An error was returned in the response from the Gitlab API. See the previous log messages for details");
-        } else if (null != httpResponse) {
-            LOGGER.debug(httpResponse.toString());
-            HttpEntity entity = httpResponse.getEntity();
-            X user = new ObjectMapper()
-                    .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true)
-                    .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true)
-                    .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                    .readValue(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8), type);
-
-            LOGGER.info(type + " received");
-
-            return user;
-        } else {
-            throw new IOException("No response reveived");
+
+        ExecutorService executorService = httpClientProvider.getRequestExecutor();
+
+        // a discussion that's unchanged and resolved was resolved by a reviewer, so is left as it is
+        List<ParallelRequestExecutor.Outcome<CommentReconciler.Update<DiscussionNote, List<NameValuePair>>, Boolean>> updates = ParallelRequestExecutor.execute(executorService, plan.getToUpdate(), parallelism, u -> {
+            DiscussionNote discussionNote = u.getExistingComment();
+            putDiscussionNote(mergeRequestDiscussionURL + String.format("/%s/notes/%s", discussionNote.getDiscussionId(), discussionNote.getNote().getId()),
+                    headers, Collections.singletonList(new BasicNameValuePair("body", u.getDesiredComment().getText())));
+            if (discussionNote.getNote().isResolved() && CommentReconciler.isMarkedResolved(discussionNote.getNote().getBody())) {
+                // the issue has been raised again after the plugin resolved the discussion for it
+                resolveDiscussion(mergeRequestDiscussionURL + String.format("/%s", discussionNote.getDiscussionId()), headers, false);
+                return true;
+            }
+            return false;
+        });
+        int failed = countFailures("update", updates, u -> describe(u.getExistingComment()));
+        long reopened = updates.stream().filter(o -> o.getResult().orElse(false)).count();
+
+        failed += countFailures("resolve", ParallelRequestExecutor.execute(executorService, toResolve, parallelism, n -> {
+            Note note = n.getNote();
+            putDiscussionNote(mergeRequestDiscussionURL + String.format("/%s/notes/%s", n.getDiscussionId(), note.getId()),
+                    headers, Collections.singletonList(new BasicNameValuePair("body", CommentReconciler.markResolved(note.getBody()))));
+            resolveDiscussion(mergeRequestDiscussionURL + String.format("/%s", n.getDiscussionId()), headers, true);
+            return true;
+        }), GitlabServerPullRequestDecorator::describe);
+
+        failed += countFailures("delete", ParallelRequestExecutor.execute(executorService, toDelete, parallelism, n -> {
+            deleteCommitDiscussionNote(mergeRequestDiscussionURL + String.format("/%s/notes/%s", n.getDiscussionId(), n.getNote().getId()), headers, true);
+            return true;
+        }), GitlabServerPullRequestDecorator::describe);
+
+        failed += countFailures("post", ParallelRequestExecutor.execute(executorService, plan.getToCreate(), parallelism, d -> {
+            postCommitComment(mergeRequestDiscussionURL, headers, withBody(d.getText(), d.getLocation().orElse(Collections.emptyList())), true);
+            return true;
+        }), d -> "with fingerprint " + d.getFingerprint());
+
+        LOGGER.info(String.format("Reconciled discussions in MR: %s created, %s updated, %s resolved, %s reopened, %s deleted, %s unchanged (%s failed)",
+                plan.getToCreate().size(), plan.getToUpdate().size(), toResolve.size(), reopened, toDelete.size(), plan.getUnchanged().size(), failed));
+    }
+
+    private static String describe(DiscussionNote discussionNote) {
+        return String.format("%s in discussion %s", discussionNote.getNote().getId(), discussionNote.getDiscussionId());
+    }
+
+    private static <T> int countFailures(String action, List<ParallelRequestExecutor.Outcome<T, Boolean>> outcomes, Function<T, String> description) {
+        int failed = 0;
+        for (ParallelRequestExecutor.Outcome<T, Boolean> outcome : outcomes) {
+            if (outcome.isFailed()) {
+                failed++;
+                LOGGER.error(String.format("Could not %s discussion note %s on Gitlab", action, description.apply(outcome.getItem())), outcome.getFailure().orElse(null));
+            }
         }
+        return failed;
+    }
+
+    private static List<NameValuePair> withBody(String body, List<NameValuePair> positionParams) {
+        List<NameValuePair> params = new ArrayList<>(positionParams.size() + 1);
+        params.add(new BasicNameValuePair("body", body));
+        params.addAll(positionParams);
+        return params;
     }
 
-    private <X> List<X> getPagedList(String commitDiscussionURL, Map<String, String> headers, boolean sendRequest, TypeReference<List<X>> typeRef) throws IOException {
-        HttpGet httpGet = new HttpGet(commitDiscussionURL);
+    private <X> X getSingle(String userURL, Map<String, String> headers, Class<X> type) throws IOException {
+        HttpGet httpGet = new HttpGet(userURL);
         for (Map.Entry<String, String> entry : headers.entrySet()) {
             httpGet.addHeader(entry.getKey(), entry.getValue());
         }
-
-        List<X> discussions = new ArrayList<>();
-
-        if (sendRequest) {
-            HttpResponse httpResponse = HttpClients.createDefault().execute(httpGet);
+        try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpGet)) {
             if (null != httpResponse && httpResponse.getStatusLine().getStatusCode() != 200) {
                 LOGGER.error(httpResponse.toString());
                 LOGGER.error(EntityUtils.toString(httpResponse.getEntity(), StandardCharsets.UTF_8));
                 throw new IllegalStateException("An error was returned in the response from the Gitlab API. See the previous log messages for details");
             } else if (null != httpResponse) {
                 LOGGER.debug(httpResponse.toString());
-                HttpEntity entity = httpResponse.getEntity();
-                List<X> pagedDiscussions = new ObjectMapper()
-                        .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true)
-                        .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true)
-                        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                        .readValue(IOUtils.toString(entity.getContent(), StandardCharsets.UTF_8), typeRef);
-                discussions.addAll(pagedDiscussions);
-                LOGGER.info("MR discussions received");
-                Optional<String> nextURL = getNextUrl(httpResponse);
-                if (nextURL.isPresent()) {
-                    LOGGER.info("Getting next page");
-                    discussions.addAll(getPagedList(nextURL.get(), headers, sendRequest, typeRef));
-                }
+                X user = JsonResponses.read(httpResponse.getEntity(), type);
+
+                LOGGER.info(type + " received");
+
+                return user;
+            } else {
+                throw new IOException("No response reveived");
             }
         }
-        return discussions;
+    }
+
+    private <X> Stream<X> getPagedList(GitlabPaginator paginator, String url, Map<String, String> headers, boolean sendRequest, TypeReference<List<X>> typeRef) throws IOException {
+        if (!sendRequest) {
+            return Stream.empty();
+        }
+        return paginator.stream(url, headers, typeRef);
     }
 
     private void deleteCommitDiscussionNote(String commitDiscussionNoteURL, Map<String, String> headers, boolean sendRequest) throws IOException {
@@ -271,8 +368,9 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
         if (sendRequest) {
             LOGGER.info("Deleting {} with headers {}", commitDiscussionNoteURL, headers);
 
-            HttpResponse httpResponse = HttpClients.createDefault().execute(httpDelete);
-            validateGitlabResponse(httpResponse, 204, "Commit discussions note deleted");
+            try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpDelete)) {
+                validateGitlabResponse(httpResponse, 204, "Commit discussions note deleted");
+            }
         }
     }
 
@@ -287,8 +385,38 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
         if (sendRequest) {
             LOGGER.info("Posting {} with headers {} to {}", params, headers, commitCommentUrl);
 
-            HttpResponse httpResponse = HttpClients.createDefault().execute(httpPost);
-            validateGitlabResponse(httpResponse, 201, "Comment posted");
+            try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpPost)) {
+                validateGitlabResponse(httpResponse, 201, "Comment posted");
+            }
+        }
+    }
+
+    private void putDiscussionNote(String discussionNoteURL, Map<String, String> headers, List<NameValuePair> params) throws IOException {
+        //https://docs.gitlab.com/ee/api/discussions.html#modify-an-existing-merge-request-thread-note
+        HttpPut httpPut = new HttpPut(discussionNoteURL);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpPut.addHeader(entry.getKey(), entry.getValue());
+        }
+        httpPut.setEntity(new UrlEncodedFormEntity(params));
+
+        LOGGER.info("Updating {}", discussionNoteURL);
+
+        try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpPut)) {
+            validateGitlabResponse(httpResponse, 200, "Discussion note updated");
+        }
+    }
+
+    private void resolveDiscussion(String discussionURL, Map<String, String> headers, boolean resolved) throws IOException {
+        //https://docs.gitlab.com/ee/api/discussions.html#resolve-a-merge-request-thread
+        HttpPut httpPut = new HttpPut(discussionURL + "?resolved=" + resolved);
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            httpPut.addHeader(entry.getKey(), entry.getValue());
+        }
+
+        LOGGER.info("Setting resolved={} on {}", resolved, discussionURL);
+
+        try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpPut)) {
+            validateGitlabResponse(httpResponse, 200, "Discussion resolution updated");
         }
     }
 
@@ -311,12 +439,14 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
             httpPost.addHeader(entry.getKey(), entry.getValue());
         }
         if (sendRequest) {
-            HttpResponse httpResponse = HttpClients.createDefault().execute(httpPost);
-            if (null != httpResponse && httpResponse.toString().contains("Cannot transition status")) {
-                // Workaround for https://gitlab.com/gitlab-org/gitlab-ce/issues/25807
-                LOGGER.debug("Transition status is already {}", status);
-            } else {
-                validateGitlabResponse(httpResponse, 201, "Comment posted");
+            try (CloseableHttpResponse httpResponse = requestScheduler.execute(httpClientProvider.getHttpClient(), httpPost)) {
+                if (null != httpResponse && httpResponse.toString().contains("Cannot transition status")) {
+                    // Workaround for https://gitlab.com/gitlab-org/gitlab-ce/issues/25807
+                    LOGGER.debug("Transition status is already {}", status);
+                    EntityUtils.consume(httpResponse.getEntity());
+                } else {
+                    validateGitlabResponse(httpResponse, 201, "Comment posted");
+                }
             }
         }
     }
@@ -328,31 +458,45 @@ public class GitlabServerPullRequestDecorator implements PullRequestBuildStatusD
             throw new IllegalStateException("An error was returned in the response from the Gitlab API. See the previous log messages for details");
         } else if (null != httpResponse) {
             LOGGER.debug(httpResponse.toString());
+            EntityUtils.consume(httpResponse.getEntity());
             LOGGER.info(successLogMessage);
         }
     }
 
+    private static int getCommentParallelism(Configuration configuration) {
+        return IntSettings.getPositiveInt(configuration, PULLREQUEST_GITLAB_COMMENT_PARALLELISM, DEFAULT_COMMENT_PARALLELISM);
+    }
+
+    private static int getPageSize(Configuration configuration) {
+        return IntSettings.getPositiveInt(configuration, PULLREQUEST_GITLAB_PAGE_SIZE, GitlabPaginator.DEFAULT_PAGE_SIZE);
+    }
+
     private static String getMandatoryProperty(String propertyName, Configuration configuration) {
         return configuration.get(propertyName).orElseThrow(() -> new IllegalStateException(
                 String.format("%s must be specified in the project configuration", propertyName)));
     }
 
-    private static Optional<String> getNextUrl(HttpResponse httpResponse) {
-        Header linkHeader = httpResponse.getFirstHeader("Link");
-        if (linkHeader != null) {
-            Matcher matcher = Pattern.compile("<([^>]+)>;[\\s]*rel=\"([a-z]+)\"").matcher(linkHeader.getValue());
-            while (matcher.find()) {
-                if (matcher.group(2).equals("next")) {
-                    //found the next rel return the URL
-                    return Optional.of(matcher.group(1));
-                }
-            }
-        }
-        return Optional.empty();
-    }
-
     @Override
     public String name() {
         return "GitlabServer";
     }
+
+    private static class DiscussionNote {
+
+        private final String discussionId;
+        private final Note note;
+
+        DiscussionNote(String discussionId, Note note) {
+            this.discussionId = discussionId;
+            this.note = note;
+        }
+
+        String getDiscussionId() {
+            return discussionId;
+        }
+
+        Note getNote() {
+            return note;
+        }
+    }
 }
@@ -28,11 +28,22 @@ public class Note {
 
     private final User author;
 
+    private final String body;
+
+    private final boolean resolvable;
+
+    private final boolean resolved;
+
     @JsonCreator
-    public Note(@JsonProperty("id") long id, @JsonProperty("system") boolean system, @JsonProperty("author") User author) {
+    public Note(@JsonProperty("id") long id, @JsonProperty("system") boolean system, @JsonProperty("author") User author,
+                @JsonProperty("body") String body, @JsonProperty("resolvable") boolean resolvable,
+                @JsonProperty("resolved") boolean resolved) {
         this.id = id;
         this.system = system;
         this.author = author;
+        this.body = body;
+        this.resolvable = resolvable;
+        this.resolved = resolved;
     }
 
     public long getId() {
@@ -46,4 +57,16 @@ public class Note {
     public User getAuthor() {
         return author;
     }
+
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isResolvable() {
+        return resolvable;
+    }
+
+    public boolean isResolved() {
+        return resolved;
+    }
 }
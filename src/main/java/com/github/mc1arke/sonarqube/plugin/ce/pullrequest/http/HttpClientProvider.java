@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.IntSettings;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.ssl.SSLContexts;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the HTTP transport used for all calls made to ALM instances during pull request decoration. A single pool of
+ * keep-alive connections is maintained per ALM host (route), and all TLS connections are created from the same
+ * {@link SSLContext} so that TLS sessions are resumed rather than renegotiated for each request.
+ *
+ * Callers must not close the client returned from {@link #getHttpClient()}, but must close (or fully consume) each
+ * response so the underlying connection can be returned to the pool.
+ *
+ * The provider is held in the Compute Engine container rather than a task container since decoration can still be
+ * running after the task that requested it has completed, so only global configuration is used to size the pool.
+ *
+ * Each call made through the pooled client is recorded against the {@link DecorationRecording} of the decoration
+ * running on the calling thread, if there is one. Calls made on connections created outside of the pooled client are
+ * only recorded if their response is read through {@link #getInputStream(URLConnection)}.
+ *
+ * Requests that are sent in the background, rather than on the decorating thread, are run on the executor returned
+ * from {@link #getRequestExecutor()}, which is shared by all decorations so the number of threads making requests is
+ * bounded by the size of the connection pool rather than growing with the number of concurrent decorations.
+ */
+public class HttpClientProvider implements Closeable {
+
+    public static final String PULL_REQUEST_HTTP_MAX_CONNECTIONS_PER_ROUTE =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.http.maxConnectionsPerRoute";
+
+    public static final String PULL_REQUEST_HTTP_MAX_CONNECTIONS_TOTAL =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.http.maxConnectionsTotal";
+
+    public static final String PULL_REQUEST_HTTP_CONNECT_TIMEOUT =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.http.connectTimeout";
+
+    public static final String PULL_REQUEST_HTTP_SOCKET_TIMEOUT =
+            "com.github.mc1arke.sonarqube.plugin.branch.pullrequest.http.socketTimeout";
+
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 50;
+    static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
+
+    private static final Logger LOGGER = Loggers.get(HttpClientProvider.class);
+
+    private static final int IDLE_CONNECTION_EVICTION_SECONDS = 30;
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    private static final int IDLE_REQUEST_THREAD_SECONDS = 60;
+    private static final String REQUEST_STARTED_AT = HttpClientProvider.class.getName() + ".requestStartedAt";
+
+    private final Configuration configuration;
+
+    private SSLContext sslContext;
+    private SSLSocketFactory sslSocketFactory;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient httpClient;
+    private ThreadPoolExecutor requestExecutor;
+    private int connectTimeout;
+    private int socketTimeout;
+
+    public HttpClientProvider(Configuration configuration) {
+        super();
+        this.configuration = configuration;
+    }
+
+    public synchronized CloseableHttpClient getHttpClient() {
+        if (null == httpClient) {
+            int maxPerRoute = getMaxConnectionsPerRoute();
+            connectTimeout = IntSettings.getPositiveInt(configuration, PULL_REQUEST_HTTP_CONNECT_TIMEOUT,
+                                                        DEFAULT_CONNECT_TIMEOUT_MILLIS);
+            socketTimeout = IntSettings.getPositiveInt(configuration, PULL_REQUEST_HTTP_SOCKET_TIMEOUT,
+                                                       DEFAULT_SOCKET_TIMEOUT_MILLIS);
+
+            Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .register("https", new SSLConnectionSocketFactory(getSslContext(),
+                                                                      SSLConnectionSocketFactory
+                                                                              .getDefaultHostnameVerifier())).build();
+
+            connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            connectionManager.setMaxTotal(getMaxConnectionsTotal());
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+            LOGGER.debug(String.format("Creating pooled HTTP client with %s connections per route and %s in total",
+                                       maxPerRoute, connectionManager.getMaxTotal()));
+
+            httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+                    .setConnectionReuseStrategy(DefaultConnectionReuseStrategy.INSTANCE)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    // connections are shared between all requests, so don't tie them to a user token
+                    .disableConnectionState()
+                    .evictIdleConnections(IDLE_CONNECTION_EVICTION_SECONDS, TimeUnit.SECONDS)
+                    .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> context
+                            .setAttribute(REQUEST_STARTED_AT, System.nanoTime()))
+                    .addInterceptorLast((HttpResponseInterceptor) HttpClientProvider::recordResponse)
+                    // waiting for a pooled connection means waiting for an in-flight request on that route to
+                    // complete, so allow as long as a request may take rather than as long as a connect may take
+                    .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(connectTimeout)
+                                                     .setConnectionRequestTimeout(socketTimeout)
+                                                     .setSocketTimeout(socketTimeout).build()).build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Returns the executor that background requests to ALMs are run on. The executor has no more threads than the
+     * connection pool has connections, since any further threads would only wait for a connection, and threads that
+     * have been idle for a while are ended. Tasks submitted whilst every thread is busy are queued rather than rejected,
+     * so tasks run on this executor must not wait for other tasks submitted to it.
+     *
+     * Callers must not shut the executor down, and are responsible for bounding how many of their own tasks are
+     * submitted to it at once so one decoration can't delay the requests of every other decoration.
+     */
+    public synchronized ExecutorService getRequestExecutor() {
+        if (null == requestExecutor) {
+            int threads = getMaxConnectionsTotal();
+            AtomicInteger threadCount = new AtomicInteger();
+            requestExecutor = new ThreadPoolExecutor(threads, threads, IDLE_REQUEST_THREAD_SECONDS, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "alm-request-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            requestExecutor.allowCoreThreadTimeOut(true);
+        }
+        return requestExecutor;
+    }
+
+    /**
+     * Applies the shared TLS configuration and timeouts to a connection created outside of the pooled client, so
+     * clients that rely on {@link java.net.URL#openConnection()} still resume TLS sessions with the same ALM host.
+     */
+    public URLConnection configure(URLConnection urlConnection) {
+        getHttpClient();
+        if (urlConnection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) urlConnection).setSSLSocketFactory(getSslSocketFactory());
+        }
+        if (urlConnection instanceof HttpURLConnection) {
+            urlConnection.setConnectTimeout(connectTimeout);
+            urlConnection.setReadTimeout(socketTimeout);
+        }
+        return urlConnection;
+    }
+
+    /**
+     * Sends the request on a connection created outside of the pooled client and opens its response, recording the
+     * call against the decoration running on the calling thread in the same way as calls made through the pooled
+     * client. Requests sent this way aren't expected to have a body, so no bytes are recorded as sent.
+     *
+     * @throws IOException if the request fails or the response is an error, as {@link URLConnection#getInputStream()}
+     */
+    public static InputStream getInputStream(URLConnection urlConnection) throws IOException {
+        DecorationRecording recording = DecorationRecording.current();
+        if (!recording.isActive() || !(urlConnection instanceof HttpURLConnection)) {
+            return urlConnection.getInputStream();
+        }
+
+        HttpURLConnection httpURLConnection = (HttpURLConnection) urlConnection;
+        long startedAt = System.nanoTime();
+        int statusCode = httpURLConnection.getResponseCode();
+        recording.recordHttpCall(httpURLConnection.getRequestMethod(), httpURLConnection.getURL().toString(),
+                                 statusCode, System.nanoTime() - startedAt, 0);
+        return new CountingInputStream(httpURLConnection.getInputStream(), recording);
+    }
+
+    public synchronized SSLSocketFactory getSslSocketFactory() {
+        if (null == sslSocketFactory) {
+            // the JDK only re-uses kept-alive HTTPS connections created by the same socket factory instance
+            sslSocketFactory = getSslContext().getSocketFactory();
+        }
+        return sslSocketFactory;
+    }
+
+    private synchronized SSLContext getSslContext() {
+        if (null == sslContext) {
+            sslContext = SSLContexts.createSystemDefault();
+        }
+        return sslContext;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (null != requestExecutor) {
+            requestExecutor.shutdownNow();
+            requestExecutor = null;
+        }
+        if (null != httpClient) {
+            httpClient.close();
+            httpClient = null;
+        }
+        if (null != connectionManager) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+    }
+
+    private static void recordResponse(HttpResponse response, HttpContext context) {
+        DecorationRecording recording = DecorationRecording.current();
+        Object startedAt = context.getAttribute(REQUEST_STARTED_AT);
+        HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+        if (!recording.isActive() || !(startedAt instanceof Long) || null == request) {
+            return;
+        }
+
+        long sent = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+            sent = null == requestEntity ? 0 : Math.max(requestEntity.getContentLength(), 0);
+        }
+        recording.recordHttpCall(request.getRequestLine().getMethod(), request.getRequestLine().getUri(),
+                                 response.getStatusLine().getStatusCode(), System.nanoTime() - (Long) startedAt,
+                                 sent);
+
+        HttpEntity entity = response.getEntity();
+        if (null != entity) {
+            // the body is only counted as it's read, since callers stream it rather than buffering it
+            response.setEntity(new CountingEntity(entity, recording));
+        }
+    }
+
+    private int getMaxConnectionsPerRoute() {
+        return IntSettings.getPositiveInt(configuration, PULL_REQUEST_HTTP_MAX_CONNECTIONS_PER_ROUTE,
+                                          DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    }
+
+    private int getMaxConnectionsTotal() {
+        return Math.max(IntSettings.getPositiveInt(configuration, PULL_REQUEST_HTTP_MAX_CONNECTIONS_TOTAL,
+                                                   DEFAULT_MAX_CONNECTIONS_TOTAL), getMaxConnectionsPerRoute());
+    }
+
+    private static final class CountingEntity extends HttpEntityWrapper {
+
+        private final DecorationRecording recording;
+
+        private CountingEntity(HttpEntity wrappedEntity, DecorationRecording recording) {
+            super(wrappedEntity);
+            this.recording = recording;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CountingInputStream(super.getContent(), recording);
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+            try (InputStream inputStream = getContent()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final DecorationRecording recording;
+
+        private CountingInputStream(InputStream inputStream, DecorationRecording recording) {
+            super(inputStream);
+            this.recording = recording;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                recording.recordBytesReceived(1);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                recording.recordBytesReceived(read);
+            }
+            return read;
+        }
+    }
+}
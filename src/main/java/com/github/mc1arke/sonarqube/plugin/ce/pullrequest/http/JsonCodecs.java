@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the JSON readers and writers used to exchange models with ALM instances. A single {@link ObjectMapper} is
+ * configured for all ALMs, and the reader and writer for each model type is built the first time that type is used
+ * and then shared by all Compute Engine tasks, so the serialisers for a type are only introspected once. Readers and
+ * writers are immutable, so can be used concurrently.
+ */
+public final class JsonCodecs {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.ACCEPT_EMPTY_ARRAY_AS_NULL_OBJECT, true)
+            .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final ConcurrentMap<JavaType, ObjectReader> READERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+
+    private JsonCodecs() {
+        super();
+    }
+
+    public static ObjectReader reader(Class<?> type) {
+        return reader((Type) type);
+    }
+
+    public static ObjectReader reader(TypeReference<?> type) {
+        return reader(type.getType());
+    }
+
+    private static ObjectReader reader(Type type) {
+        return READERS.computeIfAbsent(OBJECT_MAPPER.getTypeFactory().constructType(type), OBJECT_MAPPER::readerFor);
+    }
+
+    public static ObjectWriter writer(Class<?> type) {
+        return WRITERS.computeIfAbsent(type, OBJECT_MAPPER::writerFor);
+    }
+
+    /**
+     * Serialises the value as a request body. Jackson encodes the value into its own recycled buffers, so the body is
+     * written straight to UTF-8 bytes without first being built as a String. The entity is repeatable, so the request
+     * can be retried.
+     */
+    public static HttpEntity toEntity(Object value) throws IOException {
+        return new ByteArrayEntity(writer(value.getClass()).writeValueAsBytes(value), ContentType.APPLICATION_JSON);
+    }
+}
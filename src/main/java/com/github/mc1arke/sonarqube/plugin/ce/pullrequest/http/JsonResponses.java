@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.sonar.api.utils.log.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * Reads JSON responses from ALM instances directly from the response stream, so large responses (such as the diff for
+ * a pull request) are never buffered as a String before being parsed, and produces debug output of requests and
+ * responses that's capped in size and only generated when debug logging is enabled.
+ */
+public final class JsonResponses {
+
+    static final int MAX_DEBUG_LENGTH = 8192;
+
+    private static final String TRUNCATED_SUFFIX = "... (truncated)";
+
+    private JsonResponses() {
+        super();
+    }
+
+    public static <T> T read(HttpEntity entity, Class<T> type) throws IOException {
+        return read(entity, JsonCodecs.reader(type));
+    }
+
+    public static <T> T read(HttpEntity entity, TypeReference<T> type) throws IOException {
+        return read(entity, JsonCodecs.reader(type));
+    }
+
+    private static <T> T read(HttpEntity entity, ObjectReader objectReader) throws IOException {
+        // Jackson detects the encoding from the stream and parses tokens as they're read, so the body is never held
+        try (InputStream inputStream = entity.getContent()) {
+            return objectReader.readValue(inputStream);
+        }
+    }
+
+    /**
+     * Logs the JSON representation of the value at debug level, truncated to {@link #MAX_DEBUG_LENGTH} characters. The
+     * value is only serialised if debug logging is enabled, and serialisation stops once the limit is reached.
+     */
+    public static void debug(Logger logger, String description, Object value) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        if (null == value) {
+            logger.debug(description + ": null");
+            return;
+        }
+        CappedWriter writer = new CappedWriter(MAX_DEBUG_LENGTH);
+        try {
+            JsonCodecs.writer(value.getClass()).writeValue(writer, value);
+        } catch (IOException ex) {
+            if (!writer.isFull()) {
+                logger.debug(String.format("%s could not be serialised for logging: %s", description, ex.getMessage()));
+                return;
+            }
+        }
+        logger.debug(description + ": " + writer);
+    }
+
+    /**
+     * Logs the body of the entity at debug level, reading no more than {@link #MAX_DEBUG_LENGTH} characters of it. The
+     * entity is consumed whether or not debug logging is enabled, so the connection can be returned to the pool.
+     */
+    public static void debug(Logger logger, String description, HttpEntity entity) throws IOException {
+        if (null == entity) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(description + ": " + toCappedString(entity));
+        } else {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Logs the body of an entity that's about to be sent at debug level, reading no more than
+     * {@link #MAX_DEBUG_LENGTH} characters of it. Unlike {@link #debug(Logger, String, HttpEntity)}, the entity is
+     * never consumed, and only read if it's repeatable, so it can still be sent afterwards.
+     */
+    public static void debugRequest(Logger logger, String description, HttpEntity entity) throws IOException {
+        if (null == entity || !logger.isDebugEnabled()) {
+            return;
+        }
+        if (entity.isRepeatable()) {
+            logger.debug(description + ": " + toCappedString(entity));
+        } else {
+            logger.debug(String.format("%s: %s bytes streamed", description, entity.getContentLength()));
+        }
+    }
+
+    /**
+     * Reads the body of the entity, returning at most {@link #MAX_DEBUG_LENGTH} characters of it, for use in log
+     * messages.
+     */
+    public static String toCappedString(HttpEntity entity) throws IOException {
+        Charset charset = Optional.ofNullable(ContentType.get(entity)).map(ContentType::getCharset)
+                .orElse(StandardCharsets.UTF_8);
+        CappedWriter writer = new CappedWriter(MAX_DEBUG_LENGTH);
+        try (Reader reader = new InputStreamReader(entity.getContent(), charset)) {
+            char[] buffer = new char[1024];
+            int read;
+            while (!writer.isFull() && (read = reader.read(buffer)) >= 0) {
+                writer.append(buffer, read);
+            }
+        }
+        return writer.toString();
+    }
+
+    private static final class CappedWriter extends Writer {
+
+        private final StringBuilder content = new StringBuilder();
+        private final int limit;
+        private boolean full;
+
+        private CappedWriter(int limit) {
+            super();
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            append(cbuf, off, len);
+            if (full) {
+                // abort serialisation rather than continuing to generate output that will be discarded
+                throw new IOException("Debug output limit reached");
+            }
+        }
+
+        private void append(char[] cbuf, int len) {
+            append(cbuf, 0, len);
+        }
+
+        private void append(char[] cbuf, int off, int len) {
+            int remaining = limit - content.length();
+            if (len > remaining) {
+                content.append(cbuf, off, remaining);
+                full = true;
+            } else {
+                content.append(cbuf, off, len);
+            }
+        }
+
+        private boolean isFull() {
+            return full;
+        }
+
+        @Override
+        public void flush() {
+            // nothing to flush
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+
+        @Override
+        public String toString() {
+            return full ? content + TRUNCATED_SUFFIX : content.toString();
+        }
+    }
+}
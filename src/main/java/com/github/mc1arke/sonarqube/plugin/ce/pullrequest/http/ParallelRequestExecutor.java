@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a batch of independent requests to an ALM with at most a fixed number of them in flight at once, and a
+ * failing request does not prevent the remaining requests from being sent.
+ *
+ * The requests are run on a shared executor, normally {@link HttpClientProvider#getRequestExecutor()}, by no more
+ * workers than the requested parallelism, each of which takes the next unsent item once its previous request has
+ * completed. Items are taken in the order they were supplied, but requests complete in any order, so the order the
+ * requests are received and applied by the ALM is not guaranteed. Only the order of the returned outcomes is: each
+ * outcome is at the same position as the item it was created for.
+ *
+ * The requests are expected to go through {@link HttpClientProvider}, so the parallelism is also capped by the number
+ * of pooled connections allowed to each ALM host.
+ */
+public final class ParallelRequestExecutor {
+
+    private ParallelRequestExecutor() {
+        super();
+    }
+
+    /**
+     * Sends all requests and waits for them to complete. A parallelism of 1 sends the requests in the order they were
+     * supplied on the calling thread.
+     *
+     * @return the outcome of each request, in the order the items were supplied
+     */
+    public static <T, R> List<Outcome<T, R>> execute(ExecutorService executorService, List<T> items, int parallelism,
+                                                     Request<T, R> request) {
+        List<Outcome<T, R>> outcomes = new ArrayList<>(items.size());
+        if (Math.min(parallelism, items.size()) <= 1) {
+            for (T item : items) {
+                outcomes.add(executeSingle(item, request));
+            }
+            return outcomes;
+        }
+
+        List<CompletableFuture<R>> futures = submit(executorService, items, parallelism, request);
+        for (int i = 0; i < futures.size(); i++) {
+            Outcome<T, R> outcome = awaitOutcome(items.get(i), futures.get(i));
+            outcomes.add(outcome);
+            if (outcome.getFailure().filter(InterruptedException.class::isInstance).isPresent()) {
+                // stop the workers taking any more items, and fail everything that hasn't been sent yet
+                futures.forEach(future -> future.cancel(true));
+                for (int j = i + 1; j < futures.size(); j++) {
+                    outcomes.add(awaitOutcome(items.get(j), futures.get(j)));
+                }
+                break;
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Starts sending the requests in the background without waiting for them to complete.
+     *
+     * @return a future for the result of each request, in the order the items were supplied. Cancelling a future
+     * prevents its request being sent if it hasn't been started yet.
+     */
+    public static <T, R> List<CompletableFuture<R>> submit(ExecutorService executorService, List<T> items,
+                                                           int parallelism, Request<T, R> request) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            futures.add(new CompletableFuture<>());
+        }
+
+        AtomicInteger nextItem = new AtomicInteger();
+        DecorationRecording recording = DecorationRecording.current();
+        int workers = Math.min(Math.max(parallelism, 1), items.size());
+        for (int i = 0; i < workers; i++) {
+            executorService.submit(recording.propagate(() -> {
+                int index;
+                while ((index = nextItem.getAndIncrement()) < items.size()) {
+                    CompletableFuture<R> future = futures.get(index);
+                    if (future.isDone()) {
+                        continue;
+                    }
+                    try {
+                        future.complete(request.execute(items.get(index)));
+                    } catch (IOException | RuntimeException ex) {
+                        future.completeExceptionally(ex);
+                    }
+                }
+                return null;
+            }));
+        }
+        return futures;
+    }
+
+    private static <T, R> Outcome<T, R> executeSingle(T item, Request<T, R> request) {
+        try {
+            return new Outcome<>(item, request.execute(item), null);
+        } catch (IOException | RuntimeException ex) {
+            return new Outcome<>(item, null, ex);
+        }
+    }
+
+    private static <T, R> Outcome<T, R> awaitOutcome(T item, Future<R> future) {
+        try {
+            return new Outcome<>(item, future.get(), null);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new Outcome<>(item, null, ex);
+        } catch (CancellationException ex) {
+            return new Outcome<>(item, null, ex);
+        } catch (ExecutionException ex) {
+            return new Outcome<>(item, null, ex.getCause());
+        }
+    }
+
+    @FunctionalInterface
+    public interface Request<T, R> {
+
+        R execute(T item) throws IOException;
+
+    }
+
+    public static final class Outcome<T, R> {
+
+        private final T item;
+        private final R result;
+        private final Throwable failure;
+
+        Outcome(T item, R result, Throwable failure) {
+            super();
+            this.item = item;
+            this.result = result;
+            this.failure = failure;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public Optional<R> getResult() {
+            return Optional.ofNullable(result);
+        }
+
+        public Optional<Throwable> getFailure() {
+            return Optional.ofNullable(failure);
+        }
+
+        public boolean isFailed() {
+            return null != failure;
+        }
+    }
+}
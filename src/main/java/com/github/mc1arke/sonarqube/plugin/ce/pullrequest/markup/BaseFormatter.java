@@ -18,33 +18,64 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
 
+import java.io.IOException;
+
 abstract class BaseFormatter<N extends Node> implements Formatter<N> {
 
-    String childContents(Node node, FormatterFactory formatterFactory) {
-        StringBuilder output = new StringBuilder();
-        node.getChildren().forEach(n -> output.append(formatterFor(formatterFactory, n).format(n, formatterFactory)));
-        return output.toString();
+    private static final NodeVisitor<Formatter<? extends Node>, FormatterFactory> FORMATTER_LOOKUP =
+            new NodeVisitor<Formatter<? extends Node>, FormatterFactory>() {
+                @Override
+                public Formatter<Document> visitDocument(Document document, FormatterFactory formatterFactory) {
+                    return formatterFactory.documentFormatter();
+                }
+
+                @Override
+                public Formatter<Heading> visitHeading(Heading heading, FormatterFactory formatterFactory) {
+                    return formatterFactory.headingFormatter();
+                }
+
+                @Override
+                public Formatter<Image> visitImage(Image image, FormatterFactory formatterFactory) {
+                    return formatterFactory.imageFormatter();
+                }
+
+                @Override
+                public Formatter<Link> visitLink(Link link, FormatterFactory formatterFactory) {
+                    return formatterFactory.linkFormatter();
+                }
+
+                @Override
+                public Formatter<List> visitList(List list, FormatterFactory formatterFactory) {
+                    return formatterFactory.listFormatter();
+                }
+
+                @Override
+                public Formatter<ListItem> visitListItem(ListItem listItem, FormatterFactory formatterFactory) {
+                    return formatterFactory.listItemFormatter();
+                }
+
+                @Override
+                public Formatter<Paragraph> visitParagraph(Paragraph paragraph, FormatterFactory formatterFactory) {
+                    return formatterFactory.paragraphFormatter();
+                }
+
+                @Override
+                public Formatter<Text> visitText(Text text, FormatterFactory formatterFactory) {
+                    return formatterFactory.textFormatter();
+                }
+            };
+
+    void appendChildContents(Node node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+        for (Node child : node.getChildren()) {
+            formatterFor(formatterFactory, child).format(child, formatterFactory, output);
+        }
     }
 
     private static <N extends Node> Formatter<N> formatterFor(FormatterFactory formatterFactory, N node) {
-        if (node instanceof Document) {
-            return (Formatter<N>) formatterFactory.documentFormatter();
-        } else if (node instanceof Heading) {
-            return (Formatter<N>) formatterFactory.headingFormatter();
-        } else if (node instanceof Image) {
-            return (Formatter<N>) formatterFactory.imageFormatter();
-        } else if (node instanceof List) {
-            return (Formatter<N>) formatterFactory.listFormatter();
-        } else if (node instanceof ListItem) {
-            return (Formatter<N>) formatterFactory.listItemFormatter();
-        } else if (node instanceof Paragraph) {
-            return (Formatter<N>) formatterFactory.paragraphFormatter();
-        } else if (node instanceof Text) {
-            return (Formatter<N>) formatterFactory.textFormatter();
-        } else if (node instanceof Link) {
-            return (Formatter<N>) formatterFactory.linkFormatter();
-        } else {
+        Formatter<N> formatter = (Formatter<N>) node.accept(FORMATTER_LOOKUP, formatterFactory);
+        if (null == formatter) {
             throw new IllegalArgumentException("Unknown node type: " + node.getClass().getName());
         }
+        return formatter;
     }
 }
@@ -24,6 +24,11 @@ public final class Document extends Node {
         super(children);
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitDocument(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node node) {
         return !(node instanceof Document);
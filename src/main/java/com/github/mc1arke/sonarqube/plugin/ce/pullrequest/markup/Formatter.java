@@ -18,7 +18,18 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
 
+import java.io.IOException;
+
 public interface Formatter<N extends Node> {
 
     String format(N node, FormatterFactory formatterFactory);
+
+    /**
+     * Writes the formatted node to the end of the output. Formatters that only produce a String have that String
+     * appended, whereas formatters that support it write directly to the output, so a document can be rendered in a
+     * single pass without building a String for each node.
+     */
+    default void format(N node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+        output.append(format(node, formatterFactory));
+    }
 }
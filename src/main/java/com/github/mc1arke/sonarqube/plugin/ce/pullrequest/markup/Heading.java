@@ -31,6 +31,11 @@ public final class Heading extends Node {
         return level;
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitHeading(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return child instanceof Text || child instanceof Image || child instanceof Link;
@@ -37,6 +37,11 @@ public final class Image extends Node {
         return source;
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitImage(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return false;
@@ -31,6 +31,11 @@ public final class Link extends Node {
         return url;
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitLink(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return child instanceof Text;
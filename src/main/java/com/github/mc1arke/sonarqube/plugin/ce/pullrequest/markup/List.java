@@ -27,6 +27,11 @@ public final class List extends Node {
         this.style = style;
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitList(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node node) {
         return node instanceof ListItem;
@@ -24,6 +24,11 @@ public final class ListItem extends Node {
         super(children);
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitListItem(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return child instanceof Text || child instanceof Image|| child instanceof Link;
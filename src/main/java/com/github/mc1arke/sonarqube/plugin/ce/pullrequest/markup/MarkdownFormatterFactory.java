@@ -18,100 +18,145 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
 
-import java.util.stream.IntStream;
+import java.io.IOException;
 
 public final class MarkdownFormatterFactory implements FormatterFactory {
 
+    private static final Formatter<Document> DOCUMENT_FORMATTER = new MarkdownFormatter<Document>() {
+        @Override
+        public void format(Document node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            appendChildContents(node, formatterFactory, output);
+        }
+    };
+
+    private static final Formatter<Heading> HEADING_FORMATTER = new MarkdownFormatter<Heading>() {
+        @Override
+        public void format(Heading node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            for (int i = 0; i < node.getLevel(); i++) {
+                output.append('#');
+            }
+            output.append(' ');
+            appendChildContents(node, formatterFactory, output);
+            output.append(System.lineSeparator());
+        }
+    };
+
+    private static final Formatter<Image> IMAGE_FORMATTER = new MarkdownFormatter<Image>() {
+        @Override
+        public void format(Image node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            output.append("![").append(node.getAltText()).append("](").append(node.getSource()).append(')');
+        }
+    };
+
+    private static final Formatter<Link> LINK_FORMATTER = new MarkdownFormatter<Link>() {
+        @Override
+        public void format(Link node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            output.append('[');
+            if (node.getChildren().isEmpty()) {
+                output.append(node.getUrl());
+            } else {
+                appendChildContents(node, formatterFactory, output);
+            }
+            output.append("](").append(node.getUrl()).append(')');
+        }
+    };
+
+    private static final Formatter<List> LIST_FORMATTER = new MarkdownFormatter<List>() {
+        @Override
+        public void format(List node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            for (Node item : node.getChildren()) {
+                if (node.getStyle() == List.Style.BULLET) {
+                    output.append("- ");
+                    formatterFactory.listItemFormatter().format((ListItem) item, formatterFactory, output);
+                } else {
+                    throw new IllegalArgumentException("Unknown list type: " + node.getStyle());
+                }
+                output.append(System.lineSeparator());
+            }
+            output.append(System.lineSeparator());
+        }
+    };
+
+    private static final Formatter<ListItem> LIST_ITEM_FORMATTER = new MarkdownFormatter<ListItem>() {
+        @Override
+        public void format(ListItem node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            appendChildContents(node, formatterFactory, output);
+        }
+    };
+
+    private static final Formatter<Paragraph> PARAGRAPH_FORMATTER = new MarkdownFormatter<Paragraph>() {
+        @Override
+        public void format(Paragraph node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            appendChildContents(node, formatterFactory, output);
+            output.append(System.lineSeparator()).append(System.lineSeparator());
+        }
+    };
+
+    private static final Formatter<Text> TEXT_FORMATTER = new MarkdownFormatter<Text>() {
+        @Override
+        public void format(Text node, FormatterFactory formatterFactory, Appendable output) throws IOException {
+            output.append(node.getContent());
+        }
+    };
+
     @Override
     public Formatter<Document> documentFormatter() {
-        return new BaseFormatter<Document>() {
-            @Override
-            public String format(Document node, FormatterFactory formatterFactory) {
-                return childContents(node, formatterFactory);
-            }
-        };
+        return DOCUMENT_FORMATTER;
     }
 
     @Override
     public Formatter<Heading> headingFormatter() {
-        return new BaseFormatter<Heading>() {
-            @Override
-            public String format(Heading node, FormatterFactory formatterFactory) {
-                StringBuilder output = new StringBuilder();
-                IntStream.range(0, node.getLevel()).forEach(i -> output.append("#"));
-                return output.append(" ").append(childContents(node, formatterFactory)).append(System.lineSeparator())
-                        .toString();
-            }
-        };
+        return HEADING_FORMATTER;
     }
 
     @Override
     public Formatter<Image> imageFormatter() {
-        return new BaseFormatter<Image>() {
-            @Override
-            public String format(Image node, FormatterFactory formatterFactory) {
-                return String.format("![%s](%s)", node.getAltText(), node.getSource());
-            }
-        };
+        return IMAGE_FORMATTER;
     }
 
     @Override
     public Formatter<Link> linkFormatter() {
-        return new BaseFormatter<Link>() {
-            @Override
-            public String format(Link node, FormatterFactory formatterFactory) {
-                return String.format("[%s](%s)", node.getChildren().isEmpty() ? node.getUrl() : childContents(node, formatterFactory), node.getUrl());
-            }
-        };
+        return LINK_FORMATTER;
     }
 
     @Override
     public Formatter<List> listFormatter() {
-        return new BaseFormatter<List>() {
-            @Override
-            public String format(List node, FormatterFactory formatterFactory) {
-                StringBuilder output = new StringBuilder();
-                node.getChildren().forEach(i -> {
-                    if (node.getStyle() == List.Style.BULLET) {
-                        output.append("- ").append(listItemFormatter().format((ListItem) i, formatterFactory));
-                    } else {
-                        throw new IllegalArgumentException("Unknown list type: " + node.getStyle());
-                    }
-                    output.append(System.lineSeparator());
-                });
-                output.append(System.lineSeparator());
-                return output.toString();
-            }
-        };
+        return LIST_FORMATTER;
     }
 
     @Override
     public Formatter<ListItem> listItemFormatter() {
-        return new BaseFormatter<ListItem>() {
-            @Override
-            public String format(ListItem node, FormatterFactory formatterFactory) {
-                return childContents(node, formatterFactory);
-            }
-        };
+        return LIST_ITEM_FORMATTER;
     }
 
     @Override
     public Formatter<Paragraph> paragraphFormatter() {
-        return new BaseFormatter<Paragraph>() {
-            @Override
-            public String format(Paragraph node, FormatterFactory formatterFactory) {
-                return childContents(node, formatterFactory) + System.lineSeparator() + System.lineSeparator();
-            }
-        };
+        return PARAGRAPH_FORMATTER;
     }
 
     @Override
     public Formatter<Text> textFormatter() {
-        return new BaseFormatter<Text>() {
-            @Override
-            public String format(Text node, FormatterFactory formatterFactory) {
-                return node.getContent();
+        return TEXT_FORMATTER;
+    }
+
+    /**
+     * Formats the whole node tree into a single buffer, with each formatter appending its output rather than returning
+     * it, so no intermediate String is created for any child node.
+     */
+    private abstract static class MarkdownFormatter<N extends Node> extends BaseFormatter<N> {
+
+        @Override
+        public String format(N node, FormatterFactory formatterFactory) {
+            StringBuilder output = new StringBuilder();
+            try {
+                format(node, formatterFactory, output);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not format " + node.getClass().getSimpleName(), ex);
             }
-        };
+            return output.toString();
+        }
+
+        @Override
+        public abstract void format(N node, FormatterFactory formatterFactory, Appendable output) throws IOException;
     }
 }
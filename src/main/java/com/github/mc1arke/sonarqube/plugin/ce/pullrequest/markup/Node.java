@@ -46,4 +46,8 @@ public abstract class Node {
 
     abstract boolean isValidChild(Node child);
 
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        throw new IllegalArgumentException("Unknown node type: " + getClass().getName());
+    }
+
 }
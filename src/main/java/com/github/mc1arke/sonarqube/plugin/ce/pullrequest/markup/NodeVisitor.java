@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
+
+/**
+ * Dispatches on the type of a {@link Node} without a chain of type checks, with each node calling the method for its
+ * own type from {@link Node#accept(NodeVisitor, Object)}.
+ *
+ * @param <R> the type returned from visiting a node
+ * @param <P> the type of the parameter passed through to each visit
+ */
+interface NodeVisitor<R, P> {
+
+    R visitDocument(Document document, P parameter);
+
+    R visitHeading(Heading heading, P parameter);
+
+    R visitImage(Image image, P parameter);
+
+    R visitLink(Link link, P parameter);
+
+    R visitList(List list, P parameter);
+
+    R visitListItem(ListItem listItem, P parameter);
+
+    R visitParagraph(Paragraph paragraph, P parameter);
+
+    R visitText(Text text, P parameter);
+}
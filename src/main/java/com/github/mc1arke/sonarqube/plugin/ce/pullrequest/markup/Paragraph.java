@@ -24,6 +24,11 @@ public final class Paragraph extends Node {
         super(children);
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitParagraph(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return child instanceof Image || child instanceof Text || child instanceof Link;
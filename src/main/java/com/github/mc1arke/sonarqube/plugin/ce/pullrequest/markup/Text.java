@@ -31,6 +31,11 @@ public final class Text extends Node {
         return content;
     }
 
+    @Override
+    <R, P> R accept(NodeVisitor<R, P> visitor, P parameter) {
+        return visitor.visitText(this, parameter);
+    }
+
     @Override
     boolean isValidChild(Node child) {
         return false;
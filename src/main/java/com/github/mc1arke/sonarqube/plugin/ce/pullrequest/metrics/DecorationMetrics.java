@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import org.picocontainer.Startable;
+import org.sonar.api.utils.log.Logger;
+import org.sonar.api.utils.log.Loggers;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the decoration metrics for each decorator and publishes them as MXBeans on the Compute Engine's platform
+ * MBean server, under <code>com.github.mc1arke.sonarqube.plugin:type=PullRequestDecoration,decorator=...</code>.
+ *
+ * The metrics are held in the Compute Engine container so they cover every analysis since the Compute Engine started,
+ * and decorations still running after the task that requested them has completed.
+ */
+public class DecorationMetrics implements Startable {
+
+    static final String OBJECT_NAME_PREFIX = "com.github.mc1arke.sonarqube.plugin:type=PullRequestDecoration,decorator=";
+
+    private static final Logger LOGGER = Loggers.get(DecorationMetrics.class);
+
+    private final MBeanServer mBeanServer;
+    private final ConcurrentMap<String, DecoratorMetrics> decoratorMetrics = new ConcurrentHashMap<>();
+
+    public DecorationMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    DecorationMetrics(MBeanServer mBeanServer) {
+        super();
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public void start() {
+        // decorators are registered as they're first used
+    }
+
+    @Override
+    public void stop() {
+        for (Map.Entry<String, DecoratorMetrics> metrics : decoratorMetrics.entrySet()) {
+            try {
+                mBeanServer.unregisterMBean(getObjectName(metrics.getKey()));
+            } catch (JMException ex) {
+                LOGGER.debug("Could not unregister decoration metrics for " + metrics.getKey(), ex);
+            }
+        }
+        decoratorMetrics.clear();
+    }
+
+    public DecoratorMetrics getDecoratorMetrics(String decoratorName) {
+        return decoratorMetrics.computeIfAbsent(decoratorName, this::register);
+    }
+
+    /**
+     * Starts recording a decoration by the named decorator on the current thread, which can then be accessed through
+     * {@link DecorationRecording#current()} until the recording is finished.
+     */
+    public DecorationRecording startRecording(String decoratorName) {
+        return DecorationRecording.start(getDecoratorMetrics(decoratorName));
+    }
+
+    private DecoratorMetrics register(String decoratorName) {
+        DecoratorMetrics metrics = new DecoratorMetrics();
+        try {
+            mBeanServer.registerMBean(metrics, getObjectName(decoratorName));
+        } catch (JMException ex) {
+            // metrics are still recorded so they appear in the decoration logs
+            LOGGER.warn("Could not publish decoration metrics for " + decoratorName + " over JMX", ex);
+        }
+        return metrics;
+    }
+
+    private static ObjectName getObjectName(String decoratorName) throws JMException {
+        return new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(decoratorName));
+    }
+}
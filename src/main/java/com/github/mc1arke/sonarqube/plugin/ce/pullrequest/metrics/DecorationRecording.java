@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Records the timings and HTTP traffic of a single decoration, adding them to the decorator's metrics and describing
+ * them in one line once the decoration completes.
+ *
+ * The recording for the decoration running on a thread is available from {@link #current()}, so the HTTP client and
+ * decorators can record against it without it being passed through every call. Work handed to other threads has to
+ * be wrapped with {@link #propagate(Callable)} to be recorded. Outside of a decoration, {@link #current()} returns an
+ * inactive recording that ignores everything recorded against it.
+ *
+ * Phases are entered in sequence on the decorating thread: entering a phase ends the previous one, so the time
+ * between two phase changes is attributed to the earlier phase.
+ */
+public final class DecorationRecording {
+
+    private static final ThreadLocal<DecorationRecording> CURRENT = new ThreadLocal<>();
+    private static final DecorationRecording INACTIVE = new DecorationRecording(null);
+
+    private static final Pattern NUMERIC_SEGMENT = Pattern.compile("\\d+");
+    private static final Pattern HASH_SEGMENT = Pattern.compile("(?=.*\\d)[0-9a-fA-F]{7,}");
+    private static final Set<String> NAMED_COLLECTIONS = new HashSet<>(Arrays.asList("projects", "repos", "users"));
+
+    private final DecoratorMetrics decoratorMetrics;
+    private final long startedAt;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final boolean[] phaseEntered = new boolean[Phase.values().length];
+    private final LongAdder httpCalls = new LongAdder();
+    private final LongAdder httpErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private Phase phase;
+    private long phaseStartedAt;
+    private boolean finished;
+
+    private DecorationRecording(DecoratorMetrics decoratorMetrics) {
+        super();
+        this.decoratorMetrics = decoratorMetrics;
+        this.startedAt = System.nanoTime();
+    }
+
+    static DecorationRecording start(DecoratorMetrics decoratorMetrics) {
+        DecorationRecording recording = new DecorationRecording(decoratorMetrics);
+        CURRENT.set(recording);
+        return recording;
+    }
+
+    public static DecorationRecording current() {
+        DecorationRecording recording = CURRENT.get();
+        return null == recording ? INACTIVE : recording;
+    }
+
+    public boolean isActive() {
+        return null != decoratorMetrics;
+    }
+
+    public synchronized void enterPhase(Phase next) {
+        if (!isActive() || finished) {
+            return;
+        }
+        long now = System.nanoTime();
+        endPhase(now);
+        phase = next;
+        phaseStartedAt = now;
+        phaseEntered[next.ordinal()] = true;
+    }
+
+    /**
+     * @param method the HTTP method of the request
+     * @param uri the URI the request was sent to, which is reduced to a template by replacing identifiers in the path
+     * @param statusCode the status of the response, with anything from 400 upwards counted as an error
+     * @param nanos the time taken to receive the response headers
+     * @param sent the number of bytes in the request body
+     */
+    public void recordHttpCall(String method, String uri, int statusCode, long nanos, long sent) {
+        if (!isActive()) {
+            return;
+        }
+        boolean error = statusCode >= 400;
+        httpCalls.increment();
+        bytesSent.add(sent);
+        if (error) {
+            httpErrors.increment();
+        }
+        decoratorMetrics.recordHttpCall(method + " " + toEndpointTemplate(uri), nanos, error, sent);
+    }
+
+    public void recordBytesReceived(long received) {
+        if (!isActive()) {
+            return;
+        }
+        bytesReceived.add(received);
+        decoratorMetrics.recordBytesReceived(received);
+    }
+
+    public void recordRetry() {
+        if (!isActive()) {
+            return;
+        }
+        retries.increment();
+        decoratorMetrics.recordRetry();
+    }
+
+    /**
+     * Wraps a task so anything it records whilst running on another thread is recorded against this decoration.
+     */
+    public <T> Callable<T> propagate(Callable<T> callable) {
+        if (!isActive()) {
+            return callable;
+        }
+        return () -> {
+            DecorationRecording previous = CURRENT.get();
+            CURRENT.set(this);
+            try {
+                return callable.call();
+            } finally {
+                if (null == previous) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        };
+    }
+
+    /**
+     * Ends the decoration, adding its timings to the decorator's metrics and detaching it from the current thread.
+     *
+     * @return a one-line description of the decoration's duration, phase timings and HTTP traffic
+     */
+    public synchronized String finish(boolean failed) {
+        long now = System.nanoTime();
+        long duration = isActive() ? now - startedAt : 0;
+        if (isActive() && !finished) {
+            endPhase(now);
+            phase = null;
+            finished = true;
+            decoratorMetrics.recordDecoration(duration, failed);
+            for (Phase recordedPhase : Phase.values()) {
+                if (phaseEntered[recordedPhase.ordinal()]) {
+                    decoratorMetrics.recordPhase(recordedPhase, phaseNanos[recordedPhase.ordinal()]);
+                }
+            }
+        }
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+        return describe(duration);
+    }
+
+    private void endPhase(long now) {
+        if (null != phase) {
+            phaseNanos[phase.ordinal()] += now - phaseStartedAt;
+        }
+    }
+
+    private String describe(long duration) {
+        List<String> phases = new ArrayList<>();
+        for (Phase recordedPhase : Phase.values()) {
+            if (phaseEntered[recordedPhase.ordinal()]) {
+                phases.add(recordedPhase.getLabel() + " " + toMillis(phaseNanos[recordedPhase.ordinal()]) + "ms");
+            }
+        }
+        return String.format("%sms%s, %s HTTP calls, %s HTTP errors, %s retries, %sKB sent, %sKB received",
+                             toMillis(duration), phases.isEmpty() ? "" : " (" + String.join(", ", phases) + ")",
+                             httpCalls.sum(), httpErrors.sum(), retries.sum(), bytesSent.sum() / 1024,
+                             bytesReceived.sum() / 1024);
+    }
+
+    /**
+     * Reduces a request URI to its path, replacing numeric identifiers, commit hashes and the names of projects,
+     * repositories and users with placeholders, so requests for different pull requests and repositories are grouped
+     * together.
+     */
+    static String toEndpointTemplate(String uri) {
+        String path = uri;
+        int schemeEnd = path.indexOf("://");
+        if (schemeEnd >= 0) {
+            int pathStart = path.indexOf('/', schemeEnd + 3);
+            path = pathStart < 0 ? "/" : path.substring(pathStart);
+        }
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            path = path.substring(0, queryStart);
+        }
+
+        String[] segments = path.split("/", -1);
+        String[] template = new String[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (isName(segments, i) || segment.contains("%")) {
+                template[i] = "{name}";
+            } else if (NUMERIC_SEGMENT.matcher(segment).matches()) {
+                template[i] = "{id}";
+            } else if (HASH_SEGMENT.matcher(segment).matches()) {
+                template[i] = "{sha}";
+            } else {
+                template[i] = segment;
+            }
+        }
+        return String.join("/", template);
+    }
+
+    /**
+     * Bitbucket and Gitlab name a project, repository or user in the segment following <code>projects</code>,
+     * <code>repos</code> or <code>users</code>, whereas Github names repositories by owner and name, as in
+     * <code>/repos/{owner}/{repo}</code>, so the second segment after a top-level <code>repos</code> is also a name.
+     */
+    private static boolean isName(String[] segments, int index) {
+        if (index > 0 && NAMED_COLLECTIONS.contains(segments[index - 1])) {
+            return true;
+        }
+        return index > 1 && "repos".equals(segments[index - 2]) &&
+               (index < 4 || !NAMED_COLLECTIONS.contains(segments[index - 4]));
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Accumulates the metrics of every decoration performed by one decorator since the Compute Engine started. All
+ * recording only increments counters, so decorations running in parallel don't contend on a lock.
+ *
+ * HTTP calls are grouped by endpoint template rather than URL, and only the first {@value #MAX_ENDPOINTS} templates
+ * seen are tracked individually so an unexpected URL structure can't grow the metrics without bound.
+ */
+public final class DecoratorMetrics implements DecoratorMetricsMXBean {
+
+    static final int MAX_ENDPOINTS = 100;
+    static final String OTHER_ENDPOINT = "other";
+
+    private final LongAdder decorations = new LongAdder();
+    private final LongAdder failedDecorations = new LongAdder();
+    private final LatencyHistogram decorationTime = new LatencyHistogram();
+    private final Map<Phase, LatencyHistogram> phaseTimes = new EnumMap<>(Phase.class);
+    private final LongAdder httpCalls = new LongAdder();
+    private final LongAdder httpErrors = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    public DecoratorMetrics() {
+        super();
+        for (Phase phase : Phase.values()) {
+            phaseTimes.put(phase, new LatencyHistogram());
+        }
+    }
+
+    void recordDecoration(long nanos, boolean failed) {
+        decorations.increment();
+        if (failed) {
+            failedDecorations.increment();
+        }
+        decorationTime.record(nanos);
+    }
+
+    void recordPhase(Phase phase, long nanos) {
+        phaseTimes.get(phase).record(nanos);
+    }
+
+    void recordHttpCall(String endpoint, long nanos, boolean error, long sent) {
+        httpCalls.increment();
+        bytesSent.add(sent);
+        EndpointMetrics endpointMetrics = getEndpointMetrics(endpoint);
+        endpointMetrics.latency.record(nanos);
+        if (error) {
+            httpErrors.increment();
+            endpointMetrics.errors.increment();
+        }
+    }
+
+    void recordBytesReceived(long received) {
+        bytesReceived.add(received);
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    private EndpointMetrics getEndpointMetrics(String endpoint) {
+        EndpointMetrics endpointMetrics = endpoints.get(endpoint);
+        if (null != endpointMetrics) {
+            return endpointMetrics;
+        }
+        if (endpoints.size() >= MAX_ENDPOINTS) {
+            return endpoints.computeIfAbsent(OTHER_ENDPOINT, k -> new EndpointMetrics());
+        }
+        return endpoints.computeIfAbsent(endpoint, k -> new EndpointMetrics());
+    }
+
+    @Override
+    public long getDecorationCount() {
+        return decorations.sum();
+    }
+
+    @Override
+    public long getFailedDecorationCount() {
+        return failedDecorations.sum();
+    }
+
+    @Override
+    public long getDecorationTimeTotalMillis() {
+        return decorationTime.getTotalMillis();
+    }
+
+    @Override
+    public long getDecorationTimeP50Millis() {
+        return decorationTime.getPercentileMillis(50);
+    }
+
+    @Override
+    public long getDecorationTimeP99Millis() {
+        return decorationTime.getPercentileMillis(99);
+    }
+
+    @Override
+    public long getDecorationTimeMaxMillis() {
+        return decorationTime.getMaxMillis();
+    }
+
+    @Override
+    public Map<String, Long> getDecorationTimeBuckets() {
+        return decorationTime.getBucketCounts();
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimeTotalMillis() {
+        return collectPhases(LatencyHistogram::getTotalMillis);
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimeP99Millis() {
+        return collectPhases(h -> h.getPercentileMillis(99));
+    }
+
+    @Override
+    public long getHttpCallCount() {
+        return httpCalls.sum();
+    }
+
+    @Override
+    public long getHttpErrorCount() {
+        return httpErrors.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public Map<String, Long> getHttpCallsByEndpoint() {
+        return collectEndpoints(e -> e.latency.getCount());
+    }
+
+    @Override
+    public Map<String, Long> getHttpErrorsByEndpoint() {
+        return collectEndpoints(e -> e.errors.sum());
+    }
+
+    @Override
+    public Map<String, Long> getHttpLatencyP50MillisByEndpoint() {
+        return collectEndpoints(e -> e.latency.getPercentileMillis(50));
+    }
+
+    @Override
+    public Map<String, Long> getHttpLatencyP99MillisByEndpoint() {
+        return collectEndpoints(e -> e.latency.getPercentileMillis(99));
+    }
+
+    private Map<String, Long> collectPhases(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<Phase, LatencyHistogram> phaseTime : phaseTimes.entrySet()) {
+            values.put(phaseTime.getKey().getLabel(), value.applyAsLong(phaseTime.getValue()));
+        }
+        return values;
+    }
+
+    private Map<String, Long> collectEndpoints(ToLongFunction<EndpointMetrics> value) {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, EndpointMetrics> endpoint : endpoints.entrySet()) {
+            values.put(endpoint.getKey(), value.applyAsLong(endpoint.getValue()));
+        }
+        return values;
+    }
+
+    private static final class EndpointMetrics {
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import java.util.Map;
+
+/**
+ * The decoration metrics for a single decorator, as exposed over JMX. Times are in milliseconds and percentiles are
+ * estimated from fixed latency buckets.
+ */
+public interface DecoratorMetricsMXBean {
+
+    long getDecorationCount();
+
+    long getFailedDecorationCount();
+
+    long getDecorationTimeTotalMillis();
+
+    long getDecorationTimeP50Millis();
+
+    long getDecorationTimeP99Millis();
+
+    long getDecorationTimeMaxMillis();
+
+    Map<String, Long> getDecorationTimeBuckets();
+
+    Map<String, Long> getPhaseTimeTotalMillis();
+
+    Map<String, Long> getPhaseTimeP99Millis();
+
+    long getHttpCallCount();
+
+    long getHttpErrorCount();
+
+    long getRetryCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    Map<String, Long> getHttpCallsByEndpoint();
+
+    Map<String, Long> getHttpErrorsByEndpoint();
+
+    Map<String, Long> getHttpLatencyP50MillisByEndpoint();
+
+    Map<String, Long> getHttpLatencyP99MillisByEndpoint();
+
+}
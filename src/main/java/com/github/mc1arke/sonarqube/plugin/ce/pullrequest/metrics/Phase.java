@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import java.util.Locale;
+
+/**
+ * The stages a decorator goes through whilst decorating a pull request. Not every decorator goes through every phase.
+ */
+public enum Phase {
+    /**
+     * Obtaining the credentials or identity used for all further requests to the ALM.
+     */
+    AUTHENTICATE,
+    /**
+     * Reading the pull request, its commits, diff or existing comments from the ALM.
+     */
+    FETCH,
+    /**
+     * Creating the summary and issue comments from the analysis.
+     */
+    RENDER,
+    /**
+     * Removing comments left by previous analyses.
+     */
+    CLEANUP,
+    /**
+     * Sending the status, summary and issue comments to the ALM.
+     */
+    POST;
+
+    String getLabel() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
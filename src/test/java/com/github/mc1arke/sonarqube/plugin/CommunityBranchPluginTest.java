@@ -20,6 +20,13 @@ package com.github.mc1arke.sonarqube.plugin;
 
 import com.github.mc1arke.sonarqube.plugin.ce.CommunityBranchEditionProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.CommunityReportAnalysisComponentProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestDecorationExecutor;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.InstallationTokenCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.AppJwtCache;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.InstallationRepositoryIndex;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab.GitlabRequestScheduler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityBranchConfigurationLoader;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityBranchParamsValidator;
 import com.github.mc1arke.sonarqube.plugin.scanner.CommunityProjectBranchesLoader;
@@ -102,8 +109,11 @@ public class CommunityBranchPluginTest {
         verify(context, times(2)).addExtensions(argumentCaptor.capture(), argumentCaptor.capture());
 
 
-        assertEquals(Arrays.asList(CommunityReportAnalysisComponentProvider.class, CommunityBranchEditionProvider.class),
-                     argumentCaptor.getAllValues().subList(0, 2));
+        assertEquals(Arrays.asList(CommunityReportAnalysisComponentProvider.class, CommunityBranchEditionProvider.class,
+                                   HttpClientProvider.class, PullRequestDecorationExecutor.class,
+                                   InstallationTokenCache.class, AppJwtCache.class, InstallationRepositoryIndex.class,
+                                   GitlabRequestScheduler.class, DecorationMetrics.class),
+                     argumentCaptor.getAllValues().subList(0, 9));
     }
 
 
@@ -119,7 +129,7 @@ public class CommunityBranchPluginTest {
         final ArgumentCaptor<Object> argumentCaptor = ArgumentCaptor.forClass(Object.class);
         verify(context, times(2)).addExtensions(argumentCaptor.capture(), argumentCaptor.capture());
 
-        assertEquals(22, argumentCaptor.getAllValues().size());
+        assertEquals(39, argumentCaptor.getAllValues().size());
 
         assertEquals(Arrays.asList(CommunityBranchFeatureExtension.class, CommunityBranchSupportDelegate.class),
                      argumentCaptor.getAllValues().subList(0, 2));
@@ -26,6 +26,7 @@ import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Image;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Link;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.List;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.ListItem;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Paragraph;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Text;
 import org.junit.Test;
@@ -33,6 +34,7 @@ import org.mockito.ArgumentCaptor;
 import org.sonar.api.ce.posttask.Analysis;
 import org.sonar.api.ce.posttask.Project;
 import org.sonar.api.ce.posttask.QualityGate;
+import org.sonar.api.config.Configuration;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.rules.RuleType;
@@ -47,10 +49,8 @@ import org.sonar.core.issue.DefaultIssue;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Optional;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -62,6 +62,7 @@ import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class AnalysisDetailsTest {
@@ -179,7 +180,7 @@ public class AnalysisDetailsTest {
         AnalysisDetails.MeasuresHolder measuresHolder = mock(AnalysisDetails.MeasuresHolder.class);
         doReturn(treeRootHolder).when(measuresHolder).getTreeRootHolder();
 
-        PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
         DefaultIssue issue1 = mock(DefaultIssue.class);
         doReturn(Issue.STATUS_CLOSED).when(issue1).status();
 
@@ -203,12 +204,8 @@ public class AnalysisDetailsTest {
         doReturn(Issue.STATUS_OPEN).when(issue6).status();
         doReturn(RuleType.BUG).when(issue6).type();
 
-        doReturn(Stream.of(issue1, issue2, issue3, issue4, issue5, issue6).map(i -> {
-            PostAnalysisIssueVisitor.ComponentIssue componentIssue =
-                    mock(PostAnalysisIssueVisitor.ComponentIssue.class);
-            doReturn(i).when(componentIssue).getIssue();
-            return componentIssue;
-        }).collect(Collectors.toList())).when(postAnalysisIssueVisitor).getIssues();
+        Stream.of(issue1, issue2, issue3, issue4, issue5, issue6)
+                .forEach(i -> postAnalysisIssueVisitor.onIssue(mock(Component.class), i));
 
         QualityGate.Condition condition1 = mock(QualityGate.Condition.class);
         doReturn(QualityGate.EvaluationStatus.ERROR).when(condition1).getStatus();
@@ -355,7 +352,7 @@ public class AnalysisDetailsTest {
         doReturn(treeRootHolder).when(measuresHolder).getTreeRootHolder();
 
         PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-        doReturn(new ArrayList<>()).when(postAnalysisIssueVisitor).getIssues();
+        doReturn(new ArrayList<>()).when(postAnalysisIssueVisitor).getOpenIssues();
 
         QualityGate.Condition duplicationsCondition = mock(QualityGate.Condition.class);
         doReturn("18").when(duplicationsCondition).getValue();
@@ -452,11 +449,8 @@ public class AnalysisDetailsTest {
         DefaultIssue issue = mock(DefaultIssue.class);
         doReturn(Issue.STATUS_OPEN).when(issue).status();
         doReturn(RuleType.BUG).when(issue).type();
-        PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-
-        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
-        doReturn(issue).when(componentIssue).getIssue();
-        doReturn(Collections.singletonList(componentIssue)).when(postAnalysisIssueVisitor).getIssues();
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
+        postAnalysisIssueVisitor.onIssue(mock(Component.class), issue);
 
         QualityGate.Condition duplicationsCondition = mock(QualityGate.Condition.class);
         doReturn("10").when(duplicationsCondition).getValue();
@@ -551,7 +545,7 @@ public class AnalysisDetailsTest {
         doReturn(treeRootHolder).when(measuresHolder).getTreeRootHolder();
 
         PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-        doReturn(new ArrayList<>()).when(postAnalysisIssueVisitor).getIssues();
+        doReturn(new ArrayList<>()).when(postAnalysisIssueVisitor).getOpenIssues();
 
         QualityGate.Condition duplicationsCondition = mock(QualityGate.Condition.class);
         doReturn("30").when(duplicationsCondition).getValue();
@@ -636,6 +630,127 @@ public class AnalysisDetailsTest {
 
     }
 
+    @Test
+    public void testSnapshotDoesNotReadFromTaskAfterCreation() {
+        AnalysisDetails.BranchDetails branchDetails = mock(AnalysisDetails.BranchDetails.class);
+        doReturn("5").when(branchDetails).getBranchName();
+
+        TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        Component rootComponent = mock(Component.class);
+        doReturn(rootComponent).when(treeRootHolder).getRoot();
+
+        MeasureRepository measureRepository = mock(MeasureRepository.class);
+        doReturn(Optional.of(Measure.newMeasureBuilder().create(21.782, 2, "data"))).when(measureRepository)
+                .getRawMeasure(eq(rootComponent), any(Metric.class));
+
+        MetricRepository metricRepository = mock(MetricRepository.class);
+        doReturn(mock(Metric.class)).when(metricRepository).getByKey(anyString());
+
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(Issue.STATUS_OPEN).when(issue).status();
+        doReturn(RuleType.BUG).when(issue).type();
+        postAnalysisIssueVisitor.onIssue(mock(Component.class), issue);
+
+        QualityGate qualityGate = mock(QualityGate.class);
+        doReturn(QualityGate.Status.OK).when(qualityGate).getStatus();
+        doReturn(new ArrayList<>()).when(qualityGate).getConditions();
+
+        Project project = mock(Project.class);
+        doReturn("Project Key").when(project).getKey();
+
+        AnalysisDetails testCase = new AnalysisDetails(branchDetails, postAnalysisIssueVisitor, qualityGate,
+                                                       new AnalysisDetails.MeasuresHolder(metricRepository,
+                                                                                          measureRepository,
+                                                                                          treeRootHolder),
+                                                       mock(Analysis.class), project, "http://localhost:9000")
+                .snapshot(mock(Configuration.class), LineRevisions.none());
+
+        postAnalysisIssueVisitor.onIssue(mock(Component.class), issue);
+        doReturn(Optional.empty()).when(measureRepository).getRawMeasure(any(), any());
+
+        assertThat(testCase.getPostAnalysisIssueVisitor().getOpenIssues()).hasSize(1);
+        assertThat(testCase.createAnalysisSummary(new MarkdownFormatterFactory())).contains("1 Issue")
+                .contains("(21.78% Estimated after merge)");
+    }
+
+    @Test
+    public void testCreateAnalysisIssueSummary() {
+        AnalysisDetails.BranchDetails branchDetails = mock(AnalysisDetails.BranchDetails.class);
+        doReturn("123").when(branchDetails).getBranchName();
+
+        Project project = mock(Project.class);
+        doReturn("Project Key").when(project).getKey();
+
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(RuleType.BUG).when(issue).type();
+        doReturn("MAJOR").when(issue).severity();
+        doReturn("message").when(issue).getMessage();
+        doReturn(5L).when(issue).effortInMinutes();
+        doReturn("issueKey").when(issue).key();
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue =
+                new PostAnalysisIssueVisitor.ComponentIssue(mock(Component.class), issue);
+
+        AnalysisDetails testCase =
+                new AnalysisDetails(branchDetails, mock(PostAnalysisIssueVisitor.class), mock(QualityGate.class),
+                                    mock(AnalysisDetails.MeasuresHolder.class), mock(Analysis.class), project,
+                                    "http://localhost:9000");
+
+        String expected =
+                "**Type:** BUG ![BUG](http://localhost:9000/static/communityBranchPlugin/checks/IssueType/bug.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() +
+                "**Severity:** MAJOR ![MAJOR](http://localhost:9000/static/communityBranchPlugin/checks/Severity/major.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() + "**Message:** message" + System.lineSeparator() +
+                System.lineSeparator() + "**Duration (min):** 5" + System.lineSeparator() + System.lineSeparator() +
+                "[View in SonarQube](http://localhost:9000/project/issues?id=Project+Key&pullRequest=123&issues=issueKey&open=issueKey)";
+
+        assertEquals(expected, testCase.createAnalysisIssueSummary(componentIssue, new MarkdownFormatterFactory()));
+        assertEquals(expected, testCase.snapshot(mock(Configuration.class), LineRevisions.none()).createAnalysisIssueSummary(componentIssue, new MarkdownFormatterFactory()));
+    }
+
+    @Test
+    public void testCreateAnalysisIssueSummaryFormatsDocumentWhereTemplateNotSupported() {
+        AnalysisDetails.BranchDetails branchDetails = mock(AnalysisDetails.BranchDetails.class);
+        doReturn("123").when(branchDetails).getBranchName();
+
+        Project project = mock(Project.class);
+        doReturn("Project Key").when(project).getKey();
+
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(RuleType.VULNERABILITY).when(issue).type();
+        doReturn("BLOCKER").when(issue).severity();
+        doReturn("message").when(issue).getMessage();
+        doReturn("FIXED").when(issue).resolution();
+        doReturn("issueKey").when(issue).key();
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue =
+                new PostAnalysisIssueVisitor.ComponentIssue(mock(Component.class), issue);
+
+        Formatter<Document> documentFormatter = mock(Formatter.class);
+        doReturn("document").when(documentFormatter).format(any(), any());
+        FormatterFactory formatterFactory = mock(FormatterFactory.class);
+        doReturn(documentFormatter).when(formatterFactory).documentFormatter();
+
+        AnalysisDetails testCase =
+                new AnalysisDetails(branchDetails, mock(PostAnalysisIssueVisitor.class), mock(QualityGate.class),
+                                    mock(AnalysisDetails.MeasuresHolder.class), mock(Analysis.class), project,
+                                    "http://localhost:9000");
+
+        assertEquals("document", testCase.createAnalysisIssueSummary(componentIssue, formatterFactory));
+
+        ArgumentCaptor<Document> documentArgumentCaptor = ArgumentCaptor.forClass(Document.class);
+        verify(documentFormatter, times(2)).format(documentArgumentCaptor.capture(), eq(formatterFactory));
+
+        Document expectedDocument = new Document(new Paragraph(new Text("**Type:** VULNERABILITY "),
+                new Image("VULNERABILITY", "http://localhost:9000/static/communityBranchPlugin/checks/IssueType/vulnerability.svg?sanitize=true")),
+                new Paragraph(new Text("**Severity:** BLOCKER "),
+                new Image("BLOCKER", "http://localhost:9000/static/communityBranchPlugin/checks/Severity/blocker.svg?sanitize=true")),
+                new Paragraph(new Text("**Message:** message")), new Text(""),
+                new Paragraph(new Text("**Resolution:** FIXED ")),
+                new Link("http://localhost:9000/project/issues?id=Project+Key&pullRequest=123&issues=issueKey&open=issueKey",
+                         new Text("View in SonarQube")));
+        assertThat(documentArgumentCaptor.getValue()).usingRecursiveComparison().isEqualTo(expectedDocument);
+    }
+
     @Test
     public void testCorrectMeasuresRepositoryReturned() {
         MeasureRepository measureRepository = mock(MeasureRepository.class);
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.sonar.api.ce.posttask.Analysis;
+import org.sonar.api.ce.posttask.Project;
+import org.sonar.api.ce.posttask.QualityGate;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rules.RuleType;
+import org.sonar.api.utils.Duration;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.component.ReportAttributes;
+import org.sonar.ce.task.projectanalysis.component.TreeRootHolder;
+import org.sonar.ce.task.projectanalysis.measure.MeasureRepository;
+import org.sonar.ce.task.projectanalysis.metric.MetricRepository;
+import org.sonar.ce.task.projectanalysis.scm.Changeset;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfo;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Generates a pull request analysis with a fixed number of open issues spread over a set of files, for benchmarks and
+ * load tests of the code that reports on an analysis. The issues are generated from a fixed seed so every run, and
+ * every commit, measures the same analysis. Every even line of each file was last changed by one of the pull
+ * request's commits, and every odd line before the pull request was raised.
+ *
+ * The SonarQube collaborators that are only read a few times per decoration are mocked, whereas the components are
+ * lightweight proxies since they're read for every issue, and the cost of a mock invocation would otherwise dominate
+ * the results.
+ */
+public final class AnalysisFixture {
+
+    private static final String[] SEVERITIES = {"INFO", "MINOR", "MAJOR", "CRITICAL", "BLOCKER"};
+    private static final RuleType[] TYPES = {RuleType.CODE_SMELL, RuleType.BUG, RuleType.VULNERABILITY};
+    private static final int ISSUES_PER_FILE = 20;
+    private static final int LINES_PER_FILE = 2000;
+    private static final long SEED = 7919L;
+    private static final int PULL_REQUEST_COMMITS = 5;
+    private static final String DEFAULT_PULL_REQUEST_ID = "1";
+
+    private final AnalysisDetails analysisDetails;
+    private final List<String> paths;
+    private final List<String> commitShas;
+    private final ScmInfoRepository scmInfoRepository;
+
+    private AnalysisFixture(AnalysisDetails analysisDetails, List<String> paths, List<String> commitShas,
+                            ScmInfoRepository scmInfoRepository) {
+        this.analysisDetails = analysisDetails;
+        this.paths = paths;
+        this.commitShas = commitShas;
+        this.scmInfoRepository = scmInfoRepository;
+    }
+
+    public static AnalysisFixture create(int issueCount) {
+        return create(DEFAULT_PULL_REQUEST_ID, issueCount);
+    }
+
+    public static AnalysisFixture create(String pullRequestId, int issueCount) {
+        Random random = new Random(SEED);
+
+        int fileCount = Math.max(1, issueCount / ISSUES_PER_FILE);
+        List<String> paths = new ArrayList<>(fileCount);
+        List<Component> components = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            String path = "src/main/java/com/example/module" + (i % 50) + "/Generated" + i + ".java";
+            paths.add(path);
+            components.add(fileComponent(i + 1, path));
+        }
+
+        PostAnalysisIssueVisitor issueVisitor = new PostAnalysisIssueVisitor();
+        for (int i = 0; i < issueCount; i++) {
+            DefaultIssue issue = new DefaultIssue();
+            issue.setKey("AXgenerated" + i);
+            issue.setRuleKey(RuleKey.of("java", "S" + (100 + random.nextInt(400))));
+            issue.setType(TYPES[random.nextInt(TYPES.length)]);
+            issue.setSeverity(SEVERITIES[random.nextInt(SEVERITIES.length)]);
+            issue.setStatus(Issue.STATUS_OPEN);
+            issue.setLine(1 + random.nextInt(LINES_PER_FILE));
+            issue.setEffort(Duration.create(1 + random.nextInt(60)));
+            issue.setMessage("Refactor this method to reduce its Cognitive Complexity from " + (16 + random.nextInt(40)) +
+                             " to the 15 allowed.");
+            issueVisitor.onIssue(components.get(random.nextInt(components.size())), issue);
+        }
+
+        QualityGate qualityGate = stub(QualityGate.class);
+        doReturn(QualityGate.Status.ERROR).when(qualityGate).getStatus();
+        doReturn(Arrays.asList(condition(CoreMetrics.NEW_COVERAGE_KEY, QualityGate.EvaluationStatus.ERROR, "42.5",
+                                         QualityGate.Operator.LESS_THAN, "80"),
+                               condition(CoreMetrics.NEW_DUPLICATED_LINES_DENSITY_KEY,
+                                         QualityGate.EvaluationStatus.OK, "1.2", QualityGate.Operator.GREATER_THAN,
+                                         "3"),
+                               condition(CoreMetrics.NEW_RELIABILITY_RATING_KEY, QualityGate.EvaluationStatus.ERROR,
+                                         "3", QualityGate.Operator.GREATER_THAN, "1"),
+                               condition(CoreMetrics.NEW_BUGS_KEY, QualityGate.EvaluationStatus.ERROR,
+                                         String.valueOf(issueVisitor.countOpenIssues(RuleType.BUG)),
+                                         QualityGate.Operator.GREATER_THAN, "0"))).when(qualityGate)
+                .getConditions();
+
+        Project project = stub(Project.class);
+        doReturn("com.example:generated-project").when(project).getKey();
+        Analysis analysis = stub(Analysis.class);
+        doReturn("AXgeneratedAnalysis").when(analysis).getAnalysisUuid();
+
+        AnalysisDetails.MeasuresHolder measuresHolder =
+                new AnalysisDetails.MeasuresHolder(stub(MetricRepository.class), stub(MeasureRepository.class),
+                                                   stub(TreeRootHolder.class));
+
+        // a snapshot is what decorators are given, and it no longer reads measures from the (mocked) repositories
+        AnalysisDetails analysisDetails =
+                new AnalysisDetails(new AnalysisDetails.BranchDetails(pullRequestId, commitSha(PULL_REQUEST_COMMITS)),
+                                    issueVisitor, qualityGate, measuresHolder, analysis, project,
+                                    "https://sonarqube.example.com").snapshot(new MapSettings().asConfig(),
+                                                                              LineRevisions.none());
+
+        List<String> commitShas = new ArrayList<>(PULL_REQUEST_COMMITS);
+        for (int i = 1; i <= PULL_REQUEST_COMMITS; i++) {
+            commitShas.add(commitSha(i));
+        }
+
+        return new AnalysisFixture(analysisDetails, Collections.unmodifiableList(paths),
+                                   Collections.unmodifiableList(commitShas), scmInfoRepository(commitShas));
+    }
+
+    public AnalysisDetails getAnalysisDetails() {
+        return analysisDetails;
+    }
+
+    public List<PostAnalysisIssueVisitor.ComponentIssue> getOpenIssues() {
+        return analysisDetails.getPostAnalysisIssueVisitor().getOpenIssues();
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public int getLinesPerFile() {
+        return LINES_PER_FILE;
+    }
+
+    /**
+     * @return the commits in the pull request, oldest first, so the last commit is the one that was analysed
+     */
+    public List<String> getCommitShas() {
+        return commitShas;
+    }
+
+    public ScmInfoRepository getScmInfoRepository() {
+        return scmInfoRepository;
+    }
+
+    private static String commitSha(int commit) {
+        return String.format("%040x", commit);
+    }
+
+    private static QualityGate.Condition condition(String metricKey, QualityGate.EvaluationStatus status, String value,
+                                                   QualityGate.Operator operator, String errorThreshold) {
+        QualityGate.Condition condition = stub(QualityGate.Condition.class);
+        doReturn(metricKey).when(condition).getMetricKey();
+        doReturn(status).when(condition).getStatus();
+        doReturn(value).when(condition).getValue();
+        doReturn(operator).when(condition).getOperator();
+        doReturn(errorThreshold).when(condition).getErrorThreshold();
+        return condition;
+    }
+
+    private static ScmInfoRepository scmInfoRepository(List<String> commitShas) {
+        Changeset[] pullRequestChangesets = new Changeset[commitShas.size()];
+        for (int i = 0; i < pullRequestChangesets.length; i++) {
+            pullRequestChangesets[i] = Changeset.newChangesetBuilder().setDate(0L).setRevision(commitShas.get(i)).build();
+        }
+        Changeset baseChangeset = Changeset.newChangesetBuilder().setDate(0L).setRevision(commitSha(0)).build();
+
+        ScmInfo scmInfo = mock(ScmInfo.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "hasChangesetForLine":
+                    return true;
+                case "getChangesetForLine":
+                    int line = invocation.getArgument(0);
+                    return 0 == line % 2 ? pullRequestChangesets[(line / 2) % pullRequestChangesets.length] :
+                           baseChangeset;
+                case "getLatestChangeset":
+                    return pullRequestChangesets[pullRequestChangesets.length - 1];
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+        }));
+        ScmInfoRepository scmInfoRepository = stub(ScmInfoRepository.class);
+        doReturn(Optional.of(scmInfo)).when(scmInfoRepository).getScmInfo(any());
+        return scmInfoRepository;
+    }
+
+    /**
+     * Creates a mock that doesn't record its invocations for verification, since the recorded invocations would
+     * otherwise be retained for as long as the analysis is used.
+     */
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+
+    private static Component fileComponent(int ref, String path) {
+        ReportAttributes reportAttributes = ReportAttributes.newBuilder(ref).setScmPath(path).build();
+        return (Component) Proxy.newProxyInstance(AnalysisFixture.class.getClassLoader(),
+                                                  new Class<?>[]{Component.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getType":
+                            return Component.Type.FILE;
+                        case "getReportAttributes":
+                            return reportAttributes;
+                        case "getKey":
+                        case "getName":
+                        case "toString":
+                            return path;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
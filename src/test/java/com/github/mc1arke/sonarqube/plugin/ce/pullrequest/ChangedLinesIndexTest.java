@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.Test;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.scm.Changeset;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfo;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChangedLinesIndexTest {
+
+    @Test
+    public void checkNoLinesChangedWithoutRevisions() {
+        Component component = mock(Component.class);
+        PostAnalysisIssueVisitor.ComponentIssue issue = componentIssue(component, 1);
+
+        ChangedLinesIndex testCase = ChangedLinesIndex.build(LineRevisions.none(), Collections.singletonList(issue),
+                                                             Collections.singleton("pr-commit"));
+
+        assertThat(testCase.isChanged(issue)).isFalse();
+        assertThat(testCase.containsRevision("pr-commit")).isTrue();
+    }
+
+    @Test
+    public void checkOnlyLinesLastChangedByPullRequestCommitsAreChanged() {
+        Component component = mock(Component.class);
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        when(scmInfo.hasChangesetForLine(anyInt())).thenReturn(true);
+        when(scmInfo.getChangesetForLine(1)).thenReturn(changeset("pr-commit"));
+        when(scmInfo.getChangesetForLine(2)).thenReturn(changeset("base-commit"));
+        when(scmInfo.getChangesetForLine(3)).thenReturn(changeset("other-pr-commit"));
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        when(scmInfoRepository.getScmInfo(component)).thenReturn(Optional.of(scmInfo));
+
+        PostAnalysisIssueVisitor.ComponentIssue line1 = componentIssue(component, 1);
+        PostAnalysisIssueVisitor.ComponentIssue line2 = componentIssue(component, 2);
+        PostAnalysisIssueVisitor.ComponentIssue line3 = componentIssue(component, 3);
+        PostAnalysisIssueVisitor.ComponentIssue noLine = componentIssue(component, null);
+
+        List<PostAnalysisIssueVisitor.ComponentIssue> issues = Arrays.asList(line1, line2, line3, noLine);
+        ChangedLinesIndex testCase = ChangedLinesIndex.build(LineRevisions.read(scmInfoRepository, issues), issues,
+                                                             Arrays.asList("pr-commit", "other-pr-commit"));
+
+        assertThat(testCase.isChanged(line1)).isTrue();
+        assertThat(testCase.isChanged(line2)).isFalse();
+        assertThat(testCase.isChanged(line3)).isTrue();
+        assertThat(testCase.isChanged(noLine)).isFalse();
+        assertThat(testCase.isChanged(component, 4)).isFalse();
+        assertThat(testCase.containsRevision("pr-commit")).isTrue();
+        assertThat(testCase.containsRevision("base-commit")).isFalse();
+    }
+
+    private static Changeset changeset(String revision) {
+        return Changeset.newChangesetBuilder().setDate(0L).setRevision(revision).build();
+    }
+
+    private static PostAnalysisIssueVisitor.ComponentIssue componentIssue(Component component, Integer line) {
+        DefaultIssue defaultIssue = mock(DefaultIssue.class);
+        when(defaultIssue.getLine()).thenReturn(line);
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        when(componentIssue.getIssue()).thenReturn(defaultIssue);
+        when(componentIssue.getComponent()).thenReturn(component);
+        return componentIssue;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class CommentCleanupTest {
+
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testCleanupContinuesAfterFailures() {
+        List<String> comments = Arrays.asList("own-1", "other-1", "own-fail", "own-2", "own-error", "other-2", "own-3");
+        Set<String> deleteRequests = ConcurrentHashMap.newKeySet();
+
+        CommentCleanup.Summary summary =
+                CommentCleanup.deleteComments("Test ALM", comments, c -> c.startsWith("own-"), executorService, 3, c -> {
+                    deleteRequests.add(c);
+                    if ("own-fail".equals(c)) {
+                        return false;
+                    } else if ("own-error".equals(c)) {
+                        throw new IOException("Dummy");
+                    }
+                    return true;
+                }, c -> c);
+
+        assertThat(deleteRequests).containsExactlyInAnyOrder("own-1", "own-fail", "own-2", "own-error", "own-3");
+        assertThat(summary.getDeleted()).isEqualTo(3);
+        assertThat(summary.getSkipped()).isEqualTo(2);
+        assertThat(summary.getFailed()).isEqualTo(2);
+    }
+
+    @Test
+    public void testNothingDeletedWhenNoCommentsMatch() {
+        CommentCleanup.Summary summary =
+                CommentCleanup.deleteComments("Test ALM", Arrays.asList("a", "b"), c -> false, executorService,
+                                               3, c -> {
+                    throw new IllegalStateException("Should not be called");
+                }, c -> c);
+
+        assertThat(summary.getDeleted()).isZero();
+        assertThat(summary.getSkipped()).isEqualTo(2);
+        assertThat(summary.getFailed()).isZero();
+    }
+
+    @Test
+    public void testParallelismReadFromConfiguration() {
+        Configuration configuration = mock(Configuration.class);
+        doReturn(Optional.of("7")).when(configuration).get(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_PARALLELISM);
+        assertThat(CommentCleanup.getParallelism(configuration)).isEqualTo(7);
+
+        doReturn(Optional.of("-1")).when(configuration).get(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_PARALLELISM);
+        assertThat(CommentCleanup.getParallelism(configuration)).isEqualTo(CommentCleanup.DEFAULT_PARALLELISM);
+
+        assertThat(CommentCleanup.getParallelism(mock(Configuration.class))).isEqualTo(CommentCleanup.DEFAULT_PARALLELISM);
+    }
+}
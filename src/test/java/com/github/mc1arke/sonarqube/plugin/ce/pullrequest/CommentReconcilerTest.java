@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CommentReconcilerTest {
+
+    @Test
+    public void fingerprintIsStableAndDistinguishesOccurrences() {
+        CommentReconciler.Fingerprinter fingerprinter = new CommentReconciler.Fingerprinter();
+        String first = fingerprinter.fingerprint("src/File.java", 12, "java:S1234", "message");
+        String second = fingerprinter.fingerprint("src/File.java", 12, "java:S1234", "message");
+        String otherLine = fingerprinter.fingerprint("src/File.java", 13, "java:S1234", "message");
+
+        assertThat(new CommentReconciler.Fingerprinter().fingerprint("src/File.java", 12, "java:S1234", "message")).isEqualTo(first);
+        assertThat(second).isNotEqualTo(first);
+        assertThat(otherLine).isNotEqualTo(first);
+        assertThat(first).matches("[0-9a-f]{40}");
+    }
+
+    @Test
+    public void fingerprintReadFromCommentText() {
+        CommentReconciler.DesiredComment<String> desiredComment = CommentReconciler.issueComment("abc123", "issue text", "path:1");
+
+        assertThat(desiredComment.getText()).startsWith("issue text");
+        assertThat(desiredComment.getLocation()).isEqualTo(Optional.of("path:1"));
+        assertThat(CommentReconciler.readFingerprint(desiredComment.getText())).isEqualTo(Optional.of("abc123"));
+        assertThat(CommentReconciler.readFingerprint("issue text")).isEmpty();
+        assertThat(CommentReconciler.readFingerprint(null)).isEmpty();
+    }
+
+    @Test
+    public void summaryHasNoLocation() {
+        CommentReconciler.DesiredComment<String> summary = CommentReconciler.summaryComment("summary");
+
+        assertThat(summary.getLocation()).isEmpty();
+        assertThat(summary.getFingerprint()).isEqualTo(CommentReconciler.SUMMARY_FINGERPRINT);
+    }
+
+    @Test
+    public void planOnlyContainsChangedComments() {
+        CommentReconciler.DesiredComment<String> summary = CommentReconciler.summaryComment("summary");
+        CommentReconciler.DesiredComment<String> unchanged = CommentReconciler.issueComment("aaa", "unchanged", "path:1");
+        CommentReconciler.DesiredComment<String> changed = CommentReconciler.issueComment("bbb", "new text", "path:2");
+        CommentReconciler.DesiredComment<String> created = CommentReconciler.issueComment("ccc", "created", "path:3");
+
+        String existingSummary = CommentReconciler.summaryComment("old summary").getText();
+        String existingUnchanged = unchanged.getText();
+        String existingChanged = CommentReconciler.issueComment("bbb", "old text", null).getText();
+        String existingFixed = CommentReconciler.issueComment("ddd", "fixed", null).getText();
+        String duplicate = new String(unchanged.getText());
+
+        CommentReconciler.Plan<String, String> plan = CommentReconciler.reconcile(Arrays.asList(summary, unchanged, changed, created),
+                Arrays.asList(existingSummary, existingUnchanged, existingChanged, existingFixed, duplicate), c -> c);
+
+        assertThat(plan.getUnchanged()).containsExactly(existingUnchanged);
+        assertThat(plan.getToCreate()).containsExactly(created);
+        assertThat(plan.getToDelete()).containsExactly(existingFixed, duplicate);
+        assertThat(plan.getToUpdate()).hasSize(2);
+        assertThat(plan.getToUpdate().get(0).getExistingComment()).isSameAs(existingSummary);
+        assertThat(plan.getToUpdate().get(0).getDesiredComment()).isSameAs(summary);
+        assertThat(plan.getToUpdate().get(1).getExistingComment()).isSameAs(existingChanged);
+        assertThat(plan.getToUpdate().get(1).getDesiredComment()).isSameAs(changed);
+    }
+
+    @Test
+    public void commentsWithoutFingerprintAreDeleted() {
+        String legacyComment = "posted by an older version";
+
+        CommentReconciler.Plan<String, String> plan = CommentReconciler.reconcile(
+                Collections.singletonList(CommentReconciler.summaryComment("summary")), Collections.singletonList(legacyComment), c -> c);
+
+        assertThat(plan.getToDelete()).containsExactly(legacyComment);
+        assertThat(plan.getToCreate()).hasSize(1);
+        assertThat(plan.getToUpdate()).isEmpty();
+        assertThat(plan.getUnchanged()).isEmpty();
+    }
+
+    @Test
+    public void resolvedMarkerKeepsFingerprint() {
+        String text = CommentReconciler.issueComment("abc123", "issue text", null).getText();
+        String marked = CommentReconciler.markResolved(text);
+
+        assertThat(marked).isNotEqualTo(text).startsWith("issue text");
+        assertThat(CommentReconciler.isMarkedResolved(marked)).isTrue();
+        assertThat(CommentReconciler.isMarkedResolved(text)).isFalse();
+        assertThat(CommentReconciler.readFingerprint(marked)).isEqualTo(Optional.of("abc123"));
+        assertThat(CommentReconciler.markResolved(marked)).isEqualTo(marked);
+        assertThat(CommentReconciler.markResolved("no fingerprint")).isEqualTo("no fingerprint");
+        assertThat(CommentReconciler.isMarkedResolved(null)).isFalse();
+    }
+
+    @Test
+    public void commentResolvedByPluginIsUpdatedWhenRaisedAgain() {
+        CommentReconciler.DesiredComment<String> raisedAgain = CommentReconciler.issueComment("aaa", "issue", "path:1");
+        String resolvedByPlugin = CommentReconciler.markResolved(raisedAgain.getText());
+
+        CommentReconciler.Plan<String, String> plan = CommentReconciler.reconcile(Collections.singletonList(raisedAgain),
+                Collections.singletonList(resolvedByPlugin), c -> c);
+
+        assertThat(plan.getUnchanged()).isEmpty();
+        assertThat(plan.getToUpdate()).hasSize(1);
+        assertThat(plan.getToUpdate().get(0).getDesiredComment().getText()).isEqualTo(raisedAgain.getText());
+    }
+}
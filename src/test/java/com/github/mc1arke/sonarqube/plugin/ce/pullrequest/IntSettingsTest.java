@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class IntSettingsTest {
+
+    private static final String PROPERTY = "test.property";
+
+    @Test
+    public void testConfiguredValueUsed() {
+        Configuration configuration = mock(Configuration.class);
+        doReturn(Optional.of(" 7 ")).when(configuration).get(PROPERTY);
+
+        assertThat(IntSettings.getPositiveInt(configuration, PROPERTY, 3)).isEqualTo(7);
+    }
+
+    @Test
+    public void testDefaultUsedWhenNotConfigured() {
+        assertThat(IntSettings.getPositiveInt(mock(Configuration.class), PROPERTY, 3)).isEqualTo(3);
+    }
+
+    @Test
+    public void testDefaultUsedForInvalidValues() {
+        Configuration configuration = mock(Configuration.class);
+        for (String value : new String[]{"0", "-1", "ten", "", "99999999999"}) {
+            doReturn(Optional.of(value)).when(configuration).get(PROPERTY);
+            assertThat(IntSettings.getPositiveInt(configuration, PROPERTY, 3)).as(value).isEqualTo(3);
+        }
+    }
+}
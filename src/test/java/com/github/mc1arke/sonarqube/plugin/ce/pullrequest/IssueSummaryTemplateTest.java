@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.Formatter;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.FormatterFactory;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup.MarkdownFormatterFactory;
+import org.junit.Test;
+import org.sonar.api.rule.Severity;
+import org.sonar.api.rules.RuleType;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class IssueSummaryTemplateTest {
+
+    private static final String BASE_IMAGE_URL = "http://localhost:9000/static/communityBranchPlugin";
+    private static final String ISSUE_URL_PREFIX =
+            "http://localhost:9000/project/issues?id=project+key&pullRequest=123&issues=";
+
+    @Test
+    public void testRenderMatchesFormattedDocument() {
+        MarkdownFormatterFactory formatterFactory = new MarkdownFormatterFactory();
+        IssueSummaryTemplate testCase =
+                IssueSummaryTemplate.compile(formatterFactory, BASE_IMAGE_URL, ISSUE_URL_PREFIX).get();
+
+        for (RuleType type : RuleType.values()) {
+            for (String severity : Severity.ALL) {
+                DefaultIssue issue = mockIssue(type, severity, 12L, "FIXED");
+
+                String expected = formatterFactory.documentFormatter().format(IssueSummaryTemplate
+                        .createDocument(IssueSummaryTemplate.createTypeParagraph(type, BASE_IMAGE_URL),
+                                        IssueSummaryTemplate.createSeverityParagraph(severity, BASE_IMAGE_URL),
+                                        "message", "12", "FIXED", "issueKey", ISSUE_URL_PREFIX), formatterFactory);
+
+                assertThat(testCase.render(issue)).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testRenderIssueWithEffortAndResolution() {
+        IssueSummaryTemplate testCase =
+                IssueSummaryTemplate.compile(new MarkdownFormatterFactory(), BASE_IMAGE_URL, ISSUE_URL_PREFIX).get();
+
+        assertThat(testCase.render(mockIssue(RuleType.BUG, Severity.MAJOR, 5L, "FIXED"))).isEqualTo(
+                "**Type:** BUG ![BUG](http://localhost:9000/static/communityBranchPlugin/checks/IssueType/bug.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() +
+                "**Severity:** MAJOR ![MAJOR](http://localhost:9000/static/communityBranchPlugin/checks/Severity/major.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() + "**Message:** message" + System.lineSeparator() +
+                System.lineSeparator() + "**Duration (min):** 5" + System.lineSeparator() + System.lineSeparator() +
+                "**Resolution:** FIXED " + System.lineSeparator() + System.lineSeparator() +
+                "[View in SonarQube](http://localhost:9000/project/issues?id=project+key&pullRequest=123&issues=issueKey&open=issueKey)");
+    }
+
+    @Test
+    public void testRenderIssueWithoutEffortOrResolution() {
+        IssueSummaryTemplate testCase =
+                IssueSummaryTemplate.compile(new MarkdownFormatterFactory(), BASE_IMAGE_URL, ISSUE_URL_PREFIX).get();
+
+        assertThat(testCase.render(mockIssue(RuleType.CODE_SMELL, Severity.INFO, null, " "))).isEqualTo(
+                "**Type:** CODE_SMELL ![CODE_SMELL](http://localhost:9000/static/communityBranchPlugin/checks/IssueType/code_smell.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() +
+                "**Severity:** INFO ![INFO](http://localhost:9000/static/communityBranchPlugin/checks/Severity/info.svg?sanitize=true)" +
+                System.lineSeparator() + System.lineSeparator() + "**Message:** message" + System.lineSeparator() +
+                System.lineSeparator() +
+                "[View in SonarQube](http://localhost:9000/project/issues?id=project+key&pullRequest=123&issues=issueKey&open=issueKey)");
+    }
+
+    @Test
+    public void testRenderIssueWithUnknownSeverity() {
+        IssueSummaryTemplate testCase =
+                IssueSummaryTemplate.compile(new MarkdownFormatterFactory(), BASE_IMAGE_URL, ISSUE_URL_PREFIX).get();
+
+        assertThat(testCase.render(mockIssue(RuleType.BUG, "CUSTOM", null, null))).contains(
+                "**Severity:** CUSTOM ![CUSTOM](http://localhost:9000/static/communityBranchPlugin/checks/Severity/custom.svg?sanitize=true)");
+    }
+
+    @Test
+    public void testCompileEmptyWhereFormatterDoesNotKeepMarkers() {
+        Formatter formatter = mock(Formatter.class);
+        doReturn("escaped").when(formatter).format(any(), any());
+        FormatterFactory formatterFactory = mock(FormatterFactory.class, invocation -> formatter);
+
+        assertThat(IssueSummaryTemplate.compile(formatterFactory, BASE_IMAGE_URL, ISSUE_URL_PREFIX))
+                .isEqualTo(Optional.empty());
+    }
+
+    private static DefaultIssue mockIssue(RuleType type, String severity, Long effort, String resolution) {
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(type).when(issue).type();
+        doReturn(severity).when(issue).severity();
+        doReturn("message").when(issue).getMessage();
+        doReturn(effort).when(issue).effortInMinutes();
+        doReturn(resolution).when(issue).resolution();
+        doReturn("issueKey").when(issue).key();
+        return issue;
+    }
+}
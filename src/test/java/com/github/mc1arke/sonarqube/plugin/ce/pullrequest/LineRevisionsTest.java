@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.Test;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.scm.Changeset;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfo;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class LineRevisionsTest {
+
+    @Test
+    public void checkScmInfoAndChangesetsReadOncePerComponentAndLine() {
+        Component component = mock(Component.class);
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        when(scmInfo.hasChangesetForLine(anyInt())).thenReturn(true);
+        when(scmInfo.getChangesetForLine(anyInt())).thenReturn(changeset("pr-commit"));
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        when(scmInfoRepository.getScmInfo(component)).thenReturn(Optional.of(scmInfo));
+
+        LineRevisions testCase = LineRevisions.read(scmInfoRepository, Arrays.asList(componentIssue(component, 5),
+                                                                                    componentIssue(component, 5),
+                                                                                    componentIssue(component, 6)));
+
+        assertThat(testCase.getRevision(component, 5)).contains("pr-commit");
+        assertThat(testCase.getRevision(component, 6)).contains("pr-commit");
+        assertThat(testCase.getRevision(component, 7)).isEmpty();
+        verify(scmInfoRepository, times(1)).getScmInfo(component);
+        verify(scmInfo, times(1)).getChangesetForLine(5);
+        verify(scmInfo, times(1)).getChangesetForLine(6);
+    }
+
+    @Test
+    public void checkLinesWithoutScmDataHaveNoRevision() {
+        Component withoutScmInfo = mock(Component.class);
+        Component withoutChangeset = mock(Component.class);
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        when(scmInfoRepository.getScmInfo(withoutScmInfo)).thenReturn(Optional.empty());
+        when(scmInfoRepository.getScmInfo(withoutChangeset)).thenReturn(Optional.of(scmInfo));
+
+        LineRevisions testCase = LineRevisions.read(scmInfoRepository,
+                                                    Arrays.asList(componentIssue(withoutScmInfo, 1),
+                                                                  componentIssue(withoutChangeset, 1)));
+
+        assertThat(testCase.getRevision(withoutScmInfo, 1)).isEmpty();
+        assertThat(testCase.getRevision(withoutChangeset, 1)).isEmpty();
+    }
+
+    @Test
+    public void checkIssuesWithoutLineNotRead() {
+        Component component = mock(Component.class);
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+
+        LineRevisions testCase = LineRevisions.read(scmInfoRepository, Arrays.asList(componentIssue(component, null),
+                                                                                    componentIssue(component, 0)));
+
+        assertThat(testCase.getRevision(component, 0)).isEmpty();
+        verifyNoMoreInteractions(scmInfoRepository);
+    }
+
+    private static Changeset changeset(String revision) {
+        return Changeset.newChangesetBuilder().setDate(0L).setRevision(revision).build();
+    }
+
+    private static PostAnalysisIssueVisitor.ComponentIssue componentIssue(Component component, Integer line) {
+        DefaultIssue defaultIssue = mock(DefaultIssue.class);
+        when(defaultIssue.getLine()).thenReturn(line);
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        when(componentIssue.getIssue()).thenReturn(defaultIssue);
+        when(componentIssue.getComponent()).thenReturn(component);
+        return componentIssue;
+    }
+}
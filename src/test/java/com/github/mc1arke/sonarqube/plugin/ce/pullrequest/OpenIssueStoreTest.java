@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
+import org.sonar.api.rules.RuleType;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.core.issue.DefaultIssue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class OpenIssueStoreTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testCursorReadsStoredFields() {
+        Component component = mock(Component.class);
+        OpenIssueStore testCase = new OpenIssueStore();
+        testCase.add(component, issue("key1", 12, RuleType.BUG, Severity.MAJOR, 5L, "message 1"));
+        testCase.add(null, issue("key2", null, null, null, null, null));
+
+        OpenIssueStore.Cursor cursor = testCase.cursor();
+        assertThat(cursor.next()).isTrue();
+        assertThat(cursor.getComponent()).isSameAs(component);
+        assertThat(cursor.getKey()).isEqualTo("key1");
+        assertThat(cursor.getLine()).isEqualTo(12);
+        assertThat(cursor.getType()).isEqualTo(RuleType.BUG);
+        assertThat(cursor.getSeverity()).isEqualTo(Severity.MAJOR);
+        assertThat(cursor.getStatus()).isEqualTo(Issue.STATUS_OPEN);
+        assertThat(cursor.getResolution()).isNull();
+        assertThat(cursor.getEffortInMinutes()).isEqualTo(5L);
+        assertThat(cursor.getMessage()).isEqualTo("message 1");
+        assertThat(cursor.getRuleKey()).isEqualTo(RuleKey.of("java", "S1234"));
+
+        assertThat(cursor.next()).isTrue();
+        assertThat(cursor.getComponent()).isNull();
+        assertThat(cursor.getKey()).isEqualTo("key2");
+        assertThat(cursor.getLine()).isNull();
+        assertThat(cursor.getType()).isNull();
+        assertThat(cursor.getSeverity()).isNull();
+        assertThat(cursor.getEffortInMinutes()).isNull();
+        assertThat(cursor.getMessage()).isNull();
+
+        assertThat(cursor.next()).isFalse();
+        assertThat(testCase.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStoreGrowsAndInternsSharedValues() {
+        Component component = mock(Component.class);
+        OpenIssueStore testCase = new OpenIssueStore();
+        for (int i = 0; i < 1000; i++) {
+            testCase.add(component, issue("key" + i, i + 1, RuleType.CODE_SMELL, Severity.MINOR, null, "message"));
+        }
+
+        OpenIssueStore.Cursor cursor = testCase.cursor();
+        RuleKey ruleKey = cursor.moveTo(0).getRuleKey();
+        assertThat(cursor.moveTo(999).getKey()).isEqualTo("key999");
+        assertThat(cursor.getLine()).isEqualTo(1000);
+        assertThat(cursor.getComponent()).isSameAs(component);
+        assertThat(cursor.getRuleKey()).isSameAs(ruleKey);
+        assertThat(testCase.size()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testCopyUnaffectedByLaterIssues() {
+        OpenIssueStore testCase = new OpenIssueStore();
+        testCase.add(mock(Component.class), issue("key1", 1, RuleType.BUG, Severity.INFO, null, "message"));
+
+        OpenIssueStore copy = testCase.copy();
+        testCase.add(mock(Component.class), issue("key2", 2, RuleType.BUG, Severity.INFO, null, "message"));
+        copy.add(mock(Component.class), issue("key3", 3, RuleType.BUG, Severity.INFO, null, "message"));
+
+        assertThat(testCase.size()).isEqualTo(2);
+        assertThat(testCase.cursor().moveTo(1).getKey()).isEqualTo("key2");
+        assertThat(copy.size()).isEqualTo(2);
+        assertThat(copy.cursor().moveTo(1).getKey()).isEqualTo("key3");
+    }
+
+    @Test
+    public void testIssuesBeyondLimitReadFromSpillFile() {
+        Component component = mock(Component.class);
+        List<File> spillFiles = new ArrayList<>();
+        OpenIssueStore testCase = new OpenIssueStore(10, () -> {
+            try {
+                File file = temporaryFolder.newFile();
+                spillFiles.add(file);
+                return file;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        for (int i = 0; i < 25; i++) {
+            testCase.add(i % 2 == 0 ? component : null,
+                         issue("key" + i, i % 3 == 0 ? null : i, RuleType.BUG, Severity.CRITICAL,
+                               i % 4 == 0 ? null : (long) i, i % 5 == 0 ? null : "messag\u00e9 " + i));
+        }
+
+        OpenIssueStore.Cursor cursor = testCase.cursor();
+        for (int i = 0; i < 25; i++) {
+            assertThat(cursor.next()).isTrue();
+            assertThat(cursor.getComponent()).isSameAs(i % 2 == 0 ? component : null);
+            assertThat(cursor.getKey()).isEqualTo("key" + i);
+            assertThat(cursor.getLine()).isEqualTo(i % 3 == 0 ? null : i);
+            assertThat(cursor.getType()).isEqualTo(RuleType.BUG);
+            assertThat(cursor.getSeverity()).isEqualTo(Severity.CRITICAL);
+            assertThat(cursor.getStatus()).isEqualTo(Issue.STATUS_OPEN);
+            assertThat(cursor.getEffortInMinutes()).isEqualTo(i % 4 == 0 ? null : (long) i);
+            assertThat(cursor.getMessage()).isEqualTo(i % 5 == 0 ? null : "messag\u00e9 " + i);
+            assertThat(cursor.getRuleKey()).isEqualTo(RuleKey.of("java", "S1234"));
+        }
+        assertThat(cursor.next()).isFalse();
+        assertThat(cursor.moveTo(17).getKey()).isEqualTo("key17");
+        assertThat(testCase.isSpilled()).isTrue();
+        assertThat(spillFiles).hasSize(1);
+
+        testCase.add(component, issue("key25", 26, RuleType.BUG, Severity.CRITICAL, null, "late"));
+        OpenIssueStore copy = testCase.copy();
+        assertThat(copy.size()).isEqualTo(26);
+        assertThat(copy.cursor().moveTo(25).getMessage()).isEqualTo("late");
+        assertThat(copy.cursor().moveTo(12).getKey()).isEqualTo("key12");
+        assertThat(testCase.cursor().moveTo(25).getKey()).isEqualTo("key25");
+        assertThat(spillFiles).hasSize(2);
+    }
+
+    @Test
+    public void testMoveOutsideStoreRejected() {
+        OpenIssueStore testCase = new OpenIssueStore();
+        testCase.add(mock(Component.class), issue("key1", 1, RuleType.BUG, Severity.INFO, null, "message"));
+
+        assertThatThrownBy(() -> testCase.cursor().moveTo(1)).isExactlyInstanceOf(IndexOutOfBoundsException.class)
+                .hasMessage("Row 1 is outside of store of size 1");
+    }
+
+    private static DefaultIssue issue(String key, Integer line, RuleType type, String severity, Long effort,
+                                      String message) {
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(key).when(issue).key();
+        doReturn(line).when(issue).getLine();
+        doReturn(type).when(issue).type();
+        doReturn(severity).when(issue).severity();
+        doReturn(effort).when(issue).effortInMinutes();
+        doReturn(message).when(issue).getMessage();
+        doReturn(Issue.STATUS_OPEN).when(issue).status();
+        doReturn(null == type ? null : RuleKey.of("java", "S1234")).when(issue).getRuleKey();
+        return issue;
+    }
+}
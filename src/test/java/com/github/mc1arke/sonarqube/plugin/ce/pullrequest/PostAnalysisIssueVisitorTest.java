@@ -18,36 +18,254 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rule.Severity;
+import org.sonar.api.rules.RuleType;
+import org.sonar.api.utils.TempFolder;
+import org.sonar.ce.task.projectanalysis.analysis.AnalysisMetadataHolder;
 import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
 import org.sonar.core.issue.DefaultIssue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public class PostAnalysisIssueVisitorTest {
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
-    public void checkAllIssuesCollected() {
+    public void checkOpenIssuesCollected() {
         PostAnalysisIssueVisitor testCase = new PostAnalysisIssueVisitor();
 
         List<PostAnalysisIssueVisitor.ComponentIssue> expected = new ArrayList<>();
         for (int i = 0; i < 100; i++) {
-            DefaultIssue issue = (i == 10 ? null : mock(DefaultIssue.class));
+            DefaultIssue issue = (i == 10 ? null : issue(i % 3 == 0 ? Issue.STATUS_CLOSED : Issue.STATUS_OPEN,
+                                                         RuleType.values()[i % RuleType.values().length],
+                                                         Severity.ALL.get(i % Severity.ALL.size())));
             Component component = (i == 5 ? null : mock(Component.class));
-            expected.add(new PostAnalysisIssueVisitor.ComponentIssue(component, issue));
+            if (null != issue) {
+                doReturn("key" + i).when(issue).key();
+                doReturn("message " + i).when(issue).getMessage();
+                doReturn(i + 1).when(issue).getLine();
+                doReturn(i % 2 == 0 ? null : (long) i).when(issue).effortInMinutes();
+                doReturn(RuleKey.of("repo", "rule" + (i % 4))).when(issue).getRuleKey();
+                if (!Issue.STATUS_CLOSED.equals(issue.status())) {
+                    expected.add(new PostAnalysisIssueVisitor.ComponentIssue(component, issue));
+                }
+            }
+
+            testCase.onIssue(component, issue);
+        }
+
+        List<PostAnalysisIssueVisitor.ComponentIssue> openIssues = testCase.getOpenIssues();
+        assertThat(openIssues).hasSize(expected.size());
+        int i = 0;
+        for (PostAnalysisIssueVisitor.ComponentIssue openIssue : openIssues) {
+            assertMatches(openIssue, expected.get(i));
+            assertMatches(openIssues.get(i), expected.get(i));
+            i++;
+        }
+    }
+
+    @Test
+    public void checkSnapshotUnaffectedByLaterIssues() {
+        PostAnalysisIssueVisitor testCase = new PostAnalysisIssueVisitor();
+        DefaultIssue issue = issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR);
+        doReturn("issue key").when(issue).key();
+        Component component = mock(Component.class);
+        testCase.onIssue(component, issue);
+
+        PostAnalysisIssueVisitor snapshot = testCase.snapshot();
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+
+        assertThat(testCase.getOpenIssues()).hasSize(2);
+        assertThat(snapshot.getOpenIssues()).hasSize(1);
+        assertThat(snapshot.getOpenIssues().get(0).getIssue().key()).isEqualTo("issue key");
+        assertThat(snapshot.getOpenIssues().get(0).getComponent()).isSameAs(component);
+    }
+
+    @Test
+    public void checkOpenIssuesIndexed() {
+        Component file1 = mock(Component.class);
+        Component file2 = mock(Component.class);
+        DefaultIssue openBug = issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR);
+        DefaultIssue confirmedBug = issue(Issue.STATUS_CONFIRMED, RuleType.BUG, Severity.BLOCKER);
+        DefaultIssue reopenedCodeSmell = issue(Issue.STATUS_REOPENED, RuleType.CODE_SMELL, Severity.MAJOR);
+        DefaultIssue closedBug = issue(Issue.STATUS_CLOSED, RuleType.BUG, Severity.MAJOR);
+        DefaultIssue resolvedVulnerability = issue(Issue.STATUS_RESOLVED, RuleType.VULNERABILITY, Severity.MINOR);
+
+        PostAnalysisIssueVisitor testCase = new PostAnalysisIssueVisitor();
+        testCase.onIssue(file1, openBug);
+        testCase.onIssue(file1, closedBug);
+        testCase.onIssue(file2, confirmedBug);
+        testCase.onIssue(file2, resolvedVulnerability);
+        testCase.onIssue(file1, reopenedCodeSmell);
+        testCase.onIssue(file2, null);
+
+        assertThat(testCase.getOpenIssues()).extracting(i -> i.getIssue().severity())
+                .containsExactly(Severity.MAJOR, Severity.BLOCKER, Severity.MAJOR);
+        assertThat(testCase.getOpenIssues()).extracting(PostAnalysisIssueVisitor.ComponentIssue::getComponent)
+                .containsExactly(file1, file2, file1);
+
+        assertThat(testCase.countOpenIssues(RuleType.BUG)).isEqualTo(2);
+        assertThat(testCase.countOpenIssues(RuleType.CODE_SMELL)).isEqualTo(1);
+        assertThat(testCase.countOpenIssues(RuleType.VULNERABILITY)).isZero();
+
+        assertThat(testCase.countOpenIssuesBySeverity(Severity.MAJOR)).isEqualTo(2);
+        assertThat(testCase.countOpenIssuesBySeverity(Severity.BLOCKER)).isEqualTo(1);
+        assertThat(testCase.countOpenIssuesBySeverity(Severity.MINOR)).isZero();
+
+        assertThat(testCase.countIssuesByStatus(Issue.STATUS_OPEN)).isEqualTo(1);
+        assertThat(testCase.countIssuesByStatus(Issue.STATUS_CLOSED)).isEqualTo(1);
+        assertThat(testCase.countIssuesByStatus(Issue.STATUS_RESOLVED)).isEqualTo(1);
+        assertThat(testCase.countIssuesByStatus(Issue.STATUS_TO_REVIEW)).isZero();
+
+        assertThat(testCase.countOpenIssues(file1)).isEqualTo(2);
+        assertThat(testCase.countOpenIssues(file2)).isEqualTo(1);
+        assertThat(testCase.countOpenIssues(mock(Component.class))).isZero();
+    }
+
+    @Test
+    public void checkSnapshotIndexUnaffectedByLaterIssues() {
+        PostAnalysisIssueVisitor testCase = new PostAnalysisIssueVisitor();
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+
+        PostAnalysisIssueVisitor snapshot = testCase.snapshot();
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+
+        assertThat(testCase.getOpenIssues()).hasSize(2);
+        assertThat(testCase.countOpenIssues(RuleType.BUG)).isEqualTo(2);
+        assertThat(snapshot.getOpenIssues()).hasSize(1);
+        assertThat(snapshot.countOpenIssues(RuleType.BUG)).isEqualTo(1);
+    }
+
+    @Test
+    public void checkIssuesNotCollectedForBranchAnalysis() {
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        AnalysisMetadataHolder analysisMetadataHolder = mock(AnalysisMetadataHolder.class);
+        when(analysisMetadataHolder.isPullRequest()).thenReturn(false);
+        TempFolder tempFolder = mock(TempFolder.class);
+
+        PostAnalysisIssueVisitor testCase =
+                new PostAnalysisIssueVisitor(configurationRepository, analysisMetadataHolder, tempFolder);
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_CLOSED, RuleType.BUG, Severity.MAJOR));
 
+        assertThat(testCase.getOpenIssues()).isEmpty();
+        assertThat(testCase.countOpenIssues(RuleType.BUG)).isZero();
+        assertThat(testCase.countIssuesByStatus(Issue.STATUS_CLOSED)).isZero();
+        assertThat(testCase.snapshot().getOpenIssues()).isEmpty();
+        verify(analysisMetadataHolder, times(1)).isPullRequest();
+        verifyZeroInteractions(tempFolder);
+    }
+
+    @Test
+    public void checkIssuesNotCollectedWithoutProvider() {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(any())).thenReturn(Optional.empty());
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        AnalysisMetadataHolder analysisMetadataHolder = mock(AnalysisMetadataHolder.class);
+        when(analysisMetadataHolder.isPullRequest()).thenReturn(true);
+
+        PostAnalysisIssueVisitor testCase =
+                new PostAnalysisIssueVisitor(configurationRepository, analysisMetadataHolder, mock(TempFolder.class));
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+        testCase.onIssue(mock(Component.class), issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR));
+
+        assertThat(testCase.getOpenIssues()).isEmpty();
+        verify(configuration, times(1)).get("sonar.pullrequest.provider");
+    }
+
+    @Test
+    public void checkIssuesBeyondLimitWrittenToTempFolder() throws Exception {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get("sonar.pullrequest.provider")).thenReturn(Optional.of("GitlabServer"));
+        when(configuration.get(PostAnalysisIssueVisitor.PULL_REQUEST_ISSUES_MAX_IN_MEMORY)).thenReturn(Optional.of("2"));
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        AnalysisMetadataHolder analysisMetadataHolder = mock(AnalysisMetadataHolder.class);
+        when(analysisMetadataHolder.isPullRequest()).thenReturn(true);
+        TempFolder tempFolder = mock(TempFolder.class);
+        when(tempFolder.newFile(any(), any())).thenReturn(temporaryFolder.newFile());
+
+        PostAnalysisIssueVisitor testCase =
+                new PostAnalysisIssueVisitor(configurationRepository, analysisMetadataHolder, tempFolder);
+        Component component = mock(Component.class);
+        for (int i = 0; i < 5; i++) {
+            DefaultIssue issue = issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR);
+            doReturn("key" + i).when(issue).key();
             testCase.onIssue(component, issue);
         }
 
+        assertThat(testCase.getOpenIssues()).extracting(i -> i.getIssue().key())
+                .containsExactly("key0", "key1", "key2", "key3", "key4");
+        assertThat(testCase.countOpenIssues(component)).isEqualTo(5);
+        verify(tempFolder, times(1)).newFile("pull-request-issues", ".bin");
+    }
+
+    @Test
+    public void checkInvalidMaxInMemoryFallsBackToDefault() {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get("sonar.pullrequest.provider")).thenReturn(Optional.of("GitlabServer"));
+        when(configuration.get(PostAnalysisIssueVisitor.PULL_REQUEST_ISSUES_MAX_IN_MEMORY)).thenReturn(Optional.of("lots"));
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        AnalysisMetadataHolder analysisMetadataHolder = mock(AnalysisMetadataHolder.class);
+        when(analysisMetadataHolder.isPullRequest()).thenReturn(true);
+        TempFolder tempFolder = mock(TempFolder.class);
 
-        assertThat(testCase.getIssues().size()).isEqualTo(expected.size());
-        for (int i = 0; i < expected.size(); i++) {
-            assertThat(testCase.getIssues().get(i).getIssue()).isEqualTo(expected.get(i).getIssue());
-            assertThat(testCase.getIssues().get(i).getComponent()).isEqualTo(expected.get(i).getComponent());
+        PostAnalysisIssueVisitor testCase =
+                new PostAnalysisIssueVisitor(configurationRepository, analysisMetadataHolder, tempFolder);
+        Component component = mock(Component.class);
+        for (int i = 0; i < 5; i++) {
+            DefaultIssue issue = issue(Issue.STATUS_OPEN, RuleType.BUG, Severity.MAJOR);
+            doReturn("key" + i).when(issue).key();
+            testCase.onIssue(component, issue);
         }
+
+        assertThat(testCase.getOpenIssues()).extracting(i -> i.getIssue().key())
+                .containsExactly("key0", "key1", "key2", "key3", "key4");
+        verifyZeroInteractions(tempFolder);
+    }
+
+    private static void assertMatches(PostAnalysisIssueVisitor.ComponentIssue actual,
+                                      PostAnalysisIssueVisitor.ComponentIssue expected) {
+        assertThat(actual.getComponent()).isSameAs(expected.getComponent());
+        DefaultIssue actualIssue = actual.getIssue();
+        DefaultIssue expectedIssue = expected.getIssue();
+        assertThat(actualIssue.key()).isEqualTo(expectedIssue.key());
+        assertThat(actualIssue.getMessage()).isEqualTo(expectedIssue.getMessage());
+        assertThat(actualIssue.getLine()).isEqualTo(expectedIssue.getLine());
+        assertThat(actualIssue.effortInMinutes()).isEqualTo(expectedIssue.effortInMinutes());
+        assertThat(actualIssue.getRuleKey()).isEqualTo(expectedIssue.getRuleKey());
+        assertThat(actualIssue.type()).isEqualTo(expectedIssue.type());
+        assertThat(actualIssue.severity()).isEqualTo(expectedIssue.severity());
+        assertThat(actualIssue.status()).isEqualTo(expectedIssue.status());
+    }
+
+    private static DefaultIssue issue(String status, RuleType type, String severity) {
+        DefaultIssue issue = mock(DefaultIssue.class);
+        doReturn(status).when(issue).status();
+        doReturn(type).when(issue).type();
+        doReturn(severity).when(issue).severity();
+        return issue;
     }
 }
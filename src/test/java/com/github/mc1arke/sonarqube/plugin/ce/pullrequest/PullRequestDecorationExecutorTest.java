@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecoratorMetrics;
+import org.junit.After;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PullRequestDecorationExecutorTest {
+
+    private final Configuration configuration = mock(Configuration.class);
+    private final DecorationMetrics decorationMetrics = new DecorationMetrics();
+    private final PullRequestDecorationExecutor testCase = new PullRequestDecorationExecutor(configuration, decorationMetrics);
+
+    @After
+    public void tearDown() {
+        testCase.stop();
+        decorationMetrics.stop();
+    }
+
+    @Test
+    public void testDecorationRunsOffCallingThread() throws InterruptedException {
+        testCase.start();
+
+        List<String> threadNames = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            threadNames.add(Thread.currentThread().getName());
+            latch.countDown();
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(decorator, mock(AnalysisDetails.class));
+
+        assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(threadNames).containsExactly("pull-request-decoration-1");
+    }
+
+    @Test
+    public void testFailedDecorationDoesNotStopFurtherDecorations() {
+        testCase.start();
+
+        PullRequestBuildStatusDecorator failingDecorator = decorator();
+        doThrow(new IllegalStateException("Whoops")).when(failingDecorator).decorateQualityGateStatus(any());
+        PullRequestBuildStatusDecorator decorator = decorator();
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+
+        testCase.submit(failingDecorator, analysisDetails);
+        testCase.submit(decorator, analysisDetails);
+
+        verify(decorator, timeout(10000)).decorateQualityGateStatus(analysisDetails);
+    }
+
+    @Test
+    public void testFullQueueRunsOnCallingThreadByDefault() {
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        testCase.start();
+
+        CountDownLatch release = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator blockingDecorator = blockingDecorator(release);
+        List<String> threadNames = new CopyOnWriteArrayList<>();
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> threadNames.add(Thread.currentThread().getName())).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(blockingDecorator, analysisDetails("1"));
+        testCase.submit(blockingDecorator, analysisDetails("2"));
+        testCase.submit(decorator, analysisDetails("3"));
+        release.countDown();
+
+        assertThat(threadNames).containsExactly(Thread.currentThread().getName());
+    }
+
+    @Test
+    public void testFullQueueRunsOnlyOneDecorationOnCallingThread() {
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        testCase.start();
+
+        CountDownLatch release = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator blockingDecorator = blockingDecorator(release);
+        AnalysisDetails callerRuns = analysisDetails("3");
+        AnalysisDetails newer = analysisDetails("3");
+        List<String> threadNames = new CopyOnWriteArrayList<>();
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            threadNames.add(Thread.currentThread().getName());
+            if (i.getArgument(0) == callerRuns) {
+                // another worker submits a newer analysis of the pull request whilst this one is being decorated
+                Thread worker = new Thread(() -> testCase.submit(decorator, newer));
+                worker.start();
+                worker.join();
+                release.countDown();
+                verify(blockingDecorator, timeout(10000).times(2)).decorateQualityGateStatus(any());
+            }
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(blockingDecorator, analysisDetails("1"));
+        testCase.submit(blockingDecorator, analysisDetails("2"));
+        testCase.submit(decorator, callerRuns);
+        testCase.stop();
+
+        assertThat(threadNames).containsExactly(Thread.currentThread().getName(), "pull-request-decoration-1");
+    }
+
+    @Test
+    public void testErrorDuringDecorationDoesNotBlockLaterDecorationsOfPullRequest() {
+        testCase.start();
+
+        AnalysisDetails failing = analysisDetails("1");
+        AnalysisDetails later = analysisDetails("1");
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            if (i.getArgument(0) == failing) {
+                throw new NoClassDefFoundError("Dummy");
+            }
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(decorator, failing);
+        verify(decorator, timeout(10000)).decorateQualityGateStatus(failing);
+        testCase.submit(decorator, later);
+
+        verify(decorator, timeout(10000)).decorateQualityGateStatus(later);
+    }
+
+    @Test
+    public void testFullQueueDiscardsDecorationWhenConfigured() {
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        doReturn(Optional.of("DISCARD")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_REJECTION_POLICY);
+        testCase.start();
+
+        CountDownLatch release = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator blockingDecorator = blockingDecorator(release);
+        PullRequestBuildStatusDecorator decorator = decorator();
+
+        testCase.submit(blockingDecorator, analysisDetails("1"));
+        testCase.submit(blockingDecorator, analysisDetails("2"));
+        testCase.submit(decorator, analysisDetails("3"));
+        release.countDown();
+        testCase.stop();
+
+        verify(blockingDecorator, times(2)).decorateQualityGateStatus(any());
+        verify(decorator, never()).decorateQualityGateStatus(any());
+    }
+
+    @Test
+    public void testDecorationRunsOnCallingThreadWhenNotStarted() {
+        PullRequestBuildStatusDecorator decorator = decorator();
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+
+        testCase.submit(decorator, analysisDetails);
+
+        verify(decorator).decorateQualityGateStatus(analysisDetails);
+    }
+
+    @Test
+    public void testStopWaitsForQueuedDecorations() {
+        testCase.start();
+
+        PullRequestBuildStatusDecorator decorator = decorator();
+        for (int i = 0; i < 5; i++) {
+            testCase.submit(decorator, analysisDetails(String.valueOf(i)));
+        }
+        testCase.stop();
+
+        verify(decorator, times(5)).decorateQualityGateStatus(any());
+    }
+
+    @Test
+    public void testDecorationsOfSamePullRequestRunOneAtATimeInOrder() throws InterruptedException {
+        doReturn(Optional.of("4")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        testCase.start();
+
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> events = new CopyOnWriteArrayList<>();
+        AnalysisDetails first = analysisDetails("1");
+        AnalysisDetails second = analysisDetails("1");
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            AnalysisDetails analysisDetails = i.getArgument(0);
+            String name = analysisDetails == first ? "first" : "second";
+            events.add(name + " started");
+            if (analysisDetails == first) {
+                firstStarted.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            events.add(name + " finished");
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(decorator, first);
+        assertThat(firstStarted.await(10, TimeUnit.SECONDS)).isTrue();
+        testCase.submit(decorator, second);
+        Thread.sleep(200);
+        assertThat(events).containsExactly("first started");
+
+        release.countDown();
+        testCase.stop();
+
+        assertThat(events).containsExactly("first started", "first finished", "second started", "second finished");
+    }
+
+    @Test
+    public void testQueuedDecorationReplacedByNewerAnalysisOfSamePullRequest() throws InterruptedException {
+        testCase.start();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AnalysisDetails running = analysisDetails("1");
+        AnalysisDetails older = analysisDetails("1");
+        AnalysisDetails newer = analysisDetails("1");
+        AnalysisDetails otherPullRequest = analysisDetails("2");
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            if (i.getArgument(0) == running) {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+
+        testCase.submit(decorator, running);
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        testCase.submit(decorator, older);
+        testCase.submit(decorator, otherPullRequest);
+        testCase.submit(decorator, newer);
+        release.countDown();
+        testCase.stop();
+
+        verify(decorator).decorateQualityGateStatus(running);
+        verify(decorator, never()).decorateQualityGateStatus(older);
+        verify(decorator).decorateQualityGateStatus(newer);
+        verify(decorator).decorateQualityGateStatus(otherPullRequest);
+    }
+
+    @Test
+    public void testDiscardedDecorationDoesNotBlockLaterDecorationsOfPullRequest() {
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        doReturn(Optional.of("DISCARD")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_REJECTION_POLICY);
+        testCase.start();
+
+        CountDownLatch release = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator blockingDecorator = blockingDecorator(release);
+        PullRequestBuildStatusDecorator decorator = decorator();
+        AnalysisDetails discarded = analysisDetails("3");
+        AnalysisDetails later = analysisDetails("3");
+
+        testCase.submit(blockingDecorator, analysisDetails("1"));
+        testCase.submit(blockingDecorator, analysisDetails("2"));
+        testCase.submit(decorator, discarded);
+        release.countDown();
+        verify(blockingDecorator, timeout(10000).times(2)).decorateQualityGateStatus(any());
+        testCase.submit(decorator, later);
+        testCase.stop();
+
+        verify(decorator, never()).decorateQualityGateStatus(discarded);
+        verify(decorator).decorateQualityGateStatus(later);
+    }
+
+    @Test
+    public void testInvalidSettingsFallBackToDefaults() {
+        doReturn(Optional.of("lots")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("-1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        doReturn(Optional.of("sometimes")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_REJECTION_POLICY);
+        testCase.start();
+
+        PullRequestBuildStatusDecorator decorator = decorator();
+        AnalysisDetails analysisDetails = analysisDetails("1");
+        testCase.submit(decorator, analysisDetails);
+
+        verify(decorator, timeout(10000)).decorateQualityGateStatus(analysisDetails);
+    }
+
+    @Test
+    public void testRejectionPolicyIsCaseInsensitive() {
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_THREADS);
+        doReturn(Optional.of("1")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_QUEUE_SIZE);
+        doReturn(Optional.of(" discard ")).when(configuration).get(PullRequestDecorationExecutor.PULL_REQUEST_DECORATION_REJECTION_POLICY);
+        testCase.start();
+
+        CountDownLatch release = new CountDownLatch(1);
+        PullRequestBuildStatusDecorator blockingDecorator = blockingDecorator(release);
+        PullRequestBuildStatusDecorator decorator = decorator();
+
+        testCase.submit(blockingDecorator, analysisDetails("1"));
+        testCase.submit(blockingDecorator, analysisDetails("2"));
+        testCase.submit(decorator, analysisDetails("3"));
+        release.countDown();
+        testCase.stop();
+
+        verify(decorator, never()).decorateQualityGateStatus(any());
+    }
+
+    @Test
+    public void testDecorationsRecordedInMetrics() {
+        PullRequestBuildStatusDecorator failingDecorator = decorator();
+        doThrow(new IllegalStateException("Whoops")).when(failingDecorator).decorateQualityGateStatus(any());
+
+        testCase.submit(decorator(), mock(AnalysisDetails.class));
+        testCase.submit(failingDecorator, mock(AnalysisDetails.class));
+
+        DecoratorMetrics decoratorMetrics = decorationMetrics.getDecoratorMetrics("Test");
+        assertThat(decoratorMetrics.getDecorationCount()).isEqualTo(2);
+        assertThat(decoratorMetrics.getFailedDecorationCount()).isEqualTo(1);
+        assertThat(DecorationRecording.current().isActive()).isFalse();
+    }
+
+    private static PullRequestBuildStatusDecorator decorator() {
+        PullRequestBuildStatusDecorator decorator = mock(PullRequestBuildStatusDecorator.class);
+        doReturn("Test").when(decorator).name();
+        return decorator;
+    }
+
+    private static AnalysisDetails analysisDetails(String pullRequest) {
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        doReturn(pullRequest).when(analysisDetails).getBranchName();
+        doReturn("project").when(analysisDetails).getAnalysisProjectKey();
+        return analysisDetails;
+    }
+
+    private static PullRequestBuildStatusDecorator blockingDecorator(CountDownLatch release) {
+        PullRequestBuildStatusDecorator decorator = decorator();
+        doAnswer(i -> {
+            release.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(decorator).decorateQualityGateStatus(any());
+        return decorator;
+    }
+}
@@ -61,11 +61,12 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(branch).getType();
@@ -87,11 +88,12 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(branch).getName();
@@ -113,6 +115,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         Configuration configuration = mock(Configuration.class);
         doReturn(Optional.empty()).when(configuration).get(eq("sonar.pullrequest.provider"));
@@ -121,7 +124,7 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(configurationRepository).getConfiguration();
@@ -144,6 +147,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         PullRequestBuildStatusDecorator decorator1 = mock(PullRequestBuildStatusDecorator.class);
         doReturn("decorator-name-1").when(decorator1).name();
@@ -160,7 +164,7 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(configurationRepository).getConfiguration();
@@ -185,6 +189,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         doReturn(Optional.empty()).when(projectAnalysis).getAnalysis();
 
@@ -203,12 +208,13 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(configurationRepository).getConfiguration();
         verify(projectAnalysis).getAnalysis();
         verify(decorator2, never()).decorateQualityGateStatus(any());
+        verify(pullRequestDecorationExecutor, never()).submit(any(), any());
     }
 
 
@@ -227,6 +233,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         Analysis analysis = mock(Analysis.class);
         doReturn(Optional.empty()).when(analysis).getRevision();
@@ -247,13 +254,14 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(configurationRepository).getConfiguration();
         verify(projectAnalysis).getAnalysis();
         verify(projectAnalysis, never()).getQualityGate();
         verify(decorator2, never()).decorateQualityGateStatus(any());
+        verify(pullRequestDecorationExecutor, never()).submit(any(), any());
     }
 
     @Test
@@ -271,6 +279,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         Analysis analysis = mock(Analysis.class);
         doReturn(Optional.of("revision")).when(analysis).getRevision();
@@ -291,13 +300,14 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         verify(configurationRepository).getConfiguration();
         verify(projectAnalysis).getAnalysis();
         verify(projectAnalysis).getQualityGate();
         verify(decorator2, never()).decorateQualityGateStatus(any());
+        verify(pullRequestDecorationExecutor, never()).submit(any(), any());
     }
 
     @Test
@@ -318,6 +328,7 @@ public class PullRequestPostAnalysisTaskTest {
         MetricRepository metricRepository = mock(MetricRepository.class);
         MeasureRepository measureRepository = mock(MeasureRepository.class);
         TreeRootHolder treeRootHolder = mock(TreeRootHolder.class);
+        PullRequestDecorationExecutor pullRequestDecorationExecutor = mock(PullRequestDecorationExecutor.class);
 
         Analysis analysis = mock(Analysis.class);
         doReturn(Optional.of("revision")).when(analysis).getRevision();
@@ -333,6 +344,8 @@ public class PullRequestPostAnalysisTaskTest {
 
         PullRequestBuildStatusDecorator decorator2 = mock(PullRequestBuildStatusDecorator.class);
         doReturn("decorator-name-2").when(decorator2).name();
+        LineRevisions lineRevisions = LineRevisions.none();
+        doReturn(lineRevisions).when(decorator2).prepare(any());
         pullRequestBuildStatusDecorators.add(decorator2);
 
         Configuration configuration = mock(Configuration.class);
@@ -342,7 +355,7 @@ public class PullRequestPostAnalysisTaskTest {
         PullRequestPostAnalysisTask testCase =
                 new PullRequestPostAnalysisTask(server, configurationRepository, pullRequestBuildStatusDecorators,
                                                 postAnalysisIssueVisitor, metricRepository, measureRepository,
-                                                treeRootHolder);
+                                                treeRootHolder, pullRequestDecorationExecutor);
         testCase.finished(projectAnalysis);
 
         ArgumentCaptor<AnalysisDetails> analysisDetailsArgumentCaptor = ArgumentCaptor.forClass(AnalysisDetails.class);
@@ -350,14 +363,16 @@ public class PullRequestPostAnalysisTaskTest {
         verify(configurationRepository).getConfiguration();
         verify(projectAnalysis).getAnalysis();
         verify(projectAnalysis).getQualityGate();
-        verify(decorator2).decorateQualityGateStatus(analysisDetailsArgumentCaptor.capture());
+        verify(decorator2).prepare(any());
+        verify(decorator2, never()).decorateQualityGateStatus(any());
+        verify(pullRequestDecorationExecutor).submit(eq(decorator2), analysisDetailsArgumentCaptor.capture());
 
         AnalysisDetails analysisDetails =
                 new AnalysisDetails(new AnalysisDetails.BranchDetails("pull-request", "revision"),
                                     postAnalysisIssueVisitor, qualityGate,
                                     new AnalysisDetails.MeasuresHolder(metricRepository, measureRepository,
                                                                        treeRootHolder), analysis, project,
-                                    null);
+                                    null).snapshot(configuration, lineRevisions);
         assertThat(analysisDetailsArgumentCaptor.getValue()).usingRecursiveComparison().isEqualTo(analysisDetails);
     }
 
@@ -365,7 +380,8 @@ public class PullRequestPostAnalysisTaskTest {
     public void testCorrectDescriptionReturnedForTask() {
         assertThat(new PullRequestPostAnalysisTask(mock(Server.class), mock(ConfigurationRepository.class), new ArrayList<>(),
                                                    mock(PostAnalysisIssueVisitor.class), mock(MetricRepository.class),
-                                                   mock(MeasureRepository.class), mock(TreeRootHolder.class))
+                                                   mock(MeasureRepository.class), mock(TreeRootHolder.class),
+                                                   mock(PullRequestDecorationExecutor.class))
                            .getDescription()).isEqualTo("Pull Request Decoration");
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Activity;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.ActivityPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.Comment;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ActivityCommentIteratorTest {
+
+    private final Map<String, ActivityPage> pages = new HashMap<>();
+    private final List<String> requestedUrls = new ArrayList<>();
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void checkAllPagesReadAndFiltered() {
+        pages.put("activities?limit=2", page(0, 2, false, comment(1, "bot"), comment(2, "user")));
+        pages.put("activities?limit=2&start=2", page(2, 4, false, comment(3, "bot"), comment(4, "bot")));
+        pages.put("activities?limit=2&start=4", page(4, 0, true, comment(5, "user")));
+
+        ActivityCommentIterator testCase = iterator("activities?limit=2", c -> false);
+
+        assertThat(ids(testCase)).containsExactly(1, 3, 4);
+        assertThat(testCase.isComplete()).isTrue();
+        assertThat(testCase.isStoppedEarly()).isFalse();
+        assertThat(testCase.getPagesRead()).isEqualTo(3);
+        assertThat(requestedUrls).containsExactly("activities?limit=2", "activities?limit=2&start=2",
+                                                  "activities?limit=2&start=4");
+        assertThatThrownBy(testCase::next).isInstanceOf(NoSuchElementException.class);
+    }
+
+    @Test
+    public void checkPagesAfterLastCommentNotRequested() {
+        pages.put("activities", page(0, 2, false, comment(1, "bot"), comment(2, "bot", "last")));
+        pages.put("activities?start=2", page(2, 4, false, comment(3, "bot")));
+
+        ActivityCommentIterator testCase = iterator("activities", c -> "last".equals(c.getText()));
+
+        assertThat(ids(testCase)).containsExactly(1, 2);
+        assertThat(testCase.isComplete()).isTrue();
+        assertThat(testCase.isStoppedEarly()).isTrue();
+        assertThat(requestedUrls).containsExactly("activities");
+        assertThat(executorService.isShutdown()).isFalse();
+    }
+
+    @Test
+    public void checkIncompleteWhenPageCannotBeRead() {
+        pages.put("activities", page(0, 1, false, comment(1, "bot")));
+
+        ActivityCommentIterator testCase = iterator("activities", c -> false);
+
+        assertThat(ids(testCase)).containsExactly(1);
+        assertThat(testCase.isComplete()).isFalse();
+        assertThat(requestedUrls).containsExactly("activities", "activities?start=1");
+    }
+
+    @Test
+    public void checkFailureLoadingPrefetchedPagePropagated() {
+        pages.put("activities", page(0, 1, false, comment(1, "bot")));
+
+        ActivityCommentIterator testCase = new ActivityCommentIterator("activities", url -> {
+            if (!"activities".equals(url)) {
+                throw new IllegalStateException("Whoops");
+            }
+            return pages.get(url);
+        }, executorService, c -> true, c -> false);
+
+        assertThat(testCase.next().getId()).isEqualTo(1);
+        assertThatThrownBy(testCase::hasNext).isInstanceOf(IllegalStateException.class).hasMessage("Whoops");
+    }
+
+    @Test
+    public void checkOnlyCommentsByUserReturned() throws IOException {
+        assertThat(ownCommentIds("src/test/resources/bitbucket/delete/activityPageCase1.json")).isEmpty();
+        assertThat(ownCommentIds("src/test/resources/bitbucket/delete/activityPageCase2.json")).isEmpty();
+        assertThat(ownCommentIds("src/test/resources/bitbucket/delete/activityPageCase3.json")).isEmpty();
+        assertThat(ownCommentIds("src/test/resources/bitbucket/delete/activityPageCase4.json")).hasSize(1);
+    }
+
+    private List<Integer> ownCommentIds(String activityPageFile) throws IOException {
+        ActivityPage activityPage = new ObjectMapper().readValue(new File(activityPageFile), ActivityPage.class);
+        try (ActivityCommentIterator testCase = new ActivityCommentIterator("activities", url -> activityPage,
+                executorService, c -> BitbucketServerPullRequestDecorator.isAuthoredBy("susi.sonar", c), c -> false)) {
+            List<Integer> ids = ids(testCase);
+            assertThat(testCase.isComplete()).isTrue();
+            return ids;
+        }
+    }
+
+    private ActivityCommentIterator iterator(String url, Predicate<Comment> lastComment) {
+        return new ActivityCommentIterator(url, u -> {
+            synchronized (requestedUrls) {
+                requestedUrls.add(u);
+            }
+            return pages.get(u);
+        }, executorService, c -> "bot".equals(c.getAuthor().getSlug()), lastComment);
+    }
+
+    private static List<Integer> ids(ActivityCommentIterator iterator) {
+        List<Comment> comments = new ArrayList<>();
+        iterator.forEachRemaining(comments::add);
+        return comments.stream().map(Comment::getId).collect(Collectors.toList());
+    }
+
+    private static ActivityPage page(int start, int nextPageStart, boolean lastPage, Comment... comments) {
+        Activity[] activities = new Activity[comments.length + 1];
+        for (int i = 0; i < comments.length; i++) {
+            activities[i] = new Activity(i, comments[i].getAuthor(), comments[i]);
+        }
+        // activities that aren't comments are skipped
+        activities[comments.length] = new Activity(comments.length, new User("user", "user"), null);
+        return new ActivityPage(activities.length, activities.length, lastPage, start, nextPageStart, activities);
+    }
+
+    private static Comment comment(int id, String author) {
+        return comment(id, author, "comment " + id);
+    }
+
+    private static Comment comment(int id, String author, String text) {
+        return new Comment(id, 0, text, new User(author, author));
+    }
+}
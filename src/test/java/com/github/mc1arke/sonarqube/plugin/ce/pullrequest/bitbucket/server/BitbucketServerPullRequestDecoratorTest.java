@@ -1,21 +1,42 @@
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentReconciler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.SummaryComment;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.activity.ActivityPage;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.InjectMocks;
+import org.sonar.api.config.Configuration;
+import org.sonar.api.config.internal.MapSettings;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.ce.task.projectanalysis.component.Component;
+import org.sonar.ce.task.projectanalysis.scm.Changeset;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfo;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
+import org.sonar.core.issue.DefaultIssue;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
@@ -23,6 +44,10 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.IsNull.notNullValue;
 import static org.hamcrest.core.IsNull.nullValue;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class BitbucketServerPullRequestDecoratorTest {
 
@@ -32,6 +57,8 @@ public class BitbucketServerPullRequestDecoratorTest {
     @InjectMocks
     private BitbucketServerPullRequestDecorator bitbucketServerPullRequestDecorator;
 
+    private HttpClientProvider httpClientProvider;
+
     private Map<String, String> headers;
 
     /**
@@ -47,15 +74,25 @@ public class BitbucketServerPullRequestDecoratorTest {
 
     private static final String COMMENTURL = "http://localhost:8089/comments";
 
+    private static final String PULL_REQUEST_API = "/rest/api/1.0/projects/PROJ/repos/repo/pull-requests/5/";
+
+    private static final String ISSUE_PATH = "src/com/sonar/sample/classes/ClassWithInvalidMethodName.java";
+
     @Before
     public void setUp() {
-        bitbucketServerPullRequestDecorator = new BitbucketServerPullRequestDecorator(null);
+        httpClientProvider = new HttpClientProvider(mock(Configuration.class));
+        bitbucketServerPullRequestDecorator = new BitbucketServerPullRequestDecorator(null, null, httpClientProvider);
 
         headers = new HashMap<>();
         headers.put("Authorization", String.format("Bearer %s", APITOKEN));
         headers.put("Accept", "application/json");
     }
 
+    @After
+    public void tearDown() throws IOException {
+        httpClientProvider.close();
+    }
+
     @Test
     public void getPageActivityClass() throws Exception {
         stubFor(
@@ -117,62 +154,6 @@ public class BitbucketServerPullRequestDecoratorTest {
         assertThat(page.getDiffs().size(), is(1));
     }
 
-    @Test
-    public void getCommentsToDelete() throws Exception {
-        ActivityPage activityPage = new ObjectMapper().readValue(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/delete/activityPageCase1.json")), ActivityPage.class);
-        assertThat(bitbucketServerPullRequestDecorator.getCommentsToDelete("susi.sonar", activityPage).size() , is(0));
-
-        activityPage = new ObjectMapper().readValue(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/delete/activityPageCase2.json")), ActivityPage.class);
-        assertThat(bitbucketServerPullRequestDecorator.getCommentsToDelete("susi.sonar", activityPage).size() , is(0));
-
-        activityPage = new ObjectMapper().readValue(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/delete/activityPageCase3.json")), ActivityPage.class);
-        assertThat(bitbucketServerPullRequestDecorator.getCommentsToDelete("susi.sonar", activityPage).size() , is(0));
-
-        activityPage = new ObjectMapper().readValue(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/delete/activityPageCase4.json")), ActivityPage.class);
-        assertThat(bitbucketServerPullRequestDecorator.getCommentsToDelete("susi.sonar", activityPage).size() , is(1));
-    }
-
-    @Test
-    public void deleteComments() throws Exception {
-        assertThat(bitbucketServerPullRequestDecorator.deleteComments(ACTIVITYURL, COMMENTURL, "susi.sonar", headers, false), is(false));
-
-        stubFor(
-                get(urlEqualTo("/activities"))
-                        .withHeader("Accept" , equalTo("application/json"))
-                        .willReturn(
-                                aResponse()
-                                        .withStatus(200)
-                                        .withHeader("Content-Type", "application/json")
-                                        .withBody(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/activity.json")))
-                        )
-        );
-
-        stubFor(
-                delete(urlMatching("/comments/([0-9]*)\\?version=([0-9]*)"))
-                        .withHeader("Accept" , equalTo("application/json"))
-                        .willReturn(
-                                aResponse()
-                                        .withStatus(404)
-                                        .withHeader("Content-Type", "application/json")
-                                        .withBody("{}")
-                        )
-        );
-
-        assertThat(bitbucketServerPullRequestDecorator.deleteComments(ACTIVITYURL, COMMENTURL, "susi.sonar", headers, true), is(false));
-
-        stubFor(
-                delete(urlMatching("/comments/([0-9]*)\\?version=([0-9]*)"))
-                        .withHeader("Accept" , equalTo("application/json"))
-                        .willReturn(
-                                aResponse()
-                                        .withStatus(204)
-                                        .withHeader("Content-Type", "application/json")
-                                        .withBody("{}")
-                        )
-        );
-        assertThat(bitbucketServerPullRequestDecorator.deleteComments(ACTIVITYURL, COMMENTURL, "susi.sonar", headers, true), is(true));
-    }
-
     @Test
     public void getIssueType() throws Exception{
         stubFor(
@@ -197,6 +178,13 @@ public class BitbucketServerPullRequestDecoratorTest {
 
         issueType = bitbucketServerPullRequestDecorator.getIssueType(diffPage, "src/com/sonar/sample/classes/ClassWithInvalidMethodName.java", 15);
         assertThat(issueType, is("ADDED"));
+
+        // a different diff isn't classified against the index kept for the previous one
+        issueType = bitbucketServerPullRequestDecorator.getIssueType(new DiffPage("from", "to", false, Collections.emptyList()), "src/com/sonar/sample/classes/ClassWithInvalidMethodName.java", 15);
+        assertThat(issueType, is("CONTEXT"));
+
+        issueType = bitbucketServerPullRequestDecorator.getIssueType(diffPage, "src/com/sonar/sample/classes/ClassWithInvalidMethodName.java", 15);
+        assertThat(issueType, is("ADDED"));
     }
 
     @Test
@@ -228,4 +216,194 @@ public class BitbucketServerPullRequestDecoratorTest {
         );
         assertThat(bitbucketServerPullRequestDecorator.postComment(COMMENTURL, headers, summaryComment, true), is(true));
     }
+
+    @Test
+    public void decorateQualityGateStatusReconcilesComments() throws Exception {
+        MapSettings settings = decorationSettings();
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_RECONCILE, "true");
+        stubDecorationRequests(activityPage(true, 0,
+                activity(1, 3, "sonar", CommentReconciler.summaryComment("previous summary").getText()),
+                activity(2, 0, "sonar", "fixed issue\n\n[//]: # (sonarqube-fingerprint:0123abcd)"),
+                activity(3, 1, "reviewer", "a reviewer's comment")));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(settings, Collections.singletonList(componentIssue(mock(Component.class), 15))));
+
+        verify(exactly(1), putRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/1"))
+                .withRequestBody(matchingJsonPath("$.version", equalTo("3")))
+                .withRequestBody(matchingJsonPath("$.text", containing("summary text"))));
+        verify(exactly(1), deleteRequestedFor(urlPathMatching(PULL_REQUEST_API + "comments/.*")));
+        verify(exactly(1), deleteRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/2")).withQueryParam("version", equalTo("0")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                .withRequestBody(matchingJsonPath("$.anchor.line", equalTo("15")))
+                .withRequestBody(matchingJsonPath("$.anchor.lineType", equalTo("ADDED"))));
+    }
+
+    @Test
+    public void decorateQualityGateStatusKeepsOutdatedReconciledCommentsWhenDeletingDisabled() throws Exception {
+        MapSettings settings = decorationSettings();
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_RECONCILE, "true");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "false");
+        stubDecorationRequests(activityPage(true, 0,
+                activity(1, 3, "sonar", CommentReconciler.summaryComment("previous summary").getText()),
+                activity(2, 0, "sonar", "fixed issue\n\n[//]: # (sonarqube-fingerprint:0123abcd)")));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(settings, Collections.singletonList(componentIssue(mock(Component.class), 15))));
+
+        verify(exactly(1), putRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/1")));
+        verify(exactly(0), deleteRequestedFor(urlPathMatching(PULL_REQUEST_API + "comments/.*")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments")));
+    }
+
+    @Test
+    public void decorateQualityGateStatusPostsFileCommentsInParallel() throws Exception {
+        MapSettings settings = decorationSettings();
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_PARALLELISM, "4");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "false");
+        stubDecorationRequests(activityPage(true, 0));
+        Component component = mock(Component.class);
+        List<PostAnalysisIssueVisitor.ComponentIssue> issues = new ArrayList<>();
+        for (int line = 10; line < 20; line++) {
+            issues.add(componentIssue(component, line));
+        }
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(settings, issues));
+
+        verify(exactly(11), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments")));
+        for (int line = 10; line < 20; line++) {
+            verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                    .withRequestBody(matchingJsonPath("$.anchor.line", equalTo(String.valueOf(line)))));
+        }
+        verify(exactly(0), getRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "activities")));
+    }
+
+    @Test
+    public void decorateQualityGateStatusStopsCleanupAtLastCompleteCleanup() throws Exception {
+        stubDecorationRequests(activityPage(false, 3,
+                activity(1, 0, "sonar", "issue from the previous analysis"),
+                activity(2, 1, "sonar", "previous summary" + BitbucketServerPullRequestDecorator.CLEANUP_COMPLETE_MARKER),
+                activity(3, 0, "reviewer", "a reviewer's comment")));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(decorationSettings(), Collections.emptyList()));
+
+        verify(exactly(1), getRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "activities")));
+        verify(exactly(0), getRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "activities")).withQueryParam("start", equalTo("3")));
+        verify(exactly(2), deleteRequestedFor(urlPathMatching(PULL_REQUEST_API + "comments/.*")));
+        verify(exactly(1), deleteRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/1")).withQueryParam("version", equalTo("0")));
+        verify(exactly(1), deleteRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/2")).withQueryParam("version", equalTo("1")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                .withRequestBody(matchingJsonPath("$.text", containing("sonarqube-comment-cleanup:complete"))));
+    }
+
+    @Test
+    public void decorateQualityGateStatusSkipsCleanupWhenDeletingDisabled() throws Exception {
+        MapSettings settings = decorationSettings();
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "false");
+        stubDecorationRequests(activityPage(true, 0, activity(1, 0, "sonar", "issue from the previous analysis")));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(settings, Collections.emptyList()));
+
+        verify(exactly(0), getRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "activities")));
+        verify(exactly(0), deleteRequestedFor(urlPathMatching(PULL_REQUEST_API + "comments/.*")));
+        verify(exactly(0), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                .withRequestBody(matchingJsonPath("$.text", containing("sonarqube-comment-cleanup:complete"))));
+    }
+
+    @Test
+    public void decorateQualityGateStatusLeavesCleanupIncompleteWhenDeleteFails() throws Exception {
+        stubDecorationRequests(activityPage(true, 0,
+                activity(1, 0, "sonar", "issue from the previous analysis"),
+                activity(2, 0, "sonar", "another issue from the previous analysis"),
+                activity(3, 0, "reviewer", "a reviewer's comment")));
+        stubFor(delete(urlPathEqualTo(PULL_REQUEST_API + "comments/1")).willReturn(aResponse().withStatus(404).withHeader("Content-Type", "application/json").withBody("{}")));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails(decorationSettings(), Collections.emptyList()));
+
+        verify(exactly(2), deleteRequestedFor(urlPathMatching(PULL_REQUEST_API + "comments/.*")));
+        verify(exactly(1), deleteRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments/2")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments")));
+        verify(exactly(0), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                .withRequestBody(matchingJsonPath("$.text", containing("sonarqube-comment-cleanup:complete"))));
+    }
+
+    @Test
+    public void decorateQualityGateStatusOnlyCommentsOnChangedLines() throws Exception {
+        MapSettings settings = decorationSettings();
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_CHANGED_LINES_ONLY, "true");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "false");
+        stubDecorationRequests(activityPage(true, 0));
+        stubFor(get(urlPathEqualTo(PULL_REQUEST_API + "commits")).willReturn(okJson("{\"isLastPage\": true, \"values\": [{\"id\": \"pull-request-commit\"}]}")));
+        Component component = mock(Component.class);
+        List<PostAnalysisIssueVisitor.ComponentIssue> issues = Arrays.asList(componentIssue(component, 15), componentIssue(component, 16));
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        when(scmInfo.hasChangesetForLine(anyInt())).thenReturn(true);
+        when(scmInfo.getChangesetForLine(15)).thenReturn(Changeset.newChangesetBuilder().setDate(0L).setRevision("pull-request-commit").build());
+        when(scmInfo.getChangesetForLine(16)).thenReturn(Changeset.newChangesetBuilder().setDate(0L).setRevision("target-branch-commit").build());
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        when(scmInfoRepository.getScmInfo(component)).thenReturn(Optional.of(scmInfo));
+        AnalysisDetails analysisDetails = analysisDetails(settings, issues);
+        when(analysisDetails.getLineRevisions()).thenReturn(LineRevisions.read(scmInfoRepository, issues));
+
+        bitbucketServerPullRequestDecorator.decorateQualityGateStatus(analysisDetails);
+
+        verify(exactly(2), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments")));
+        verify(exactly(1), postRequestedFor(urlPathEqualTo(PULL_REQUEST_API + "comments"))
+                .withRequestBody(matchingJsonPath("$.anchor.line", equalTo("15"))));
+    }
+
+    private static MapSettings decorationSettings() {
+        MapSettings settings = new MapSettings();
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_URL, "http://localhost:8089");
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_TOKEN, APITOKEN);
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_PROJECT_KEY, "PROJ");
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_REPOSITORY_SLUG, "repo");
+        settings.setProperty(BitbucketServerPullRequestDecorator.PULL_REQUEST_BITBUCKET_COMMENT_USER_SLUG, "sonar");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_COMMENT_SUMMARY_ENABLED, "true");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_ENABLED, "true");
+        settings.setProperty(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED, "true");
+        return settings;
+    }
+
+    private static void stubDecorationRequests(String activityPage) throws IOException {
+        stubFor(get(urlPathEqualTo(PULL_REQUEST_API + "activities")).willReturn(okJson(activityPage)));
+        stubFor(get(urlPathEqualTo(PULL_REQUEST_API + "diff")).willReturn(aResponse().withStatus(200).withHeader("Content-Type", "application/json")
+                .withBody(FileUtils.readFileToByteArray(new File("src/test/resources/bitbucket/diff.json")))));
+        stubFor(post(urlPathEqualTo(PULL_REQUEST_API + "comments")).willReturn(aResponse().withStatus(201).withHeader("Content-Type", "application/json").withBody("{}")));
+        stubFor(put(urlPathMatching(PULL_REQUEST_API + "comments/[0-9]+")).willReturn(okJson("{}")));
+        stubFor(delete(urlPathMatching(PULL_REQUEST_API + "comments/[0-9]+")).willReturn(aResponse().withStatus(204)));
+    }
+
+    private static AnalysisDetails analysisDetails(MapSettings settings, List<PostAnalysisIssueVisitor.ComponentIssue> issues) {
+        PostAnalysisIssueVisitor issueVisitor = mock(PostAnalysisIssueVisitor.class);
+        when(issueVisitor.getOpenIssues()).thenReturn(issues);
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        when(analysisDetails.getConfiguration()).thenReturn(settings.asConfig());
+        when(analysisDetails.getLineRevisions()).thenReturn(LineRevisions.none());
+        when(analysisDetails.getBranchName()).thenReturn("5");
+        when(analysisDetails.getPostAnalysisIssueVisitor()).thenReturn(issueVisitor);
+        when(analysisDetails.createAnalysisSummary(any())).thenReturn("summary text");
+        when(analysisDetails.createAnalysisIssueSummary(any(), any())).thenReturn("issue text");
+        when(analysisDetails.getSCMPathForIssue(any())).thenReturn(Optional.of(ISSUE_PATH));
+        return analysisDetails;
+    }
+
+    private static PostAnalysisIssueVisitor.ComponentIssue componentIssue(Component component, int line) {
+        DefaultIssue issue = mock(DefaultIssue.class);
+        when(issue.getLine()).thenReturn(line);
+        when(issue.ruleKey()).thenReturn(RuleKey.of("java", "S100"));
+        when(issue.getMessage()).thenReturn("Rename this method");
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        when(componentIssue.getComponent()).thenReturn(component);
+        when(componentIssue.getIssue()).thenReturn(issue);
+        return componentIssue;
+    }
+
+    private static String activityPage(boolean lastPage, int nextPageStart, String... activities) {
+        return String.format("{\"isLastPage\": %s, \"start\": 0, \"nextPageStart\": %s, \"values\": [%s]}", lastPage, nextPageStart, String.join(",", activities));
+    }
+
+    private static String activity(int id, int version, String author, String text) throws IOException {
+        return String.format("{\"id\": %s, \"comment\": {\"id\": %s, \"version\": %s, \"text\": %s, \"author\": {\"slug\": \"%s\"}}}",
+                id, id, version, new ObjectMapper().writeValueAsString(text), author);
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.server;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Diff;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffLine;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.DiffPage;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.File;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Hunk;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.bitbucket.response.diff.Segment;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DiffLineIndexTest {
+
+    @Test
+    public void checkLinesClassifiedBySegment() {
+        DiffLineIndex testCase = DiffLineIndex.of(new DiffPage("from", "to", false, Arrays.asList(
+                diff("src/Changed.java", hunk(segment("CONTEXT", 1, 3), segment("REMOVED", 4, 4),
+                                              segment("ADDED", 4, 8), segment("CONTEXT", 9, 11)),
+                     hunk(segment("ADDED", 20, 20), segment("CONTEXT", 21, 23))),
+                diff(null, hunk(segment("ADDED", 1, 100))))));
+
+        assertThat(testCase.getType("src/Changed.java", 0)).isEqualTo("CONTEXT");
+        assertThat(testCase.getType("src/Changed.java", 2)).isEqualTo("CONTEXT");
+        // the removed line comes before the added line at the same position in the hunk
+        assertThat(testCase.getType("src/Changed.java", 4)).isEqualTo("REMOVED");
+        assertThat(testCase.getType("src/Changed.java", 5)).isEqualTo("ADDED");
+        assertThat(testCase.getType("src/Changed.java", 8)).isEqualTo("ADDED");
+        assertThat(testCase.getType("src/Changed.java", 15)).isEqualTo("CONTEXT");
+        assertThat(testCase.getType("src/Changed.java", 20)).isEqualTo("ADDED");
+        assertThat(testCase.getType("src/Changed.java", 50)).isEqualTo("CONTEXT");
+        assertThat(testCase.getType("src/Other.java", 20)).isEqualTo("CONTEXT");
+    }
+
+    @Test
+    public void checkLaterHunkTakesPrecedence() {
+        DiffLineIndex testCase = DiffLineIndex.of(new DiffPage("from", "to", false, Collections.singletonList(
+                diff("src/Changed.java", hunk(segment("CONTEXT", 1, 10)), hunk(segment("ADDED", 5, 6))))));
+
+        assertThat(testCase.getType("src/Changed.java", 4)).isEqualTo("CONTEXT");
+        assertThat(testCase.getType("src/Changed.java", 5)).isEqualTo("ADDED");
+        assertThat(testCase.getType("src/Changed.java", 6)).isEqualTo("ADDED");
+        assertThat(testCase.getType("src/Changed.java", 7)).isEqualTo("CONTEXT");
+    }
+
+    @Test
+    public void checkEmptyDiffClassifiesEverythingAsContext() {
+        assertThat(DiffLineIndex.of(null).getType("src/Changed.java", 1)).isEqualTo("CONTEXT");
+        assertThat(DiffLineIndex.of(new DiffPage("from", "to", false, null)).getType("src/Changed.java", 1))
+                .isEqualTo("CONTEXT");
+    }
+
+    private static Diff diff(String destination, Hunk... hunks) {
+        File destinationFile =
+                null == destination ? null : new File(null, null, null, destination, Collections.emptyList());
+        return new Diff("from", "to", Arrays.asList(hunks), null, destinationFile);
+    }
+
+    private static Hunk hunk(Segment... segments) {
+        return new Hunk(null, 0, 0, 0, 0, Arrays.asList(segments));
+    }
+
+    private static Segment segment(String type, int firstLine, int lastLine) {
+        List<DiffLine> lines = IntStream.rangeClosed(firstLine, lastLine)
+                .mapToObj(i -> new DiffLine(i, i, "line " + i, false, Collections.emptyList()))
+                .collect(Collectors.toList());
+        return new Segment(type, lines, false);
+    }
+}
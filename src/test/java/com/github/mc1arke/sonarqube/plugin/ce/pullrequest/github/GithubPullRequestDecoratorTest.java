@@ -65,4 +65,14 @@ public class GithubPullRequestDecoratorTest {
         verify(checkRunProvider).createCheckRun(argumentCaptor.capture());
         assertEquals(analysisDetails, argumentCaptor.getValue());
     }
+
+    @Test
+    public void testPrepareDelegatesToCheckRunProvider() {
+        CheckRunProvider checkRunProvider = mock(CheckRunProvider.class);
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+
+        new GithubPullRequestDecorator(checkRunProvider).prepare(analysisDetails);
+
+        verify(checkRunProvider).prepare(analysisDetails);
+    }
 }
\ No newline at end of file
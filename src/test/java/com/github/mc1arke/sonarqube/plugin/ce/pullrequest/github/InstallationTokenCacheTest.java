@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstallationTokenCacheTest {
+
+    private static final Instant NOW = Instant.parse("2019-11-01T10:00:00Z");
+
+    @Test
+    public void checkTokenReusedForSameRepository() throws IOException {
+        InstallationTokenCache testCase = new InstallationTokenCache();
+        Clock clock = Clock.fixed(NOW, ZoneId.of("UTC"));
+        AtomicInteger loads = new AtomicInteger();
+
+        RepositoryAuthenticationToken first = testCase.getToken("url", "app", "repo", clock, () -> token(loads, NOW.plus(1, ChronoUnit.HOURS)));
+        RepositoryAuthenticationToken second = testCase.getToken("url", "app", "repo", clock, () -> token(loads, NOW.plus(1, ChronoUnit.HOURS)));
+        RepositoryAuthenticationToken otherRepository = testCase.getToken("url", "app", "other", clock, () -> token(loads, NOW.plus(1, ChronoUnit.HOURS)));
+
+        assertThat(second).isSameAs(first);
+        assertThat(otherRepository).isNotSameAs(first);
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkTokenRefreshedBeforeExpiry() throws IOException {
+        InstallationTokenCache testCase = new InstallationTokenCache();
+        AtomicInteger loads = new AtomicInteger();
+
+        RepositoryAuthenticationToken first = testCase.getToken("url", "app", "repo", Clock.fixed(NOW, ZoneId.of("UTC")),
+                                                                () -> token(loads, NOW.plus(1, ChronoUnit.HOURS)));
+        Clock nearExpiry = Clock.fixed(NOW.plus(56, ChronoUnit.MINUTES), ZoneId.of("UTC"));
+        RepositoryAuthenticationToken second = testCase.getToken("url", "app", "repo", nearExpiry,
+                                                                 () -> token(loads, NOW.plus(2, ChronoUnit.HOURS)));
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.getExpiresAt()).isEqualTo(NOW.plus(2, ChronoUnit.HOURS));
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkConcurrentRequestsOnlyLoadTokenOnce() throws Exception {
+        InstallationTokenCache testCase = new InstallationTokenCache();
+        Clock clock = Clock.fixed(NOW, ZoneId.of("UTC"));
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<RepositoryAuthenticationToken> first = executorService.submit(() -> testCase.getToken("url", "app", "repo", clock, () -> {
+                loading.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return token(loads, NOW.plus(1, ChronoUnit.HOURS));
+            }));
+            assertThat(loading.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<RepositoryAuthenticationToken> second = executorService.submit(() -> testCase.getToken("url", "app", "repo", clock,
+                                                                                                          () -> token(loads, NOW.plus(1, ChronoUnit.HOURS))));
+            release.countDown();
+
+            assertThat(second.get(5, TimeUnit.SECONDS)).isSameAs(first.get(5, TimeUnit.SECONDS));
+            assertThat(loads.get()).isEqualTo(1);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static RepositoryAuthenticationToken token(AtomicInteger loads, Instant expiry) {
+        return new RepositoryAuthenticationToken("repository" + loads.incrementAndGet(), "token", expiry);
+    }
+}
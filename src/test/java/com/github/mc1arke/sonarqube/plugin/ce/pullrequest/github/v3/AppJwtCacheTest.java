@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AppJwtCacheTest {
+
+    private static final Instant NOW = Instant.parse("2019-11-01T10:00:00Z");
+
+    private String apiPrivateKey;
+
+    @Before
+    public void setUp() throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream("/rsa-private-key.pem")) {
+            apiPrivateKey = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testJwtReusedUntilShortlyBeforeExpiry() throws IOException {
+        AppJwtCache testCase = new AppJwtCache();
+
+        String first = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW));
+        String reused = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW.plusSeconds(60)));
+        String refreshed = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW.plusSeconds(85)));
+
+        assertThat(reused).isEqualTo(first);
+        assertThat(refreshed).isNotEqualTo(first);
+        assertThat(testCase.getJwt("appId", apiPrivateKey, clockAt(NOW.plusSeconds(85)))).isEqualTo(refreshed);
+    }
+
+    @Test
+    public void testJwtNotSharedBetweenApps() throws IOException {
+        AppJwtCache testCase = new AppJwtCache();
+
+        assertThat(testCase.getJwt("appId", apiPrivateKey, clockAt(NOW)))
+                .isNotEqualTo(testCase.getJwt("otherAppId", apiPrivateKey, clockAt(NOW)));
+    }
+
+    @Test
+    public void testJwtResignedWhenKeyChanges() throws IOException {
+        AppJwtCache testCase = new AppJwtCache();
+
+        String first = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW));
+        String rotated = testCase.getJwt("appId", apiPrivateKey + "\n", clockAt(NOW.plusSeconds(20)));
+
+        assertThat(rotated).isNotEqualTo(first);
+        assertThat(testCase.getJwt("appId", apiPrivateKey + "\n", clockAt(NOW.plusSeconds(40)))).isEqualTo(rotated);
+    }
+
+    @Test
+    public void testPreviousKeyReplacedWhenKeyChanges() throws IOException {
+        AppJwtCache testCase = new AppJwtCache();
+
+        String first = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW));
+        testCase.getJwt("appId", apiPrivateKey + "\n", clockAt(NOW.plusSeconds(20)));
+        String reverted = testCase.getJwt("appId", apiPrivateKey, clockAt(NOW.plusSeconds(20)));
+
+        assertThat(reverted).isNotEqualTo(first);
+        assertThat(testCase.getJwt("appId", apiPrivateKey, clockAt(NOW.plusSeconds(40)))).isEqualTo(reverted);
+    }
+
+    private static Clock clockAt(Instant instant) {
+        return Clock.fixed(instant, ZoneId.of("UTC"));
+    }
+}
@@ -18,17 +18,26 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
 
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import org.junit.Test;
+import org.sonar.api.config.Configuration;
 
 import java.io.IOException;
+import java.net.URLConnection;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
 
 public class DefaultUrlConnectionProviderTest {
 
     @Test
     public void testValidInputStreamReturned() throws IOException {
-        DefaultUrlConnectionProvider testCase = new DefaultUrlConnectionProvider();
-        assertEquals("http://localhost/", testCase.createUrlConnection("http://localhost/").getURL().toString());
+        try (HttpClientProvider httpClientProvider = new HttpClientProvider(mock(Configuration.class))) {
+            DefaultUrlConnectionProvider testCase = new DefaultUrlConnectionProvider(httpClientProvider);
+            URLConnection urlConnection = testCase.createUrlConnection("http://localhost/");
+            assertEquals("http://localhost/", urlConnection.getURL().toString());
+            assertEquals(10000, urlConnection.getConnectTimeout());
+            assertEquals(60000, urlConnection.getReadTimeout());
+        }
     }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.model.Repository;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstallationRepositoryIndexTest {
+
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2019-11-01T10:00:00Z"), ZoneId.of("UTC"));
+
+    @Test
+    public void checkIndexOnlyRefreshedOnMiss() throws IOException {
+        InstallationRepositoryIndex testCase = new InstallationRepositoryIndex();
+        AtomicInteger refreshes = new AtomicInteger();
+        InstallationRepositoryIndex.IndexRefresher refresher = appRepositories -> {
+            refreshes.incrementAndGet();
+            appRepositories.indexInstallation("installation",
+                                              Arrays.asList(new Repository("node a", "owner/a"),
+                                                            new Repository("node b", "owner/b")));
+        };
+
+        Optional<InstallationRepositoryIndex.InstallationRepository> first =
+                testCase.getRepository("url", "app", "owner/a", CLOCK, refresher);
+        Optional<InstallationRepositoryIndex.InstallationRepository> second =
+                testCase.getRepository("url", "app", "owner/b", CLOCK, refresher);
+        Optional<InstallationRepositoryIndex.InstallationRepository> missing =
+                testCase.getRepository("url", "app", "owner/c", CLOCK, refresher);
+
+        assertThat(first).hasValueSatisfying(r -> {
+            assertThat(r.getNodeId()).isEqualTo("node a");
+            assertThat(r.getAccessTokensUrl()).isEqualTo("installation");
+        });
+        assertThat(second).hasValueSatisfying(r -> assertThat(r.getNodeId()).isEqualTo("node b"));
+        assertThat(missing).isEmpty();
+        assertThat(refreshes.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkMissingRepositoryNotSearchedForAgainUntilMissExpires() throws IOException {
+        InstallationRepositoryIndex testCase = new InstallationRepositoryIndex();
+        AtomicInteger refreshes = new AtomicInteger();
+        InstallationRepositoryIndex.IndexRefresher refresher = appRepositories -> refreshes.incrementAndGet();
+
+        assertThat(testCase.getRepository("url", "app", "owner/a", CLOCK, refresher)).isEmpty();
+        assertThat(testCase.getRepository("url", "app", "owner/a",
+                                          Clock.offset(CLOCK, InstallationRepositoryIndex.MISS_TTL.minusSeconds(1)),
+                                          refresher)).isEmpty();
+        assertThat(refreshes.get()).isEqualTo(1);
+
+        assertThat(testCase.getRepository("url", "app", "owner/a",
+                                          Clock.offset(CLOCK, InstallationRepositoryIndex.MISS_TTL), refresher))
+                .isEmpty();
+        assertThat(refreshes.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkEvictedRepositoryRefreshedOnNextLookup() throws IOException {
+        InstallationRepositoryIndex testCase = new InstallationRepositoryIndex();
+        AtomicInteger refreshes = new AtomicInteger();
+        InstallationRepositoryIndex.IndexRefresher refresher = appRepositories -> appRepositories
+                .indexInstallation("installation " + refreshes.incrementAndGet(),
+                                   Collections.singletonList(new Repository("node a", "owner/a")));
+
+        InstallationRepositoryIndex.InstallationRepository stale =
+                testCase.getRepository("url", "app", "owner/a", CLOCK, refresher).orElseThrow(AssertionError::new);
+        testCase.evict("url", "app", "owner/a", stale);
+
+        assertThat(testCase.getRepository("url", "app", "owner/a", CLOCK, refresher)).hasValueSatisfying(
+                r -> assertThat(r.getAccessTokensUrl()).isEqualTo("installation 2"));
+
+        // evicting an entry that's already been replaced leaves the replacement in place
+        testCase.evict("url", "app", "owner/a", stale);
+        testCase.evict("other url", "app", "owner/a", stale);
+        assertThat(testCase.getRepository("url", "app", "owner/a", CLOCK, refresher)).isPresent();
+        assertThat(refreshes.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkIndexesNotSharedBetweenApps() throws IOException {
+        InstallationRepositoryIndex testCase = new InstallationRepositoryIndex();
+        testCase.getRepository("url", "app", "owner/a", CLOCK, appRepositories -> appRepositories
+                .indexInstallation("installation", Collections.singletonList(new Repository("node a", "owner/a"))));
+
+        assertThat(testCase.getRepository("url", "other app", "owner/a", CLOCK, appRepositories -> {
+        })).isEmpty();
+        assertThat(testCase.getRepository("other url", "app", "owner/a", CLOCK, appRepositories -> {
+        })).isEmpty();
+    }
+
+    @Test
+    public void checkRemovedInstallationsAndTransferredRepositoriesReindexed() {
+        InstallationRepositoryIndex.AppRepositories testCase = new InstallationRepositoryIndex.AppRepositories();
+        testCase.indexInstallation("first", Arrays.asList(new Repository("node a", "owner/a"),
+                                                          new Repository("node b", "owner/b")));
+        testCase.indexInstallation("second", Collections.singletonList(new Repository("node c", "owner/c")));
+
+        // owner/b is transferred to the second installation
+        testCase.indexInstallation("second", Arrays.asList(new Repository("node b", "owner/b"),
+                                                           new Repository("node c", "owner/c")));
+        assertThat(testCase.get("owner/b")).hasValueSatisfying(
+                r -> assertThat(r.getAccessTokensUrl()).isEqualTo("second"));
+
+        // the first installation is removed, which mustn't remove the repository transferred out of it
+        assertThat(testCase.retainInstallations(Collections.singleton("second"))).containsExactly("second");
+        assertThat(testCase.get("owner/a")).isEmpty();
+        assertThat(testCase.get("owner/b")).isPresent();
+        assertThat(testCase.get("owner/c")).isPresent();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.notFound;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+public class PullRequestCommitLoaderTest {
+
+    @Rule
+    public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+    private final HttpClientProvider httpClientProvider = new HttpClientProvider(mock(Configuration.class));
+
+    @After
+    public void tearDown() throws IOException {
+        httpClientProvider.close();
+    }
+
+    @Test
+    public void checkCommitsReadFromAllPages() throws IOException {
+        String commitsPath = "/repos/owner/repository/pulls/12/commits";
+        wireMockRule.stubFor(get(urlPathEqualTo(commitsPath)).withQueryParam("page", equalTo("2"))
+                                     .withHeader("Authorization", equalTo("Bearer token"))
+                                     .willReturn(okJson("[{\"sha\": \"c\"}]")));
+        wireMockRule.stubFor(get(urlPathEqualTo(commitsPath)).withQueryParam("per_page", equalTo("100"))
+                                     .withHeader("Authorization", equalTo("Bearer token"))
+                                     .willReturn(okJson("[{\"sha\": \"a\"}, {\"sha\": \"b\"}]")
+                                                         .withHeader("Link", "<" + wireMockRule.baseUrl() + commitsPath +
+                                                                             "?page=2>; rel=\"next\"")));
+
+        Optional<Set<String>> commitShas = new PullRequestCommitLoader(httpClientProvider)
+                .getCommitShas(wireMockRule.baseUrl(), "owner/repository", "12", "token");
+
+        assertThat(commitShas).hasValueSatisfying(s -> assertThat(s).containsExactlyInAnyOrder("a", "b", "c"));
+    }
+
+    @Test
+    public void checkNoCommitsReturnedWhenGithubLimitReached() throws IOException {
+        String commits = IntStream.range(0, PullRequestCommitLoader.MAX_COMMITS).mapToObj(i -> "{\"sha\": \"" + i + "\"}")
+                .collect(Collectors.joining(",", "[", "]"));
+        wireMockRule.stubFor(get(urlPathEqualTo("/repos/owner/repository/pulls/12/commits")).willReturn(okJson(commits)));
+
+        assertThat(new PullRequestCommitLoader(httpClientProvider)
+                           .getCommitShas(wireMockRule.baseUrl(), "owner/repository", "12", "token")).isEmpty();
+    }
+
+    @Test
+    public void checkErrorResponseThrowsException() {
+        wireMockRule.stubFor(get(urlPathEqualTo("/repos/owner/repository/pulls/12/commits")).willReturn(notFound()));
+
+        assertThatThrownBy(() -> new PullRequestCommitLoader(httpClientProvider)
+                .getCommitShas(wireMockRule.baseUrl(), "owner/repository", "12", "token"))
+                .isExactlyInstanceOf(IllegalStateException.class)
+                .hasMessage("Could not list the commits in pull request 12 from Github. Expected HTTP Status 200 but got 404");
+    }
+}
@@ -18,12 +18,15 @@
  */
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3;
 
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.InstallationTokenCache;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.RepositoryAuthenticationToken;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -40,7 +43,9 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -71,10 +76,11 @@ public class RestApplicationAuthenticationProviderTest {
         doReturn(new ByteArrayInputStream(
                 ("{\"repositories\": [{\"node_id\": \"" + expectedRepositoryId + "\", \"full_name\": \"" + projectPath +
                  "\"}]}").getBytes(StandardCharsets.UTF_8))).when(repositoriesUrlConnection).getInputStream();
-        doReturn(repositoriesUrlConnection).when(urlProvider).createUrlConnection("repositories_url");
+        doReturn(repositoriesUrlConnection).when(urlProvider).createUrlConnection("repositories_url?per_page=100");
 
         String apiUrl = "apiUrl";
-        doReturn(installationsUrlConnection).when(urlProvider).createUrlConnection(eq(apiUrl + "/app/installations"));
+        doReturn(installationsUrlConnection).when(urlProvider)
+                .createUrlConnection(eq(apiUrl + "/app/installations?per_page=100"));
 
         String appId = "appID";
 
@@ -113,6 +119,47 @@ public class RestApplicationAuthenticationProviderTest {
                      requestPropertyArgumentCaptor.getAllValues());
     }
 
+    @Test
+    public void testTokenReusedUntilExpiry() throws IOException {
+        UrlConnectionProvider urlProvider = mock(UrlConnectionProvider.class);
+        Clock clock = Clock.fixed(Instant.parse("2019-11-01T10:00:00Z"), ZoneId.of("UTC"));
+
+        URLConnection installationsUrlConnection = mock(URLConnection.class);
+        doReturn(new ByteArrayInputStream(
+                "[{\"repositories_url\": \"repositories_url\", \"access_tokens_url\": \"tokens_url\"}]"
+                        .getBytes(StandardCharsets.UTF_8))).when(installationsUrlConnection).getInputStream();
+        doReturn(installationsUrlConnection).when(urlProvider)
+                .createUrlConnection("apiUrl/app/installations?per_page=100");
+
+        HttpURLConnection accessTokensUrlConnection = mock(HttpURLConnection.class);
+        doReturn(new ByteArrayInputStream(
+                "{\"token\": \"token\", \"expires_at\": \"2019-11-01T11:00:00Z\"}".getBytes(StandardCharsets.UTF_8)))
+                .when(accessTokensUrlConnection).getInputStream();
+        doReturn(accessTokensUrlConnection).when(urlProvider).createUrlConnection("tokens_url");
+
+        HttpURLConnection repositoriesUrlConnection = mock(HttpURLConnection.class);
+        doReturn(new ByteArrayInputStream(
+                "{\"repositories\": [{\"node_id\": \"repository Id\", \"full_name\": \"project path\"}]}"
+                        .getBytes(StandardCharsets.UTF_8))).when(repositoriesUrlConnection).getInputStream();
+        doReturn(repositoriesUrlConnection).when(urlProvider).createUrlConnection("repositories_url?per_page=100");
+
+        String apiPrivateKey;
+        try (InputStream inputStream = getClass().getResourceAsStream("/rsa-private-key.pem")) {
+            apiPrivateKey = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+
+        InstallationTokenCache installationTokenCache = new InstallationTokenCache();
+        RestApplicationAuthenticationProvider testCase =
+                new RestApplicationAuthenticationProvider(clock, urlProvider, installationTokenCache, new AppJwtCache(),
+                                                          new InstallationRepositoryIndex());
+        RepositoryAuthenticationToken first = testCase.getInstallationToken("apiUrl", "appID", apiPrivateKey, "project path");
+        RepositoryAuthenticationToken second = testCase.getInstallationToken("apiUrl", "appID", apiPrivateKey, "project path");
+
+        assertThat(second).isSameAs(first);
+        assertEquals(Instant.parse("2019-11-01T11:00:00Z"), first.getExpiresAt());
+        verify(urlProvider).createUrlConnection("tokens_url");
+    }
+
     @Test
     public void testExceptionOnNoMatchingToken() throws IOException, GeneralSecurityException {
         UrlConnectionProvider urlProvider = mock(UrlConnectionProvider.class);
@@ -139,10 +186,11 @@ public class RestApplicationAuthenticationProviderTest {
                                            "\", \"full_name\": \"different_path\"}]}")
                                                   .getBytes(StandardCharsets.UTF_8))).when(repositoriesUrlConnection)
                 .getInputStream();
-        doReturn(repositoriesUrlConnection).when(urlProvider).createUrlConnection("repositories_url");
+        doReturn(repositoriesUrlConnection).when(urlProvider).createUrlConnection("repositories_url?per_page=100");
 
         String apiUrl = "apiUrl";
-        doReturn(installationsUrlConnection).when(urlProvider).createUrlConnection(eq(apiUrl + "/app/installations"));
+        doReturn(installationsUrlConnection).when(urlProvider)
+                .createUrlConnection(eq(apiUrl + "/app/installations?per_page=100"));
 
         String appId = "appID";
 
@@ -181,10 +229,190 @@ public class RestApplicationAuthenticationProviderTest {
 
     }
 
+    @Test
+    public void testPagedRepositoriesIndexedAcrossInstallations() throws IOException {
+        UrlConnectionProvider urlProvider = mock(UrlConnectionProvider.class);
+        Clock clock = Clock.fixed(Instant.parse("2019-11-01T10:00:00Z"), ZoneId.of("UTC"));
+
+        URLConnection firstInstallationsPage = mockConnection(URLConnection.class,
+                "[{\"repositories_url\": \"repositories_a\", \"access_tokens_url\": \"tokens_a\"}]",
+                "<installations_page_2>; rel=\"next\", <installations_page_2>; rel=\"last\"");
+        doReturn(firstInstallationsPage).when(urlProvider).createUrlConnection("apiUrl/app/installations?per_page=100");
+        URLConnection secondInstallationsPage = mockConnection(URLConnection.class,
+                "[{\"repositories_url\": \"repositories_b\", \"access_tokens_url\": \"tokens_b\"}]",
+                "<installations_page_1>; rel=\"prev\"");
+        doReturn(secondInstallationsPage).when(urlProvider).createUrlConnection("installations_page_2");
+
+        HttpURLConnection firstAccessTokenConnection = mock(HttpURLConnection.class);
+        doReturn(new ByteArrayInputStream("{\"token\": \"token a\"}".getBytes(StandardCharsets.UTF_8)),
+                 new ByteArrayInputStream("{\"token\": \"second token a\"}".getBytes(StandardCharsets.UTF_8)))
+                .when(firstAccessTokenConnection).getInputStream();
+        doReturn(firstAccessTokenConnection).when(urlProvider).createUrlConnection("tokens_a");
+        doReturn(mockConnection(HttpURLConnection.class, "{\"token\": \"token b\"}", null)).when(urlProvider)
+                .createUrlConnection("tokens_b");
+
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node a\", \"full_name\": \"owner/a\"}]}",
+                                null)).when(urlProvider).createUrlConnection("repositories_a?per_page=100");
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node b1\", \"full_name\": \"owner/b1\"}]}",
+                                "<repositories_b_page_2>; rel=\"next\"")).when(urlProvider)
+                .createUrlConnection("repositories_b?per_page=100");
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node b2\", \"full_name\": \"owner/b2\"}]}",
+                                null)).when(urlProvider).createUrlConnection("repositories_b_page_2");
+
+        String apiPrivateKey;
+        try (InputStream inputStream = getClass().getResourceAsStream("/rsa-private-key.pem")) {
+            apiPrivateKey = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+
+        InstallationRepositoryIndex installationRepositoryIndex = new InstallationRepositoryIndex();
+        RestApplicationAuthenticationProvider testCase =
+                new RestApplicationAuthenticationProvider(clock, urlProvider, new InstallationTokenCache(),
+                                                          new AppJwtCache(), installationRepositoryIndex);
+
+        RepositoryAuthenticationToken pagedRepository =
+                testCase.getInstallationToken("apiUrl", "appID", apiPrivateKey, "owner/b2");
+        assertEquals("node b2", pagedRepository.getRepositoryId());
+        assertEquals("token b", pagedRepository.getAuthenticationToken());
+
+        RepositoryAuthenticationToken indexedRepository =
+                testCase.getInstallationToken("apiUrl", "appID", apiPrivateKey, "owner/a");
+        assertEquals("node a", indexedRepository.getRepositoryId());
+        assertEquals("second token a", indexedRepository.getAuthenticationToken());
+
+        verify(urlProvider).createUrlConnection("apiUrl/app/installations?per_page=100");
+        verify(urlProvider).createUrlConnection("installations_page_2");
+        verify(urlProvider).createUrlConnection("repositories_a?per_page=100");
+        verify(urlProvider).createUrlConnection("tokens_b");
+        verify(urlProvider, times(2)).createUrlConnection("tokens_a");
+    }
+
+    @Test
+    public void testStaleInstallationEvictedAndIndexRefreshed() throws IOException {
+        UrlConnectionProvider urlProvider = mock(UrlConnectionProvider.class);
+        Clock clock = Clock.fixed(Instant.parse("2019-11-01T10:00:00Z"), ZoneId.of("UTC"));
+
+        // the repository is transferred from the first installation to the second between analyses
+        doReturn(mockConnection(URLConnection.class,
+                                "[{\"repositories_url\": \"repositories_a\", \"access_tokens_url\": \"tokens_a\"}]",
+                                null),
+                 mockConnection(URLConnection.class,
+                                "[{\"repositories_url\": \"repositories_b\", \"access_tokens_url\": \"tokens_b\"}]",
+                                null)).when(urlProvider).createUrlConnection("apiUrl/app/installations?per_page=100");
+
+        HttpURLConnection removedInstallationConnection = mock(HttpURLConnection.class);
+        doThrow(new FileNotFoundException("tokens_a")).when(removedInstallationConnection).getInputStream();
+        doReturn(404).when(removedInstallationConnection).getResponseCode();
+        doReturn(mockConnection(HttpURLConnection.class, "{\"token\": \"token a\"}", null),
+                 removedInstallationConnection).when(urlProvider).createUrlConnection("tokens_a");
+        doReturn(mockConnection(HttpURLConnection.class, "{\"token\": \"token b\"}", null)).when(urlProvider)
+                .createUrlConnection("tokens_b");
+
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node a\", \"full_name\": \"owner/a\"}]}",
+                                null)).when(urlProvider).createUrlConnection("repositories_a?per_page=100");
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node a\", \"full_name\": \"owner/a\"}]}",
+                                null)).when(urlProvider).createUrlConnection("repositories_b?per_page=100");
+
+        String apiPrivateKey;
+        try (InputStream inputStream = getClass().getResourceAsStream("/rsa-private-key.pem")) {
+            apiPrivateKey = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+
+        InstallationRepositoryIndex installationRepositoryIndex = new InstallationRepositoryIndex();
+        AppJwtCache appJwtCache = new AppJwtCache();
+        assertEquals("token a", new RestApplicationAuthenticationProvider(clock, urlProvider,
+                                                                          new InstallationTokenCache(), appJwtCache,
+                                                                          installationRepositoryIndex)
+                .getInstallationToken("apiUrl", "appID", apiPrivateKey, "owner/a").getAuthenticationToken());
+
+        // a later analysis doesn't have the token cached, so requests one for the indexed installation
+        assertEquals("token b", new RestApplicationAuthenticationProvider(clock, urlProvider,
+                                                                          new InstallationTokenCache(), appJwtCache,
+                                                                          installationRepositoryIndex)
+                .getInstallationToken("apiUrl", "appID", apiPrivateKey, "owner/a").getAuthenticationToken());
+
+        verify(urlProvider, times(2)).createUrlConnection("apiUrl/app/installations?per_page=100");
+        verify(urlProvider, times(2)).createUrlConnection("tokens_a");
+        verify(urlProvider).createUrlConnection("tokens_b");
+    }
+
+    @Test
+    public void testStaleInstallationSkippedWhilstRefreshingIndex() throws IOException {
+        UrlConnectionProvider urlProvider = mock(UrlConnectionProvider.class);
+        Clock clock = Clock.fixed(Instant.parse("2019-11-01T10:00:00Z"), ZoneId.of("UTC"));
+
+        doReturn(mockConnection(URLConnection.class,
+                                "[{\"repositories_url\": \"repositories_a\", \"access_tokens_url\": \"tokens_a\"}, " +
+                                "{\"repositories_url\": \"repositories_b\", \"access_tokens_url\": \"tokens_b\"}]",
+                                null)).when(urlProvider).createUrlConnection("apiUrl/app/installations?per_page=100");
+
+        // the first installation is removed between listing the installations and requesting a token for it
+        HttpURLConnection removedInstallationConnection = mock(HttpURLConnection.class);
+        doThrow(new FileNotFoundException("tokens_a")).when(removedInstallationConnection).getInputStream();
+        doReturn(404).when(removedInstallationConnection).getResponseCode();
+        doReturn(removedInstallationConnection).when(urlProvider).createUrlConnection("tokens_a");
+        doReturn(mockConnection(HttpURLConnection.class, "{\"token\": \"token b\"}", null)).when(urlProvider)
+                .createUrlConnection("tokens_b");
+        doReturn(mockConnection(HttpURLConnection.class,
+                                "{\"repositories\": [{\"node_id\": \"node b\", \"full_name\": \"owner/b\"}]}",
+                                null)).when(urlProvider).createUrlConnection("repositories_b?per_page=100");
+
+        String apiPrivateKey;
+        try (InputStream inputStream = getClass().getResourceAsStream("/rsa-private-key.pem")) {
+            apiPrivateKey = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+
+        RepositoryAuthenticationToken result =
+                new RestApplicationAuthenticationProvider(clock, urlProvider, new InstallationTokenCache(),
+                                                          new AppJwtCache(), new InstallationRepositoryIndex())
+                        .getInstallationToken("apiUrl", "appID", apiPrivateKey, "owner/b");
+        assertEquals("node b", result.getRepositoryId());
+        assertEquals("token b", result.getAuthenticationToken());
+
+        verify(urlProvider).createUrlConnection("tokens_a");
+        verify(urlProvider, never()).createUrlConnection("repositories_a?per_page=100");
+    }
+
+    @Test
+    public void testNextPageUrl() {
+        URLConnection urlConnection = mock(URLConnection.class);
+        assertThat(RestApplicationAuthenticationProvider.getNextPageUrl(urlConnection)).isNull();
+
+        doReturn("<https://api.github.com/installation/repositories?page=1>; rel=\"prev\", " +
+                 "<https://api.github.com/installation/repositories?page=3>; rel=\"next\"").when(urlConnection)
+                .getHeaderField("Link");
+        assertEquals("https://api.github.com/installation/repositories?page=3",
+                     RestApplicationAuthenticationProvider.getNextPageUrl(urlConnection));
+
+        doReturn("<https://api.github.com/installation/repositories?page=1>; rel=\"first\"").when(urlConnection)
+                .getHeaderField("Link");
+        assertThat(RestApplicationAuthenticationProvider.getNextPageUrl(urlConnection)).isNull();
+    }
+
     @Test
     public void testDefaultParameters() {
         Clock clock = mock(Clock.class);
-        assertThat(new RestApplicationAuthenticationProvider(clock, new DefaultUrlConnectionProvider()))
-                .usingRecursiveComparison().isEqualTo(new RestApplicationAuthenticationProvider(clock));
+        HttpClientProvider httpClientProvider = mock(HttpClientProvider.class);
+        InstallationTokenCache installationTokenCache = new InstallationTokenCache();
+        AppJwtCache appJwtCache = new AppJwtCache();
+        InstallationRepositoryIndex installationRepositoryIndex = new InstallationRepositoryIndex();
+        assertThat(new RestApplicationAuthenticationProvider(clock, new DefaultUrlConnectionProvider(httpClientProvider),
+                                                             installationTokenCache, appJwtCache,
+                                                             installationRepositoryIndex))
+                .usingRecursiveComparison().isEqualTo(
+                new RestApplicationAuthenticationProvider(clock, httpClientProvider, installationTokenCache,
+                                                          appJwtCache, installationRepositoryIndex));
+    }
+
+    private static <T extends URLConnection> T mockConnection(Class<T> type, String body, String linkHeader)
+            throws IOException {
+        T urlConnection = mock(type);
+        doReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))).when(urlConnection).getInputStream();
+        doReturn(linkHeader).when(urlConnection).getHeaderField("Link");
+        return urlConnection;
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotation;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotationLevel;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotationRange;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+public class CheckRunAnnotationUploaderTest {
+
+    @Rule
+    public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+    @Test
+    public void checkAnnotationsSentInBatchesAcrossRequests() {
+        wireMockRule.stubFor(post(urlEqualTo("/graphql")).willReturn(okJson("{\"data\": {}}")));
+
+        CheckRunAnnotationUploader testCase = new CheckRunAnnotationUploader(new HttpClientProvider(mock(Configuration.class)));
+        testCase.uploadAnnotations(wireMockRule.baseUrl() + "/graphql", Collections.singletonMap("Authorization", "Bearer token"),
+                                   "repository ID", "check run ID", "title", "summary", annotations(120), 2, 2);
+
+        wireMockRule.verify(2, postRequestedFor(urlEqualTo("/graphql")).withHeader("Authorization", equalTo("Bearer token")));
+        wireMockRule.verify(1, postRequestedFor(urlEqualTo("/graphql")).withRequestBody(containing("batch1: updateCheckRun(input: $input1)")));
+        wireMockRule.verify(postRequestedFor(urlEqualTo("/graphql")).withRequestBody(containing("\"message\":\"issue \\\"119\\\"\"")));
+    }
+
+    @Test
+    public void checkErrorResponseFailsUpload() {
+        wireMockRule.stubFor(post(urlEqualTo("/graphql")).willReturn(okJson("{\"errors\": [{\"message\": \"bad input\"}]}")));
+
+        CheckRunAnnotationUploader testCase = new CheckRunAnnotationUploader(new HttpClientProvider(mock(Configuration.class)));
+        assertThatThrownBy(() -> testCase.uploadAnnotations(wireMockRule.baseUrl() + "/graphql", Collections.emptyMap(),
+                                                            "repository ID", "check run ID", "title", "summary",
+                                                            annotations(1), 4, 2))
+                .isExactlyInstanceOf(IllegalStateException.class)
+                .hasMessage("1 of 1 requests to add annotations to the check run failed");
+    }
+
+    @Test
+    public void checkRequestBodyUsesAliasedMutations() {
+        CheckRunAnnotationUploader testCase = new CheckRunAnnotationUploader(mock(HttpClientProvider.class));
+        List<CheckAnnotation> firstBatch = annotations(2);
+        List<CheckAnnotation> secondBatch = annotations(1);
+
+        Map<String, Object> requestBody = testCase.createRequestBody("repository ID", "check run ID", "title", "summary",
+                                                                     Arrays.asList(firstBatch, secondBatch));
+
+        assertThat(requestBody.get("query")).isEqualTo("mutation ($input0: UpdateCheckRunInput!, $input1: UpdateCheckRunInput!) {" +
+                                                       " batch0: updateCheckRun(input: $input0) { clientMutationId }" +
+                                                       " batch1: updateCheckRun(input: $input1) { clientMutationId } }");
+        Map<String, Object> variables = (Map<String, Object>) requestBody.get("variables");
+        assertThat(variables).containsOnlyKeys("input0", "input1");
+        Map<String, Object> input = (Map<String, Object>) variables.get("input1");
+        assertThat(input).containsEntry("repositoryId", "repository ID").containsEntry("checkRunId", "check run ID");
+        assertThat((Map<String, Object>) input.get("output")).containsEntry("title", "title")
+                .containsEntry("summary", "summary").containsEntry("annotations", secondBatch);
+    }
+
+    private static List<CheckAnnotation> annotations(int count) {
+        List<CheckAnnotation> annotations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            annotations.add(new CheckAnnotation("path/to/file", new CheckAnnotationRange(i, i + 1),
+                                                CheckAnnotationLevel.WARNING, "issue \"" + i + "\""));
+        }
+        return annotations;
+    }
+}
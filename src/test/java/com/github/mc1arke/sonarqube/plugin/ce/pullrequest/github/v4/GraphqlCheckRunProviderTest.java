@@ -23,25 +23,32 @@ import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.GithubApplicationAuthenticationProvider;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.RepositoryAuthenticationToken;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v3.PullRequestCommitLoader;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotation;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckAnnotationLevel;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckConclusionState;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.CheckRun;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.github.v4.model.RequestableCheckStatusState;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import io.aexp.nodes.graphql.Arguments;
 import io.aexp.nodes.graphql.GraphQLRequestEntity;
 import io.aexp.nodes.graphql.GraphQLResponseEntity;
 import io.aexp.nodes.graphql.GraphQLTemplate;
 import io.aexp.nodes.graphql.InputObject;
+import io.aexp.nodes.graphql.internal.Error;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.sonar.api.ce.posttask.QualityGate;
 import org.sonar.api.config.Configuration;
 import org.sonar.api.config.PropertyDefinition;
 import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.issue.Issue;
 import org.sonar.api.platform.Server;
 import org.sonar.api.rule.Severity;
 import org.sonar.ce.task.projectanalysis.component.Component;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
 import org.sonar.ce.task.projectanalysis.component.ReportAttributes;
+import org.sonar.ce.task.projectanalysis.scm.ScmInfoRepository;
 import org.sonar.core.issue.DefaultIssue;
 
 import java.io.IOException;
@@ -62,11 +69,13 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -85,12 +94,15 @@ public class GraphqlCheckRunProviderTest {
 
         Configuration configuration = mock(Configuration.class);
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
         PropertyDefinitions propertyDefinitions = new PropertyDefinitions();
 
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions,
+                                            mock(CheckRunAnnotationUploader.class), mock(ScmInfoRepository.class),
+                                            mock(PullRequestCommitLoader.class));
         assertThatThrownBy(() -> testCase.createCheckRun(analysisDetails))
                 .isExactlyInstanceOf(IllegalStateException.class)
                 .hasMessage("sonar.pullrequest.github.endpoint must be specified in the project configuration");
@@ -108,6 +120,7 @@ public class GraphqlCheckRunProviderTest {
 
         Configuration configuration = mock(Configuration.class);
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
         PropertyDefinition propertyDefinition =
                 PropertyDefinition.builder("sonar.pullrequest.github.endpoint").defaultValue("").build();
@@ -115,7 +128,9 @@ public class GraphqlCheckRunProviderTest {
 
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions,
+                                            mock(CheckRunAnnotationUploader.class), mock(ScmInfoRepository.class),
+                                            mock(PullRequestCommitLoader.class));
         assertThatThrownBy(() -> testCase.createCheckRun(analysisDetails))
                 .isExactlyInstanceOf(IllegalStateException.class)
                 .hasMessage("sonar.pullrequest.github.endpoint must be specified in the project configuration");
@@ -133,13 +148,16 @@ public class GraphqlCheckRunProviderTest {
 
         Configuration configuration = mock(Configuration.class);
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
         PropertyDefinition propertyDefinition = PropertyDefinition.builder("sonar.pullrequest.github.endpoint").build();
         PropertyDefinitions propertyDefinitions = new PropertyDefinitions(propertyDefinition);
 
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions,
+                                            mock(CheckRunAnnotationUploader.class), mock(ScmInfoRepository.class),
+                                            mock(PullRequestCommitLoader.class));
         assertThatThrownBy(() -> testCase.createCheckRun(analysisDetails))
                 .isExactlyInstanceOf(IllegalStateException.class)
                 .hasMessage("sonar.pullrequest.github.endpoint must be specified in the project configuration");
@@ -155,8 +173,7 @@ public class GraphqlCheckRunProviderTest {
         when(server.getPublicRootUrl()).thenReturn("http://sonar.server/root");
         ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
 
-        PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-        when(postAnalysisIssueVisitor.getIssues()).thenReturn(new ArrayList<>());
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
 
         AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
         when(analysisDetails.getQualityGateStatus()).thenReturn(QualityGate.Status.OK);
@@ -173,6 +190,7 @@ public class GraphqlCheckRunProviderTest {
                 .then(i -> "sonar.pullrequest.github.endpoint".equals(i.getArguments()[0]) ? Optional.empty() :
                            Optional.of(i.getArguments()[0]));
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
         RepositoryAuthenticationToken repositoryAuthenticationToken = mock(RepositoryAuthenticationToken.class);
         when(repositoryAuthenticationToken.getAuthenticationToken()).thenReturn("dummyAuthToken");
@@ -197,7 +215,9 @@ public class GraphqlCheckRunProviderTest {
 
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions,
+                                            mock(CheckRunAnnotationUploader.class), mock(ScmInfoRepository.class),
+                                            mock(PullRequestCommitLoader.class));
         assertThatThrownBy(() -> testCase.createCheckRun(analysisDetails)).hasMessage(
                 "An error was returned in the response from the Github API:" + System.lineSeparator() +
                 "- Error{message='example message', locations=[]}").isExactlyInstanceOf(IllegalStateException.class);
@@ -231,13 +251,14 @@ public class GraphqlCheckRunProviderTest {
 
         DefaultIssue defaultIssue = mock(DefaultIssue.class);
         when(defaultIssue.severity()).thenReturn("dummy");
+        when(defaultIssue.status()).thenReturn(Issue.STATUS_OPEN);
 
         PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
         when(componentIssue.getIssue()).thenReturn(defaultIssue);
         when(componentIssue.getComponent()).thenReturn(component);
 
         PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-        when(postAnalysisIssueVisitor.getIssues()).thenReturn(Collections.singletonList(componentIssue));
+        when(postAnalysisIssueVisitor.getOpenIssues()).thenReturn(Collections.singletonList(componentIssue));
 
         AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
         when(analysisDetails.getQualityGateStatus()).thenReturn(QualityGate.Status.OK);
@@ -254,6 +275,7 @@ public class GraphqlCheckRunProviderTest {
                 .then(i -> "sonar.pullrequest.github.endpoint".equals(i.getArguments()[0]) ? Optional.empty() :
                            Optional.of(i.getArguments()[0]));
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
 
         PropertyDefinition propertyDefinition =
@@ -263,7 +285,9 @@ public class GraphqlCheckRunProviderTest {
 
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions,
+                                            mock(CheckRunAnnotationUploader.class), mock(ScmInfoRepository.class),
+                                            mock(PullRequestCommitLoader.class));
         assertThatThrownBy(() -> testCase.createCheckRun(analysisDetails)).hasMessage("Unknown severity value: dummy")
                 .isExactlyInstanceOf(IllegalArgumentException.class);
     }
@@ -290,6 +314,7 @@ public class GraphqlCheckRunProviderTest {
         ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
 
         DefaultIssue issue1 = mock(DefaultIssue.class);
+        when(issue1.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue1.getLine()).thenReturn(2);
         when(issue1.getMessage()).thenReturn("issue 1");
         when(issue1.severity()).thenReturn(Severity.INFO);
@@ -305,6 +330,7 @@ public class GraphqlCheckRunProviderTest {
         when(componentIssue1.getIssue()).thenReturn(issue1);
 
         DefaultIssue issue2 = mock(DefaultIssue.class);
+        when(issue2.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue2.getLine()).thenReturn(null);
         when(issue2.getMessage()).thenReturn("issue 2");
 
@@ -320,6 +346,7 @@ public class GraphqlCheckRunProviderTest {
         when(component2.getType()).thenReturn(Component.Type.FILE);
 
         DefaultIssue issue3 = mock(DefaultIssue.class);
+        when(issue3.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue3.getLine()).thenReturn(9);
         when(issue3.severity()).thenReturn(Severity.CRITICAL);
         when(issue3.getMessage()).thenReturn("issue 3");
@@ -335,6 +362,7 @@ public class GraphqlCheckRunProviderTest {
         when(component3.getType()).thenReturn(Component.Type.PROJECT);
 
         DefaultIssue issue4 = mock(DefaultIssue.class);
+        when(issue4.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue4.getLine()).thenReturn(2);
         when(issue4.severity()).thenReturn(Severity.CRITICAL);
         when(issue4.getMessage()).thenReturn("issue 4");
@@ -344,6 +372,7 @@ public class GraphqlCheckRunProviderTest {
         when(componentIssue4.getIssue()).thenReturn(issue4);
 
         DefaultIssue issue5 = mock(DefaultIssue.class);
+        when(issue5.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue5.getLine()).thenReturn(1999);
         when(issue5.severity()).thenReturn(Severity.MAJOR);
         when(issue5.getMessage()).thenReturn("issue 5");
@@ -353,6 +382,7 @@ public class GraphqlCheckRunProviderTest {
         when(componentIssue5.getIssue()).thenReturn(issue5);
 
         DefaultIssue issue6 = mock(DefaultIssue.class);
+        when(issue6.status()).thenReturn(Issue.STATUS_OPEN);
         when(issue6.getLine()).thenReturn(42);
         when(issue6.severity()).thenReturn(Severity.MINOR);
         when(issue6.getMessage()).thenReturn("issue 6");
@@ -361,11 +391,21 @@ public class GraphqlCheckRunProviderTest {
         when(componentIssue6.getComponent()).thenReturn(component2);
         when(componentIssue6.getIssue()).thenReturn(issue6);
 
+        DefaultIssue issue7 = mock(DefaultIssue.class);
+        when(issue7.status()).thenReturn(Issue.STATUS_CLOSED);
+        when(issue7.getLine()).thenReturn(7);
+        when(issue7.severity()).thenReturn(Severity.MAJOR);
+        when(issue7.getMessage()).thenReturn("issue 7");
+
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue7 = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        when(componentIssue7.getComponent()).thenReturn(component2);
+        when(componentIssue7.getIssue()).thenReturn(issue7);
+
         List<PostAnalysisIssueVisitor.ComponentIssue> issueList =
                 Arrays.asList(componentIssue1, componentIssue2, componentIssue3, componentIssue4, componentIssue5,
-                              componentIssue6);
-        PostAnalysisIssueVisitor postAnalysisIssueVisitor = mock(PostAnalysisIssueVisitor.class);
-        when(postAnalysisIssueVisitor.getIssues()).thenReturn(issueList);
+                              componentIssue6, componentIssue7);
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
+        issueList.forEach(i -> postAnalysisIssueVisitor.onIssue(i.getComponent(), i.getIssue()));
 
         AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
         when(analysisDetails.getQualityGateStatus()).thenReturn(status);
@@ -381,7 +421,10 @@ public class GraphqlCheckRunProviderTest {
         when(configuration.get(anyString())).then(i -> "sonar.pullrequest.github.endpoint".equals(i.getArguments()[0]) ?
                                                        Optional.of("http://host.name") :
                                                        Optional.of(i.getArguments()[0]));
+        when(configuration.get(GraphqlCheckRunProvider.PULL_REQUEST_GITHUB_ANNOTATION_BATCHES_PER_REQUEST)).thenReturn(Optional.empty());
+        when(configuration.get(GraphqlCheckRunProvider.PULL_REQUEST_GITHUB_ANNOTATION_MAX_REQUESTS_IN_FLIGHT)).thenReturn(Optional.empty());
         when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
 
         ArgumentCaptor<String> authenticationProviderArgumentCaptor = ArgumentCaptor.forClass(String.class);
         RepositoryAuthenticationToken repositoryAuthenticationToken = mock(RepositoryAuthenticationToken.class);
@@ -420,9 +463,9 @@ public class GraphqlCheckRunProviderTest {
             return requestBuilder;
         }).when(graphqlProvider).createRequestBuilder();
 
-        GraphQLResponseEntity<CreateCheckRun> graphQLResponseEntity =
-                new ObjectMapper().readerFor(GraphQLResponseEntity.class)
-                        .readValue(status == QualityGate.Status.ERROR ? "{\"errors\": []}" : "{\"response\": {}}}");
+        GraphQLResponseEntity<CreateCheckRun> graphQLResponseEntity = mock(GraphQLResponseEntity.class);
+        when(graphQLResponseEntity.getErrors()).thenReturn(status == QualityGate.Status.ERROR ? new Error[0] : null);
+        when(graphQLResponseEntity.getResponse()).thenReturn(new CreateCheckRun("mutation ID", new CheckRun("check run ID")));
 
         ArgumentCaptor<GraphQLRequestEntity> requestEntityArgumentCaptor =
                 ArgumentCaptor.forClass(GraphQLRequestEntity.class);
@@ -434,9 +477,12 @@ public class GraphqlCheckRunProviderTest {
 
         PropertyDefinitions propertyDefinitions = new PropertyDefinitions();
 
+        CheckRunAnnotationUploader checkRunAnnotationUploader = mock(CheckRunAnnotationUploader.class);
+
         GraphqlCheckRunProvider testCase =
                 new GraphqlCheckRunProvider(graphqlProvider, clock, githubApplicationAuthenticationProvider, server,
-                                            configurationRepository, propertyDefinitions);
+                                            configurationRepository, propertyDefinitions, checkRunAnnotationUploader,
+                                            mock(ScmInfoRepository.class), mock(PullRequestCommitLoader.class));
         testCase.createCheckRun(analysisDetails);
 
         assertEquals(1, requestBuilders.size());
@@ -464,49 +510,43 @@ public class GraphqlCheckRunProviderTest {
                               "sonar.pullrequest.github.repository"),
                 authenticationProviderArgumentCaptor.getAllValues());
 
-        List<InputObject<Object>> expectedAnnotationObjects = new ArrayList<>();
+        String title = "Quality Gate " + (status == QualityGate.Status.OK ? "success" : "failed");
+        ArgumentCaptor<List<CheckAnnotation>> annotationArgumentCaptor = ArgumentCaptor.forClass(List.class);
+        verify(checkRunAnnotationUploader)
+                .uploadAnnotations(eq("http://host.name/graphql"), eq(headers), eq("repository ID"), eq("check run ID"),
+                                   eq(title), eq("dummy summary"), annotationArgumentCaptor.capture(), eq(4), eq(2));
+
+        List<CheckAnnotation> annotations = annotationArgumentCaptor.getValue();
         int position = 0;
         for (int i = 0; i < issueList.size(); i++) {
             if (issueList.get(i).getComponent().getType() != Component.Type.FILE ||
-                !issueList.get(i).getComponent().getReportAttributes().getScmPath().isPresent()) {
+                !issueList.get(i).getComponent().getReportAttributes().getScmPath().isPresent() ||
+                Issue.STATUS_CLOSED.equals(issueList.get(i).getIssue().status())) {
                 continue;
             }
+            CheckAnnotation annotation = annotations.get(position);
             int line = (null == issueList.get(i).getIssue().getLine() ? 0 : issueList.get(i).getIssue().getLine());
-            verify(inputObjectBuilders.get(position)).put(eq("startLine"), eq(line));
-            verify(inputObjectBuilders.get(position)).put(eq("endLine"), eq(line + 1));
-            verify(inputObjectBuilders.get(position)).build();
-            position++;
-
-            String path = issueList.get(i).getComponent().getReportAttributes().getScmPath().get();
-            InputObject.Builder<Object> fileBuilder = inputObjectBuilders.get(position);
-            verify(fileBuilder).put(eq("path"), eq(path));
-            verify(fileBuilder).put(eq("location"), eq(inputObjects.get(position - 1)));
+            assertEquals(line, annotation.getLocation().getStartLine());
+            assertEquals(line + 1, annotation.getLocation().getEndLine());
+            assertEquals(issueList.get(i).getComponent().getReportAttributes().getScmPath().get(), annotation.getPath());
             String sonarQubeSeverity = issueList.get(i).getIssue().severity();
-            verify(fileBuilder).put(eq("annotationLevel"),
-                                    eq(sonarQubeSeverity.equals(Severity.INFO) ? CheckAnnotationLevel.NOTICE :
-                                       sonarQubeSeverity.equals(Severity.MINOR) ||
-                                       sonarQubeSeverity.equals(Severity.MAJOR) ? CheckAnnotationLevel.WARNING :
-                                       CheckAnnotationLevel.FAILURE));
-            verify(fileBuilder).put(eq("message"), eq("issue " + (i + 1)));
-            verify(inputObjectBuilders.get(position)).build();
-
-            expectedAnnotationObjects.add(inputObjects.get(position));
-
+            assertEquals(sonarQubeSeverity.equals(Severity.INFO) ? CheckAnnotationLevel.NOTICE :
+                         sonarQubeSeverity.equals(Severity.MINOR) || sonarQubeSeverity.equals(Severity.MAJOR) ?
+                         CheckAnnotationLevel.WARNING : CheckAnnotationLevel.FAILURE, annotation.getAnnotationLevel());
+            assertEquals("issue " + (i + 1), annotation.getMessage());
             position++;
         }
+        assertEquals(position, annotations.size());
 
-        assertEquals(2 + position, inputObjectBuilders.size());
-
-        ArgumentCaptor<List<InputObject<Object>>> annotationArgumentCaptor = ArgumentCaptor.forClass(List.class);
+        // annotations are uploaded separately, so only the output and check run inputs are built here
+        assertEquals(2, inputObjectBuilders.size());
+        position = 0;
 
-        verify(inputObjectBuilders.get(position))
-                .put(eq("title"), eq("Quality Gate " + (status == QualityGate.Status.OK ? "success" : "failed")));
+        verify(inputObjectBuilders.get(position)).put(eq("title"), eq(title));
         verify(inputObjectBuilders.get(position)).put(eq("summary"), eq("dummy summary"));
-        verify(inputObjectBuilders.get(position)).put(eq("annotations"), annotationArgumentCaptor.capture());
+        verify(inputObjectBuilders.get(position), never()).put(eq("annotations"), any());
         verify(inputObjectBuilders.get(position)).build();
 
-        assertThat(annotationArgumentCaptor.getValue()).isEqualTo(expectedAnnotationObjects);
-
         verify(inputObjectBuilders.get(position + 1)).put(eq("repositoryId"), eq("repository ID"));
         verify(inputObjectBuilders.get(position + 1)).put(eq("name"), eq("sonar.alm.github.app.name Results"));
         verify(inputObjectBuilders.get(position + 1)).put(eq("headSha"), eq("commit SHA"));
@@ -523,6 +563,47 @@ public class GraphqlCheckRunProviderTest {
         verify(inputObjectBuilders.get(position + 1)).build();
     }
 
+    @Test
+    public void createCheckRunSkipsAnnotationUploadWithoutOpenIssues() throws IOException, GeneralSecurityException {
+        GraphqlProvider graphqlProvider = mock(GraphqlProvider.class, RETURNS_DEEP_STUBS);
+        GithubApplicationAuthenticationProvider githubApplicationAuthenticationProvider =
+                mock(GithubApplicationAuthenticationProvider.class);
+        when(githubApplicationAuthenticationProvider.getInstallationToken(any(), any(), any(), any()))
+                .thenReturn(mock(RepositoryAuthenticationToken.class));
+        Server server = mock(Server.class);
+        when(server.getPublicRootUrl()).thenReturn("http://sonar.server/root");
+
+        DefaultIssue defaultIssue = mock(DefaultIssue.class);
+        when(defaultIssue.status()).thenReturn(Issue.STATUS_RESOLVED);
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        when(componentIssue.getIssue()).thenReturn(defaultIssue);
+        PostAnalysisIssueVisitor postAnalysisIssueVisitor = new PostAnalysisIssueVisitor();
+        postAnalysisIssueVisitor.onIssue(componentIssue.getComponent(), componentIssue.getIssue());
+
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        when(analysisDetails.getQualityGateStatus()).thenReturn(QualityGate.Status.OK);
+        when(analysisDetails.getAnalysisProjectKey()).thenReturn("projectKey");
+        when(analysisDetails.getBranchName()).thenReturn("branchName");
+        when(analysisDetails.getAnalysisDate()).thenReturn(new Date(1234567890));
+        when(analysisDetails.getPostAnalysisIssueVisitor()).thenReturn(postAnalysisIssueVisitor);
+
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(anyString())).then(i -> Optional.of(i.getArguments()[0]));
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
+
+        CheckRunAnnotationUploader checkRunAnnotationUploader = mock(CheckRunAnnotationUploader.class);
+
+        new GraphqlCheckRunProvider(graphqlProvider, Clock.fixed(Instant.ofEpochSecond(1234567890), ZoneId.of("UTC")),
+                                    githubApplicationAuthenticationProvider, server, configurationRepository,
+                                    new PropertyDefinitions(), checkRunAnnotationUploader, mock(ScmInfoRepository.class),
+                                    mock(PullRequestCommitLoader.class)).createCheckRun(analysisDetails);
+
+        verify(checkRunAnnotationUploader, never())
+                .uploadAnnotations(any(), any(), any(), any(), any(), any(), any(), anyInt(), anyInt());
+    }
+
     @Test
     public void checkCorrectDefaultValuesInjected() {
         Clock clock = mock(Clock.class);
@@ -531,10 +612,17 @@ public class GraphqlCheckRunProviderTest {
         Server server = mock(Server.class);
         ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
         PropertyDefinitions propertyDefinitions = new PropertyDefinitions();
+        HttpClientProvider httpClientProvider = mock(HttpClientProvider.class);
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
         assertThat(new GraphqlCheckRunProvider(clock, githubApplicationAuthenticationProvider, server,
-                                               configurationRepository, propertyDefinitions)).usingRecursiveComparison()
+                                               configurationRepository, propertyDefinitions, httpClientProvider,
+                                               scmInfoRepository))
+                .usingRecursiveComparison()
                 .isEqualTo(new GraphqlCheckRunProvider(new DefaultGraphqlProvider(), clock,
                                                        githubApplicationAuthenticationProvider, server,
-                                                       configurationRepository, propertyDefinitions));
+                                                       configurationRepository, propertyDefinitions,
+                                                       new CheckRunAnnotationUploader(httpClientProvider),
+                                                       scmInfoRepository,
+                                                       new PullRequestCommitLoader(httpClientProvider)));
     }
 }
\ No newline at end of file
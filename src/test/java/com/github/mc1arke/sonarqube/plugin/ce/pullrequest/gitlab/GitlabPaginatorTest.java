@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.badRequest;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+public class GitlabPaginatorTest {
+
+    @Rule
+    public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+    private final HttpClientProvider httpClientProvider = new HttpClientProvider(mock(Configuration.class));
+    private final Map<String, String> headers = Collections.singletonMap("PRIVATE-TOKEN", "token");
+
+    @After
+    public void tearDown() throws IOException {
+        httpClientProvider.close();
+    }
+
+    @Test
+    public void checkRemainingPagesRequestedUsingTotalPages() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("per_page", equalTo("2"))
+                                     .withQueryParam("page", absent())
+                                     .willReturn(okJson("[1, 2]").withHeader("X-Total-Pages", "3")));
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("per_page", equalTo("2"))
+                                     .withQueryParam("page", equalTo("2"))
+                                     .willReturn(okJson("[3, 4]").withHeader("X-Total-Pages", "3")
+                                                         .withFixedDelay(200)));
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("per_page", equalTo("2"))
+                                     .withQueryParam("page", equalTo("3"))
+                                     .willReturn(okJson("[5]").withHeader("X-Total-Pages", "3")));
+
+        GitlabPaginator testCase = new GitlabPaginator(httpClientProvider, new GitlabRequestScheduler(), 2, 2);
+        List<Integer> result = testCase.stream(wireMockRule.baseUrl() + "/items", headers,
+                                               new TypeReference<List<Integer>>() {
+                                               }).collect(Collectors.toList());
+
+        // the slower second page is still returned before the third
+        assertThat(result).containsExactly(1, 2, 3, 4, 5);
+        wireMockRule.verify(3, getRequestedFor(urlPathEqualTo("/items")).withHeader("PRIVATE-TOKEN", equalTo("token")));
+    }
+
+    @Test
+    public void checkLinkFollowedWhenTotalPagesNotReturned() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("per_page", equalTo("100"))
+                                     .willReturn(okJson("[1]").withHeader("Link", "<" + wireMockRule.baseUrl() +
+                                                                                  "/items/next>; rel=\"next\", <" +
+                                                                                  wireMockRule.baseUrl() +
+                                                                                  "/items>; rel=\"first\"")));
+        wireMockRule.stubFor(get(urlPathEqualTo("/items/next")).willReturn(okJson("[2]")));
+
+        GitlabPaginator testCase = new GitlabPaginator(httpClientProvider, new GitlabRequestScheduler(), 100, 4);
+        List<Integer> result = testCase.stream(wireMockRule.baseUrl() + "/items", headers,
+                                               new TypeReference<List<Integer>>() {
+                                               }).collect(Collectors.toList());
+
+        assertThat(result).containsExactly(1, 2);
+    }
+
+    @Test
+    public void checkFailedPageThrowsException() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("page", absent())
+                                     .willReturn(okJson("[1]").withHeader("X-Total-Pages", "2")));
+        wireMockRule.stubFor(get(urlPathEqualTo("/items")).withQueryParam("page", equalTo("2"))
+                                     .willReturn(badRequest()));
+
+        GitlabPaginator testCase = new GitlabPaginator(httpClientProvider, new GitlabRequestScheduler(), 1, 4);
+        TypeReference<List<Integer>> type = new TypeReference<List<Integer>>() {
+        };
+
+        assertThatThrownBy(() -> testCase.stream(wireMockRule.baseUrl() + "/items", headers, type)
+                .collect(Collectors.toList())).isInstanceOf(IllegalStateException.class)
+                .hasMessage("An error was returned in the response from the Gitlab API. See the previous log messages for details");
+    }
+}
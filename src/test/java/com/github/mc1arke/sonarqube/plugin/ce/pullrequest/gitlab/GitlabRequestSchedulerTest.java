@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GitlabRequestSchedulerTest {
+
+    private static final long START_MILLIS = 1600000000000L;
+
+    @Rule
+    public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+    private final HttpClientProvider httpClientProvider = new HttpClientProvider(mock(Configuration.class));
+    private final AtomicLong now = new AtomicLong(START_MILLIS);
+    private final List<Long> sleeps = new ArrayList<>();
+    private final GitlabRequestScheduler testCase = new GitlabRequestScheduler(clock(), millis -> {
+        sleeps.add(millis);
+        now.addAndGet(millis);
+    });
+
+    @After
+    public void tearDown() throws IOException {
+        httpClientProvider.close();
+    }
+
+    @Test
+    public void checkThrottledRequestRetriedAfterRetryAfterPeriod() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource")).inScenario("throttle").whenScenarioStateIs(Scenario.STARTED)
+                                     .willReturn(aResponse().withStatus(429).withHeader("Retry-After", "2"))
+                                     .willSetStateTo("allowed"));
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource")).inScenario("throttle").whenScenarioStateIs("allowed")
+                                     .willReturn(ok("body")));
+
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(sleeps).containsExactly(2000L);
+        wireMockRule.verify(exactly(2), getRequestedFor(urlPathEqualTo("/resource")));
+    }
+
+    @Test
+    public void checkThrottledResponseReturnedOnceRetriesExhausted() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource")).willReturn(aResponse().withStatus(429)));
+
+        assertThat(getStatus()).isEqualTo(429);
+        assertThat(sleeps).containsExactly(1000L, 2000L, 4000L);
+        wireMockRule.verify(exactly(GitlabRequestScheduler.MAX_RETRIES + 1),
+                            getRequestedFor(urlPathEqualTo("/resource")));
+    }
+
+    @Test
+    public void checkRequestsPacedToSpreadRemainingLimitUntilReset() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource"))
+                                     .willReturn(ok().withHeader("RateLimit-Remaining", "10")
+                                                         .withHeader("RateLimit-Reset", String.valueOf(START_MILLIS / 1000 + 10))));
+
+        // the limit isn't known until the first response, so only the requests after it use the burst allowance
+        for (int i = 0; i <= GitlabRequestScheduler.BURST; i++) {
+            assertThat(getStatus()).isEqualTo(200);
+        }
+        assertThat(sleeps).isEmpty();
+
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(sleeps).containsExactly(1000L);
+    }
+
+    @Test
+    public void checkRequestsPausedUntilResetWhenLimitExhausted() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource"))
+                                     .willReturn(ok().withHeader("RateLimit-Remaining", "0")
+                                                         .withHeader("RateLimit-Reset", String.valueOf(START_MILLIS / 1000 + 30))));
+
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(sleeps).containsExactly(30000L);
+    }
+
+    @Test
+    public void checkInvalidRateLimitHeadersIgnored() throws IOException {
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource")).inScenario("throttle").whenScenarioStateIs(Scenario.STARTED)
+                                     .willReturn(aResponse().withStatus(429)
+                                                         .withHeader("Retry-After", "99999999999999999999")
+                                                         .withHeader("RateLimit-Remaining", "0")
+                                                         .withHeader("RateLimit-Reset", "soon"))
+                                     .willSetStateTo("allowed"));
+        wireMockRule.stubFor(get(urlPathEqualTo("/resource")).inScenario("throttle").whenScenarioStateIs("allowed")
+                                     .willReturn(ok("body").withHeader("RateLimit-Remaining", "plenty")
+                                                         .withHeader("RateLimit-Reset", String.valueOf(START_MILLIS / 1000 + 10))));
+
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(getStatus()).isEqualTo(200);
+        assertThat(sleeps).containsExactly(GitlabRequestScheduler.DEFAULT_RETRY_DELAY_MILLIS);
+        wireMockRule.verify(exactly(3), getRequestedFor(urlPathEqualTo("/resource")));
+    }
+
+    private int getStatus() throws IOException {
+        try (CloseableHttpResponse response = testCase.execute(httpClientProvider.getHttpClient(),
+                                                               new HttpGet(wireMockRule.baseUrl() + "/resource"))) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    private Clock clock() {
+        Clock clock = mock(Clock.class);
+        when(clock.millis()).then(i -> now.get());
+        return clock;
+    }
+}
@@ -1,14 +1,19 @@
 package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.gitlab;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Optional;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.AnalysisDetails;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.CommentReconciler;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.LineRevisions;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PostAnalysisIssueVisitor;
 import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.PullRequestBuildStatusDecorator;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http.HttpClientProvider;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -18,6 +23,7 @@ import org.sonar.api.config.Configuration;
 import org.sonar.api.issue.Issue;
 import org.sonar.api.measures.CoreMetrics;
 import org.sonar.api.platform.Server;
+import org.sonar.api.rule.RuleKey;
 import org.sonar.ce.task.projectanalysis.component.Component;
 import org.sonar.ce.task.projectanalysis.component.ConfigurationRepository;
 import org.sonar.ce.task.projectanalysis.scm.Changeset;
@@ -27,19 +33,33 @@ import org.sonar.core.issue.DefaultIssue;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.created;
 import static com.github.tomakehurst.wiremock.client.WireMock.delete;
+import static com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.noContent;
+import static com.github.tomakehurst.wiremock.client.WireMock.ok;
 import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.serverError;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 public class GitlabServerPullRequestDecoratorTest {
 
+    private static final String RECONCILE_USER = "sonar_user";
+    private static final String RECONCILE_DISCUSSIONS_PATH = "/api/v4/projects/repo%2Fslug/merge_requests/1/discussions";
+    private static final String RECONCILE_FILE_PATH = "/path/to/file";
+    private static final int RECONCILE_LINE = 5;
+
     @Rule
     public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig());
 
@@ -72,6 +92,7 @@ public class GitlabServerPullRequestDecoratorTest {
         when(coverage.getValue()).thenReturn("10");
 
         AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
         when(analysisDetails.getAnalysisProjectKey()).thenReturn(projectKey);
         when(analysisDetails.getBranchName()).thenReturn(branchName);
         when(analysisDetails.getCommitSha()).thenReturn(commitSHA);
@@ -84,7 +105,7 @@ public class GitlabServerPullRequestDecoratorTest {
         when(componentIssue.getIssue()).thenReturn(defaultIssue);
         Component component = mock(Component.class);
         when(componentIssue.getComponent()).thenReturn(component);
-        when(issueVisitor.getIssues()).thenReturn(Collections.singletonList(componentIssue));
+        when(issueVisitor.getOpenIssues()).thenReturn(Collections.singletonList(componentIssue));
         when(analysisDetails.getPostAnalysisIssueVisitor()).thenReturn(issueVisitor);
         when(analysisDetails.createAnalysisSummary(Mockito.any())).thenReturn("summary");
         when(analysisDetails.createAnalysisIssueSummary(Mockito.any(), Mockito.any())).thenReturn("issue");
@@ -95,6 +116,7 @@ public class GitlabServerPullRequestDecoratorTest {
         when(scmInfo.hasChangesetForLine(anyInt())).thenReturn(true);
         when(scmInfo.getChangesetForLine(anyInt())).thenReturn(Changeset.newChangesetBuilder().setDate(0L).setRevision(commitSHA).build());
         when(scmInfoRepository.getScmInfo(component)).thenReturn(Optional.of(scmInfo));
+        when(analysisDetails.getLineRevisions()).thenReturn(LineRevisions.read(scmInfoRepository, issueVisitor.getOpenIssues()));
         wireMockRule.stubFor(get(urlPathEqualTo("/api/v4/user")).withHeader("PRIVATE-TOKEN", equalTo("token")).willReturn(okJson("{\n" +
                 "  \"id\": 1,\n" +
                 "  \"username\": \"" + user + "\"}")));
@@ -155,12 +177,184 @@ public class GitlabServerPullRequestDecoratorTest {
         Server server = mock(Server.class);
         when(server.getPublicRootUrl()).thenReturn(sonarRootUrl);
 
-        GitlabServerPullRequestDecorator pullRequestDecorator = new GitlabServerPullRequestDecorator(server, configurationRepository, scmInfoRepository);
+        GitlabServerPullRequestDecorator pullRequestDecorator = new GitlabServerPullRequestDecorator(server, configurationRepository, scmInfoRepository, new HttpClientProvider(configuration), new GitlabRequestScheduler());
 
 
         pullRequestDecorator.decorateQualityGateStatus(analysisDetails);
     }
 
+    @Test
+    public void decorateQualityGateStatusReconcilesExistingDiscussions() throws IOException {
+        String user = RECONCILE_USER;
+        String discussionsPath = RECONCILE_DISCUSSIONS_PATH;
+        String issueFingerprint = reconcileIssueFingerprint();
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/changed/notes/2")).willReturn(ok()));
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/fixed/notes/3")).willReturn(ok()));
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/fixed")).withQueryParam("resolved", equalTo("true")).willReturn(ok()));
+        wireMockRule.stubFor(delete(urlPathEqualTo(discussionsPath + "/legacy/notes/4")).willReturn(noContent()));
+
+        reconcileDiscussions(
+                discussion("unchanged", 1, user, objectMapper.writeValueAsString(CommentReconciler.summaryComment("summary").getText()), false),
+                discussion("changed", 2, user, objectMapper.writeValueAsString(CommentReconciler.issueComment(issueFingerprint, "old issue text", null).getText()), false),
+                discussion("fixed", 3, user, objectMapper.writeValueAsString(CommentReconciler.issueComment("0123abcd", "fixed issue", null).getText()), false),
+                discussion("legacy", 4, user, "\"posted before fingerprinting\"", false),
+                discussion("other", 5, "other_user", "\"a reviewer comment\"", false));
+
+        wireMockRule.verify(0, postRequestedFor(urlPathEqualTo(discussionsPath)));
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/changed/notes/2"))
+                .withRequestBody(equalTo("body=" + urlEncode(CommentReconciler.issueComment(issueFingerprint, "new issue text", null).getText()))));
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/fixed")));
+        wireMockRule.verify(deleteRequestedFor(urlPathEqualTo(discussionsPath + "/legacy/notes/4")));
+        wireMockRule.verify(0, putRequestedFor(urlPathEqualTo(discussionsPath + "/unchanged")));
+        wireMockRule.verify(0, deleteRequestedFor(urlPathEqualTo(discussionsPath + "/other/notes/5")));
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/fixed/notes/3"))
+                .withRequestBody(equalTo("body=" + urlEncode(CommentReconciler.markResolved(CommentReconciler.issueComment("0123abcd", "fixed issue", null).getText())))));
+    }
+
+    @Test
+    public void decorateQualityGateStatusOnlyReopensDiscussionsResolvedByPlugin() throws IOException {
+        String user = RECONCILE_USER;
+        String discussionsPath = RECONCILE_DISCUSSIONS_PATH;
+        ObjectMapper objectMapper = new ObjectMapper();
+        String issueComment = CommentReconciler.issueComment(reconcileIssueFingerprint(), "new issue text", null).getText();
+
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/raisedAgain/notes/2")).willReturn(ok()));
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/raisedAgain")).withQueryParam("resolved", equalTo("false")).willReturn(ok()));
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/reviewerResolvedFixed")).willReturn(ok()));
+
+        reconcileDiscussions(
+                discussion("reviewerResolved", 1, user, objectMapper.writeValueAsString(CommentReconciler.summaryComment("summary").getText()), true),
+                discussion("raisedAgain", 2, user, objectMapper.writeValueAsString(CommentReconciler.markResolved(issueComment)), true),
+                discussion("reviewerResolvedFixed", 3, user, objectMapper.writeValueAsString(CommentReconciler.issueComment("0123abcd", "fixed issue", null).getText()), true));
+
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/raisedAgain/notes/2")).withRequestBody(equalTo("body=" + urlEncode(issueComment))));
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/raisedAgain")).withQueryParam("resolved", equalTo("false")));
+        wireMockRule.verify(0, putRequestedFor(urlPathEqualTo(discussionsPath + "/reviewerResolved")));
+        wireMockRule.verify(0, putRequestedFor(urlPathEqualTo(discussionsPath + "/reviewerResolvedFixed")));
+        wireMockRule.verify(0, postRequestedFor(urlPathEqualTo(discussionsPath)));
+    }
+
+    @Test
+    public void decorateQualityGateStatusDeletesSummaryDiscussionWhenSummaryDisabled() throws IOException {
+        String discussionsPath = RECONCILE_DISCUSSIONS_PATH;
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        wireMockRule.stubFor(delete(urlPathEqualTo(discussionsPath + "/summary/notes/1")).willReturn(noContent()));
+
+        reconcileDiscussions(false,
+                discussion("summary", 1, RECONCILE_USER, objectMapper.writeValueAsString(CommentReconciler.summaryComment("summary").getText()), false),
+                discussion("issue", 2, RECONCILE_USER, objectMapper.writeValueAsString(CommentReconciler.issueComment(reconcileIssueFingerprint(), "new issue text", null).getText()), false));
+
+        wireMockRule.verify(deleteRequestedFor(urlPathEqualTo(discussionsPath + "/summary/notes/1")));
+        wireMockRule.verify(0, putRequestedFor(urlPathEqualTo(discussionsPath + "/summary")));
+        wireMockRule.verify(0, putRequestedFor(urlPathEqualTo(discussionsPath + "/summary/notes/1")));
+        wireMockRule.verify(0, postRequestedFor(urlPathEqualTo(discussionsPath)));
+    }
+
+    @Test
+    public void decorateQualityGateStatusContinuesReconcilingAfterFailedRequest() throws IOException {
+        String discussionsPath = RECONCILE_DISCUSSIONS_PATH;
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        wireMockRule.stubFor(put(urlPathEqualTo(discussionsPath + "/summary/notes/1")).willReturn(serverError()));
+        wireMockRule.stubFor(delete(urlPathEqualTo(discussionsPath + "/legacy/notes/2")).willReturn(noContent()));
+        wireMockRule.stubFor(post(urlPathEqualTo(discussionsPath)).willReturn(created()));
+
+        reconcileDiscussions(
+                discussion("summary", 1, RECONCILE_USER, objectMapper.writeValueAsString(CommentReconciler.summaryComment("old summary").getText()), false),
+                discussion("legacy", 2, RECONCILE_USER, "\"posted before fingerprinting\"", false));
+
+        wireMockRule.verify(putRequestedFor(urlPathEqualTo(discussionsPath + "/summary/notes/1")));
+        wireMockRule.verify(deleteRequestedFor(urlPathEqualTo(discussionsPath + "/legacy/notes/2")));
+        wireMockRule.verify(1, postRequestedFor(urlPathEqualTo(discussionsPath)));
+    }
+
+    private static String reconcileIssueFingerprint() {
+        return new CommentReconciler.Fingerprinter().fingerprint(RECONCILE_FILE_PATH, RECONCILE_LINE, "java:S1234", "message");
+    }
+
+    /**
+     * Reconciles the given discussions with an analysis that has a summary and a single issue, with the fingerprint
+     * {@link #reconcileIssueFingerprint()}.
+     */
+    private void reconcileDiscussions(String... discussions) {
+        reconcileDiscussions(true, discussions);
+    }
+
+    private void reconcileDiscussions(boolean summaryEnabled, String... discussions) {
+        String user = RECONCILE_USER;
+        String repositorySlug = "repo/slug";
+        String commitSHA = "commitSHA";
+        String branchName = "1";
+
+        ConfigurationRepository configurationRepository = mock(ConfigurationRepository.class);
+        Configuration configuration = mock(Configuration.class);
+
+        when(configurationRepository.getConfiguration()).thenReturn(configuration);
+        when(configuration.get(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_URL)).thenReturn(Optional.of(wireMockRule.baseUrl()));
+        when(configuration.get(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_TOKEN)).thenReturn(Optional.of("token"));
+        when(configuration.get(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_REPOSITORY_SLUG)).thenReturn(Optional.of(repositorySlug));
+        when(configuration.get(GitlabServerPullRequestDecorator.PULLREQUEST_GITLAB_COMMENT_RECONCILE)).thenReturn(Optional.of("true"));
+        when(configuration.get(PullRequestBuildStatusDecorator.PULL_REQUEST_COMMENT_SUMMARY_ENABLED)).thenReturn(Optional.of(String.valueOf(summaryEnabled)));
+        when(configuration.get(PullRequestBuildStatusDecorator.PULL_REQUEST_DELETE_COMMENTS_ENABLED)).thenReturn(Optional.of("true"));
+        when(configuration.get(PullRequestBuildStatusDecorator.PULL_REQUEST_FILE_COMMENT_ENABLED)).thenReturn(Optional.of("true"));
+
+        QualityGate.Condition coverage = mock(QualityGate.Condition.class);
+        when(coverage.getStatus()).thenReturn(QualityGate.EvaluationStatus.OK);
+        when(coverage.getValue()).thenReturn("10");
+
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        when(analysisDetails.getConfiguration()).thenReturn(configuration);
+        when(analysisDetails.getAnalysisProjectKey()).thenReturn("projectKey");
+        when(analysisDetails.getBranchName()).thenReturn(branchName);
+        when(analysisDetails.getCommitSha()).thenReturn(commitSHA);
+        when(analysisDetails.findQualityGateCondition(CoreMetrics.NEW_COVERAGE_KEY)).thenReturn(Optional.of(coverage));
+        PostAnalysisIssueVisitor issueVisitor = mock(PostAnalysisIssueVisitor.class);
+        PostAnalysisIssueVisitor.ComponentIssue componentIssue = mock(PostAnalysisIssueVisitor.ComponentIssue.class);
+        DefaultIssue defaultIssue = mock(DefaultIssue.class);
+        when(defaultIssue.getStatus()).thenReturn(Issue.STATUS_OPEN);
+        when(defaultIssue.getLine()).thenReturn(RECONCILE_LINE);
+        when(defaultIssue.getRuleKey()).thenReturn(RuleKey.of("java", "S1234"));
+        when(defaultIssue.getMessage()).thenReturn("message");
+        when(componentIssue.getIssue()).thenReturn(defaultIssue);
+        Component component = mock(Component.class);
+        when(componentIssue.getComponent()).thenReturn(component);
+        when(issueVisitor.getOpenIssues()).thenReturn(Collections.singletonList(componentIssue));
+        when(analysisDetails.getPostAnalysisIssueVisitor()).thenReturn(issueVisitor);
+        when(analysisDetails.createAnalysisSummary(Mockito.any())).thenReturn("summary");
+        when(analysisDetails.createAnalysisIssueSummary(Mockito.any(), Mockito.any())).thenReturn("new issue text");
+        when(analysisDetails.getSCMPathForIssue(componentIssue)).thenReturn(Optional.of(RECONCILE_FILE_PATH));
+
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        when(scmInfo.hasChangesetForLine(anyInt())).thenReturn(true);
+        when(scmInfo.getChangesetForLine(anyInt())).thenReturn(Changeset.newChangesetBuilder().setDate(0L).setRevision(commitSHA).build());
+        when(scmInfoRepository.getScmInfo(component)).thenReturn(Optional.of(scmInfo));
+        when(analysisDetails.getLineRevisions()).thenReturn(LineRevisions.read(scmInfoRepository, issueVisitor.getOpenIssues()));
+
+        wireMockRule.stubFor(get(urlPathEqualTo("/api/v4/user")).willReturn(okJson("{\"id\": 1, \"username\": \"" + user + "\"}")));
+        wireMockRule.stubFor(get(urlPathEqualTo("/api/v4/projects/" + urlEncode(repositorySlug) + "/merge_requests/" + branchName)).willReturn(okJson(
+                "{\"id\": 15235, \"iid\": " + branchName + ", \"diff_refs\": {\"base_sha\": \"base\", \"head_sha\": \"" + commitSHA + "\", \"start_sha\": \"base\"}}")));
+        wireMockRule.stubFor(get(urlPathEqualTo("/api/v4/projects/" + urlEncode(repositorySlug) + "/merge_requests/" + branchName + "/commits"))
+                .willReturn(okJson("[{\"id\": \"" + commitSHA + "\"}]")));
+        wireMockRule.stubFor(get(urlPathEqualTo(RECONCILE_DISCUSSIONS_PATH)).willReturn(okJson("[" + String.join(",", discussions) + "]")));
+        wireMockRule.stubFor(post(urlPathEqualTo("/api/v4/projects/" + urlEncode(repositorySlug) + "/statuses/" + commitSHA)).willReturn(created()));
+
+        Server server = mock(Server.class);
+        when(server.getPublicRootUrl()).thenReturn("http://sonar:9000/sonar");
+
+        new GitlabServerPullRequestDecorator(server, configurationRepository, scmInfoRepository, new HttpClientProvider(configuration), new GitlabRequestScheduler())
+                .decorateQualityGateStatus(analysisDetails);
+    }
+
+    private static String discussion(String discussionId, int noteId, String author, String body, boolean resolved) {
+        return "{\"id\": \"" + discussionId + "\", \"individual_note\": false, \"notes\": [{\"id\": " + noteId +
+                ", \"type\": \"DiscussionNote\", \"body\": " + body + ", \"resolvable\": true, \"resolved\": " + resolved +
+                ", \"author\": {\"id\": 1, \"username\": \"" + author + "\"}}]}";
+    }
+
     private String urlEncode(String value) {
         try {
             return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
@@ -168,4 +362,41 @@ public class GitlabServerPullRequestDecoratorTest {
             throw new Error("No support for UTF-8!", e);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void prepareLoadsScmInfoForFilesWithOpenIssues() {
+        Component file = mock(Component.class);
+        when(file.getType()).thenReturn(Component.Type.FILE);
+        Component project = mock(Component.class);
+        when(project.getType()).thenReturn(Component.Type.PROJECT);
+        Component fileWithClosedIssue = mock(Component.class);
+        when(fileWithClosedIssue.getType()).thenReturn(Component.Type.FILE);
+
+        PostAnalysisIssueVisitor issueVisitor = new PostAnalysisIssueVisitor();
+        issueVisitor.onIssue(file, issue(Issue.STATUS_OPEN));
+        issueVisitor.onIssue(file, issue(Issue.STATUS_CONFIRMED));
+        issueVisitor.onIssue(project, issue(Issue.STATUS_OPEN));
+        issueVisitor.onIssue(fileWithClosedIssue, issue(Issue.STATUS_CLOSED));
+        AnalysisDetails analysisDetails = mock(AnalysisDetails.class);
+        when(analysisDetails.getPostAnalysisIssueVisitor()).thenReturn(issueVisitor);
+
+        ScmInfoRepository scmInfoRepository = mock(ScmInfoRepository.class);
+        ScmInfo scmInfo = mock(ScmInfo.class);
+        when(scmInfo.hasChangesetForLine(1)).thenReturn(true);
+        when(scmInfo.getChangesetForLine(1)).thenReturn(Changeset.newChangesetBuilder().setDate(0L).setRevision("rev").build());
+        when(scmInfoRepository.getScmInfo(file)).thenReturn(Optional.of(scmInfo));
+        LineRevisions lineRevisions = new GitlabServerPullRequestDecorator(mock(Server.class), mock(ConfigurationRepository.class), scmInfoRepository,
+                                             mock(HttpClientProvider.class), new GitlabRequestScheduler()).prepare(analysisDetails);
+
+        assertThat(lineRevisions.getRevision(file, 1)).contains("rev");
+        verify(scmInfoRepository).getScmInfo(file);
+        verifyNoMoreInteractions(scmInfoRepository);
+    }
+
+    private static DefaultIssue issue(String status) {
+        DefaultIssue defaultIssue = mock(DefaultIssue.class);
+        when(defaultIssue.status()).thenReturn(status);
+        when(defaultIssue.getLine()).thenReturn(1);
+        return defaultIssue;
+    }
+}
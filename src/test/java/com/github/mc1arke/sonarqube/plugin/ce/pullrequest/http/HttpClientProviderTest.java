@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationMetrics;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecorationRecording;
+import com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics.DecoratorMetrics;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.config.Configuration;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HttpClientProviderTest {
+
+    @Rule
+    public final WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+    @Test
+    public void testSameClientReturnedOnRepeatCalls() throws IOException {
+        try (HttpClientProvider testCase = new HttpClientProvider(mock(Configuration.class))) {
+            assertThat(testCase.getHttpClient()).isSameAs(testCase.getHttpClient());
+            assertThat(testCase.getSslSocketFactory()).isSameAs(testCase.getSslSocketFactory());
+        }
+    }
+
+    @Test
+    public void testClientCanBeReusedForMultipleRequests() throws IOException {
+        wireMockRule.stubFor(get(urlEqualTo("/resource")).willReturn(okJson("{}")));
+
+        try (HttpClientProvider testCase = new HttpClientProvider(mock(Configuration.class))) {
+            CloseableHttpClient httpClient = testCase.getHttpClient();
+            for (int i = 0; i < 3; i++) {
+                try (CloseableHttpResponse response = httpClient.execute(new HttpGet(wireMockRule.baseUrl() + "/resource"))) {
+                    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+        }
+
+        wireMockRule.verify(3, getRequestedFor(urlEqualTo("/resource")));
+    }
+
+    @Test
+    public void testConfiguredTimeoutsAppliedToUrlConnection() throws IOException {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_CONNECT_TIMEOUT)).thenReturn(Optional.of("1234"));
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_SOCKET_TIMEOUT)).thenReturn(Optional.of("5678"));
+
+        try (HttpClientProvider testCase = new HttpClientProvider(configuration)) {
+            URLConnection urlConnection = testCase.configure(new URL("https://localhost/").openConnection());
+            assertThat(urlConnection.getConnectTimeout()).isEqualTo(1234);
+            assertThat(urlConnection.getReadTimeout()).isEqualTo(5678);
+            assertThat(((HttpsURLConnection) urlConnection).getSSLSocketFactory()).isSameAs(testCase.getSslSocketFactory());
+        }
+    }
+
+    @Test
+    public void testUrlConnectionResponseRecordedAgainstDecoration() throws IOException {
+        wireMockRule.stubFor(get(urlEqualTo("/repos/owner/repo/pulls/1/commits")).willReturn(okJson("[]")));
+
+        DecorationMetrics decorationMetrics = new DecorationMetrics();
+        DecorationRecording recording = decorationMetrics.startRecording("decorator");
+        try (HttpClientProvider testCase = new HttpClientProvider(mock(Configuration.class))) {
+            URLConnection urlConnection = testCase.configure(
+                    new URL(wireMockRule.baseUrl() + "/repos/owner/repo/pulls/1/commits").openConnection());
+            try (InputStream inputStream = HttpClientProvider.getInputStream(urlConnection)) {
+                assertThat(IOUtils.toString(inputStream, StandardCharsets.UTF_8)).isEqualTo("[]");
+            }
+
+            DecoratorMetrics decoratorMetrics = decorationMetrics.getDecoratorMetrics("decorator");
+            assertThat(decoratorMetrics.getHttpCallsByEndpoint())
+                    .containsOnly(entry("GET /repos/{name}/{name}/pulls/{id}/commits", 1L));
+            assertThat(decoratorMetrics.getBytesReceived()).isEqualTo(2);
+        } finally {
+            recording.finish(false);
+            decorationMetrics.stop();
+        }
+    }
+
+    @Test
+    public void testInvalidPoolSizeFallsBackToDefault() throws IOException {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_MAX_CONNECTIONS_PER_ROUTE)).thenReturn(Optional.of("0"));
+
+        try (HttpClientProvider testCase = new HttpClientProvider(configuration)) {
+            URLConnection urlConnection = testCase.configure(new URL("http://localhost/").openConnection());
+            assertThat(urlConnection.getConnectTimeout()).isEqualTo(HttpClientProvider.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void testUnparseableTimeoutFallsBackToDefault() throws IOException {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_CONNECT_TIMEOUT)).thenReturn(Optional.of("10s"));
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_SOCKET_TIMEOUT)).thenReturn(Optional.of(" 5678 "));
+
+        try (HttpClientProvider testCase = new HttpClientProvider(configuration)) {
+            URLConnection urlConnection = testCase.configure(new URL("http://localhost/").openConnection());
+            assertThat(urlConnection.getConnectTimeout()).isEqualTo(HttpClientProvider.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+            assertThat(urlConnection.getReadTimeout()).isEqualTo(5678);
+        }
+    }
+
+    @Test
+    public void testRequestExecutorSharedAndBoundedByConnectionPool() throws IOException {
+        Configuration configuration = mock(Configuration.class);
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_MAX_CONNECTIONS_PER_ROUTE)).thenReturn(Optional.of("2"));
+        when(configuration.get(HttpClientProvider.PULL_REQUEST_HTTP_MAX_CONNECTIONS_TOTAL)).thenReturn(Optional.of("3"));
+
+        HttpClientProvider testCase = new HttpClientProvider(configuration);
+        ExecutorService requestExecutor = testCase.getRequestExecutor();
+        assertThat(testCase.getRequestExecutor()).isSameAs(requestExecutor);
+        assertThat(((ThreadPoolExecutor) requestExecutor).getMaximumPoolSize()).isEqualTo(3);
+
+        testCase.close();
+        assertThat(requestExecutor.isShutdown()).isTrue();
+        assertThat(testCase.getRequestExecutor()).isNotSameAs(requestExecutor);
+        testCase.close();
+    }
+
+    @Test
+    public void testClientUnusableAfterClose() throws IOException {
+        HttpClientProvider testCase = new HttpClientProvider(mock(Configuration.class));
+        CloseableHttpClient httpClient = testCase.getHttpClient();
+        testCase.close();
+
+        assertThatThrownBy(() -> httpClient.execute(new HttpGet(wireMockRule.baseUrl() + "/resource")))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(testCase.getHttpClient()).isNotSameAs(httpClient);
+        testCase.close();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JsonCodecsTest {
+
+    @Test
+    public void checkReadersSharedForSameType() {
+        assertThat(JsonCodecs.reader(Map.class)).isSameAs(JsonCodecs.reader(Map.class));
+        assertThat(JsonCodecs.reader(new TypeReference<List<String>>() {
+        })).isSameAs(JsonCodecs.reader(new TypeReference<List<String>>() {
+        }));
+        assertThat(JsonCodecs.reader(new TypeReference<List<String>>() {
+        })).isNotSameAs(JsonCodecs.reader(new TypeReference<List<Integer>>() {
+        }));
+    }
+
+    @Test
+    public void checkWritersSharedForSameType() {
+        assertThat(JsonCodecs.writer(Map.class)).isSameAs(JsonCodecs.writer(Map.class));
+    }
+
+    @Test
+    public void checkReaderIgnoresUnknownPropertiesAndAcceptsSingleValueAsArray() throws IOException {
+        Value value = JsonCodecs.reader(Value.class).readValue("{\"name\": \"value\", \"unknown\": 1}");
+        List<String> list = JsonCodecs.reader(new TypeReference<List<String>>() {
+        }).readValue("\"single\"");
+
+        assertThat(value.name).isEqualTo("value");
+        assertThat(list).containsExactly("single");
+    }
+
+    @Test
+    public void checkEntityHoldsJsonBodyAndIsRepeatable() throws IOException {
+        HttpEntity entity = JsonCodecs.toEntity(Collections.singletonMap("text", "café"));
+
+        assertThat(entity.isRepeatable()).isTrue();
+        assertThat(entity.getContentType().getValue()).isEqualTo("application/json; charset=UTF-8");
+        assertThat(EntityUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo("{\"text\":\"café\"}");
+        assertThat(EntityUtils.toString(entity, StandardCharsets.UTF_8)).isEqualTo("{\"text\":\"café\"}");
+    }
+
+    static class Value {
+
+        private String name;
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+}
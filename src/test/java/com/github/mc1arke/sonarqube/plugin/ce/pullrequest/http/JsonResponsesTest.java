@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.utils.log.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class JsonResponsesTest {
+
+    @Test
+    public void checkValueReadFromStream() throws IOException {
+        InputStream content = spy(new ByteArrayInputStream(
+                "{\"name\": \"value\", \"unknown\": [1, 2]}".getBytes(StandardCharsets.UTF_8)));
+        HttpEntity entity = new InputStreamEntity(content, ContentType.APPLICATION_JSON);
+
+        Map<String, Object> result = JsonResponses.read(entity, new TypeReference<Map<String, Object>>() {
+        });
+
+        assertThat(result).containsEntry("name", "value");
+        verify(content, atLeastOnce()).close();
+    }
+
+    @Test
+    public void checkSingleValueAcceptedAsList() throws IOException {
+        List<String> result = JsonResponses.read(new StringEntity("\"value\"", ContentType.APPLICATION_JSON),
+                                                 new TypeReference<List<String>>() {
+                                                 });
+
+        assertThat(result).containsExactly("value");
+    }
+
+    @Test
+    public void checkNothingSerialisedWhenDebugDisabled() throws IOException {
+        Logger logger = mock(Logger.class);
+        Object value = mock(Object.class);
+        InputStream content = spy(new ByteArrayInputStream("body".getBytes(StandardCharsets.UTF_8)));
+
+        JsonResponses.debug(logger, "value", value);
+        JsonResponses.debug(logger, "entity", new InputStreamEntity(content, ContentType.APPLICATION_JSON));
+
+        verify(logger, never()).debug(anyString());
+        // the entity still has to be consumed so the connection can be re-used
+        verify(content, atLeastOnce()).close();
+    }
+
+    @Test
+    public void checkDebugOutputCapped() throws IOException {
+        Logger logger = mock(Logger.class);
+        doReturn(true).when(logger).isDebugEnabled();
+        String longValue = StringUtils.repeat("a", JsonResponses.MAX_DEBUG_LENGTH * 2);
+
+        JsonResponses.debug(logger, "value", Collections.singletonMap("key", longValue));
+        JsonResponses.debug(logger, "entity", new StringEntity(longValue, ContentType.APPLICATION_JSON));
+        JsonResponses.debug(logger, "small value", Collections.singletonMap("key", "value"));
+
+        ArgumentCaptor<String> messageCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(3)).debug(messageCaptor.capture());
+        List<String> messages = messageCaptor.getAllValues();
+        assertThat(messages.get(0)).startsWith("value: {\"key\":\"aaa")
+                .hasSize("value: ".length() + JsonResponses.MAX_DEBUG_LENGTH + "... (truncated)".length())
+                .endsWith("a... (truncated)");
+        assertThat(messages.get(1)).startsWith("entity: aaa")
+                .hasSize("entity: ".length() + JsonResponses.MAX_DEBUG_LENGTH + "... (truncated)".length());
+        assertThat(messages.get(2)).isEqualTo("small value: {\"key\":\"value\"}");
+    }
+
+    @Test
+    public void checkRequestEntityNotConsumed() throws IOException {
+        Logger logger = mock(Logger.class);
+        InputStream content = spy(new ByteArrayInputStream("body".getBytes(StandardCharsets.UTF_8)));
+        HttpEntity streamedEntity = new InputStreamEntity(content, 4, ContentType.APPLICATION_JSON);
+
+        JsonResponses.debugRequest(logger, "request", streamedEntity);
+        verify(logger, never()).debug(anyString());
+
+        doReturn(true).when(logger).isDebugEnabled();
+        StringEntity repeatableEntity = new StringEntity("{\"key\":\"value\"}", ContentType.APPLICATION_JSON);
+        JsonResponses.debugRequest(logger, "request", repeatableEntity);
+        JsonResponses.debugRequest(logger, "streamed request", streamedEntity);
+
+        verify(logger).debug("request: {\"key\":\"value\"}");
+        verify(logger).debug("streamed request: 4 bytes streamed");
+        verify(content, never()).read(any(byte[].class), anyInt(), anyInt());
+        verify(content, never()).close();
+        assertThat(EntityUtils.toString(repeatableEntity)).isEqualTo("{\"key\":\"value\"}");
+    }
+}
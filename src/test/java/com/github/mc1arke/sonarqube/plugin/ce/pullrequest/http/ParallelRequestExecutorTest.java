@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.http;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ParallelRequestExecutorTest {
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executorService =
+            Executors.newCachedThreadPool(runnable -> new Thread(runnable, "test-" + threadCount.incrementAndGet()));
+
+    @After
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testOutcomesReturnedInSubmissionOrder() {
+        List<Integer> items = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+
+        List<ParallelRequestExecutor.Outcome<Integer, Integer>> outcomes =
+                ParallelRequestExecutor.execute(executorService, items, 8, item -> {
+                    try {
+                        Thread.sleep((50 - item) % 7);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return item * 2;
+                });
+
+        assertThat(outcomes.stream().map(ParallelRequestExecutor.Outcome::getItem).collect(Collectors.toList()))
+                .isEqualTo(items);
+        assertThat(outcomes.stream().map(o -> o.getResult().orElse(-1)).collect(Collectors.toList()))
+                .isEqualTo(items.stream().map(i -> i * 2).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testFailuresCollectedPerItem() {
+        IOException ioException = new IOException("Whoops");
+        IllegalStateException runtimeException = new IllegalStateException("Dummy");
+
+        List<ParallelRequestExecutor.Outcome<String, String>> outcomes =
+                ParallelRequestExecutor.execute(executorService, Arrays.asList("a", "b", "c", "d"), 4, item -> {
+                    if ("b".equals(item)) {
+                        throw ioException;
+                    } else if ("c".equals(item)) {
+                        throw runtimeException;
+                    }
+                    return item.toUpperCase();
+                });
+
+        assertThat(outcomes).hasSize(4);
+        assertThat(outcomes.get(0).isFailed()).isFalse();
+        assertThat(outcomes.get(0).getResult()).contains("A");
+        assertThat(outcomes.get(1).getFailure()).containsSame(ioException);
+        assertThat(outcomes.get(1).getResult()).isEmpty();
+        assertThat(outcomes.get(2).getFailure()).containsSame(runtimeException);
+        assertThat(outcomes.get(3).getResult()).contains("D");
+    }
+
+    @Test
+    public void testConcurrentRequestsLimitedToParallelism() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Set<String> threadNames = ConcurrentHashMap.newKeySet();
+
+        ParallelRequestExecutor.execute(executorService, IntStream.range(0, 40).boxed().collect(Collectors.toList()), 3, item -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            threadNames.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            return item;
+        });
+
+        assertThat(maxInFlight.get()).isBetween(1, 3);
+        assertThat(threadNames).hasSizeBetween(1, 3).allMatch(name -> name.startsWith("test-"));
+        assertThat(executorService.isShutdown()).isFalse();
+    }
+
+    @Test
+    public void testSubmittedRequestsCompleteInBackground() {
+        List<CompletableFuture<Integer>> futures =
+                ParallelRequestExecutor.submit(executorService, Arrays.asList(1, 2, 3), 2, item -> {
+                    if (2 == item) {
+                        throw new IOException("Whoops");
+                    }
+                    return item * 2;
+                });
+
+        assertThat(futures).hasSize(3);
+        assertThat(futures.get(0).join()).isEqualTo(2);
+        assertThatThrownBy(futures.get(1)::join).hasCauseInstanceOf(IOException.class);
+        assertThat(futures.get(2).join()).isEqualTo(6);
+    }
+
+    @Test
+    public void testSingleParallelismRunsOnCallingThread() {
+        String callingThread = Thread.currentThread().getName();
+
+        List<ParallelRequestExecutor.Outcome<Integer, String>> outcomes =
+                ParallelRequestExecutor.execute(executorService, Arrays.asList(1, 2, 3), 1,
+                                                item -> Thread.currentThread().getName());
+
+        assertThat(outcomes).allMatch(o -> o.getResult().filter(callingThread::equals).isPresent());
+    }
+
+    @Test
+    public void testEmptyItemsReturnNoOutcomes() {
+        assertThat(ParallelRequestExecutor.execute(executorService, Collections.<String>emptyList(), 5, item -> item))
+                .isEmpty();
+    }
+}
@@ -20,11 +20,14 @@ package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collections;
 
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -78,7 +81,8 @@ public class BaseFormatterTest {
 
     private static FormatterFactory checkFormatInvocation(Node node) {
         BaseFormatterImpl baseFormatter = new BaseFormatterImpl();
-        Formatter formatter = mock(Formatter.class);
+        // the formatters only return a String, so rely on the default method to append it
+        Formatter formatter = mock(Formatter.class, CALLS_REAL_METHODS);
         FormatterFactory formatterFactory = mock(FormatterFactory.class, invocation -> formatter);
 
         Node wrapperNode = mock(Node.class);
@@ -95,7 +99,13 @@ public class BaseFormatterTest {
 
         @Override
         public String format(Node node, FormatterFactory formatterFactory) {
-            return childContents(node, formatterFactory);
+            StringBuilder output = new StringBuilder();
+            try {
+                appendChildContents(node, formatterFactory, output);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return output.toString();
         }
     }
 
@@ -20,8 +20,11 @@ package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.markup;
 
 import org.junit.Test;
 
+import java.io.IOException;
+
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class MarkdownFormatterFactoryTest {
 
@@ -84,4 +87,34 @@ public class MarkdownFormatterFactoryTest {
         MarkdownFormatterFactory testCase = new MarkdownFormatterFactory();
         assertEquals("Text", testCase.textFormatter().format(new Text("Text"), testCase));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDocumentFormatterAppendsToOutput() throws IOException {
+        MarkdownFormatterFactory testCase = new MarkdownFormatterFactory();
+        Document document = new Document(new Heading(1, new Text("Title")), new Paragraph(new Text("Body")),
+                                         new List(List.Style.BULLET, new ListItem(new Link("http://url", new Text("Link")))),
+                                         new Image("alt", "source"));
+        StringBuilder output = new StringBuilder("existing ");
+
+        testCase.documentFormatter().format(document, testCase, output);
+
+        assertEquals("existing # Title" + System.lineSeparator() + "Body" + System.lineSeparator() +
+                     System.lineSeparator() + "- [Link](http://url)" + System.lineSeparator() +
+                     System.lineSeparator() + "![alt](source)", output.toString());
+        assertEquals(output.substring("existing ".length()), testCase.documentFormatter().format(document, testCase));
+    }
+
+    @Test
+    public void testFormattersAreShared() {
+        MarkdownFormatterFactory first = new MarkdownFormatterFactory();
+        MarkdownFormatterFactory second = new MarkdownFormatterFactory();
+        assertSame(first.documentFormatter(), second.documentFormatter());
+        assertSame(first.headingFormatter(), second.headingFormatter());
+        assertSame(first.imageFormatter(), second.imageFormatter());
+        assertSame(first.linkFormatter(), second.linkFormatter());
+        assertSame(first.listFormatter(), second.listFormatter());
+        assertSame(first.listItemFormatter(), second.listItemFormatter());
+        assertSame(first.paragraphFormatter(), second.paragraphFormatter());
+        assertSame(first.textFormatter(), second.textFormatter());
+    }
+}
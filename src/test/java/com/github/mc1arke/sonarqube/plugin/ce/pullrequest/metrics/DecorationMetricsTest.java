@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import org.junit.Test;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class DecorationMetricsTest {
+
+    @Test
+    public void testDecoratorMetricsPublishedOnceAndRemovedOnStop() throws Exception {
+        MBeanServer mBeanServer = mock(MBeanServer.class);
+        DecorationMetrics testCase = new DecorationMetrics(mBeanServer);
+        testCase.start();
+
+        DecoratorMetrics decoratorMetrics = testCase.getDecoratorMetrics("GitlabServer");
+        assertThat(testCase.getDecoratorMetrics("GitlabServer")).isSameAs(decoratorMetrics);
+
+        ObjectName objectName =
+                new ObjectName("com.github.mc1arke.sonarqube.plugin:type=PullRequestDecoration,decorator=\"GitlabServer\"");
+        verify(mBeanServer, times(1)).registerMBean(decoratorMetrics, objectName);
+
+        testCase.stop();
+        verify(mBeanServer).unregisterMBean(objectName);
+    }
+
+    @Test
+    public void testRecordingStillStartedWhenPublishingFails() throws Exception {
+        MBeanServer mBeanServer = mock(MBeanServer.class);
+        doThrow(new InstanceAlreadyExistsException()).when(mBeanServer).registerMBean(any(), any());
+        DecorationMetrics testCase = new DecorationMetrics(mBeanServer);
+
+        DecorationRecording recording = testCase.startRecording("Github");
+        assertThat(DecorationRecording.current()).isSameAs(recording);
+        recording.finish(false);
+
+        assertThat(testCase.getDecoratorMetrics("Github").getDecorationCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DecorationRecordingTest {
+
+    @After
+    public void tearDown() {
+        DecorationRecording.current().finish(false);
+    }
+
+    @Test
+    public void testRecordingAddedToDecoratorMetrics() {
+        DecoratorMetrics decoratorMetrics = new DecoratorMetrics();
+        DecorationRecording testCase = DecorationRecording.start(decoratorMetrics);
+        assertThat(DecorationRecording.current()).isSameAs(testCase);
+
+        testCase.enterPhase(Phase.FETCH);
+        testCase.recordHttpCall("GET", "/api/v4/projects/group%2Fproject/merge_requests/12/commits?page=2", 200,
+                                TimeUnit.MILLISECONDS.toNanos(20), 0);
+        testCase.recordHttpCall("GET", "https://gitlab.example.com/api/v4/projects/group%2Fother/merge_requests/3/commits",
+                                404, TimeUnit.MILLISECONDS.toNanos(40), 0);
+        testCase.recordBytesReceived(4096);
+        testCase.enterPhase(Phase.POST);
+        testCase.recordHttpCall("POST", "/api/v4/projects/group%2Fproject/statuses/0f1e2d3c4b5a69788796a5b4c3d2e1f0a1b2c3d4",
+                                201, TimeUnit.MILLISECONDS.toNanos(10), 2048);
+        testCase.recordRetry();
+
+        String summary = testCase.finish(true);
+
+        assertThat(summary).matches("\\d+ms \\(fetch \\d+ms, post \\d+ms\\), 3 HTTP calls, 1 HTTP errors, 1 retries, 2KB sent, 4KB received");
+        assertThat(DecorationRecording.current().isActive()).isFalse();
+        assertThat(decoratorMetrics.getDecorationCount()).isEqualTo(1);
+        assertThat(decoratorMetrics.getFailedDecorationCount()).isEqualTo(1);
+        assertThat(decoratorMetrics.getHttpCallCount()).isEqualTo(3);
+        assertThat(decoratorMetrics.getHttpErrorCount()).isEqualTo(1);
+        assertThat(decoratorMetrics.getRetryCount()).isEqualTo(1);
+        assertThat(decoratorMetrics.getBytesSent()).isEqualTo(2048);
+        assertThat(decoratorMetrics.getBytesReceived()).isEqualTo(4096);
+        assertThat(decoratorMetrics.getHttpCallsByEndpoint())
+                .containsEntry("GET /api/v4/projects/{name}/merge_requests/{id}/commits", 2L)
+                .containsEntry("POST /api/v4/projects/{name}/statuses/{sha}", 1L).hasSize(2);
+        assertThat(decoratorMetrics.getHttpErrorsByEndpoint())
+                .containsEntry("GET /api/v4/projects/{name}/merge_requests/{id}/commits", 1L);
+        assertThat(decoratorMetrics.getHttpLatencyP99MillisByEndpoint())
+                .containsEntry("GET /api/v4/projects/{name}/merge_requests/{id}/commits", 40L);
+        assertThat(decoratorMetrics.getPhaseTimeTotalMillis()).containsOnlyKeys("authenticate", "cleanup", "fetch", "post", "render");
+    }
+
+    @Test
+    public void testRecordingPropagatedToOtherThreads() throws Exception {
+        DecoratorMetrics decoratorMetrics = new DecoratorMetrics();
+        DecorationRecording testCase = DecorationRecording.start(decoratorMetrics);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            assertThat(executorService.submit(testCase.propagate(() -> {
+                DecorationRecording.current().recordRetry();
+                return DecorationRecording.current();
+            })).get()).isSameAs(testCase);
+            assertThat(executorService.submit(() -> DecorationRecording.current().isActive()).get()).isFalse();
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        assertThat(decoratorMetrics.getRetryCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testInactiveRecordingIgnoresEverything() {
+        DecorationRecording testCase = DecorationRecording.current();
+        testCase.enterPhase(Phase.POST);
+        testCase.recordHttpCall("GET", "/rest/api/1.0/projects", 500, 10, 10);
+        testCase.recordRetry();
+
+        assertThat(testCase.isActive()).isFalse();
+        assertThat(testCase.finish(false)).startsWith("0ms, 0 HTTP calls");
+    }
+
+    @Test
+    public void testEndpointTemplate() {
+        assertThat(DecorationRecording.toEndpointTemplate("/rest/api/1.0/projects/PRJ/repos/repo/pull-requests/42/comments/7?version=1"))
+                .isEqualTo("/rest/api/1.0/projects/{name}/repos/{name}/pull-requests/{id}/comments/{id}");
+        assertThat(DecorationRecording.toEndpointTemplate("/rest/api/1.0/users/user/repos/repo/pull-requests/42/activities"))
+                .isEqualTo("/rest/api/1.0/users/{name}/repos/{name}/pull-requests/{id}/activities");
+        assertThat(DecorationRecording.toEndpointTemplate("https://api.github.com/repos/owner/repo/pulls/42/commits?per_page=100"))
+                .isEqualTo("/repos/{name}/{name}/pulls/{id}/commits");
+        assertThat(DecorationRecording.toEndpointTemplate("https://api.github.com/app/installations/123/access_tokens"))
+                .isEqualTo("/app/installations/{id}/access_tokens");
+        assertThat(DecorationRecording.toEndpointTemplate("/api/v4/projects/group%2Fproject/merge_requests/3/discussions"))
+                .isEqualTo("/api/v4/projects/{name}/merge_requests/{id}/discussions");
+        assertThat(DecorationRecording.toEndpointTemplate("http://localhost:8080")).isEqualTo("/");
+        assertThat(DecorationRecording.toEndpointTemplate("/graphql")).isEqualTo("/graphql");
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2019 Michael Clarke
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+package com.github.mc1arke.sonarqube.plugin.ce.pullrequest.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesReportedFromBucketBounds() {
+        LatencyHistogram testCase = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            testCase.record(TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        testCase.record(TimeUnit.MILLISECONDS.toNanos(700));
+        testCase.record(TimeUnit.MILLISECONDS.toNanos(90000));
+
+        assertThat(testCase.getCount()).isEqualTo(100);
+        assertThat(testCase.getTotalMillis()).isEqualTo(98 * 3 + 700 + 90000);
+        assertThat(testCase.getMaxMillis()).isEqualTo(90000);
+        assertThat(testCase.getPercentileMillis(50)).isEqualTo(5);
+        assertThat(testCase.getPercentileMillis(99)).isEqualTo(1000);
+        assertThat(testCase.getPercentileMillis(100)).isEqualTo(90000);
+        assertThat(testCase.getBucketCounts()).containsEntry("<=5ms", 98L).containsEntry("<=1000ms", 1L)
+                .containsEntry(">60000ms", 1L).containsEntry("<=1ms", 0L).hasSize(16);
+    }
+
+    @Test
+    public void testPercentileLimitedToLongestDuration() {
+        LatencyHistogram testCase = new LatencyHistogram();
+        testCase.record(TimeUnit.MILLISECONDS.toNanos(120));
+
+        assertThat(testCase.getPercentileMillis(50)).isEqualTo(120);
+    }
+
+    @Test
+    public void testEmptyHistogramReportsZero() {
+        LatencyHistogram testCase = new LatencyHistogram();
+
+        assertThat(testCase.getCount()).isZero();
+        assertThat(testCase.getPercentileMillis(99)).isZero();
+        assertThat(testCase.getMaxMillis()).isZero();
+    }
+}